@@ -0,0 +1,196 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ *  Compares the facades produced by {@link BufferFacadeFactory}, for the same
+ *  random-access workload. The single-threaded facades are measured with one
+ *  thread; the thread-safe facades are measured both alone (to show the cost
+ *  of the thread-local lookup) and with all available threads. The "unsafe"
+ *  facades are inherently thread-safe, so use the same facade for both.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-XX:MaxDirectMemorySize=2g" })
+@State(Scope.Benchmark)
+public class BufferFacadeBenchmark
+{
+    private final static int INDEX_COUNT = 4096;        // power of 2
+
+    @Param({ "heap", "direct", "unsafeHeap", "unsafeDirect", "slab", "mapped", "mappedOffset" })
+    public String facadeType;
+
+    @Param({ "65536", "67108864", "1073741824" })
+    public int bufferSize;
+
+    public BufferFacade facade;
+    public BufferFacade threadsafeFacade;
+    private File file;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        if (facadeType.equals("heap"))
+        {
+            ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+            facade = BufferFacadeFactory.create(buf);
+            threadsafeFacade = BufferFacadeFactory.createThreadsafe(buf);
+        }
+        else if (facadeType.equals("direct"))
+        {
+            ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+            facade = BufferFacadeFactory.create(buf);
+            threadsafeFacade = BufferFacadeFactory.createThreadsafe(buf);
+        }
+        else if (facadeType.equals("unsafeHeap"))
+        {
+            // the unsafe facade is inherently thread-safe
+            facade = BufferFacadeFactory.createUnsafe(ByteBuffer.allocate(bufferSize));
+            threadsafeFacade = facade;
+        }
+        else if (facadeType.equals("unsafeDirect"))
+        {
+            facade = BufferFacadeFactory.createUnsafe(ByteBuffer.allocateDirect(bufferSize));
+            threadsafeFacade = facade;
+        }
+        else if (facadeType.equals("slab"))
+        {
+            // slab buffers are shareable; the slab size is chosen so that the largest buffer spans slabs
+            facade = new SlabBuffer(1 << 24, bufferSize);
+            threadsafeFacade = facade;
+        }
+        else
+        {
+            file = File.createTempFile("BufferFacadeBenchmark", ".tmp");
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(bufferSize + 1024);
+            }
+            finally
+            {
+                raf.close();
+            }
+            MappedFileBuffer buf = new MappedFileBuffer(file, true);
+            if (facadeType.equals("mapped"))
+            {
+                facade = BufferFacadeFactory.create(buf);
+                threadsafeFacade = BufferFacadeFactory.createThreadsafe(buf);
+            }
+            else
+            {
+                facade = BufferFacadeFactory.create(buf, 1024);
+                threadsafeFacade = BufferFacadeFactory.createThreadsafe(buf, 1024);
+            }
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if (file != null)
+            file.delete();
+    }
+
+
+    @State(Scope.Thread)
+    public static class Indexes
+    {
+        public long[] indexes = new long[INDEX_COUNT];
+        public int next;
+
+        @Setup(Level.Trial)
+        public void setUp(BufferFacadeBenchmark bench)
+        {
+            Random rnd = new Random(bench.bufferSize);
+            int slots = (bench.bufferSize - 8) / 8;
+            for (int ii = 0 ; ii < indexes.length ; ii++)
+                indexes[ii] = rnd.nextInt(slots) * 8L;
+        }
+
+        public long nextIndex()
+        {
+            return indexes[next++ & (INDEX_COUNT - 1)];
+        }
+    }
+
+
+    @Benchmark
+    public int getInt(Indexes idx)
+    {
+        return facade.getInt(idx.nextIndex());
+    }
+
+
+    @Benchmark
+    public long getLong(Indexes idx)
+    {
+        return facade.getLong(idx.nextIndex());
+    }
+
+
+    @Benchmark
+    public void putLong(Indexes idx)
+    {
+        long index = idx.nextIndex();
+        facade.putLong(index, index);
+    }
+
+
+    @Benchmark
+    public byte[] getBytes256(Indexes idx)
+    {
+        return facade.getBytes(idx.nextIndex(), 256);
+    }
+
+
+    @Benchmark
+    public long threadsafeGetLong(Indexes idx)
+    {
+        return threadsafeFacade.getLong(idx.nextIndex());
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long contendedThreadsafeGetLong(Indexes idx)
+    {
+        return threadsafeFacade.getLong(idx.nextIndex());
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void contendedThreadsafePutLong(Indexes idx)
+    {
+        long index = idx.nextIndex();
+        threadsafeFacade.putLong(index, index);
+    }
+}
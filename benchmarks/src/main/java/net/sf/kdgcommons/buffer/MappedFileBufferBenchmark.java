@@ -0,0 +1,203 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ *  Exercises {@link MappedFileBuffer} over files ranging from a single segment
+ *  to several GB. Files are created sparse, so the large sizes measure mapping
+ *  and segment selection rather than disk throughput (run with the file on a
+ *  tmpfs, or after a warm read, if you want to exclude page faults entirely).
+ *  <p>
+ *  The "contended" variants share a single buffer across all benchmark threads,
+ *  each of which accesses it via its own clone. The "shared" variants use the
+ *  single buffer directly from all threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappedFileBufferBenchmark
+{
+    private final static int INDEX_COUNT = 4096;        // power of 2
+
+
+    @State(Scope.Benchmark)
+    public static class SharedFile
+    {
+        @Param({ "1048576", "268435456", "4294967296" })
+        public long fileSize;
+
+        @Param({ "134217728" })
+        public int segmentSize;
+
+        public File file;
+        public MappedFileBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException
+        {
+            file = File.createTempFile("MappedFileBufferBenchmark", ".tmp");
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(fileSize);
+            }
+            finally
+            {
+                raf.close();
+            }
+            buffer = new MappedFileBuffer(file, Math.min(segmentSize, (int)Math.min(fileSize, Integer.MAX_VALUE)), true);
+        }
+
+        // JMH tears down the per-thread states (which depend on this one) first,
+        // so this releases the last reference to the mappings
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            buffer.close();
+            buffer = null;
+            file.delete();
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class PerThread
+    {
+        public MappedFileBuffer buffer;
+        public long[] indexes = new long[INDEX_COUNT];
+        public byte[] bulk = new byte[65536];
+        public int[] bulkInts = new int[16384];
+        public int next;
+
+        @Setup(Level.Trial)
+        public void setUp(SharedFile shared)
+        {
+            buffer = shared.buffer.clone();
+
+            // aligned offsets, spread over the whole file; precomputed so that we
+            // don't measure the random number generator
+            Random rnd = new Random(shared.fileSize);
+            long slots = (shared.fileSize - bulk.length) / 8;
+            for (int ii = 0 ; ii < indexes.length ; ii++)
+                indexes[ii] = (Math.abs(rnd.nextLong()) % slots) * 8;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            buffer.close();
+            buffer = null;
+        }
+
+        public long nextIndex()
+        {
+            return indexes[next++ & (INDEX_COUNT - 1)];
+        }
+    }
+
+
+    @Benchmark
+    public long randomGetLong(PerThread state)
+    {
+        return state.buffer.getLong(state.nextIndex());
+    }
+
+
+    @Benchmark
+    public void randomPutLong(PerThread state)
+    {
+        long index = state.nextIndex();
+        state.buffer.putLong(index, index);
+    }
+
+
+    @Benchmark
+    public int randomGetInt(PerThread state)
+    {
+        return state.buffer.getInt(state.nextIndex());
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] randomGetBytes64K(PerThread state)
+    {
+        return state.buffer.getBytes(state.nextIndex(), state.bulk, 0, state.bulk.length);
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void sequentialScanInts64K(PerThread state, Blackhole bh)
+    {
+        long base = state.nextIndex();
+        for (long ii = base ; ii < base + 65536 ; ii += 4)
+            bh.consume(state.buffer.getInt(ii));
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int[] sequentialBulkInts64K(PerThread state)
+    {
+        return state.buffer.getInts(state.nextIndex(), state.bulkInts, 0, state.bulkInts.length);
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long contendedRandomGetLong(PerThread state)
+    {
+        return state.buffer.getLong(state.nextIndex());
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void contendedRandomPutLong(PerThread state)
+    {
+        long index = state.nextIndex();
+        state.buffer.putLong(index, index);
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long sharedRandomGetLong(SharedFile shared, PerThread state)
+    {
+        return shared.buffer.getLong(state.nextIndex());
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long sharedGetAndAddLong(SharedFile shared, PerThread state)
+    {
+        return shared.buffer.getAndAddLong(state.nextIndex(), 1L);
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ *  Measures {@link Base64Codec} encoding and decoding, from small tokens to
+ *  multi-MB attachments, for each of the standard options. Results are reported
+ *  as throughput in operations per second; multiply by <code>dataSize</code>
+ *  to get bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base64CodecBenchmark
+{
+    @Param({ "64", "4096", "4194304" })
+    public int dataSize;
+
+    @Param({ "UNBROKEN", "RFC1421", "FILENAME" })
+    public Base64Codec.Option option;
+
+    private Base64Codec codec;
+    private byte[] data;
+    private byte[] encoded;
+    private String encodedString;
+    private ByteBuffer directData;
+    private ByteBuffer directEncoded;
+    private ByteBuffer directOutput;
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        codec = new Base64Codec(option);
+        data = new byte[dataSize];
+        new Random(dataSize).nextBytes(data);
+        encoded = codec.encode(data);
+        encodedString = codec.toString(data);
+
+        directData = ByteBuffer.allocateDirect(data.length);
+        directData.put(data).flip();
+        directEncoded = ByteBuffer.allocateDirect(encoded.length);
+        directEncoded.put(encoded).flip();
+        directOutput = ByteBuffer.allocateDirect(encoded.length);
+    }
+
+
+    @Benchmark
+    public byte[] encode()
+    {
+        return codec.encode(data);
+    }
+
+
+    @Benchmark
+    public byte[] decode()
+    {
+        return codec.decode(encoded);
+    }
+
+
+    @Benchmark
+    public String encodeToString()
+    {
+        return codec.toString(data);
+    }
+
+
+    @Benchmark
+    public byte[] decodeFromString()
+    {
+        return codec.toBytes(encodedString);
+    }
+
+
+    @Benchmark
+    public int encodeDirectBuffer()
+    {
+        directData.rewind();
+        directOutput.clear();
+        return codec.encode(directData, directOutput);
+    }
+
+
+    @Benchmark
+    public int decodeDirectBuffer()
+    {
+        directEncoded.rewind();
+        directOutput.clear();
+        return codec.decode(directEncoded, directOutput);
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] contendedEncode()
+    {
+        // each thread has its own data; this shows how well the per-call
+        // allocations scale
+        return codec.encode(data);
+    }
+}
@@ -0,0 +1,77 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.codec;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ *  Measures {@link HexCodec} encoding and decoding, with and without line
+ *  breaks. Results are operations per second; multiply by <code>dataSize</code>
+ *  to get bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HexCodecBenchmark
+{
+    @Param({ "64", "4096", "4194304" })
+    public int dataSize;
+
+    @Param({ "false", "true" })
+    public boolean withLineBreaks;
+
+    private HexCodec codec;
+    private byte[] data;
+    private byte[] encoded;
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        codec = withLineBreaks ? new HexCodec(64, "\r\n") : new HexCodec();
+        data = new byte[dataSize];
+        new Random(dataSize).nextBytes(data);
+        encoded = codec.encode(data);
+    }
+
+
+    @Benchmark
+    public byte[] encode()
+    {
+        return codec.encode(data);
+    }
+
+
+    @Benchmark
+    public byte[] decode()
+    {
+        return codec.decode(encoded);
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] contendedDecode()
+    {
+        return codec.decode(encoded);
+    }
+}
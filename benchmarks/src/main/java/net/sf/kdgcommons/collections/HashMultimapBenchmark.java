@@ -0,0 +1,111 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.collections;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ *  Measures {@link HashMultimap} lookups and population, for maps from a few
+ *  hundred to a million mappings, with a varying number of values per key.
+ *  <p>
+ *  <code>HashMultimap</code> is not thread-safe, so there are no contended
+ *  variants.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@State(Scope.Thread)
+public class HashMultimapBenchmark
+{
+    private final static int KEY_COUNT = 4096;          // power of 2
+
+    @Param({ "100", "10000", "1000000" })
+    public int size;
+
+    @Param({ "1", "4" })
+    public int valuesPerKey;
+
+    private HashMultimap<Integer,Integer> map;
+    private Integer[] keys = new Integer[KEY_COUNT];
+    private Integer[] values;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        map = new HashMultimap<Integer,Integer>();
+        values = new Integer[size];
+        int keyCount = size / valuesPerKey;
+        for (int ii = 0 ; ii < size ; ii++)
+        {
+            values[ii] = Integer.valueOf(ii);
+            map.put(Integer.valueOf(ii % keyCount), values[ii]);
+        }
+
+        Random rnd = new Random(size);
+        for (int ii = 0 ; ii < keys.length ; ii++)
+            keys[ii] = Integer.valueOf(rnd.nextInt(keyCount));
+    }
+
+
+    private Integer nextKey()
+    {
+        return keys[next++ & (KEY_COUNT - 1)];
+    }
+
+
+    @Benchmark
+    public Integer get()
+    {
+        return map.get(nextKey());
+    }
+
+
+    @Benchmark
+    public void iterateValues(Blackhole bh)
+    {
+        for (Iterator<Integer> itx = map.getIterator(nextKey()) ; itx.hasNext() ; )
+            bh.consume(itx.next());
+    }
+
+
+    @Benchmark
+    public boolean containsMapping()
+    {
+        Integer key = nextKey();
+        return map.containsMapping(key, key);
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public HashMultimap<Integer,Integer> populate()
+    {
+        HashMultimap<Integer,Integer> newMap = new HashMultimap<Integer,Integer>();
+        int keyCount = size / valuesPerKey;
+        for (int ii = 0 ; ii < size ; ii++)
+            newMap.put(values[ii % keyCount], values[ii]);
+        return newMap;
+    }
+}
@@ -0,0 +1,106 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.collections;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ *  Measures {@link InplaceSort} against random data, with the JDK's sort as a
+ *  baseline. Each invocation sorts a fresh copy of the same random array; the
+ *  copy is made in an invocation-level setup method so it isn't measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@State(Scope.Thread)
+public class InplaceSortBenchmark
+{
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    private int[] sourceInts;
+    private Integer[] sourceObjects;
+    private int[] ints;
+    private Integer[] objects;
+
+    private InplaceSort.IntComparator intComparator = new InplaceSort.IntComparator()
+    {
+        public int compare(int i1, int i2)
+        {
+            return (i1 < i2) ? -1 : (i1 > i2) ? 1 : 0;
+        }
+    };
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Random rnd = new Random(size);
+        sourceInts = new int[size];
+        sourceObjects = new Integer[size];
+        for (int ii = 0 ; ii < size ; ii++)
+        {
+            sourceInts[ii] = rnd.nextInt();
+            sourceObjects[ii] = Integer.valueOf(sourceInts[ii]);
+        }
+    }
+
+
+    @Setup(Level.Invocation)
+    public void copyData()
+    {
+        ints = sourceInts.clone();
+        objects = sourceObjects.clone();
+    }
+
+
+    @Benchmark
+    public int[] sortIntsWithComparator()
+    {
+        InplaceSort.sort(ints, intComparator);
+        return ints;
+    }
+
+
+    @Benchmark
+    public Integer[] sortObjects()
+    {
+        InplaceSort.sort(objects);
+        return objects;
+    }
+
+
+    @Benchmark
+    public int[] baselineArraysSortInts()
+    {
+        Arrays.sort(ints);
+        return ints;
+    }
+
+
+    @Benchmark
+    public Integer[] baselineArraysSortObjects()
+    {
+        Arrays.sort(objects);
+        return objects;
+    }
+}
@@ -0,0 +1,100 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ *  Measures {@link StringCanon#intern}, for strings that are already canonical
+ *  (the common case) and for new strings, single-threaded and with all threads
+ *  sharing one canon.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringCanonBenchmark
+{
+    private final static int STRING_COUNT = 4096;       // power of 2
+
+
+    @State(Scope.Benchmark)
+    public static class SharedCanon
+    {
+        @Param({ "100", "100000" })
+        public int canonSize;
+
+        public StringCanon canon;
+        public String[] canonical;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            canon = new StringCanon();
+            canonical = new String[canonSize];
+            for (int ii = 0 ; ii < canonSize ; ii++)
+                canonical[ii] = canon.intern("string-" + ii);
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class Lookups
+    {
+        public String[] existing = new String[STRING_COUNT];
+        public int next;
+        public long unique;
+
+        @Setup(Level.Trial)
+        public void setUp(SharedCanon shared)
+        {
+            // distinct instances that are equal to canonical values
+            for (int ii = 0 ; ii < existing.length ; ii++)
+                existing[ii] = new String("string-" + (ii % shared.canonSize));
+        }
+
+        public String nextExisting()
+        {
+            return existing[next++ & (STRING_COUNT - 1)];
+        }
+    }
+
+
+    @Benchmark
+    public String internExisting(SharedCanon shared, Lookups lookups)
+    {
+        return shared.canon.intern(lookups.nextExisting());
+    }
+
+
+    @Benchmark
+    public String internNew(SharedCanon shared, Lookups lookups)
+    {
+        // includes the cost of building the string; these will be collected
+        return shared.canon.intern("new-" + Thread.currentThread().getId() + "-" + lookups.unique++);
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String contendedInternExisting(SharedCanon shared, Lookups lookups)
+    {
+        return shared.canon.intern(lookups.nextExisting());
+    }
+}
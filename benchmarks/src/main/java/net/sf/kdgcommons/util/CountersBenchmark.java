@@ -0,0 +1,110 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ *  Measures {@link Counters} increments and reads. The contended variants have
+ *  all threads updating the same map; with a single key they all update the
+ *  same counter, which is the worst case.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountersBenchmark
+{
+    private final static int KEY_INDEX_COUNT = 4096;    // power of 2
+
+
+    @State(Scope.Benchmark)
+    public static class SharedCounters
+    {
+        @Param({ "1", "100", "100000" })
+        public int keyCount;
+
+        public Counters<String> counters;
+        public String[] keys;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            counters = new Counters<String>();
+            keys = new String[keyCount];
+            for (int ii = 0 ; ii < keyCount ; ii++)
+            {
+                keys[ii] = "key-" + ii;
+                counters.putLong(keys[ii], 0);
+            }
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class KeySequence
+    {
+        public String[] keys = new String[KEY_INDEX_COUNT];
+        public int next;
+
+        @Setup(Level.Trial)
+        public void setUp(SharedCounters shared)
+        {
+            Random rnd = new Random(Thread.currentThread().getId());
+            for (int ii = 0 ; ii < keys.length ; ii++)
+                keys[ii] = shared.keys[rnd.nextInt(shared.keyCount)];
+        }
+
+        public String nextKey()
+        {
+            return keys[next++ & (KEY_INDEX_COUNT - 1)];
+        }
+    }
+
+
+    @Benchmark
+    public long increment(SharedCounters shared, KeySequence seq)
+    {
+        return shared.counters.increment(seq.nextKey());
+    }
+
+
+    @Benchmark
+    public long getLong(SharedCounters shared, KeySequence seq)
+    {
+        return shared.counters.getLong(seq.nextKey());
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long contendedIncrement(SharedCounters shared, KeySequence seq)
+    {
+        return shared.counters.increment(seq.nextKey());
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long contendedGetLong(SharedCounters shared, KeySequence seq)
+    {
+        return shared.counters.getLong(seq.nextKey());
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import net.sf.kdgcommons.util.ReadThroughCache.Retriever;
+import net.sf.kdgcommons.util.ReadThroughCache.Synchronization;
+
+
+/**
+ *  Measures {@link ReadThroughCache} retrieval. The key space is a multiple of
+ *  the cache size: a ratio of 1 means that (after warmup) every retrieve is a
+ *  hit; larger ratios mix in misses and evictions. The retriever is trivial, so
+ *  the numbers reflect cache overhead rather than load cost.
+ *  <p>
+ *  The contended variants share one cache between all available threads, which
+ *  is how the cache is used on a request path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadThroughCacheBenchmark
+{
+    private final static int KEY_INDEX_COUNT = 8192;    // power of 2
+
+
+    @State(Scope.Benchmark)
+    public static class SharedCache
+    {
+        @Param({ "1000", "100000" })
+        public int cacheSize;
+
+        @Param({ "1", "2" })
+        public int keySpaceRatio;
+
+        @Param({ "NONE", "BY_KEY", "SINGLE_THREADED" })
+        public Synchronization synchronization;
+
+        @Param({ "1", "16" })
+        public int concurrencyLevel;
+
+        public ReadThroughCache<Integer,Integer> cache;
+        public Integer[] keys;
+
+        @Setup(Level.Trial)
+        public void setUp() throws InterruptedException
+        {
+            cache = new ReadThroughCache.Builder<Integer,Integer>(cacheSize, new IdentityRetriever())
+                    .synchronization(synchronization)
+                    .concurrencyLevel(concurrencyLevel)
+                    .build();
+            keys = new Integer[cacheSize * keySpaceRatio];
+            for (int ii = 0 ; ii < keys.length ; ii++)
+                keys[ii] = Integer.valueOf(ii);
+            for (int ii = 0 ; ii < cacheSize ; ii++)
+                cache.retrieve(keys[ii]);
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class KeySequence
+    {
+        public Integer[] keys = new Integer[KEY_INDEX_COUNT];
+        public int next;
+
+        @Setup(Level.Trial)
+        public void setUp(SharedCache shared)
+        {
+            Random rnd = new Random(Thread.currentThread().getId());
+            for (int ii = 0 ; ii < keys.length ; ii++)
+                keys[ii] = shared.keys[rnd.nextInt(shared.keys.length)];
+        }
+
+        public Integer nextKey()
+        {
+            return keys[next++ & (KEY_INDEX_COUNT - 1)];
+        }
+    }
+
+
+    private static class IdentityRetriever
+    implements Retriever<Integer,Integer>
+    {
+        public Integer retrieve(Integer key)
+        {
+            return key;
+        }
+    }
+
+
+    @Benchmark
+    public Integer retrieve(SharedCache shared, KeySequence seq) throws InterruptedException
+    {
+        return shared.cache.retrieve(seq.nextKey());
+    }
+
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Integer contendedRetrieve(SharedCache shared, KeySequence seq) throws InterruptedException
+    {
+        return shared.cache.retrieve(seq.nextKey());
+    }
+}
@@ -24,6 +24,10 @@ import java.nio.ByteBuffer;
  *  <p>
  *  All methods use a <code>long</code> index. However, depending on the actual
  *  implementation, index values may be limited to <code>Integer.MAX_VALUE</code>.
+ *  <p>
+ *  In addition to single-value access, there are bulk methods that transfer
+ *  arrays of primitive values. These are much faster than repeated single-value
+ *  calls, as they use the underlying buffer's bulk operations.
  */
 public interface BufferFacade
 {
@@ -139,6 +143,146 @@ public interface BufferFacade
     public void putBytes(long index, byte[] value);
 
 
+    /**
+     *  Retrieves <code>len</code> bytes starting at the specified index (relative
+     *  to the relocation base), storing them in the passed array starting at
+     *  <code>off</code>. Returns the array as a convenience.
+     *
+     *  @since 1.1.0
+     */
+    public byte[] getBytes(long index, byte[] array, int off, int len);
+
+
+    /**
+     *  Inserts <code>len</code> bytes from the passed array, starting at array
+     *  offset <code>off</code>, into the buffer starting at the given index
+     *  (relative to the relocation base).
+     *
+     *  @since 1.1.0
+     */
+    public void putBytes(long index, byte[] value, int off, int len);
+
+
+    /**
+     *  Retrieves <code>len</code> 2-byte <code>short</code> values starting at the
+     *  specified index (relative to the relocation base), storing them in the
+     *  passed array starting at <code>off</code>. Returns the array as a convenience.
+     *
+     *  @since 1.1.0
+     */
+    public short[] getShorts(long index, short[] array, int off, int len);
+
+
+    /**
+     *  Stores <code>len</code> 2-byte <code>short</code> values from the passed array,
+     *  starting at array offset <code>off</code>, into the buffer starting at the
+     *  given index (relative to the relocation base).
+     *
+     *  @since 1.1.0
+     */
+    public void putShorts(long index, short[] value, int off, int len);
+
+
+    /**
+     *  Retrieves <code>len</code> 4-byte <code>int</code> values starting at the
+     *  specified index (relative to the relocation base), storing them in the
+     *  passed array starting at <code>off</code>. Returns the array as a convenience.
+     *
+     *  @since 1.1.0
+     */
+    public int[] getInts(long index, int[] array, int off, int len);
+
+
+    /**
+     *  Stores <code>len</code> 4-byte <code>int</code> values from the passed array,
+     *  starting at array offset <code>off</code>, into the buffer starting at the
+     *  given index (relative to the relocation base).
+     *
+     *  @since 1.1.0
+     */
+    public void putInts(long index, int[] value, int off, int len);
+
+
+    /**
+     *  Retrieves <code>len</code> 8-byte <code>long</code> values starting at the
+     *  specified index (relative to the relocation base), storing them in the
+     *  passed array starting at <code>off</code>. Returns the array as a convenience.
+     *
+     *  @since 1.1.0
+     */
+    public long[] getLongs(long index, long[] array, int off, int len);
+
+
+    /**
+     *  Stores <code>len</code> 8-byte <code>long</code> values from the passed array,
+     *  starting at array offset <code>off</code>, into the buffer starting at the
+     *  given index (relative to the relocation base).
+     *
+     *  @since 1.1.0
+     */
+    public void putLongs(long index, long[] value, int off, int len);
+
+
+    /**
+     *  Retrieves <code>len</code> 4-byte <code>float</code> values starting at the
+     *  specified index (relative to the relocation base), storing them in the
+     *  passed array starting at <code>off</code>. Returns the array as a convenience.
+     *
+     *  @since 1.1.0
+     */
+    public float[] getFloats(long index, float[] array, int off, int len);
+
+
+    /**
+     *  Stores <code>len</code> 4-byte <code>float</code> values from the passed array,
+     *  starting at array offset <code>off</code>, into the buffer starting at the
+     *  given index (relative to the relocation base).
+     *
+     *  @since 1.1.0
+     */
+    public void putFloats(long index, float[] value, int off, int len);
+
+
+    /**
+     *  Retrieves <code>len</code> 8-byte <code>double</code> values starting at the
+     *  specified index (relative to the relocation base), storing them in the
+     *  passed array starting at <code>off</code>. Returns the array as a convenience.
+     *
+     *  @since 1.1.0
+     */
+    public double[] getDoubles(long index, double[] array, int off, int len);
+
+
+    /**
+     *  Stores <code>len</code> 8-byte <code>double</code> values from the passed array,
+     *  starting at array offset <code>off</code>, into the buffer starting at the
+     *  given index (relative to the relocation base).
+     *
+     *  @since 1.1.0
+     */
+    public void putDoubles(long index, double[] value, int off, int len);
+
+
+    /**
+     *  Retrieves <code>len</code> 2-byte <code>char</code> values starting at the
+     *  specified index (relative to the relocation base), storing them in the
+     *  passed array starting at <code>off</code>. Returns the array as a convenience.
+     *
+     *  @since 1.1.0
+     */
+    public char[] getChars(long index, char[] array, int off, int len);
+
+
+    /**
+     *  Stores <code>len</code> 2-byte <code>char</code> values from the passed array,
+     *  starting at array offset <code>off</code>, into the buffer starting at the
+     *  given index (relative to the relocation base).
+     *
+     *  @since 1.1.0
+     */
+    public void putChars(long index, char[] value, int off, int len);
+
+
     /**
      *  Returns a <code>ByteBuffer</code> that represents a slice of the
      *  underlying buffer (ie, shares the same backing store), starting at
@@ -0,0 +1,272 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+
+
+/**
+ *  A seekable <code>ByteChannel</code> over a {@link BufferFacade}, such as a
+ *  {@link MappedFileBuffer}. This provides the same operations as the JDK 7
+ *  <code>SeekableByteChannel</code> ({@link #position}, {@link #size}, and
+ *  {@link #truncate}), with <code>long</code> positions, so can be used with
+ *  channel-based code to stream through buffers larger than 2 GB.
+ *  <p>
+ *  The channel maintains its own size, which is initially the buffer's limit
+ *  (or a size passed to the constructor), and is extended by writes past the
+ *  current size. Truncating the channel only changes this size; it does not
+ *  release any memory held by the buffer. As with {@link BufferFacadeOutputStream},
+ *  writes past the capacity of a buffer that can't grow will throw
+ *  <code>IOException</code>, and writes to a read-only buffer throw
+ *  <code>NonWritableChannelException</code>.
+ *  <p>
+ *  Transfers use the facade's bulk operations. When the caller's buffer does
+ *  not have an accessible array (eg, it's direct), data is copied through an
+ *  intermediate array. A read from a position that is within the channel's size
+ *  but past the buffer's limit throws <code>IOException</code>.
+ *  <p>
+ *  As required by the <code>Channel</code> contract, instances are thread-safe.
+ *
+ *  @since 1.1.0
+ */
+public class BufferFacadeChannel
+implements ByteChannel
+{
+    private final static int COPY_BUFFER_SIZE = 8192;
+
+    private BufferFacade _buf;
+    private long _position;
+    private long _size;
+    private boolean _isOpen = true;
+
+    private byte[] _copyBuffer;         // lazily allocated, for direct buffers
+
+
+    /**
+     *  Creates an instance whose size is the buffer's limit.
+     */
+    public BufferFacadeChannel(BufferFacade buf)
+    {
+        this(buf, buf.limit());
+    }
+
+
+    /**
+     *  Creates an instance with a specified initial size; for example, a growable
+     *  buffer that is to be written from the start should have a size of 0.
+     */
+    public BufferFacadeChannel(BufferFacade buf, long size)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("invalid size: " + size);
+
+        _buf = buf;
+        _size = size;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Seekable operations
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the channel's current position.
+     */
+    public synchronized long position()
+    throws IOException
+    {
+        checkOpen();
+        return _position;
+    }
+
+
+    /**
+     *  Sets the channel's position. Setting a position past the current size is
+     *  legal: reads will return end-of-file, while writes will extend the size.
+     *  Returns this channel, for chaining.
+     */
+    public synchronized BufferFacadeChannel position(long newPosition)
+    throws IOException
+    {
+        checkOpen();
+        if (newPosition < 0)
+            throw new IllegalArgumentException("invalid position: " + newPosition);
+        _position = newPosition;
+        return this;
+    }
+
+
+    /**
+     *  Returns the channel's current size.
+     */
+    public synchronized long size()
+    throws IOException
+    {
+        checkOpen();
+        return _size;
+    }
+
+
+    /**
+     *  Reduces the channel's size, if it's larger than the passed value. If the
+     *  position is past the new size, it's set to the new size. Returns this
+     *  channel, for chaining.
+     */
+    public synchronized BufferFacadeChannel truncate(long size)
+    throws IOException
+    {
+        checkOpen();
+        if (size < 0)
+            throw new IllegalArgumentException("invalid size: " + size);
+
+        if (size < _size)
+            _size = size;
+        if (_position > size)
+            _position = size;
+        return this;
+    }
+
+
+//----------------------------------------------------------------------------
+//  ByteChannel
+//----------------------------------------------------------------------------
+
+    public synchronized boolean isOpen()
+    {
+        return _isOpen;
+    }
+
+
+    public synchronized void close()
+    throws IOException
+    {
+        _isOpen = false;
+    }
+
+
+    public synchronized int read(ByteBuffer dst)
+    throws IOException
+    {
+        checkOpen();
+        long available = _size - _position;
+        if (available <= 0)
+            return dst.hasRemaining() ? -1 : 0;
+
+        int count = (int)Math.min(dst.remaining(), Math.min(available, _buf.limit() - _position));
+        if (count <= 0)
+        {
+            if (! dst.hasRemaining())
+                return 0;
+            throw new IOException("position " + _position + " is past buffer limit " + _buf.limit());
+        }
+
+        if (dst.hasArray())
+        {
+            int pos = dst.position();
+            _buf.getBytes(_position, dst.array(), dst.arrayOffset() + pos, count);
+            dst.position(pos + count);
+        }
+        else
+        {
+            byte[] copyBuffer = copyBuffer();
+            for (long index = _position, remaining = count ; remaining > 0 ; )
+            {
+                int chunk = (int)Math.min(remaining, copyBuffer.length);
+                _buf.getBytes(index, copyBuffer, 0, chunk);
+                dst.put(copyBuffer, 0, chunk);
+                index += chunk;
+                remaining -= chunk;
+            }
+        }
+
+        _position += count;
+        return count;
+    }
+
+
+    public synchronized int write(ByteBuffer src)
+    throws IOException
+    {
+        checkOpen();
+        int count = src.remaining();
+        try
+        {
+            if (src.hasArray())
+            {
+                int pos = src.position();
+                _buf.putBytes(_position, src.array(), src.arrayOffset() + pos, count);
+                src.position(pos + count);
+            }
+            else
+            {
+                byte[] copyBuffer = copyBuffer();
+                for (long index = _position ; src.hasRemaining() ; )
+                {
+                    int chunk = Math.min(src.remaining(), copyBuffer.length);
+                    src.get(copyBuffer, 0, chunk);
+                    _buf.putBytes(index, copyBuffer, 0, chunk);
+                    index += chunk;
+                }
+            }
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            throw new NonWritableChannelException();
+        }
+        catch (RuntimeException ex)
+        {
+            if (! ((ex instanceof IndexOutOfBoundsException)
+                   || (ex instanceof BufferOverflowException)
+                   || (ex instanceof IllegalArgumentException)))
+                throw ex;
+
+            IOException ex2 = new IOException("write too large: " + count + " bytes at position " + _position
+                                              + ", buffer capacity is " + _buf.capacity());
+            ex2.initCause(ex);
+            throw ex2;
+        }
+
+        _position += count;
+        if (_position > _size)
+            _size = _position;
+        return count;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void checkOpen()
+    throws IOException
+    {
+        if (! _isOpen)
+            throw new ClosedChannelException();
+    }
+
+
+    private byte[] copyBuffer()
+    {
+        if (_copyBuffer == null)
+            _copyBuffer = new byte[COPY_BUFFER_SIZE];
+        return _copyBuffer;
+    }
+}
@@ -15,6 +15,8 @@
 package net.sf.kdgcommons.buffer;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
 
 
 /**
@@ -29,6 +31,10 @@ import java.nio.ByteBuffer;
  *  <li> <code>create()</code> creates a facade for single-threaded access
  *  <li> <code>createThreadsafe</code> creates a facade that will support concurrent
  *       access
+ *  <li> <code>createUnsafe</code> creates a facade that accesses buffer memory
+ *       directly; it supports concurrent access, and is significantly faster than
+ *       the other facades, but by default does not check bounds on single-value
+ *       access
  *  </ul>
  *  <p>
  *  If you don't like the factory method, the implementation classes are exposed.
@@ -109,20 +115,63 @@ public class BufferFacadeFactory
 
     /**
      *  Creates a thread-safe instance that accesses a {@link MappedFileBuffer}.
+     *  <p>
+     *  As of 1.1.0, <code>MappedFileBuffer</code> may be shared between threads,
+     *  so this method returns the buffer itself, rather than a facade that
+     *  clones it for each thread.
      */
     public static BufferFacade createThreadsafe(MappedFileBuffer buf)
     {
-        return new MappedFileBufferTLFacade(buf);
+        return buf;
     }
 
 
     /**
      *  Creates a thread-safe instance that accesses a {@link MappedFileBuffer},
      *  with offsets relative to the specified base  value.
+     *  <p>
+     *  As of 1.1.0, this returns the same (shared) facade as {@link
+     *  #create(MappedFileBuffer,long)}.
      */
     public static BufferFacade createThreadsafe(MappedFileBuffer buf, long base)
     {
-        return new MappedFileBufferTLFacade(buf, (int)base);
+        return new MappedFileBufferFacade(buf, base);
+    }
+
+
+    /**
+     *  Creates a thread-safe instance that accesses the memory of a direct or array-backed
+     *  <code>ByteBuffer</code> by address (see {@link UnsafeFacade}). Single-value accesses
+     *  are not bounds-checked. If the JVM does not support this, the platform does not permit
+     *  unaligned access, or the buffer is a read-only heap buffer, returns the same facade as
+     *  {@link #createThreadsafe(ByteBuffer)}.
+     *
+     *  @since 1.1.0
+     */
+    public static BufferFacade createUnsafe(ByteBuffer buf)
+    {
+        return createUnsafe(buf, 0, false);
+    }
+
+
+    /**
+     *  Creates a thread-safe instance that accesses the memory of a direct or array-backed
+     *  <code>ByteBuffer</code> by address (see {@link UnsafeFacade}), with offsets relative
+     *  to the specified base value.
+     *
+     *  @param  buf         The buffer.
+     *  @param  base        Offset of index 0 within the buffer; limited to
+     *                      <code>Integer.MAX_VALUE</code>.
+     *  @param  checked     If <code>true</code>, every access is bounds-checked; if
+     *                      <code>false</code>, only bulk accesses are checked.
+     *
+     *  @since 1.1.0
+     */
+    public static BufferFacade createUnsafe(ByteBuffer buf, long base, boolean checked)
+    {
+        if (UnsafeFacade.isSupported() && (buf.isDirect() || buf.hasArray()))
+            return new UnsafeFacade(buf, (int)base, checked);
+        return new ByteBufferTLFacade(buf, (int)base);
     }
 
 
@@ -235,6 +284,97 @@ public class BufferFacadeFactory
             _buf.put(value);
         }
 
+        public byte[] getBytes(long index, byte[] array, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.get(array, off, len);
+            return array;
+        }
+
+        public void putBytes(long index, byte[] value, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.put(value, off, len);
+        }
+
+        public short[] getShorts(long index, short[] array, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asShortBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putShorts(long index, short[] value, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asShortBuffer().put(value, off, len);
+        }
+
+        public int[] getInts(long index, int[] array, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asIntBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putInts(long index, int[] value, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asIntBuffer().put(value, off, len);
+        }
+
+        public long[] getLongs(long index, long[] array, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asLongBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putLongs(long index, long[] value, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asLongBuffer().put(value, off, len);
+        }
+
+        public float[] getFloats(long index, float[] array, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asFloatBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putFloats(long index, float[] value, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asFloatBuffer().put(value, off, len);
+        }
+
+        public double[] getDoubles(long index, double[] array, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asDoubleBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putDoubles(long index, double[] value, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asDoubleBuffer().put(value, off, len);
+        }
+
+        public char[] getChars(long index, char[] array, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asCharBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putChars(long index, char[] value, int off, int len)
+        {
+            _buf.position((int)index + _base);
+            _buf.asCharBuffer().put(value, off, len);
+        }
+
         public ByteBuffer slice(long index)
         {
             _buf.position((int)index + _base);
@@ -361,6 +501,111 @@ public class BufferFacadeFactory
             buf.put(value);
         }
 
+        public byte[] getBytes(long index, byte[] array, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.get(array, off, len);
+            return array;
+        }
+
+        public void putBytes(long index, byte[] value, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.put(value, off, len);
+        }
+
+        public short[] getShorts(long index, short[] array, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asShortBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putShorts(long index, short[] value, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asShortBuffer().put(value, off, len);
+        }
+
+        public int[] getInts(long index, int[] array, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asIntBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putInts(long index, int[] value, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asIntBuffer().put(value, off, len);
+        }
+
+        public long[] getLongs(long index, long[] array, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asLongBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putLongs(long index, long[] value, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asLongBuffer().put(value, off, len);
+        }
+
+        public float[] getFloats(long index, float[] array, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asFloatBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putFloats(long index, float[] value, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asFloatBuffer().put(value, off, len);
+        }
+
+        public double[] getDoubles(long index, double[] array, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asDoubleBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putDoubles(long index, double[] value, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asDoubleBuffer().put(value, off, len);
+        }
+
+        public char[] getChars(long index, char[] array, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asCharBuffer().get(array, off, len);
+            return array;
+        }
+
+        public void putChars(long index, char[] value, int off, int len)
+        {
+            ByteBuffer buf = _tl.get();
+            buf.position((int)index + _base);
+            buf.asCharBuffer().put(value, off, len);
+        }
+
         public ByteBuffer slice(long index)
         {
             ByteBuffer buf = _tl.get();
@@ -482,6 +727,76 @@ public class BufferFacadeFactory
             _buf.putBytes(index + _base, value);
         }
 
+        public byte[] getBytes(long index, byte[] array, int off, int len)
+        {
+            return _buf.getBytes(index + _base, array, off, len);
+        }
+
+        public void putBytes(long index, byte[] value, int off, int len)
+        {
+            _buf.putBytes(index + _base, value, off, len);
+        }
+
+        public short[] getShorts(long index, short[] array, int off, int len)
+        {
+            return _buf.getShorts(index + _base, array, off, len);
+        }
+
+        public void putShorts(long index, short[] value, int off, int len)
+        {
+            _buf.putShorts(index + _base, value, off, len);
+        }
+
+        public int[] getInts(long index, int[] array, int off, int len)
+        {
+            return _buf.getInts(index + _base, array, off, len);
+        }
+
+        public void putInts(long index, int[] value, int off, int len)
+        {
+            _buf.putInts(index + _base, value, off, len);
+        }
+
+        public long[] getLongs(long index, long[] array, int off, int len)
+        {
+            return _buf.getLongs(index + _base, array, off, len);
+        }
+
+        public void putLongs(long index, long[] value, int off, int len)
+        {
+            _buf.putLongs(index + _base, value, off, len);
+        }
+
+        public float[] getFloats(long index, float[] array, int off, int len)
+        {
+            return _buf.getFloats(index + _base, array, off, len);
+        }
+
+        public void putFloats(long index, float[] value, int off, int len)
+        {
+            _buf.putFloats(index + _base, value, off, len);
+        }
+
+        public double[] getDoubles(long index, double[] array, int off, int len)
+        {
+            return _buf.getDoubles(index + _base, array, off, len);
+        }
+
+        public void putDoubles(long index, double[] value, int off, int len)
+        {
+            _buf.putDoubles(index + _base, value, off, len);
+        }
+
+        public char[] getChars(long index, char[] array, int off, int len)
+        {
+            return _buf.getChars(index + _base, array, off, len);
+        }
+
+        public void putChars(long index, char[] value, int off, int len)
+        {
+            _buf.putChars(index + _base, value, off, len);
+        }
+
         public ByteBuffer slice(long index)
         {
             return _buf.slice(index + _base);
@@ -501,7 +816,8 @@ public class BufferFacadeFactory
 
     /**
      *  A facade for a {@link MappedFileBuffer} that uses a thread-local to
-     *  allow concurrent access.
+     *  allow concurrent access. This is no longer used by the factory methods,
+     *  as <code>MappedFileBuffer</code> now supports concurrent access.
      */
     public static class MappedFileBufferTLFacade
     implements BufferFacade
@@ -600,6 +916,76 @@ public class BufferFacadeFactory
             _tl.get().putBytes(index + _base, value);
         }
 
+        public byte[] getBytes(long index, byte[] array, int off, int len)
+        {
+            return _tl.get().getBytes(index + _base, array, off, len);
+        }
+
+        public void putBytes(long index, byte[] value, int off, int len)
+        {
+            _tl.get().putBytes(index + _base, value, off, len);
+        }
+
+        public short[] getShorts(long index, short[] array, int off, int len)
+        {
+            return _tl.get().getShorts(index + _base, array, off, len);
+        }
+
+        public void putShorts(long index, short[] value, int off, int len)
+        {
+            _tl.get().putShorts(index + _base, value, off, len);
+        }
+
+        public int[] getInts(long index, int[] array, int off, int len)
+        {
+            return _tl.get().getInts(index + _base, array, off, len);
+        }
+
+        public void putInts(long index, int[] value, int off, int len)
+        {
+            _tl.get().putInts(index + _base, value, off, len);
+        }
+
+        public long[] getLongs(long index, long[] array, int off, int len)
+        {
+            return _tl.get().getLongs(index + _base, array, off, len);
+        }
+
+        public void putLongs(long index, long[] value, int off, int len)
+        {
+            _tl.get().putLongs(index + _base, value, off, len);
+        }
+
+        public float[] getFloats(long index, float[] array, int off, int len)
+        {
+            return _tl.get().getFloats(index + _base, array, off, len);
+        }
+
+        public void putFloats(long index, float[] value, int off, int len)
+        {
+            _tl.get().putFloats(index + _base, value, off, len);
+        }
+
+        public double[] getDoubles(long index, double[] array, int off, int len)
+        {
+            return _tl.get().getDoubles(index + _base, array, off, len);
+        }
+
+        public void putDoubles(long index, double[] value, int off, int len)
+        {
+            _tl.get().putDoubles(index + _base, value, off, len);
+        }
+
+        public char[] getChars(long index, char[] array, int off, int len)
+        {
+            return _tl.get().getChars(index + _base, array, off, len);
+        }
+
+        public void putChars(long index, char[] value, int off, int len)
+        {
+            _tl.get().putChars(index + _base, value, off, len);
+        }
+
         public ByteBuffer slice(long index)
         {
             return _tl.get().slice(index + _base);
@@ -615,4 +1001,419 @@ public class BufferFacadeFactory
             return  _tl.get().limit() - _base;
         }
     }
+
+
+    /**
+     *  A facade that accesses the memory of a direct or array-backed <code>ByteBuffer</code>
+     *  by address, using <code>sun.misc.Unsafe</code>. This avoids the per-access overhead
+     *  of <code>ByteBuffer</code>, and since it never uses the buffer's position, it may be
+     *  shared between threads.
+     *  <p>
+     *  <strong>Warning:</strong> by default, single-value accesses are not bounds-checked;
+     *  an invalid index will read or corrupt arbitrary memory, and may crash the JVM. Bulk
+     *  operations are checked once per call. Pass <code>checked</code> to the constructor
+     *  to check every access (eg, while debugging). Writes to a read-only buffer are
+     *  always rejected.
+     *  <p>
+     *  The buffer's byte order at the time of construction is used for all accesses.
+     *  The <code>limit()</code> of this facade is that of the buffer at construction.
+     *  <p>
+     *  Multi-byte values may be read or written at any index, so this facade is only
+     *  usable on architectures that permit unaligned access (see {@link #isSupported}).
+     *
+     *  @since 1.1.0
+     */
+    public static class UnsafeFacade
+    implements BufferFacade
+    {
+        private ByteBuffer _buf;            // retained so that direct memory isn't freed
+        private int _base;
+        private Object _object;             // null for direct buffers
+        private long _offset;               // address or array offset of index 0
+        private long _capacity;
+        private long _limit;
+        private boolean _swap;
+        private boolean _isReadOnly;
+        private boolean _isChecked;
+
+        /**
+         *  Indicates whether this facade can be used: <code>Unsafe</code> must be
+         *  available, and the platform must permit unaligned access.
+         */
+        public static boolean isSupported()
+        {
+            return UnsafeAccess.isAvailable() && UnsafeAccess.isUnalignedSupported();
+        }
+
+
+        /**
+         *  @throws UnsupportedOperationException if <code>Unsafe</code> is not available,
+         *          or the platform does not permit unaligned access.
+         *  @throws IllegalArgumentException if the buffer is neither direct nor has an
+         *          accessible backing array (ie, a read-only heap buffer).
+         */
+        public UnsafeFacade(ByteBuffer buf, int base, boolean checked)
+        {
+            if (! UnsafeAccess.isAvailable())
+                throw new UnsupportedOperationException("sun.misc.Unsafe is not available");
+            if (! UnsafeAccess.isUnalignedSupported())
+                throw new UnsupportedOperationException("platform does not support unaligned access");
+
+            if (buf.isDirect())
+            {
+                _object = null;
+                _offset = UnsafeAccess.address(buf) + base;
+            }
+            else if (buf.hasArray())
+            {
+                _object = buf.array();
+                _offset = UnsafeAccess.BYTE_ARRAY_OFFSET + buf.arrayOffset() + base;
+            }
+            else
+                throw new IllegalArgumentException("buffer must be direct or have an accessible array");
+
+            _buf = buf;
+            _base = base;
+            _capacity = buf.capacity() - base;
+            _limit = buf.limit() - base;
+            _swap = buf.order() != ByteOrder.nativeOrder();
+            _isReadOnly = buf.isReadOnly();
+            _isChecked = checked;
+        }
+
+        public byte get(long index)
+        {
+            if (_isChecked)
+                checkIndex(index, 1);
+            return UnsafeHolder.UNSAFE.getByte(_object, _offset + index);
+        }
+
+        public void put(long index, byte value)
+        {
+            checkWrite(index, 1);
+            UnsafeHolder.UNSAFE.putByte(_object, _offset + index, value);
+        }
+
+        public short getShort(long index)
+        {
+            if (_isChecked)
+                checkIndex(index, 2);
+            short value = UnsafeHolder.UNSAFE.getShort(_object, _offset + index);
+            return _swap ? Short.reverseBytes(value) : value;
+        }
+
+        public void putShort(long index, short value)
+        {
+            checkWrite(index, 2);
+            UnsafeHolder.UNSAFE.putShort(_object, _offset + index, _swap ? Short.reverseBytes(value) : value);
+        }
+
+        public int getInt(long index)
+        {
+            if (_isChecked)
+                checkIndex(index, 4);
+            int value = UnsafeHolder.UNSAFE.getInt(_object, _offset + index);
+            return _swap ? Integer.reverseBytes(value) : value;
+        }
+
+        public void putInt(long index, int value)
+        {
+            checkWrite(index, 4);
+            UnsafeHolder.UNSAFE.putInt(_object, _offset + index, _swap ? Integer.reverseBytes(value) : value);
+        }
+
+        public long getLong(long index)
+        {
+            if (_isChecked)
+                checkIndex(index, 8);
+            long value = UnsafeHolder.UNSAFE.getLong(_object, _offset + index);
+            return _swap ? Long.reverseBytes(value) : value;
+        }
+
+        public void putLong(long index, long value)
+        {
+            checkWrite(index, 8);
+            UnsafeHolder.UNSAFE.putLong(_object, _offset + index, _swap ? Long.reverseBytes(value) : value);
+        }
+
+        public float getFloat(long index)
+        {
+            return Float.intBitsToFloat(getInt(index));
+        }
+
+        public void putFloat(long index, float value)
+        {
+            putInt(index, Float.floatToRawIntBits(value));
+        }
+
+        public double getDouble(long index)
+        {
+            return Double.longBitsToDouble(getLong(index));
+        }
+
+        public void putDouble(long index, double value)
+        {
+            putLong(index, Double.doubleToRawLongBits(value));
+        }
+
+        public char getChar(long index)
+        {
+            if (_isChecked)
+                checkIndex(index, 2);
+            char value = UnsafeHolder.UNSAFE.getChar(_object, _offset + index);
+            return _swap ? Character.reverseBytes(value) : value;
+        }
+
+        public void putChar(long index, char value)
+        {
+            checkWrite(index, 2);
+            UnsafeHolder.UNSAFE.putChar(_object, _offset + index, _swap ? Character.reverseBytes(value) : value);
+        }
+
+        public byte[] getBytes(long index, int len)
+        {
+            return getBytes(index, new byte[len], 0, len);
+        }
+
+        public void putBytes(long index, byte[] value)
+        {
+            putBytes(index, value, 0, value.length);
+        }
+
+        public byte[] getBytes(long index, byte[] array, int off, int len)
+        {
+            checkBulk(index, len, array.length, off, len);
+            UnsafeAccess.copy(_object, _offset + index, array, UnsafeAccess.BYTE_ARRAY_OFFSET + off, len);
+            return array;
+        }
+
+        public void putBytes(long index, byte[] value, int off, int len)
+        {
+            checkWrite(index, 0);
+            checkBulk(index, len, value.length, off, len);
+            UnsafeAccess.copy(value, UnsafeAccess.BYTE_ARRAY_OFFSET + off, _object, _offset + index, len);
+        }
+
+        public short[] getShorts(long index, short[] array, int off, int len)
+        {
+            checkBulk(index, len * 2L, array.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(_object, _offset + index, array, UnsafeAccess.SHORT_ARRAY_OFFSET + off * 2L, len * 2L);
+                return array;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 2)
+                array[off + ii] = Short.reverseBytes(UnsafeHolder.UNSAFE.getShort(_object, offset));
+            return array;
+        }
+
+        public void putShorts(long index, short[] value, int off, int len)
+        {
+            checkWrite(index, 0);
+            checkBulk(index, len * 2L, value.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(value, UnsafeAccess.SHORT_ARRAY_OFFSET + off * 2L, _object, _offset + index, len * 2L);
+                return;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 2)
+                UnsafeHolder.UNSAFE.putShort(_object, offset, Short.reverseBytes(value[off + ii]));
+        }
+
+        public int[] getInts(long index, int[] array, int off, int len)
+        {
+            checkBulk(index, len * 4L, array.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(_object, _offset + index, array, UnsafeAccess.INT_ARRAY_OFFSET + off * 4L, len * 4L);
+                return array;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 4)
+                array[off + ii] = Integer.reverseBytes(UnsafeHolder.UNSAFE.getInt(_object, offset));
+            return array;
+        }
+
+        public void putInts(long index, int[] value, int off, int len)
+        {
+            checkWrite(index, 0);
+            checkBulk(index, len * 4L, value.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(value, UnsafeAccess.INT_ARRAY_OFFSET + off * 4L, _object, _offset + index, len * 4L);
+                return;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 4)
+                UnsafeHolder.UNSAFE.putInt(_object, offset, Integer.reverseBytes(value[off + ii]));
+        }
+
+        public long[] getLongs(long index, long[] array, int off, int len)
+        {
+            checkBulk(index, len * 8L, array.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(_object, _offset + index, array, UnsafeAccess.LONG_ARRAY_OFFSET + off * 8L, len * 8L);
+                return array;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 8)
+                array[off + ii] = Long.reverseBytes(UnsafeHolder.UNSAFE.getLong(_object, offset));
+            return array;
+        }
+
+        public void putLongs(long index, long[] value, int off, int len)
+        {
+            checkWrite(index, 0);
+            checkBulk(index, len * 8L, value.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(value, UnsafeAccess.LONG_ARRAY_OFFSET + off * 8L, _object, _offset + index, len * 8L);
+                return;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 8)
+                UnsafeHolder.UNSAFE.putLong(_object, offset, Long.reverseBytes(value[off + ii]));
+        }
+
+        public float[] getFloats(long index, float[] array, int off, int len)
+        {
+            checkBulk(index, len * 4L, array.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(_object, _offset + index, array, UnsafeAccess.FLOAT_ARRAY_OFFSET + off * 4L, len * 4L);
+                return array;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 4)
+                array[off + ii] = Float.intBitsToFloat(Integer.reverseBytes(UnsafeHolder.UNSAFE.getInt(_object, offset)));
+            return array;
+        }
+
+        public void putFloats(long index, float[] value, int off, int len)
+        {
+            checkWrite(index, 0);
+            checkBulk(index, len * 4L, value.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(value, UnsafeAccess.FLOAT_ARRAY_OFFSET + off * 4L, _object, _offset + index, len * 4L);
+                return;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 4)
+                UnsafeHolder.UNSAFE.putInt(_object, offset, Integer.reverseBytes(Float.floatToRawIntBits(value[off + ii])));
+        }
+
+        public double[] getDoubles(long index, double[] array, int off, int len)
+        {
+            checkBulk(index, len * 8L, array.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(_object, _offset + index, array, UnsafeAccess.DOUBLE_ARRAY_OFFSET + off * 8L, len * 8L);
+                return array;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 8)
+                array[off + ii] = Double.longBitsToDouble(Long.reverseBytes(UnsafeHolder.UNSAFE.getLong(_object, offset)));
+            return array;
+        }
+
+        public void putDoubles(long index, double[] value, int off, int len)
+        {
+            checkWrite(index, 0);
+            checkBulk(index, len * 8L, value.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(value, UnsafeAccess.DOUBLE_ARRAY_OFFSET + off * 8L, _object, _offset + index, len * 8L);
+                return;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 8)
+                UnsafeHolder.UNSAFE.putLong(_object, offset, Long.reverseBytes(Double.doubleToRawLongBits(value[off + ii])));
+        }
+
+        public char[] getChars(long index, char[] array, int off, int len)
+        {
+            checkBulk(index, len * 2L, array.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(_object, _offset + index, array, UnsafeAccess.CHAR_ARRAY_OFFSET + off * 2L, len * 2L);
+                return array;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 2)
+                array[off + ii] = Character.reverseBytes(UnsafeHolder.UNSAFE.getChar(_object, offset));
+            return array;
+        }
+
+        public void putChars(long index, char[] value, int off, int len)
+        {
+            checkWrite(index, 0);
+            checkBulk(index, len * 2L, value.length, off, len);
+            if (! _swap)
+            {
+                UnsafeAccess.copy(value, UnsafeAccess.CHAR_ARRAY_OFFSET + off * 2L, _object, _offset + index, len * 2L);
+                return;
+            }
+
+            long offset = _offset + index;
+            for (int ii = 0 ; ii < len ; ii++, offset += 2)
+                UnsafeHolder.UNSAFE.putChar(_object, offset, Character.reverseBytes(value[off + ii]));
+        }
+
+        public ByteBuffer slice(long index)
+        {
+            ByteBuffer buf = _buf.duplicate();
+            buf.position((int)index + _base);
+            return buf.slice();
+        }
+
+        public long capacity()
+        {
+            return _capacity;
+        }
+
+        public long limit()
+        {
+            return _limit;
+        }
+
+        private void checkIndex(long index, int size)
+        {
+            if ((index < 0) || (index + size > _limit))
+                throw new IndexOutOfBoundsException("index: " + index + ", limit: " + _limit);
+        }
+
+        private void checkWrite(long index, int size)
+        {
+            if (_isReadOnly)
+                throw new ReadOnlyBufferException();
+            if (_isChecked)
+                checkIndex(index, size);
+        }
+
+        private void checkBulk(long index, long byteCount, int arrayLength, int off, int len)
+        {
+            if ((off < 0) || (len < 0) || (off + len > arrayLength))
+                throw new IndexOutOfBoundsException(
+                        "invalid offset/length for array of size " + arrayLength + ": " + off + "/" + len);
+            if ((index < 0) || (index + byteCount > _limit))
+                throw new IndexOutOfBoundsException(
+                        "invalid index/length for buffer with limit " + _limit + ": " + index + "/" + byteCount);
+        }
+    }
 }
+
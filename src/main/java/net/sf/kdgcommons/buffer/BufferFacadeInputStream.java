@@ -0,0 +1,211 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ *  An <code>InputStream</code> that reads from a {@link BufferFacade}, such as a
+ *  {@link MappedFileBuffer}. Unlike {@link ByteBufferInputStream}, positions are
+ *  <code>long</code>s, so the stream can span a buffer larger than 2 GB; reads
+ *  use the facade's bulk operations, copying a segment at a time. Attempting to
+ *  read past the stream's limit will return end-of-file.
+ *  <p>
+ *  The stream does not change any state in the facade, so multiple streams may
+ *  read from the same facade, as long as the facade itself is thread-safe. A
+ *  single stream instance is not thread-safe.
+ *
+ *  @since 1.1.0
+ */
+public class BufferFacadeInputStream
+extends InputStream
+{
+    private BufferFacade _buf;
+    private long _position;
+    private long _limit;
+    private long _mark = -1;
+    private boolean _isClosed;
+
+
+    /**
+     *  Creates an instance that reads the entire buffer (up to its limit).
+     */
+    public BufferFacadeInputStream(BufferFacade buf)
+    {
+        this(buf, 0, buf.limit());
+    }
+
+
+    /**
+     *  Creates an instance that starts reading at the specified offset and
+     *  continues to the buffer's limit.
+     */
+    public BufferFacadeInputStream(BufferFacade buf, long off)
+    {
+        this(buf, off, buf.limit());
+    }
+
+
+    /**
+     *  Creates an instance that reads from <code>off</code> (inclusive) to
+     *  <code>limit</code> (exclusive).
+     *
+     *  @throws IllegalArgumentException if the offset or limit is invalid.
+     */
+    public BufferFacadeInputStream(BufferFacade buf, long off, long limit)
+    {
+        if ((off < 0) || (limit < off) || (limit > buf.limit()))
+            throw new IllegalArgumentException("invalid offset/limit: " + off + "/" + limit);
+
+        _buf = buf;
+        _position = off;
+        _limit = limit;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the offset in the buffer of the next byte to be read.
+     */
+    public long getPosition()
+    {
+        return _position;
+    }
+
+
+    /**
+     *  Repositions the stream. May be set to the limit (in which case the next
+     *  read will return end-of-file), but not beyond.
+     */
+    public void setPosition(long value)
+    {
+        if ((value < 0) || (value > _limit))
+            throw new IllegalArgumentException("invalid position: " + value);
+        _position = value;
+    }
+
+
+    /**
+     *  Returns the number of bytes remaining in the stream, which may be larger
+     *  than {@link #available} can report.
+     */
+    public long remaining()
+    {
+        return _limit - _position;
+    }
+
+
+//----------------------------------------------------------------------------
+//  InputStream
+//----------------------------------------------------------------------------
+
+    @Override
+    public int available() throws IOException
+    {
+        return (int)Math.min(remaining(), Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        _isClosed = true;
+    }
+
+
+    @Override
+    public synchronized void mark(int readlimit)
+    {
+        _mark = _position;
+    }
+
+
+    @Override
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+
+    @Override
+    public int read() throws IOException
+    {
+        checkOpen();
+        if (_position >= _limit)
+            return -1;
+
+        return _buf.get(_position++) & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        checkOpen();
+        if (len == 0)
+            return 0;
+
+        int bytes = (int)Math.min(len, remaining());
+        if (bytes == 0)
+            return -1;
+
+        _buf.getBytes(_position, b, off, bytes);
+        _position += bytes;
+        return bytes;
+    }
+
+
+    @Override
+    public int read(byte[] b) throws IOException
+    {
+        return read(b, 0, b.length);
+    }
+
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        if (_mark < 0)
+            throw new IOException("mark not set");
+
+        _position = _mark;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long bytes = Math.max(0, Math.min(n, remaining()));
+        _position += bytes;
+        return bytes;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void checkOpen()
+    throws IOException
+    {
+        if (_isClosed)
+            throw new IOException("stream is closed");
+    }
+}
@@ -0,0 +1,213 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+
+
+/**
+ *  An <code>OutputStream</code> that writes to a {@link BufferFacade}, such as a
+ *  {@link MappedFileBuffer}. Unlike {@link ByteBufferOutputStream}, positions are
+ *  <code>long</code>s, so the stream can span a buffer larger than 2 GB; writes
+ *  use the facade's bulk operations, copying a segment at a time.
+ *  <p>
+ *  Writes are passed directly to the facade, so a growable buffer (such as a
+ *  {@link SlabBuffer}, or a growable <code>MappedFileBuffer</code>) will expand
+ *  as needed. For other buffers, attempting to write past the buffer's capacity
+ *  throws <code>IOException</code>; the bytes that fit may have been written.
+ *  <p>
+ *  The stream does not change any state in the facade, so multiple streams may
+ *  write to (different regions of) the same facade, as long as the facade itself
+ *  is thread-safe. A single stream instance is not thread-safe.
+ *
+ *  @since 1.1.0
+ */
+public class BufferFacadeOutputStream
+extends OutputStream
+{
+    private BufferFacade _buf;
+    private long _position;
+    private boolean _isClosed;
+
+    // the range written since the last flush; empty if start >= end
+    private long _dirtyStart = Long.MAX_VALUE;
+    private long _dirtyEnd;
+
+
+    /**
+     *  Creates an instance that writes from the start of the buffer.
+     */
+    public BufferFacadeOutputStream(BufferFacade buf)
+    {
+        this(buf, 0);
+    }
+
+
+    /**
+     *  Creates an instance that writes from the specified offset.
+     */
+    public BufferFacadeOutputStream(BufferFacade buf, long off)
+    {
+        if (off < 0)
+            throw new IllegalArgumentException("invalid offset: " + off);
+
+        _buf = buf;
+        _position = off;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the offset in the buffer where the next byte will be written.
+     */
+    public long getPosition()
+    {
+        return _position;
+    }
+
+
+    /**
+     *  Repositions the stream.
+     */
+    public void setPosition(long value)
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("invalid position: " + value);
+        _position = value;
+    }
+
+
+//----------------------------------------------------------------------------
+//  OutputStream
+//----------------------------------------------------------------------------
+
+    @Override
+    public void close() throws IOException
+    {
+        _isClosed = true;
+    }
+
+
+    /**
+     *  If the underlying buffer is a <code>MappedFileBuffer</code>, forces the range
+     *  written by this stream since the last flush to disk. Otherwise does nothing;
+     *  this includes a <code>MappedFileBuffer</code> that is wrapped by one of the
+     *  {@link BufferFacadeFactory} facades, which must be forced by the caller.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (! (_buf instanceof MappedFileBuffer) || (_dirtyStart >= _dirtyEnd))
+            return;
+
+        // a write past capacity may have been recorded without being completed
+        MappedFileBuffer buf = (MappedFileBuffer)_buf;
+        long end = Math.min(_dirtyEnd, buf.capacity());
+        if (_dirtyStart < end)
+            buf.force(_dirtyStart, end - _dirtyStart);
+
+        _dirtyStart = Long.MAX_VALUE;
+        _dirtyEnd = 0;
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        checkOpen();
+        markDirty(len);
+        try
+        {
+            _buf.putBytes(_position, b, off, len);
+            _position += len;
+        }
+        catch (RuntimeException ex)
+        {
+            throw translate(len, ex);
+        }
+    }
+
+
+    @Override
+    public void write(byte[] b) throws IOException
+    {
+        write(b, 0, b.length);
+    }
+
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        checkOpen();
+        markDirty(1);
+        try
+        {
+            _buf.put(_position, (byte)b);
+            _position++;
+        }
+        catch (RuntimeException ex)
+        {
+            throw translate(1, ex);
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void checkOpen()
+    throws IOException
+    {
+        if (_isClosed)
+            throw new IOException("stream is closed");
+    }
+
+
+    /**
+     *  Extends the range to be flushed to cover a write at the current position.
+     *  This is called before the write, because a failed write may have written
+     *  some bytes.
+     */
+    private void markDirty(int len)
+    {
+        _dirtyStart = Math.min(_dirtyStart, _position);
+        _dirtyEnd = Math.max(_dirtyEnd, _position + len);
+    }
+
+
+    /**
+     *  Facades report a write past capacity in different ways, depending on the
+     *  underlying buffer; this translates them into an <code>IOException</code>,
+     *  and rethrows anything else.
+     */
+    private IOException translate(int len, RuntimeException cause)
+    {
+        if (! ((cause instanceof IndexOutOfBoundsException)
+               || (cause instanceof BufferOverflowException)
+               || (cause instanceof IllegalArgumentException)))
+            throw cause;
+
+        IOException ex = new IOException("write too large: " + len + " bytes at position " + _position
+                                         + ", buffer capacity is " + _buf.capacity());
+        ex.initCause(cause);
+        return ex;
+    }
+}
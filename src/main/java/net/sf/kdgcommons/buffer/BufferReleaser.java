@@ -0,0 +1,103 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+
+/**
+ *  Releases the memory held by a direct or mapped buffer. There's no supported
+ *  way to do this, so we look for one of the JDK-internal mechanisms: on Java 9
+ *  and later, <code>Unsafe.invokeCleaner()</code>; on earlier JDKs, the buffer's
+ *  <code>Cleaner</code>. If neither is available, the buffer is left for the
+ *  garbage collector.
+ *  <p>
+ *  Only buffers returned by <code>allocateDirect()</code> or <code>map()</code>
+ *  can be released; duplicates and slices are silently ignored, as are heap
+ *  buffers. Once released, the buffer (and any views of it) must not be used:
+ *  doing so will likely crash the JVM.
+ */
+final class BufferReleaser
+{
+    private static Object _unsafe;
+    private static Method _invokeCleaner;
+    private static Method _getCleaner;
+    private static Method _clean;
+
+    static
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            _invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            _unsafe = field.get(null);
+        }
+        catch (Throwable ignored)
+        {
+            _invokeCleaner = null;
+        }
+
+        if (_invokeCleaner == null)
+        {
+            try
+            {
+                _getCleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                _clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            }
+            catch (Throwable ignored)
+            {
+                _getCleaner = null;
+            }
+        }
+    }
+
+
+    private BufferReleaser()
+    {
+        // this is a static utility class
+    }
+
+
+    /**
+     *  Releases the passed buffer's memory, if possible.
+     */
+    public static void release(ByteBuffer buf)
+    {
+        if ((buf == null) || ! buf.isDirect())
+            return;
+
+        try
+        {
+            if (_invokeCleaner != null)
+            {
+                _invokeCleaner.invoke(_unsafe, buf);
+            }
+            else if (_getCleaner != null)
+            {
+                Object cleaner = _getCleaner.invoke(buf);
+                if (cleaner != null)
+                    _clean.invoke(cleaner);
+            }
+        }
+        catch (Throwable ignored)
+        {
+            // we'll fall back to garbage collection
+        }
+    }
+}
@@ -17,7 +17,9 @@ package net.sf.kdgcommons.buffer;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 
@@ -29,9 +31,30 @@ import net.sf.kdgcommons.lang.StringUtil;
  *  Contains static utility methods for working with NIO buffers.
  *  <p>
  *  These methods are not thread-safe unless explicityly marked as such.
+ *  <p>
+ *  The UTF-8 methods ({@link #decodeUTF8} and {@link #encodeUTF8}) use absolute
+ *  indexes, so do not change the position of the source or destination byte
+ *  buffer; they are thread-safe as long as no other thread is modifying the same
+ *  data. They do not allocate any objects after their first use by a given thread.
+ *  Malformed input is decoded as the Unicode replacement character (U+FFFD); an
+ *  unpaired surrogate is encoded as '?' (as with <code>String.getBytes()</code>).
  */
 public class BufferUtil
 {
+    // the size of the per-thread buffer used when decoding into a StringBuilder
+    // or a CharBuffer that doesn't expose its array
+    private final static int DECODE_CHUNK_SIZE = 1024;
+
+    private static ThreadLocal<char[]> _decodeBuffer = new ThreadLocal<char[]>()
+    {
+        @Override
+        protected char[] initialValue()
+        {
+            return new char[DECODE_CHUNK_SIZE];
+        }
+    };
+
+
     /**
      *  Memory maps a segment of a file.
      *  <p>
@@ -63,7 +86,9 @@ public class BufferUtil
 
     /**
      *  Extracts a specified sequence of bytes from a buffer and converts it
-     *  to a Java <code>String</code> using UTF-8 encoding.
+     *  to a Java <code>String</code> using UTF-8 encoding. Leaves the buffer
+     *  positioned after the string; see {@link #decodeUTF8} for a method that
+     *  doesn't change position.
      *
      *  @param  buf     The buffer
      *  @param  off     Offset within the buffer where the string starts
@@ -81,7 +106,8 @@ public class BufferUtil
 
     /**
      *  Returns a character array from the buffer. This method is equivalent to
-     *  repeatedly calling <code>getChar()</code>.
+     *  repeatedly calling <code>getChar()</code>, and leaves the buffer positioned
+     *  after the last character.
      *
      *  @param  buf     The buffer
      *  @param  off     Offset within the buffer where conversion will start
@@ -96,4 +122,447 @@ public class BufferUtil
             chars[ii] = buf.getChar();
         return chars;
     }
+
+
+    /**
+     *  Retrieves characters from the buffer into an existing array, starting at
+     *  the specified offset. This method is equivalent to repeatedly calling the
+     *  absolute <code>getChar(int)</code>, and does not change the buffer's
+     *  position. Returns the array as a convenience.
+     *
+     *  @param  buf     The buffer
+     *  @param  off     Offset within the buffer where conversion will start
+     *  @param  dst     The destination array
+     *  @param  dstOff  Offset within the destination array where characters
+     *                  will be stored
+     *  @param  count   The number of <em>characters</em> to retrieve
+     *
+     *  @throws IndexOutOfBoundsException if the characters would extend past the
+     *          buffer's limit, or past the end of the destination array.
+     *
+     *  @since 1.1.0
+     */
+    public static char[] getChars(ByteBuffer buf, int off, char[] dst, int dstOff, int count)
+    {
+        if ((off < 0) || (count < 0) || (off + 2L * count > buf.limit()))
+            throw new IndexOutOfBoundsException(
+                    "invalid offset/count for buffer with limit " + buf.limit() + ": " + off + "/" + count);
+
+        // duplicate() doesn't preserve byte order
+        ByteBuffer dup = buf.duplicate().order(buf.order());
+        dup.position(off);
+        dup.asCharBuffer().get(dst, dstOff, count);
+        return dst;
+    }
+
+
+    /**
+     *  Decodes a UTF-8 byte sequence from the buffer, appending the resulting
+     *  characters to the passed <code>StringBuilder</code>. Returns the number
+     *  of characters appended. Does not change the buffer's position.
+     *
+     *  @param  buf     The buffer
+     *  @param  off     Offset within the buffer where the string starts
+     *  @param  len     Number of bytes to be decoded
+     *  @param  dst     The destination
+     *
+     *  @throws IndexOutOfBoundsException if the buffer's limit is less than
+     *          <code>off + len</code>.
+     *
+     *  @since 1.1.0
+     */
+    public static int decodeUTF8(ByteBuffer buf, int off, int len, StringBuilder dst)
+    {
+        return decodeUTF8(buf, null, off, len, dst);
+    }
+
+
+    /**
+     *  Decodes a UTF-8 byte sequence from the buffer, storing the resulting
+     *  characters in the passed <code>CharBuffer</code>, starting at its current
+     *  position (which is advanced). Returns the number of characters decoded.
+     *  Does not change the byte buffer's position.
+     *
+     *  @param  buf     The buffer
+     *  @param  off     Offset within the buffer where the string starts
+     *  @param  len     Number of bytes to be decoded
+     *  @param  dst     The destination
+     *
+     *  @throws IndexOutOfBoundsException if the buffer's limit is less than
+     *          <code>off + len</code>.
+     *  @throws BufferOverflowException if there isn't room in the destination
+     *          for all characters. In this case, the destination's position is
+     *          unchanged, but the content after that position is undefined.
+     *
+     *  @since 1.1.0
+     */
+    public static int decodeUTF8(ByteBuffer buf, int off, int len, CharBuffer dst)
+    {
+        return decodeUTF8(buf, null, off, len, dst);
+    }
+
+
+    /**
+     *  Decodes a UTF-8 byte sequence from a {@link BufferFacade}, appending the
+     *  resulting characters to the passed <code>StringBuilder</code>. Returns
+     *  the number of characters appended.
+     *
+     *  @param  buf     The buffer
+     *  @param  off     Offset within the buffer where the string starts
+     *  @param  len     Number of bytes to be decoded
+     *  @param  dst     The destination
+     *
+     *  @since 1.1.0
+     */
+    public static int decodeUTF8(BufferFacade buf, long off, int len, StringBuilder dst)
+    {
+        return decodeUTF8(null, buf, off, len, dst);
+    }
+
+
+    /**
+     *  Decodes a UTF-8 byte sequence from a {@link BufferFacade}, storing the
+     *  resulting characters in the passed <code>CharBuffer</code>, starting at
+     *  its current position (which is advanced). Returns the number of characters
+     *  decoded.
+     *
+     *  @param  buf     The buffer
+     *  @param  off     Offset within the buffer where the string starts
+     *  @param  len     Number of bytes to be decoded
+     *  @param  dst     The destination
+     *
+     *  @throws BufferOverflowException if there isn't room in the destination
+     *          for all characters. In this case, the destination's position is
+     *          unchanged, but the content after that position is undefined.
+     *
+     *  @since 1.1.0
+     */
+    public static int decodeUTF8(BufferFacade buf, long off, int len, CharBuffer dst)
+    {
+        return decodeUTF8(null, buf, off, len, dst);
+    }
+
+
+    /**
+     *  Returns the number of bytes needed to encode the passed character sequence
+     *  as UTF-8.
+     *
+     *  @since 1.1.0
+     */
+    public static int utf8Length(CharSequence src)
+    {
+        int len = src.length();
+        int count = len;
+        for (int ii = 0 ; ii < len ; ii++)
+        {
+            char c = src.charAt(ii);
+            if (c < 0x80)
+                continue;
+            else if (c < 0x800)
+                count += 1;
+            else if (Character.isHighSurrogate(c) && (ii + 1 < len) && Character.isLowSurrogate(src.charAt(ii + 1)))
+            {
+                count += 2;     // two chars become four bytes
+                ii++;
+            }
+            else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c))
+                continue;       // unpaired surrogate becomes '?'
+            else
+                count += 2;
+        }
+        return count;
+    }
+
+
+    /**
+     *  Encodes the passed character sequence as UTF-8, writing it into the buffer
+     *  starting at the specified offset. Returns the number of bytes written. Does
+     *  not change the buffer's position.
+     *
+     *  @param  src     The characters to encode
+     *  @param  buf     The buffer
+     *  @param  off     Offset within the buffer where the encoded string starts
+     *
+     *  @throws IndexOutOfBoundsException if the encoded string would extend past
+     *          the buffer's limit. Use {@link #utf8Length} to check in advance;
+     *          otherwise, the buffer will contain a partial string.
+     *
+     *  @since 1.1.0
+     */
+    public static int encodeUTF8(CharSequence src, ByteBuffer buf, int off)
+    {
+        return encodeUTF8(src, buf, null, off);
+    }
+
+
+    /**
+     *  Encodes the passed character sequence as UTF-8, writing it into a {@link
+     *  BufferFacade} starting at the specified offset. Returns the number of bytes
+     *  written.
+     *
+     *  @param  src     The characters to encode
+     *  @param  buf     The buffer
+     *  @param  off     Offset within the buffer where the encoded string starts
+     *
+     *  @since 1.1.0
+     */
+    public static int encodeUTF8(CharSequence src, BufferFacade buf, long off)
+    {
+        return encodeUTF8(src, null, buf, off);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Common code for encoding. Exactly one of the destinations is non-null.
+     */
+    private static int encodeUTF8(CharSequence src, ByteBuffer bbDst, BufferFacade bfDst, long off)
+    {
+        int len = src.length();
+        long pos = off;
+        int ii = 0;
+
+        // fast path for ASCII
+        while ((ii < len) && (src.charAt(ii) < 0x80))
+            put(bbDst, bfDst, pos++, (byte)src.charAt(ii++));
+
+        while (ii < len)
+        {
+            int cp = codePointAt(src, ii);
+            ii += (cp >= 0x10000) ? 2 : 1;
+            if (cp < 0x80)
+            {
+                put(bbDst, bfDst, pos++, (byte)cp);
+            }
+            else if (cp < 0x800)
+            {
+                put(bbDst, bfDst, pos++, (byte)(0xC0 | (cp >> 6)));
+                put(bbDst, bfDst, pos++, (byte)(0x80 | (cp & 0x3F)));
+            }
+            else if (cp < 0x10000)
+            {
+                put(bbDst, bfDst, pos++, (byte)(0xE0 | (cp >> 12)));
+                put(bbDst, bfDst, pos++, (byte)(0x80 | ((cp >> 6) & 0x3F)));
+                put(bbDst, bfDst, pos++, (byte)(0x80 | (cp & 0x3F)));
+            }
+            else
+            {
+                put(bbDst, bfDst, pos++, (byte)(0xF0 | (cp >> 18)));
+                put(bbDst, bfDst, pos++, (byte)(0x80 | ((cp >> 12) & 0x3F)));
+                put(bbDst, bfDst, pos++, (byte)(0x80 | ((cp >> 6) & 0x3F)));
+                put(bbDst, bfDst, pos++, (byte)(0x80 | (cp & 0x3F)));
+            }
+        }
+        return (int)(pos - off);
+    }
+
+
+    /**
+     *  Common code for decoding into a <code>StringBuilder</code>: decodes in
+     *  chunks via a per-thread array. Exactly one of the sources is non-null.
+     */
+    private static int decodeUTF8(ByteBuffer bbSrc, BufferFacade bfSrc, long off, int len, StringBuilder dst)
+    {
+        checkDecodeRange(bbSrc, off, len);
+        dst.ensureCapacity(dst.length() + len);
+        char[] chunk = _decodeBuffer.get();
+        int count = 0;
+        while (len > 0)
+        {
+            long result = decodeChunk(bbSrc, bfSrc, off, len, chunk, 0, chunk.length);
+            int consumed = (int)(result >>> 32);
+            int decoded = (int)result;
+            dst.append(chunk, 0, decoded);
+            off += consumed;
+            len -= consumed;
+            count += decoded;
+        }
+        return count;
+    }
+
+
+    /**
+     *  Common code for decoding into a <code>CharBuffer</code>: if it's backed by
+     *  an accessible array, decodes directly into that array; otherwise decodes
+     *  in chunks. Exactly one of the sources is non-null.
+     */
+    private static int decodeUTF8(ByteBuffer bbSrc, BufferFacade bfSrc, long off, int len, CharBuffer dst)
+    {
+        checkDecodeRange(bbSrc, off, len);
+        int startPos = dst.position();
+        if (dst.hasArray())
+        {
+            long result = decodeChunk(bbSrc, bfSrc, off, len, dst.array(), dst.arrayOffset() + startPos, dst.remaining());
+            if ((int)(result >>> 32) < len)
+                throw new BufferOverflowException();
+            dst.position(startPos + (int)result);
+            return (int)result;
+        }
+
+        char[] chunk = _decodeBuffer.get();
+        int count = 0;
+        while (len > 0)
+        {
+            long result = decodeChunk(bbSrc, bfSrc, off, len, chunk, 0, Math.min(chunk.length, dst.remaining()));
+            int consumed = (int)(result >>> 32);
+            int decoded = (int)result;
+            if (consumed == 0)
+            {
+                dst.position(startPos);
+                throw new BufferOverflowException();
+            }
+            dst.put(chunk, 0, decoded);
+            off += consumed;
+            len -= consumed;
+            count += decoded;
+        }
+        return count;
+    }
+
+
+    private static void checkDecodeRange(ByteBuffer src, long off, int len)
+    {
+        if ((src != null) && ((off < 0) || (len < 0) || (off + len > src.limit())))
+            throw new IndexOutOfBoundsException(
+                    "invalid offset/length for buffer with limit " + src.limit() + ": " + off + "/" + len);
+    }
+
+
+    /**
+     *  Decodes as much of the source as will fit into the destination array.
+     *  Returns the number of bytes consumed in the upper 32 bits of the result,
+     *  and the number of characters produced in the lower 32 bits. Exactly one
+     *  of the sources is non-null.
+     */
+    private static long decodeChunk(ByteBuffer bbSrc, BufferFacade bfSrc, long off, int len, char[] dst, int dstOff, int dstLen)
+    {
+        long srcPos = off;
+        long srcEnd = off + len;
+        int dstPos = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        // fast path for ASCII
+        long asciiEnd = Math.min(srcEnd, srcPos + dstLen);
+        while (srcPos < asciiEnd)
+        {
+            byte b = get(bbSrc, bfSrc, srcPos);
+            if (b < 0)
+                break;
+            dst[dstPos++] = (char)b;
+            srcPos++;
+        }
+
+        while ((srcPos < srcEnd) && (dstPos < dstEnd))
+        {
+            int b0 = get(bbSrc, bfSrc, srcPos) & 0xFF;
+            if (b0 < 0x80)
+            {
+                dst[dstPos++] = (char)b0;
+                srcPos++;
+                continue;
+            }
+
+            long avail = srcEnd - srcPos;
+            int b1 = (avail > 1) ? get(bbSrc, bfSrc, srcPos + 1) & 0xFF : 0;
+            int b2 = (avail > 2) ? get(bbSrc, bfSrc, srcPos + 2) & 0xFF : 0;
+            int b3 = (avail > 3) ? get(bbSrc, bfSrc, srcPos + 3) & 0xFF : 0;
+            int seq = decodeSequence(b0, b1, b2, b3);
+            int cp = seq & 0x1FFFFF;
+            if (cp >= 0x10000)
+            {
+                if (dstPos + 1 >= dstEnd)
+                    break;
+                dst[dstPos++] = (char)((cp >>> 10) + 0xD7C0);
+                dst[dstPos++] = (char)((cp & 0x3FF) + 0xDC00);
+            }
+            else
+            {
+                dst[dstPos++] = (char)cp;
+            }
+            srcPos += seq >>> 21;
+        }
+        return ((srcPos - off) << 32) | (dstPos - dstOff);
+    }
+
+
+    /**
+     *  Reads a byte from whichever source is non-null.
+     */
+    private static byte get(ByteBuffer bbSrc, BufferFacade bfSrc, long index)
+    {
+        return (bbSrc != null)
+             ? bbSrc.get((int)index)
+             : bfSrc.get(index);
+    }
+
+
+    /**
+     *  Writes a byte to whichever destination is non-null.
+     */
+    private static void put(ByteBuffer bbDst, BufferFacade bfDst, long index, byte value)
+    {
+        if (bbDst != null)
+            bbDst.put((int)index, value);
+        else
+            bfDst.put(index, value);
+    }
+
+
+    /**
+     *  Decodes a multi-byte UTF-8 sequence, given its lead byte and the following
+     *  three bytes (0 if past the end of the source). Returns the sequence length
+     *  in the upper bits (shifted by 21) and the codepoint in the lower 21 bits.
+     *  A malformed sequence (including overlong encodings and encoded surrogates)
+     *  is returned as a one-byte sequence containing the replacement character,
+     *  so that decoding resumes with the next byte.
+     */
+    private static int decodeSequence(int b0, int b1, int b2, int b3)
+    {
+        if ((b0 >= 0xC2) && (b0 <= 0xDF))
+        {
+            if ((b1 & 0xC0) == 0x80)
+                return (2 << 21) | ((b0 & 0x1F) << 6) | (b1 & 0x3F);
+        }
+        else if ((b0 >= 0xE0) && (b0 <= 0xEF))
+        {
+            if (((b1 & 0xC0) == 0x80) && ((b2 & 0xC0) == 0x80))
+            {
+                int cp = ((b0 & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F);
+                if ((cp >= 0x800) && ((cp < 0xD800) || (cp > 0xDFFF)))
+                    return (3 << 21) | cp;
+            }
+        }
+        else if ((b0 >= 0xF0) && (b0 <= 0xF4))
+        {
+            if (((b1 & 0xC0) == 0x80) && ((b2 & 0xC0) == 0x80) && ((b3 & 0xC0) == 0x80))
+            {
+                int cp = ((b0 & 0x07) << 18) | ((b1 & 0x3F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+                if ((cp >= 0x10000) && (cp <= 0x10FFFF))
+                    return (4 << 21) | cp;
+            }
+        }
+        return (1 << 21) | 0xFFFD;
+    }
+
+
+    /**
+     *  Returns the codepoint at the specified index, combining surrogate pairs.
+     *  An unpaired surrogate is returned as '?'.
+     */
+    private static int codePointAt(CharSequence src, int idx)
+    {
+        char c = src.charAt(idx);
+        if (Character.isHighSurrogate(c))
+        {
+            if ((idx + 1 < src.length()) && Character.isLowSurrogate(src.charAt(idx + 1)))
+                return Character.toCodePoint(c, src.charAt(idx + 1));
+            return '?';
+        }
+        if (Character.isLowSurrogate(c))
+            return '?';
+        return c;
+    }
 }
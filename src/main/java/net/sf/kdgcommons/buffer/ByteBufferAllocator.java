@@ -0,0 +1,42 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ *  A source of <code>ByteBuffer</code>s, used by classes that need buffers whose
+ *  lifetime they manage, so that the caller can decide where those buffers come
+ *  from (for example, a pool). Buffers obtained from {@link #allocate} should be
+ *  passed to {@link #release} when no longer needed, and must not be used after
+ *  that.
+ *
+ *  @since 1.1.0
+ */
+public interface ByteBufferAllocator
+{
+    /**
+     *  Returns a buffer with at least the requested capacity, with position 0 and
+     *  limit equal to its capacity. The buffer's content is undefined.
+     */
+    public ByteBuffer allocate(int size);
+
+
+    /**
+     *  Returns a buffer obtained from {@link #allocate}.
+     */
+    public void release(ByteBuffer buf);
+}
@@ -18,6 +18,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -25,6 +27,16 @@ import java.nio.MappedByteBuffer;
  *  The buffer is repositioned at construction, and written sequentially. Attempts
  *  to write past the capacity of the buffer will result in <code>IOException</code>.
  *  <p>
+ *  Alternatively, the stream may be constructed in growable mode, in which it
+ *  writes to a chain of direct buffers ("chunks") obtained from a {@link
+ *  ByteBufferAllocator} (such as a pool), adding chunks as needed. This is useful
+ *  for serializers that don't know the size of their output. The result may be
+ *  retrieved as an array of buffers with {@link #getBuffers} (suitable for a
+ *  gathering write), or as a single buffer with {@link #toBuffer}. Because all
+ *  chunks are the same size, wasted space is limited to the unused portion of the
+ *  last chunk. When the output is no longer needed, call {@link #release} to return
+ *  the chunks to the allocator.
+ *  <p>
  *  <em>Warnings:</em>
  *  Because this class explicitly repositions the buffer, you should not create
  *  two instances around the same buffer; <code>slice()</code> the buffer
@@ -35,8 +47,15 @@ public class ByteBufferOutputStream
 extends OutputStream
 {
     private ByteBuffer _buf;
+    private int _start;
     private boolean _isClosed;
 
+    // these are only used in growable mode
+    private ByteBufferAllocator _allocator;
+    private int _chunkSize;
+    private List<ByteBuffer> _chunks;
+    private ByteBuffer _consolidated;           // released by any write
+
 
     /**
      *  Creates an instance that repositions the passed buffer to its start.
@@ -55,6 +74,165 @@ extends OutputStream
     {
         _buf = buf;
         _buf.position(index);
+        _start = index;
+    }
+
+
+    /**
+     *  Creates a growable instance, which writes to direct buffers of the specified
+     *  size. These buffers are allocated with <code>ByteBuffer.allocateDirect()</code>,
+     *  and are reclaimed by the garbage collector.
+     *
+     *  @since 1.1.0
+     */
+    public ByteBufferOutputStream(int chunkSize)
+    {
+        this(chunkSize, new DirectAllocator());
+    }
+
+
+    /**
+     *  Creates a growable instance, which writes to buffers of the specified size
+     *  obtained from the passed allocator.
+     *
+     *  @throws IllegalArgumentException if the chunk size is not positive, or the
+     *          allocator is <code>null</code>.
+     *
+     *  @since 1.1.0
+     */
+    public ByteBufferOutputStream(int chunkSize, ByteBufferAllocator allocator)
+    {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+        if (allocator == null)
+            throw new IllegalArgumentException("allocator may not be null");
+
+        _allocator = allocator;
+        _chunkSize = chunkSize;
+        _chunks = new ArrayList<ByteBuffer>();
+        _buf = ByteBuffer.allocate(0);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Indicates whether this stream was constructed in growable mode.
+     *
+     *  @since 1.1.0
+     */
+    public boolean isGrowable()
+    {
+        return _allocator != null;
+    }
+
+
+    /**
+     *  Returns the number of bytes written to the stream.
+     *
+     *  @since 1.1.0
+     */
+    public long size()
+    {
+        if (! isGrowable())
+            return _buf.position() - _start;
+
+        long size = 0;
+        for (ByteBuffer chunk : _chunks)
+            size += chunk.position();
+        return size;
+    }
+
+
+    /**
+     *  Returns the data written to the stream as an array of buffers, each with
+     *  position 0 and limit at the end of its data. These are duplicates, which
+     *  may be passed to a gathering write without affecting the stream; however,
+     *  they share content with the stream's buffers, so must not be used after
+     *  {@link #release}.
+     *  <p>
+     *  For a non-growable instance, the array contains a single buffer whose
+     *  content starts at the index passed to the constructor.
+     *
+     *  @since 1.1.0
+     */
+    public ByteBuffer[] getBuffers()
+    {
+        if (! isGrowable())
+        {
+            ByteBuffer dup = _buf.duplicate();
+            dup.limit(dup.position()).position(_start);
+            return new ByteBuffer[] { dup.slice() };
+        }
+
+        ByteBuffer[] result = new ByteBuffer[_chunks.size()];
+        for (int ii = 0 ; ii < result.length ; ii++)
+        {
+            result[ii] = _chunks.get(ii).duplicate();
+            result[ii].flip();
+        }
+        return result;
+    }
+
+
+    /**
+     *  Returns the data written to the stream as a single buffer, with position 0
+     *  and limit at the end of the data. If the stream is not growable, or all data
+     *  is in a single chunk, this is a view of the existing buffer; otherwise the
+     *  data is copied into a buffer obtained from the allocator.
+     *  <p>
+     *  Repeated calls with no intervening writes return the same copy. However,
+     *  only one copy is retained: it is returned to the allocator by the next
+     *  write, so a buffer returned by this method must not be used after writing
+     *  to the stream (or calling {@link #release}).
+     *
+     *  @since 1.1.0
+     */
+    public ByteBuffer toBuffer()
+    {
+        if (! isGrowable() || (_chunks.size() <= 1))
+        {
+            ByteBuffer[] buffers = getBuffers();
+            return (buffers.length > 0) ? buffers[0] : ByteBuffer.allocate(0);
+        }
+
+        long size = size();
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("content too large for a single buffer: " + size);
+
+        if (_consolidated == null)
+        {
+            _consolidated = _allocator.allocate((int)size);
+            for (ByteBuffer buf : getBuffers())
+                _consolidated.put(buf);
+        }
+
+        ByteBuffer result = _consolidated.duplicate();
+        result.flip();
+        return result;
+    }
+
+
+    /**
+     *  For a growable instance, closes the stream and returns all buffers to the
+     *  allocator; neither the stream nor any buffers retrieved from it may be used
+     *  after this call. For a non-growable instance, simply closes the stream.
+     *
+     *  @since 1.1.0
+     */
+    public void release()
+    {
+        _isClosed = true;
+        if (! isGrowable())
+            return;
+
+        for (ByteBuffer chunk : _chunks)
+            _allocator.release(chunk);
+        _chunks.clear();
+        releaseConsolidated();
+        _buf = ByteBuffer.allocate(0);
     }
 
 
@@ -72,7 +250,8 @@ extends OutputStream
     @Override
     public void flush() throws IOException
     {
-        if (_buf instanceof MappedByteBuffer)
+        // growable chunks are direct buffers, which extend MappedByteBuffer but can't be forced
+        if (! isGrowable() && (_buf instanceof MappedByteBuffer))
             ((MappedByteBuffer)_buf).force();
     }
 
@@ -83,6 +262,21 @@ extends OutputStream
         if (_isClosed)
             throw new IOException("buffer is closed");
 
+        if (isGrowable())
+        {
+            releaseConsolidated();
+            while (len > 0)
+            {
+                if (! _buf.hasRemaining())
+                    nextChunk();
+                int count = Math.min(len, _buf.remaining());
+                _buf.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+            return;
+        }
+
         if (len > _buf.remaining())
             throw new IOException("write too large: " + len + " bytes, " + _buf.remaining() + " remaining in buffer");
 
@@ -103,9 +297,56 @@ extends OutputStream
         if (_isClosed)
             throw new IOException("buffer is closed");
 
+        if (isGrowable())
+            releaseConsolidated();
+
         if (_buf.remaining() == 0)
-            throw new IOException("no space left in buffer");
+        {
+            if (! isGrowable())
+                throw new IOException("no space left in buffer");
+            nextChunk();
+        }
 
         _buf.put((byte)b);
     }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void nextChunk()
+    {
+        ByteBuffer chunk = _allocator.allocate(_chunkSize);
+        chunk.clear();
+        _chunks.add(chunk);
+        _buf = chunk;
+    }
+
+
+    private void releaseConsolidated()
+    {
+        if (_consolidated != null)
+            _allocator.release(_consolidated);
+        _consolidated = null;
+    }
+
+
+    /**
+     *  The default allocator for growable mode: allocates direct buffers, and
+     *  leaves them for the garbage collector to reclaim.
+     */
+    private static class DirectAllocator
+    implements ByteBufferAllocator
+    {
+        public ByteBuffer allocate(int size)
+        {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        public void release(ByteBuffer buf)
+        {
+            // nothing happens here
+        }
+    }
 }
@@ -0,0 +1,480 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  A pool of direct <code>ByteBuffer</code>s, for I/O code that needs short-lived
+ *  buffers and can't afford the cost of <code>ByteBuffer.allocateDirect()</code>
+ *  (which is slow, and whose memory is only reclaimed by garbage collection).
+ *  <p>
+ *  Buffers are organized into size classes, which are powers of 2 between a
+ *  minimum and maximum size. A request is satisfied from the smallest class that
+ *  will hold it; the returned buffer's capacity is the class size. Requests larger
+ *  than the maximum size are not pooled: they're allocated directly, and their
+ *  memory is released (where possible) when they're returned to the pool. The pool
+ *  only releases oversize buffers that it allocated itself.
+ *  <p>
+ *  Pooled buffers are carved from large direct "arena" blocks, and once created
+ *  are never freed; when the pool is closed, it drops its references to them,
+ *  and their memory is reclaimed by the garbage collector. Each thread has a small cache of
+ *  buffers for each size class, so most allocations and releases don't touch any
+ *  shared state; when a thread's cache is empty (or full), it takes from (or gives
+ *  to) a shared per-class queue. A buffer may be released by a different thread
+ *  than the one that allocated it. The buffers cached by a thread that has ended
+ *  are returned to the shared queues before the pool allocates a new arena block.
+ *  <p>
+ *  Buffers must be explicitly returned with {@link #release}, and must not be used
+ *  after that. In debug mode, the pool tracks every outstanding buffer along with
+ *  the stack trace of its allocation: releasing a buffer twice (or one that didn't
+ *  come from the pool) throws <code>IllegalStateException</code>, {@link #getLeaks}
+ *  reports the allocation sites of unreleased buffers, and {@link #close} refuses
+ *  to close a pool with outstanding buffers. Debug mode adds synchronization to
+ *  every call, so is not intended for production. Without debug mode, releasing
+ *  a buffer twice will corrupt the pool.
+ *  <p>
+ *  Instances are thread-safe.
+ *
+ *  @since 1.1.0
+ */
+public class ByteBufferPool
+implements ByteBufferAllocator, Closeable
+{
+    private final static int DEFAULT_THREAD_CACHE_SIZE = 8;
+    private final static int ARENA_BLOCK_SIZE = 1024 * 1024;      // unless a single buffer is larger
+    private final static int MAX_BUFFERS_PER_BLOCK = 64;           // limits up-front work for small buffers
+
+    private int _minShift;
+    private int _maxSize;
+    private int _threadCacheSize;
+    private boolean _isDebug;
+    private volatile boolean _isClosed;
+
+    private ConcurrentLinkedQueue<ByteBuffer>[] _shared;
+    private List<ByteBuffer> _arenaBlocks = new ArrayList<ByteBuffer>();
+    private AtomicLong _arenaSize = new AtomicLong();
+
+    // oversize buffers that have been allocated but not released; these are the
+    // only buffers that we explicitly free, so we must know that we own them
+    private Map<ByteBuffer,Boolean> _oversize = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer,Boolean>());
+
+    private ThreadLocal<ThreadCache> _threadCache = new ThreadLocal<ThreadCache>()
+    {
+        @Override
+        protected ThreadCache initialValue()
+        {
+            ThreadCache cache = new ThreadCache(_shared.length, _threadCacheSize);
+            registerThreadCache(cache);
+            return cache;
+        }
+    };
+
+    // every thread's cache, so that we can recover the buffers cached by threads
+    // that have ended; guarded by synchronization on the pool
+    private Map<Thread,ThreadCache> _threadCaches = new IdentityHashMap<Thread,ThreadCache>();
+
+    // only used in debug mode; value is allocation trace
+    private Map<ByteBuffer,Throwable> _outstanding = new IdentityHashMap<ByteBuffer,Throwable>();
+
+
+    /**
+     *  Creates a pool with the specified minimum and maximum size classes (each
+     *  rounded up to a power of 2), a default per-thread cache size, and debug
+     *  mode disabled.
+     */
+    public ByteBufferPool(int minSize, int maxSize)
+    {
+        this(minSize, maxSize, DEFAULT_THREAD_CACHE_SIZE, false);
+    }
+
+
+    /**
+     *  Creates a pool with all options specified.
+     *
+     *  @param  minSize         The smallest size class; rounded up to a power of 2.
+     *  @param  maxSize         The largest size class; rounded up to a power of 2.
+     *                          Must be no more than 1 GB.
+     *  @param  threadCacheSize The number of buffers, per size class, cached by each
+     *                          thread. May be 0, in which case all buffers come from
+     *                          the shared queues.
+     *  @param  debug           If <code>true</code>, the pool tracks outstanding
+     *                          buffers, to identify leaks and double releases.
+     *
+     *  @throws IllegalArgumentException if any of the sizes are invalid.
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public ByteBufferPool(int minSize, int maxSize, int threadCacheSize, boolean debug)
+    {
+        if ((minSize <= 0) || (maxSize < minSize) || (maxSize > 0x40000000))
+            throw new IllegalArgumentException("invalid min/max size: " + minSize + "/" + maxSize);
+        if (threadCacheSize < 0)
+            throw new IllegalArgumentException("invalid thread cache size: " + threadCacheSize);
+
+        _minShift = ceilLog2(minSize);
+        int maxShift = ceilLog2(maxSize);
+        _maxSize = 1 << maxShift;
+        _threadCacheSize = threadCacheSize;
+        _isDebug = debug;
+
+        _shared = new ConcurrentLinkedQueue[maxShift - _minShift + 1];
+        for (int ii = 0 ; ii < _shared.length ; ii++)
+            _shared[ii] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+
+//----------------------------------------------------------------------------
+//  ByteBufferAllocator
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns a direct buffer with at least the requested capacity. The buffer is
+     *  cleared, and its byte order is big-endian; its content is undefined.
+     *
+     *  @throws IllegalStateException if the pool has been closed.
+     */
+    public ByteBuffer allocate(int size)
+    {
+        checkOpen();
+        if (size < 0)
+            throw new IllegalArgumentException("invalid size: " + size);
+
+        ByteBuffer buf;
+        if (size > _maxSize)
+        {
+            buf = ByteBuffer.allocateDirect(size);
+            _oversize.put(buf, Boolean.TRUE);
+        }
+        else
+        {
+            int sizeClass = sizeClass(size);
+            buf = _threadCache.get().pop(sizeClass);
+            if (buf == null)
+                buf = _shared[sizeClass].poll();
+            if (buf == null)
+                buf = carve(sizeClass);
+            buf.clear();
+            buf.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        if (_isDebug)
+        {
+            synchronized (_outstanding)
+            {
+                _outstanding.put(buf, new Throwable("buffer allocated here (size " + size + ")"));
+            }
+        }
+        return buf;
+    }
+
+
+    /**
+     *  Returns a buffer to the pool. The caller must not use the buffer (or any
+     *  views of it) after this call.
+     *
+     *  @throws IllegalArgumentException if the buffer could not have come from
+     *          this pool (including an oversize buffer that it did not allocate,
+     *          or has already been released).
+     *  @throws IllegalStateException in debug mode, if the buffer is not currently
+     *          outstanding (it has already been released, or came from another
+     *          pool).
+     */
+    public void release(ByteBuffer buf)
+    {
+        if (_isDebug)
+        {
+            synchronized (_outstanding)
+            {
+                if (_outstanding.remove(buf) == null)
+                    throw new IllegalStateException("buffer was not allocated by this pool, or has already been released");
+            }
+        }
+
+        int capacity = buf.capacity();
+        if (! buf.isDirect())
+            throw new IllegalArgumentException("buffer is not direct");
+
+        if (capacity > _maxSize)
+        {
+            if (_oversize.remove(buf) == null)
+                throw new IllegalArgumentException("oversize buffer was not allocated by this pool, or has already been released");
+            BufferReleaser.release(buf);
+            return;
+        }
+
+        if ((Integer.bitCount(capacity) != 1) || (capacity < (1 << _minShift)))
+            throw new IllegalArgumentException("buffer capacity does not match a size class: " + capacity);
+
+        if (_isClosed)
+            return;
+
+        int sizeClass = sizeClass(capacity);
+        if (! _threadCache.get().push(sizeClass, buf))
+            _shared[sizeClass].offer(buf);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the number of bytes of direct memory that have been allocated to
+     *  the pool's arena (this doesn't include oversize buffers).
+     */
+    public long getArenaSize()
+    {
+        return _arenaSize.get();
+    }
+
+
+    /**
+     *  Indicates whether this pool is in debug mode.
+     */
+    public boolean isDebug()
+    {
+        return _isDebug;
+    }
+
+
+    /**
+     *  In debug mode, returns the number of buffers that have been allocated but
+     *  not released. Returns -1 if not in debug mode.
+     */
+    public int getOutstandingCount()
+    {
+        if (! _isDebug)
+            return -1;
+
+        synchronized (_outstanding)
+        {
+            return _outstanding.size();
+        }
+    }
+
+
+    /**
+     *  In debug mode, returns exceptions whose stack traces identify where each
+     *  outstanding buffer was allocated. Returns an empty list if not in debug mode.
+     */
+    public List<Throwable> getLeaks()
+    {
+        List<Throwable> result = new ArrayList<Throwable>();
+        if (_isDebug)
+        {
+            synchronized (_outstanding)
+            {
+                result.addAll(_outstanding.values());
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     *  Closes the pool. The pool drops its references to its arena blocks, rather
+     *  than freeing them: buffers that are still outstanding (or held in another
+     *  thread's cache) remain valid, and the memory is reclaimed by the garbage
+     *  collector once none of them are reachable. Subsequent calls to {@link
+     *  #allocate} throw <code>IllegalStateException</code>; subsequent calls to
+     *  {@link #release} are ignored for pooled buffers, but still free oversize
+     *  buffers. Closing a closed pool has no effect.
+     *
+     *  @throws IllegalStateException in debug mode, if there are outstanding
+     *          buffers; the pool remains open. The exception's cause identifies
+     *          where one of those buffers was allocated.
+     */
+    public void close()
+    {
+        if (_isDebug)
+        {
+            List<Throwable> leaks = getLeaks();
+            if (leaks.size() > 0)
+            {
+                IllegalStateException ex = new IllegalStateException(leaks.size() + " buffer(s) not released");
+                ex.initCause(leaks.get(0));
+                throw ex;
+            }
+        }
+
+        synchronized (this)
+        {
+            if (_isClosed)
+                return;
+
+            _isClosed = true;
+            for (ConcurrentLinkedQueue<ByteBuffer> queue : _shared)
+                queue.clear();
+            _arenaBlocks.clear();
+            _threadCaches.clear();
+            _threadCache.remove();
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void checkOpen()
+    {
+        if (_isClosed)
+            throw new IllegalStateException("pool has been closed");
+    }
+
+
+    private static int ceilLog2(int value)
+    {
+        return (value <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+
+
+    private int sizeClass(int size)
+    {
+        return Math.max(ceilLog2(size) - _minShift, 0);
+    }
+
+
+    /**
+     *  Allocates an arena block for the specified size class, and slices it into
+     *  buffers. Returns one of those buffers, and adds the rest to the shared queue.
+     */
+    private synchronized ByteBuffer carve(int sizeClass)
+    {
+        checkOpen();
+
+        // another thread may have carved while we were waiting
+        ByteBuffer buf = _shared[sizeClass].poll();
+        if (buf != null)
+            return buf;
+
+        reclaimThreadCaches();
+        buf = _shared[sizeClass].poll();
+        if (buf != null)
+            return buf;
+
+        int bufSize = 1 << (sizeClass + _minShift);
+        int blockSize = bufSize * Math.max(1, Math.min(ARENA_BLOCK_SIZE / bufSize, MAX_BUFFERS_PER_BLOCK));
+        ByteBuffer block = ByteBuffer.allocateDirect(blockSize);
+        _arenaBlocks.add(block);
+        _arenaSize.addAndGet(blockSize);
+
+        for (int offset = 0 ; offset < blockSize ; offset += bufSize)
+        {
+            block.limit(offset + bufSize).position(offset);
+            ByteBuffer slice = block.slice();
+            if (buf == null)
+                buf = slice;
+            else
+                _shared[sizeClass].offer(slice);
+        }
+        return buf;
+    }
+
+
+    /**
+     *  Records the calling thread's cache. Also reclaims the caches of threads
+     *  that have ended, so that thread churn doesn't grow the map.
+     */
+    private synchronized void registerThreadCache(ThreadCache cache)
+    {
+        if (_isClosed)
+            return;
+
+        reclaimThreadCaches();
+        _threadCaches.put(Thread.currentThread(), cache);
+    }
+
+
+    /**
+     *  Moves the buffers from the caches of threads that have ended into the
+     *  shared queues. Must be called while synchronized on the pool. Checking
+     *  <code>isAlive()</code> ensures that we see the dead thread's last writes
+     *  to its cache.
+     */
+    private void reclaimThreadCaches()
+    {
+        for (Iterator<Map.Entry<Thread,ThreadCache>> itx = _threadCaches.entrySet().iterator() ; itx.hasNext() ; )
+        {
+            Map.Entry<Thread,ThreadCache> entry = itx.next();
+            if (! entry.getKey().isAlive())
+            {
+                entry.getValue().drainTo(_shared);
+                itx.remove();
+            }
+        }
+    }
+
+
+    /**
+     *  A per-thread cache: a fixed-size stack of buffers for each size class.
+     */
+    private static class ThreadCache
+    {
+        private ByteBuffer[][] _stacks;
+        private int[] _counts;
+
+        public ThreadCache(int sizeClasses, int cacheSize)
+        {
+            _stacks = new ByteBuffer[sizeClasses][cacheSize];
+            _counts = new int[sizeClasses];
+        }
+
+        public ByteBuffer pop(int sizeClass)
+        {
+            int count = _counts[sizeClass];
+            if (count == 0)
+                return null;
+
+            count--;
+            ByteBuffer buf = _stacks[sizeClass][count];
+            _stacks[sizeClass][count] = null;
+            _counts[sizeClass] = count;
+            return buf;
+        }
+
+        public boolean push(int sizeClass, ByteBuffer buf)
+        {
+            int count = _counts[sizeClass];
+            if (count == _stacks[sizeClass].length)
+                return false;
+
+            _stacks[sizeClass][count] = buf;
+            _counts[sizeClass] = count + 1;
+            return true;
+        }
+
+        public void drainTo(ConcurrentLinkedQueue<ByteBuffer>[] queues)
+        {
+            for (int sizeClass = 0 ; sizeClass < _stacks.length ; sizeClass++)
+            {
+                ByteBuffer buf;
+                while ((buf = pop(sizeClass)) != null)
+                    queues[sizeClass].offer(buf);
+            }
+        }
+    }
+}
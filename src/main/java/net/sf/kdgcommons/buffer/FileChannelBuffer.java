@@ -0,0 +1,1082 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.kdgcommons.io.IOUtil;
+
+
+/**
+ *  A {@link BufferFacade} that accesses a file using positional <code>FileChannel</code>
+ *  reads and writes, rather than memory-mapping. This is intended for environments
+ *  where mapping is undesirable or unavailable (for example, some network filesystems,
+ *  or containers where mapped pages count against a memory limit).
+ *  <p>
+ *  File content is held in a cache of fixed-size pages, with a fixed maximum page count,
+ *  so heap usage is bounded by <code>pageSize * maxPages</code>. Pages are evicted in
+ *  least-recently-used order. Modified pages are written back to the file when they're
+ *  evicted, or on a call to {@link #flush}, {@link #force}, or {@link #close}.
+ *  <p>
+ *  For a writable buffer, writes past the end of the file extend it. Reads past the
+ *  end throw <code>IndexOutOfBoundsException</code>.
+ *  <p>
+ *  All methods are synchronized, so an instance may be shared between threads. I/O
+ *  errors are reported as <code>RuntimeException</code>s (since the <code>BufferFacade</code>
+ *  methods don't declare <code>IOException</code>), with the original exception as cause.
+ *  <p>
+ *  Because there is no shared backing store, {@link #slice} returns a read-only view
+ *  of a single cached page; see that method for details.
+ *
+ *  @since 1.1.0
+ */
+public class FileChannelBuffer
+implements BufferFacade, Closeable
+{
+    private File _file;
+    private RandomAccessFile _raf;
+    private FileChannel _channel;
+    private boolean _isWritable;
+    private int _pageSize;
+    private int _maxPages;
+    private ByteOrder _byteOrder = ByteOrder.BIG_ENDIAN;
+    private long _size;
+    private boolean _isClosed;
+
+    // access-ordered, so iteration starts with the least-recently-used page
+    private LinkedHashMap<Long,Page> _pages = new LinkedHashMap<Long,Page>(16, 0.75f, true);
+
+    // used for values that span pages
+    private ByteBuffer _scratch = ByteBuffer.allocate(8);
+    private boolean _isScratchWrite;
+
+    private long _pageReads;
+    private long _pageWrites;
+
+
+    /**
+     *  Opens the specified file.
+     *
+     *  @param  file        The file to open; must be accessible to user.
+     *  @param  readWrite   Pass <code>true</code> to open the file with read-write
+     *                      access, <code>false</code> to open with read-only access.
+     *  @param  pageSize    The size of each cached page. Must be at least 8 (so that
+     *                      a value spans at most two pages); should be a multiple of
+     *                      the filesystem block size.
+     *  @param  maxPages    The maximum number of pages to cache. Must be at least 2.
+     *
+     *  @throws IllegalArgumentException if page size or count is invalid.
+     */
+    public FileChannelBuffer(File file, boolean readWrite, int pageSize, int maxPages)
+    throws IOException
+    {
+        if (pageSize < 8)
+            throw new IllegalArgumentException("page size must be at least 8: " + pageSize);
+        if (maxPages < 2)
+            throw new IllegalArgumentException("must allow at least 2 pages: " + maxPages);
+
+        _file = file;
+        _isWritable = readWrite;
+        _pageSize = pageSize;
+        _maxPages = maxPages;
+        _raf = new RandomAccessFile(file, readWrite ? "rw" : "r");
+        _channel = _raf.getChannel();
+        _size = _channel.size();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the size of the file, including any writes that haven't yet been
+     *  written back.
+     */
+    public synchronized long capacity()
+    {
+        return _size;
+    }
+
+
+    /**
+     *  Returns the same value as {@link #capacity}.
+     */
+    public long limit()
+    {
+        return capacity();
+    }
+
+
+    /**
+     *  Returns the file accessed by this buffer.
+     */
+    public File file()
+    {
+        return _file;
+    }
+
+
+    /**
+     *  Indicates whether this buffer is read-write or read-only.
+     */
+    public boolean isWritable()
+    {
+        return _isWritable;
+    }
+
+
+    /**
+     *  Returns the byte-order of this buffer.
+     */
+    public synchronized ByteOrder getByteOrder()
+    {
+        return _byteOrder;
+    }
+
+
+    /**
+     *  Sets the byte-order of this buffer.
+     */
+    public synchronized void setByteOrder(ByteOrder order)
+    {
+        _byteOrder = order;
+        _scratch.order(order);
+        for (Page page : _pages.values())
+            page.data.order(order);
+    }
+
+
+    /**
+     *  Returns the number of pages read from the file.
+     */
+    public synchronized long getPageReadCount()
+    {
+        return _pageReads;
+    }
+
+
+    /**
+     *  Returns the number of pages written to the file.
+     */
+    public synchronized long getPageWriteCount()
+    {
+        return _pageWrites;
+    }
+
+
+    /**
+     *  Retrieves a single byte from the specified index.
+     */
+    public synchronized byte get(long index)
+    {
+        return readAccess(index, 1).get();
+    }
+
+
+    /**
+     *  Stores a single byte at the specified index.
+     */
+    public synchronized void put(long index, byte value)
+    {
+        writeAccess(index, 1).put(value);
+        completeWrite(index, 1);
+    }
+
+
+    /**
+     *  Retrieves a short value starting at the specified index.
+     */
+    public synchronized short getShort(long index)
+    {
+        return readAccess(index, 2).getShort();
+    }
+
+
+    /**
+     *  Stores a short value starting at the specified index.
+     */
+    public synchronized void putShort(long index, short value)
+    {
+        writeAccess(index, 2).putShort(value);
+        completeWrite(index, 2);
+    }
+
+
+    /**
+     *  Retrieves an int value starting at the specified index.
+     */
+    public synchronized int getInt(long index)
+    {
+        return readAccess(index, 4).getInt();
+    }
+
+
+    /**
+     *  Stores an int value starting at the specified index.
+     */
+    public synchronized void putInt(long index, int value)
+    {
+        writeAccess(index, 4).putInt(value);
+        completeWrite(index, 4);
+    }
+
+
+    /**
+     *  Retrieves a long value starting at the specified index.
+     */
+    public synchronized long getLong(long index)
+    {
+        return readAccess(index, 8).getLong();
+    }
+
+
+    /**
+     *  Stores a long value starting at the specified index.
+     */
+    public synchronized void putLong(long index, long value)
+    {
+        writeAccess(index, 8).putLong(value);
+        completeWrite(index, 8);
+    }
+
+
+    /**
+     *  Retrieves a float value starting at the specified index.
+     */
+    public synchronized float getFloat(long index)
+    {
+        return readAccess(index, 4).getFloat();
+    }
+
+
+    /**
+     *  Stores a float value starting at the specified index.
+     */
+    public synchronized void putFloat(long index, float value)
+    {
+        writeAccess(index, 4).putFloat(value);
+        completeWrite(index, 4);
+    }
+
+
+    /**
+     *  Retrieves a double value starting at the specified index.
+     */
+    public synchronized double getDouble(long index)
+    {
+        return readAccess(index, 8).getDouble();
+    }
+
+
+    /**
+     *  Stores a double value starting at the specified index.
+     */
+    public synchronized void putDouble(long index, double value)
+    {
+        writeAccess(index, 8).putDouble(value);
+        completeWrite(index, 8);
+    }
+
+
+    /**
+     *  Retrieves a char value starting at the specified index.
+     */
+    public synchronized char getChar(long index)
+    {
+        return readAccess(index, 2).getChar();
+    }
+
+
+    /**
+     *  Stores a char value starting at the specified index.
+     */
+    public synchronized void putChar(long index, char value)
+    {
+        writeAccess(index, 2).putChar(value);
+        completeWrite(index, 2);
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> bytes starting at the specified index,
+     *  storing them in a newly created <code>byte[]</code>.
+     */
+    public byte[] getBytes(long index, int len)
+    {
+        return getBytes(index, new byte[len], 0, len);
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> bytes starting at the specified index,
+     *  storing them in the passed array. Returns the array as a convenience.
+     */
+    public synchronized byte[] getBytes(long index, byte[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRead(index, len);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, _pageSize - pageOffset);
+            page.data.position(pageOffset);
+            page.data.get(array, off, count);
+            index += count;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores the passed array starting at the specified index.
+     */
+    public void putBytes(long index, byte[] value)
+    {
+        putBytes(index, value, 0, value.length);
+    }
+
+
+    /**
+     *  Stores a section of the passed array starting at the specified index.
+     */
+    public synchronized void putBytes(long index, byte[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        checkWrite(index);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, _pageSize - pageOffset);
+            page.data.position(pageOffset);
+            page.data.put(value, off, count);
+            page.wrote(pageOffset, count);
+            updateSize(index + count);
+            index += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> short values starting at the specified index,
+     *  storing them in the passed array. Returns the array as a convenience.
+     */
+    public synchronized short[] getShorts(long index, short[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRead(index, len * 2L);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 2);
+            if (count == 0)
+            {
+                // value spans pages
+                array[off] = readAccess(index, 2).getShort();
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asShortBuffer().get(array, off, count);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores <code>len</code> short values from the passed array, starting at
+     *  the specified index.
+     */
+    public synchronized void putShorts(long index, short[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        checkWrite(index);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 2);
+            if (count == 0)
+            {
+                // value spans pages
+                writeAccess(index, 2).putShort(value[off]);
+                completeWrite(index, 2);
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asShortBuffer().put(value, off, count);
+                page.wrote(pageOffset, count * 2);
+                updateSize(index + count * 2L);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> int values starting at the specified index,
+     *  storing them in the passed array. Returns the array as a convenience.
+     */
+    public synchronized int[] getInts(long index, int[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRead(index, len * 4L);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 4);
+            if (count == 0)
+            {
+                // value spans pages
+                array[off] = readAccess(index, 4).getInt();
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asIntBuffer().get(array, off, count);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores <code>len</code> int values from the passed array, starting at
+     *  the specified index.
+     */
+    public synchronized void putInts(long index, int[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        checkWrite(index);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 4);
+            if (count == 0)
+            {
+                // value spans pages
+                writeAccess(index, 4).putInt(value[off]);
+                completeWrite(index, 4);
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asIntBuffer().put(value, off, count);
+                page.wrote(pageOffset, count * 4);
+                updateSize(index + count * 4L);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> long values starting at the specified index,
+     *  storing them in the passed array. Returns the array as a convenience.
+     */
+    public synchronized long[] getLongs(long index, long[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRead(index, len * 8L);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 8);
+            if (count == 0)
+            {
+                // value spans pages
+                array[off] = readAccess(index, 8).getLong();
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asLongBuffer().get(array, off, count);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores <code>len</code> long values from the passed array, starting at
+     *  the specified index.
+     */
+    public synchronized void putLongs(long index, long[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        checkWrite(index);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 8);
+            if (count == 0)
+            {
+                // value spans pages
+                writeAccess(index, 8).putLong(value[off]);
+                completeWrite(index, 8);
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asLongBuffer().put(value, off, count);
+                page.wrote(pageOffset, count * 8);
+                updateSize(index + count * 8L);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> float values starting at the specified index,
+     *  storing them in the passed array. Returns the array as a convenience.
+     */
+    public synchronized float[] getFloats(long index, float[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRead(index, len * 4L);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 4);
+            if (count == 0)
+            {
+                // value spans pages
+                array[off] = readAccess(index, 4).getFloat();
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asFloatBuffer().get(array, off, count);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores <code>len</code> float values from the passed array, starting at
+     *  the specified index.
+     */
+    public synchronized void putFloats(long index, float[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        checkWrite(index);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 4);
+            if (count == 0)
+            {
+                // value spans pages
+                writeAccess(index, 4).putFloat(value[off]);
+                completeWrite(index, 4);
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asFloatBuffer().put(value, off, count);
+                page.wrote(pageOffset, count * 4);
+                updateSize(index + count * 4L);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> double values starting at the specified index,
+     *  storing them in the passed array. Returns the array as a convenience.
+     */
+    public synchronized double[] getDoubles(long index, double[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRead(index, len * 8L);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 8);
+            if (count == 0)
+            {
+                // value spans pages
+                array[off] = readAccess(index, 8).getDouble();
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asDoubleBuffer().get(array, off, count);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores <code>len</code> double values from the passed array, starting at
+     *  the specified index.
+     */
+    public synchronized void putDoubles(long index, double[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        checkWrite(index);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 8);
+            if (count == 0)
+            {
+                // value spans pages
+                writeAccess(index, 8).putDouble(value[off]);
+                completeWrite(index, 8);
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asDoubleBuffer().put(value, off, count);
+                page.wrote(pageOffset, count * 8);
+                updateSize(index + count * 8L);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> char values starting at the specified index,
+     *  storing them in the passed array. Returns the array as a convenience.
+     */
+    public synchronized char[] getChars(long index, char[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRead(index, len * 2L);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 2);
+            if (count == 0)
+            {
+                // value spans pages
+                array[off] = readAccess(index, 2).getChar();
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asCharBuffer().get(array, off, count);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores <code>len</code> char values from the passed array, starting at
+     *  the specified index.
+     */
+    public synchronized void putChars(long index, char[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        checkWrite(index);
+        while (len > 0)
+        {
+            Page page = page(index);
+            int pageOffset = (int)(index % _pageSize);
+            int count = Math.min(len, (_pageSize - pageOffset) / 2);
+            if (count == 0)
+            {
+                // value spans pages
+                writeAccess(index, 2).putChar(value[off]);
+                completeWrite(index, 2);
+                count = 1;
+            }
+            else
+            {
+                page.data.position(pageOffset);
+                page.data.asCharBuffer().put(value, off, count);
+                page.wrote(pageOffset, count * 2);
+                updateSize(index + count * 2L);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Returns a read-only view of the page containing the specified index, starting
+     *  at that index and limited to the end of the page (or the end of the file, if
+     *  that's earlier). As permitted by {@link BufferFacade#slice}, callers must use
+     *  the returned buffer's limit rather than assume that it extends to the end of
+     *  the file.
+     *  <p>
+     *  The view shares the page's content while that page remains cached, so will
+     *  reflect subsequent writes. Once the page is evicted, the view retains its last
+     *  content, but no longer reflects writes. Access to the view is not synchronized
+     *  with this object.
+     */
+    public synchronized ByteBuffer slice(long index)
+    {
+        checkRead(index, 1);
+        Page page = page(index);
+        page.isShared = true;
+
+        int pageOffset = (int)(index % _pageSize);
+        int limit = (int)Math.min(_pageSize, _size - page.fileOffset);
+        ByteBuffer buf = page.data.duplicate();
+        buf.limit(limit).position(pageOffset);
+        return buf.slice().asReadOnlyBuffer().order(_byteOrder);
+    }
+
+
+    /**
+     *  Writes all modified pages to the file. Pages remain cached.
+     */
+    public synchronized void flush()
+    throws IOException
+    {
+        checkOpen();
+        for (Page page : _pages.values())
+            writeBack(page);
+    }
+
+
+    /**
+     *  Writes all modified pages to the file, and forces the file's content
+     *  to disk.
+     */
+    public synchronized void force()
+    throws IOException
+    {
+        flush();
+        _channel.force(false);
+    }
+
+
+    /**
+     *  Writes all modified pages and closes the file. Any subsequent access
+     *  will throw <code>IllegalStateException</code>. Closing an already-closed
+     *  buffer has no effect.
+     */
+    public synchronized void close()
+    throws IOException
+    {
+        if (_isClosed)
+            return;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            _isClosed = true;
+            _pages.clear();
+            IOUtil.closeQuietly(_raf);
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void checkOpen()
+    {
+        if (_isClosed)
+            throw new IllegalStateException("buffer has been closed: " + _file);
+    }
+
+
+    private static void checkArrayBounds(int arrayLength, int off, int len)
+    {
+        if ((off < 0) || (len < 0) || (off + len > arrayLength))
+            throw new IndexOutOfBoundsException(
+                    "invalid offset/length for array of size " + arrayLength + ": " + off + "/" + len);
+    }
+
+
+    private void checkRead(long index, long length)
+    {
+        checkOpen();
+        if ((index < 0) || (index + length > _size))
+            throw new IndexOutOfBoundsException(
+                    "invalid index/length for buffer of size " + _size + ": " + index + "/" + length);
+    }
+
+
+    private void checkWrite(long index)
+    {
+        checkOpen();
+        if (! _isWritable)
+            throw new ReadOnlyBufferException();
+        if (index < 0)
+            throw new IndexOutOfBoundsException("negative index: " + index);
+    }
+
+
+    private void updateSize(long end)
+    {
+        if (end > _size)
+            _size = end;
+    }
+
+
+    /**
+     *  Returns a buffer positioned at the specified value, for a read. This will
+     *  be the page buffer if the value is contained within a single page, the
+     *  scratch buffer if it spans pages.
+     */
+    private ByteBuffer readAccess(long index, int size)
+    {
+        checkRead(index, size);
+        int pageOffset = (int)(index % _pageSize);
+        if (pageOffset + size <= _pageSize)
+        {
+            ByteBuffer buf = page(index).data;
+            buf.position(pageOffset);
+            return buf;
+        }
+
+        int firstCount = _pageSize - pageOffset;
+        _scratch.clear();
+        page(index).data.position(pageOffset);
+        page(index).data.get(_scratch.array(), 0, firstCount);
+        page(index + firstCount).data.position(0);
+        page(index + firstCount).data.get(_scratch.array(), firstCount, size - firstCount);
+        return _scratch;
+    }
+
+
+    /**
+     *  Returns a buffer positioned for a write of the specified value. The caller
+     *  must then call {@link #completeWrite}.
+     */
+    private ByteBuffer writeAccess(long index, int size)
+    {
+        checkWrite(index);
+        int pageOffset = (int)(index % _pageSize);
+        _isScratchWrite = (pageOffset + size > _pageSize);
+        if (_isScratchWrite)
+        {
+            _scratch.clear();
+            return _scratch;
+        }
+
+        ByteBuffer buf = page(index).data;
+        buf.position(pageOffset);
+        return buf;
+    }
+
+
+    /**
+     *  Marks the pages affected by a write as dirty, copying from the scratch
+     *  buffer if the value spans pages.
+     */
+    private void completeWrite(long index, int size)
+    {
+        int pageOffset = (int)(index % _pageSize);
+        if (_isScratchWrite)
+        {
+            int firstCount = _pageSize - pageOffset;
+            Page first = page(index);
+            first.data.position(pageOffset);
+            first.data.put(_scratch.array(), 0, firstCount);
+            first.wrote(pageOffset, firstCount);
+
+            Page second = page(index + firstCount);
+            second.data.position(0);
+            second.data.put(_scratch.array(), firstCount, size - firstCount);
+            second.wrote(0, size - firstCount);
+        }
+        else
+        {
+            page(index).wrote(pageOffset, size);
+        }
+        updateSize(index + size);
+    }
+
+
+    /**
+     *  Returns the page containing the specified index, reading it if necessary
+     *  (and evicting the least-recently-used page if the cache is full).
+     */
+    private Page page(long index)
+    {
+        Long pageNum = Long.valueOf(index / _pageSize);
+        Page page = _pages.get(pageNum);
+        if (page != null)
+            return page;
+
+        try
+        {
+            ByteBuffer data = null;
+            if (_pages.size() >= _maxPages)
+            {
+                Iterator<Map.Entry<Long,Page>> itx = _pages.entrySet().iterator();
+                Page eldest = itx.next().getValue();
+                writeBack(eldest);
+                itx.remove();
+                data = eldest.isShared
+                     ? ByteBuffer.allocate(_pageSize).order(_byteOrder)
+                     : eldest.data;
+            }
+            else
+            {
+                data = ByteBuffer.allocate(_pageSize).order(_byteOrder);
+            }
+
+            page = new Page(pageNum.longValue() * _pageSize, data);
+            read(page);
+            _pages.put(pageNum, page);
+            return page;
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException("unable to access " + _file + " at index " + index, ex);
+        }
+    }
+
+
+    private void read(Page page)
+    throws IOException
+    {
+        ByteBuffer data = page.data;
+        data.clear();
+        while (data.hasRemaining())
+        {
+            int count = _channel.read(data, page.fileOffset + data.position());
+            if (count < 0)
+                break;
+        }
+        page.extent = data.position();
+        Arrays.fill(data.array(), page.extent, _pageSize, (byte)0);
+        data.clear();
+        _pageReads++;
+    }
+
+
+    private void writeBack(Page page)
+    throws IOException
+    {
+        if (! page.isDirty)
+            return;
+
+        ByteBuffer data = page.data.duplicate();
+        data.position(0).limit(page.extent);
+        while (data.hasRemaining())
+        {
+            _channel.write(data, page.fileOffset + data.position());
+        }
+        page.isDirty = false;
+        _pageWrites++;
+    }
+
+
+    /**
+     *  A cached page. The extent is the number of bytes that are valid, either
+     *  because they were read from the file or have been written; it's used so
+     *  that writing back a partial page at the end of the file does not extend
+     *  the file. A page that has been returned by {@link #slice} is shared, and
+     *  its buffer is not reused when it's evicted.
+     */
+    private static class Page
+    {
+        public final long fileOffset;
+        public final ByteBuffer data;
+        public int extent;
+        public boolean isDirty;
+        public boolean isShared;
+
+        public Page(long fileOffset, ByteBuffer data)
+        {
+            this.fileOffset = fileOffset;
+            this.data = data;
+        }
+
+        public void wrote(int offset, int length)
+        {
+            isDirty = true;
+            extent = Math.max(extent, offset + length);
+        }
+    }
+}
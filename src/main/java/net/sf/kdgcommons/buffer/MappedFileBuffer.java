@@ -14,16 +14,30 @@
 
 package net.sf.kdgcommons.buffer;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.kdgcommons.io.IOUtil;
+import net.sf.kdgcommons.lang.NamedThreadFactory;
 import net.sf.kdgcommons.lang.UnreachableCodeException;
 
 
@@ -38,19 +52,51 @@ import net.sf.kdgcommons.lang.UnreachableCodeException;
  *  sub-buffer that may be accessed (via {@link #getBytes} and {@link #putBytes}),
  *  and may be no larger than 1 GB.
  *  <p>
- *  <strong>Warning:</strong>
- *  This class is not thread-safe. Caller must explicitly synchronize access,
- *  or call {@link #clone} to create a distinct buffer for each thread.
+ *  A writable buffer may also be created as "growable": any attempt to write past
+ *  the end of the file will extend the file (in multiples of the segment size) and
+ *  map the new space. Growable buffers are typically used for files whose final size
+ *  isn't known in advance, and which are written sequentially using {@link #append}.
+ *  Note that the file's size after growth will generally be larger than the data
+ *  written; the append position identifies the logical end of the data.
+ *  <p>
+ *  Mapped segments are normally released when the buffer is garbage-collected,
+ *  which may be long after it is no longer used. To release them immediately,
+ *  call {@link #close}. A buffer and its clones share the same mappings, which
+ *  are released when the last of them is closed; any access to a closed buffer
+ *  throws <code>IllegalStateException</code>. Byte buffers returned by {@link
+ *  #slice} must not be used once the mappings have been released.
+ *  <p>
+ *  All access uses absolute indexes, and there's no shared cursor state, so a
+ *  single instance may be used concurrently by any number of threads. There is
+ *  no need to {@link #clone} the buffer for each thread (although that remains
+ *  supported). The exceptions are {@link #setByteOrder} and {@link #close}, which
+ *  must not be called while other threads are accessing the buffer; for close,
+ *  the consequence of doing so may be a JVM crash rather than an exception. As
+ *  with any shared memory, concurrent writes are not coordinated: use the atomic
+ *  methods ({@link #compareAndSwapLong} and friends) for values that are updated
+ *  by multiple threads.
  */
 public class MappedFileBuffer
-implements BufferFacade, Cloneable
+implements BufferFacade, Cloneable, Closeable
 {
     private final static int MAX_SEGMENT_SIZE = 0x8000000; // 1 GB, assures alignment
+    private final static int PAGE_SIZE = 4096;              // smallest common page size
+    private final static ByteOrder NATIVE_ORDER = ByteOrder.nativeOrder();
+
+    // used for atomic operations when Unsafe isn't available
+    private final static int ATOMIC_LOCK_COUNT = 64;        // power of 2
+    private final static Object[] ATOMIC_LOCKS = new Object[ATOMIC_LOCK_COUNT];
+    static
+    {
+        for (int ii = 0 ; ii < ATOMIC_LOCK_COUNT ; ii++)
+            ATOMIC_LOCKS[ii] = new Object();
+    }
 
-    private File _file;
-    private boolean _isWritable;
+    private Mapping _mapping;
     private long _segmentSize;              // long because it's used in long expressions
-    private MappedByteBuffer[] _buffers;
+    private View _view;                     // duplicates of the mapping's buffers
+    private ByteOrder _byteOrder = ByteOrder.BIG_ENDIAN;
+    private AtomicBoolean _isClosed = new AtomicBoolean();
 
 
     /**
@@ -102,41 +148,43 @@ implements BufferFacade, Cloneable
      */
     public MappedFileBuffer(File file, int segmentSize, boolean readWrite)
     throws IOException
+    {
+        this(file, segmentSize, readWrite, false);
+    }
+
+
+    /**
+     *  Opens and memory-maps the specified file, for read-only, read-write,
+     *  or growable access, with a specified segment size.
+     *
+     *  @param  file        The file to open; must be accessible to user.
+     *  @param  segmentSize The largest contiguous sub-buffer that can be
+     *                      created using {@link #slice}. The maximum size
+     *                      is 2^30 - 1. For a growable buffer, this is also
+     *                      the increment by which the file is extended.
+     *  @param  readWrite   Pass <code>true</code> to open the file with
+     *                      read-write access, <code>false</code> to open
+     *                      with read-only access.
+     *  @param  growable    Pass <code>true</code> to extend the file when
+     *                      writing past its end. Requires read-write access.
+     *
+     *  @throws IllegalArgumentException if <code>segmentSize</code> is > 1GB,
+     *          or if a read-only buffer is requested to be growable.
+     *
+     *  @since 1.1.0
+     */
+    public MappedFileBuffer(File file, int segmentSize, boolean readWrite, boolean growable)
+    throws IOException
     {
         if (segmentSize > MAX_SEGMENT_SIZE)
             throw new IllegalArgumentException(
                     "segment size too large (max is " + MAX_SEGMENT_SIZE + "): " + segmentSize);
+        if (growable && ! readWrite)
+            throw new IllegalArgumentException("growable buffer must be writable");
 
-        _file = file;
-        _isWritable = readWrite;
+        _mapping = new Mapping(file, segmentSize, readWrite, growable);
         _segmentSize = segmentSize;
-
-        RandomAccessFile mappedFile = null;
-        try
-        {
-            String mode = readWrite ? "rw" : "r";
-            MapMode mapMode = readWrite ? MapMode.READ_WRITE : MapMode.READ_ONLY;
-
-            mappedFile = new RandomAccessFile(file, mode);
-            FileChannel channel = mappedFile.getChannel();
-
-            long fileSize = file.length();
-
-            int bufArraySize = (int)(fileSize / segmentSize)
-                             + ((fileSize % segmentSize != 0) ? 1 : 0);
-            _buffers = new MappedByteBuffer[bufArraySize];
-            int bufIdx = 0;
-            for (long offset = 0 ; offset < fileSize ; offset += segmentSize)
-            {
-                long remainingFileSize = fileSize - offset;
-                long thisSegmentSize = Math.min(2L * segmentSize, remainingFileSize);
-                _buffers[bufIdx++] = channel.map(mapMode, offset, thisSegmentSize);
-            }
-        }
-        finally
-        {
-            IOUtil.closeQuietly(mappedFile);
-        }
+        refreshBuffers();
     }
 
 
@@ -145,11 +193,12 @@ implements BufferFacade, Cloneable
 //----------------------------------------------------------------------------
 
     /**
-     *  Returns the buffer's capacity -- the size of the mapped file.
+     *  Returns the buffer's capacity -- the size of the mapped file. For a growable
+     *  buffer, this will increase as data is written.
      */
     public long capacity()
     {
-        return _file.length();
+        return _mapping.size;
     }
 
 
@@ -170,7 +219,7 @@ implements BufferFacade, Cloneable
      */
     public File file()
     {
-        return _file;
+        return _mapping.file;
     }
 
 
@@ -179,27 +228,41 @@ implements BufferFacade, Cloneable
      */
     public boolean isWritable()
     {
-        return _isWritable;
+        return _mapping.isWritable;
+    }
+
+
+    /**
+     *  Indicates whether this buffer will grow to accommodate writes past its end.
+     *
+     *  @since 1.1.0
+     */
+    public boolean isGrowable()
+    {
+        return _mapping.isGrowable;
     }
 
 
     /**
-     *  Returns the byte-order of this buffer (actually, the order of the first
-     *  child buffer; they should all be the same).
+     *  Returns the byte-order of this buffer.
      */
     public ByteOrder getByteOrder()
     {
-        return _buffers[0].order();
+        return _byteOrder;
     }
 
 
     /**
-     *  Sets the order of this buffer (propagated to all child buffers).
+     *  Sets the order of this buffer (propagated to all child buffers). This
+     *  does not affect existing clones; new clones will have the same order.
+     *  <p>
+     *  This method must not be called while other threads are using the buffer.
      */
     public void setByteOrder(ByteOrder order)
     {
-        for (ByteBuffer child : _buffers)
-            child.order(order);
+        checkOpen();
+        _byteOrder = order;
+        refreshBuffers();
     }
 
 
@@ -208,7 +271,7 @@ implements BufferFacade, Cloneable
      */
     public byte get(long index)
     {
-        return buffer(index).get();
+        return segment(index).get((int)(index % _segmentSize));
     }
 
 
@@ -217,7 +280,8 @@ implements BufferFacade, Cloneable
      */
     public void put(long index, byte value)
     {
-        buffer(index).put(value);
+        writeSegment(index, 1).put((int)(index % _segmentSize), value);
+        wrote(index, 1);
     }
 
 
@@ -226,7 +290,7 @@ implements BufferFacade, Cloneable
      */
     public int getInt(long index)
     {
-        return buffer(index).getInt();
+        return segment(index).getInt((int)(index % _segmentSize));
     }
 
 
@@ -235,7 +299,8 @@ implements BufferFacade, Cloneable
      */
     public void putInt(long index, int value)
     {
-        buffer(index).putInt(value);
+        writeSegment(index, 4).putInt((int)(index % _segmentSize), value);
+        wrote(index, 4);
     }
 
 
@@ -244,7 +309,7 @@ implements BufferFacade, Cloneable
      */
     public long getLong(long index)
     {
-        return buffer(index).getLong();
+        return segment(index).getLong((int)(index % _segmentSize));
     }
 
 
@@ -253,7 +318,8 @@ implements BufferFacade, Cloneable
      */
     public void putLong(long index, long value)
     {
-        buffer(index).putLong(value);
+        writeSegment(index, 8).putLong((int)(index % _segmentSize), value);
+        wrote(index, 8);
     }
 
 
@@ -262,7 +328,7 @@ implements BufferFacade, Cloneable
      */
     public short getShort(long index)
     {
-        return buffer(index).getShort();
+        return segment(index).getShort((int)(index % _segmentSize));
     }
 
 
@@ -271,7 +337,8 @@ implements BufferFacade, Cloneable
      */
     public void putShort(long index, short value)
     {
-        buffer(index).putShort(value);
+        writeSegment(index, 2).putShort((int)(index % _segmentSize), value);
+        wrote(index, 2);
     }
 
 
@@ -281,7 +348,7 @@ implements BufferFacade, Cloneable
      */
     public float getFloat(long index)
     {
-        return buffer(index).getFloat();
+        return segment(index).getFloat((int)(index % _segmentSize));
     }
 
 
@@ -291,7 +358,8 @@ implements BufferFacade, Cloneable
      */
     public void putFloat(long index, float value)
     {
-        buffer(index).putFloat(value);
+        writeSegment(index, 4).putFloat((int)(index % _segmentSize), value);
+        wrote(index, 4);
     }
 
 
@@ -301,7 +369,7 @@ implements BufferFacade, Cloneable
      */
     public double getDouble(long index)
     {
-        return buffer(index).getDouble();
+        return segment(index).getDouble((int)(index % _segmentSize));
     }
 
 
@@ -311,7 +379,8 @@ implements BufferFacade, Cloneable
      */
     public void putDouble(long index, double value)
     {
-        buffer(index).putDouble(value);
+        writeSegment(index, 8).putDouble((int)(index % _segmentSize), value);
+        wrote(index, 8);
     }
 
 
@@ -321,7 +390,7 @@ implements BufferFacade, Cloneable
      */
     public char getChar(long index)
     {
-        return buffer(index).getChar();
+        return segment(index).getChar((int)(index % _segmentSize));
     }
 
 
@@ -330,7 +399,8 @@ implements BufferFacade, Cloneable
      */
     public void putChar(long index, char value)
     {
-        buffer(index).putChar(value);
+        writeSegment(index, 2).putChar((int)(index % _segmentSize), value);
+        wrote(index, 2);
     }
 
 
@@ -363,7 +433,7 @@ implements BufferFacade, Cloneable
         while (len > 0)
         {
             ByteBuffer buf = buffer(index);
-            int count = Math.min(len, buf.remaining());
+            int count = checkCount(index, Math.min(len, buf.remaining()));
             buf.get(array, off, count);
             index += count;
             off += count;
@@ -395,11 +465,13 @@ implements BufferFacade, Cloneable
      */
     public void putBytes(long index, byte[] value, int off, int len)
     {
+        ensureCapacity(index + len);
         while (len > 0)
         {
             ByteBuffer buf = buffer(index);
-            int count = Math.min(len, buf.remaining());
+            int count = checkCount(index, Math.min(len, buf.remaining()));
             buf.put(value, off, count);
+            wrote(index, count);
             index += count;
             off += count;
             len -= count;
@@ -408,66 +480,1559 @@ implements BufferFacade, Cloneable
 
 
     /**
-     *  Creates a new buffer, whose size will be >= segment size, starting at
-     *  the specified offset.
+     *  Retrieves <code>len</code> short values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience. Will span segments as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would read past
+     *          the end of file.
+     *
+     *  @since 1.1.0
      */
-    public ByteBuffer slice(long index)
+    public short[] getShorts(long index, short[] array, int off, int len)
     {
-        return buffer(index).slice();
+        checkArrayBounds(array.length, off, len);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 2));
+            buf.asShortBuffer().get(array, off, count);
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+        return array;
     }
 
 
     /**
-     *  Iterates through the underlying buffers, calling <code>force()</code>
-     *  on each; this will cause the buffers' contents to be written to disk.
-     *  Note, however, that the OS may not physically write the buffers until
-     *  a future time.
+     *  Stores a section of the passed short array, defined by <code>off</code>
+     *  and <code>len</code>, starting at the given index. Will span segments
+     *  as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would write past
+     *          the end of file.
+     *
+     *  @since 1.1.0
      */
-    public void force()
+    public void putShorts(long index, short[] value, int off, int len)
     {
-        for (MappedByteBuffer buf : _buffers)
-            buf.force();
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 2L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 2));
+            buf.asShortBuffer().put(value, off, count);
+            wrote(index, count * 2L);
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
     }
 
 
     /**
-     *  Creates a new buffer referencing the same file, but with a copy of the
-     *  original underlying mappings. The new and old buffers may be accessed
-     *  by different threads.
+     *  Retrieves <code>len</code> int values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience. Will span segments as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would read past
+     *          the end of file.
+     *
+     *  @since 1.1.0
      */
-    @Override
-    public MappedFileBuffer clone()
+    public int[] getInts(long index, int[] array, int off, int len)
     {
-        try
+        checkArrayBounds(array.length, off, len);
+        while (len > 0)
         {
-            MappedFileBuffer that = (MappedFileBuffer)super.clone();
-            that._buffers = new MappedByteBuffer[_buffers.length];
-            for (int ii = 0 ; ii < _buffers.length ; ii++)
-            {
-                // if the file is a multiple of the segment size, we
-                // can end up with an empty slot in the buffer array
-                if (_buffers[ii] != null)
-                    that._buffers[ii] = (MappedByteBuffer)_buffers[ii].duplicate();
-            }
-            return that;
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 4));
+            buf.asIntBuffer().get(array, off, count);
+            index += count * 4L;
+            off += count;
+            len -= count;
         }
-        catch (CloneNotSupportedException ex)
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed int array, defined by <code>off</code>
+     *  and <code>len</code>, starting at the given index. Will span segments
+     *  as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would write past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public void putInts(long index, int[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 4L);
+        while (len > 0)
         {
-            throw new UnreachableCodeException("I used to implement Cloneable, why don't I now?");
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 4));
+            buf.asIntBuffer().put(value, off, count);
+            wrote(index, count * 4L);
+            index += count * 4L;
+            off += count;
+            len -= count;
         }
     }
 
 
+    /**
+     *  Retrieves <code>len</code> long values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience. Will span segments as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would read past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public long[] getLongs(long index, long[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 8));
+            buf.asLongBuffer().get(array, off, count);
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
 
-//----------------------------------------------------------------------------
-//  Internals
-//----------------------------------------------------------------------------
 
-    // this is exposed for a white-box test of cloning
-    protected ByteBuffer buffer(long index)
+    /**
+     *  Stores a section of the passed long array, defined by <code>off</code>
+     *  and <code>len</code>, starting at the given index. Will span segments
+     *  as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would write past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public void putLongs(long index, long[] value, int off, int len)
     {
-        ByteBuffer buf = _buffers[(int)(index / _segmentSize)];
-        buf.position((int)(index % _segmentSize));
-        return buf;
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 8L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 8));
+            buf.asLongBuffer().put(value, off, count);
+            wrote(index, count * 8L);
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> float values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience. Will span segments as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would read past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public float[] getFloats(long index, float[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 4));
+            buf.asFloatBuffer().get(array, off, count);
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed float array, defined by <code>off</code>
+     *  and <code>len</code>, starting at the given index. Will span segments
+     *  as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would write past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public void putFloats(long index, float[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 4L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 4));
+            buf.asFloatBuffer().put(value, off, count);
+            wrote(index, count * 4L);
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> double values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience. Will span segments as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would read past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public double[] getDoubles(long index, double[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 8));
+            buf.asDoubleBuffer().get(array, off, count);
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed double array, defined by <code>off</code>
+     *  and <code>len</code>, starting at the given index. Will span segments
+     *  as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would write past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public void putDoubles(long index, double[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 8L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 8));
+            buf.asDoubleBuffer().put(value, off, count);
+            wrote(index, count * 8L);
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> char values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience. Will span segments as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would read past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public char[] getChars(long index, char[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 2));
+            buf.asCharBuffer().get(array, off, count);
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed char array, defined by <code>off</code>
+     *  and <code>len</code>, starting at the given index. Will span segments
+     *  as needed.
+     *
+     *  @throws IndexOutOfBoundsException if the request would write past
+     *          the end of file.
+     *
+     *  @since 1.1.0
+     */
+    public void putChars(long index, char[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 2L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = checkCount(index, Math.min(len, buf.remaining() / 2));
+            buf.asCharBuffer().put(value, off, count);
+            wrote(index, count * 2L);
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves an int value with volatile semantics: the read will see the
+     *  most recent volatile or atomic write by any thread. The index must be a
+     *  multiple of 4.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public int getIntVolatile(long index)
+    {
+        long address = atomicAddress(index, 4, false);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                return segment(index).getInt((int)(index % _segmentSize));
+            }
+        }
+        return toBufferOrder(UnsafeHolder.UNSAFE.getIntVolatile(null, address));
+    }
+
+
+    /**
+     *  Stores an int value with volatile semantics: the write will be seen by
+     *  any subsequent volatile or atomic read. The index must be a multiple of 4.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public void putIntVolatile(long index, int value)
+    {
+        long address = atomicAddress(index, 4, true);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                segment(index).putInt((int)(index % _segmentSize), value);
+            }
+        }
+        else
+        {
+            UnsafeHolder.UNSAFE.putIntVolatile(null, address, toBufferOrder(value));
+        }
+        wrote(index, 4);
+    }
+
+
+    /**
+     *  Atomically replaces the int value at the specified index with <code>update</code>,
+     *  if and only if its current value is <code>expect</code>. Returns <code>true</code>
+     *  if the replacement happened. The index must be a multiple of 4.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public boolean compareAndSwapInt(long index, int expect, int update)
+    {
+        boolean result;
+        long address = atomicAddress(index, 4, true);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                ByteBuffer buf = segment(index);
+                int pos = (int)(index % _segmentSize);
+                result = (buf.getInt(pos) == expect);
+                if (result)
+                    buf.putInt(pos, update);
+            }
+        }
+        else
+        {
+            result = UnsafeHolder.UNSAFE.compareAndSwapInt(null, address, toBufferOrder(expect), toBufferOrder(update));
+        }
+
+        if (result)
+            wrote(index, 4);
+        return result;
+    }
+
+
+    /**
+     *  Atomically adds <code>delta</code> to the int value at the specified index,
+     *  returning the value before the addition. The index must be a multiple of 4.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public int getAndAddInt(long index, int delta)
+    {
+        int prev;
+        long address = atomicAddress(index, 4, true);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                ByteBuffer buf = segment(index);
+                int pos = (int)(index % _segmentSize);
+                prev = buf.getInt(pos);
+                buf.putInt(pos, prev + delta);
+            }
+        }
+        else
+        {
+            int raw;
+            do
+            {
+                raw = UnsafeHolder.UNSAFE.getIntVolatile(null, address);
+                prev = toBufferOrder(raw);
+            }
+            while (! UnsafeHolder.UNSAFE.compareAndSwapInt(null, address, raw, toBufferOrder(prev + delta)));
+        }
+
+        wrote(index, 4);
+        return prev;
+    }
+
+
+    /**
+     *  Retrieves a long value with volatile semantics: the read will see the
+     *  most recent volatile or atomic write by any thread. The index must be a
+     *  multiple of 8.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public long getLongVolatile(long index)
+    {
+        long address = atomicAddress(index, 8, false);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                return segment(index).getLong((int)(index % _segmentSize));
+            }
+        }
+        return toBufferOrder(UnsafeHolder.UNSAFE.getLongVolatile(null, address));
+    }
+
+
+    /**
+     *  Stores a long value with volatile semantics: the write will be seen by
+     *  any subsequent volatile or atomic read. The index must be a multiple of 8.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public void putLongVolatile(long index, long value)
+    {
+        long address = atomicAddress(index, 8, true);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                segment(index).putLong((int)(index % _segmentSize), value);
+            }
+        }
+        else
+        {
+            UnsafeHolder.UNSAFE.putLongVolatile(null, address, toBufferOrder(value));
+        }
+        wrote(index, 8);
+    }
+
+
+    /**
+     *  Atomically replaces the long value at the specified index with <code>update</code>,
+     *  if and only if its current value is <code>expect</code>. Returns <code>true</code>
+     *  if the replacement happened. The index must be a multiple of 8.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public boolean compareAndSwapLong(long index, long expect, long update)
+    {
+        boolean result;
+        long address = atomicAddress(index, 8, true);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                ByteBuffer buf = segment(index);
+                int pos = (int)(index % _segmentSize);
+                result = (buf.getLong(pos) == expect);
+                if (result)
+                    buf.putLong(pos, update);
+            }
+        }
+        else
+        {
+            result = UnsafeHolder.UNSAFE.compareAndSwapLong(null, address, toBufferOrder(expect), toBufferOrder(update));
+        }
+
+        if (result)
+            wrote(index, 8);
+        return result;
+    }
+
+
+    /**
+     *  Atomically adds <code>delta</code> to the long value at the specified index,
+     *  returning the value before the addition. The index must be a multiple of 8.
+     *
+     *  @throws IllegalArgumentException if the index is not aligned.
+     *
+     *  @since 1.1.0
+     */
+    public long getAndAddLong(long index, long delta)
+    {
+        long prev;
+        long address = atomicAddress(index, 8, true);
+        if (address == 0)
+        {
+            synchronized (atomicLock(index))
+            {
+                ByteBuffer buf = segment(index);
+                int pos = (int)(index % _segmentSize);
+                prev = buf.getLong(pos);
+                buf.putLong(pos, prev + delta);
+            }
+        }
+        else
+        {
+            long raw;
+            do
+            {
+                raw = UnsafeHolder.UNSAFE.getLongVolatile(null, address);
+                prev = toBufferOrder(raw);
+            }
+            while (! UnsafeHolder.UNSAFE.compareAndSwapLong(null, address, raw, toBufferOrder(prev + delta)));
+        }
+
+        wrote(index, 8);
+        return prev;
+    }
+
+
+    /**
+     *  Writes <code>length</code> bytes, starting at <code>offset</code>, to the
+     *  passed channel. Data is written directly from the mapped segments; there
+     *  is no intermediate copy. Returns the number of bytes written, which will
+     *  be less than <code>length</code> only if the channel is non-blocking and
+     *  unable to accept more data.
+     *
+     *  @throws IndexOutOfBoundsException if the requested range extends past
+     *          the end of the buffer.
+     *
+     *  @since 1.1.0
+     */
+    public long transferTo(long offset, long length, WritableByteChannel channel)
+    throws IOException
+    {
+        checkRange(offset, length);
+
+        long total = 0;
+        while (total < length)
+        {
+            ByteBuffer buf = segmentView(offset + total, length - total);
+            while (buf.hasRemaining())
+            {
+                int count = channel.write(buf);
+                if (count == 0)
+                    return total;
+                total += count;
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     *  Reads up to <code>length</code> bytes from the passed channel, storing
+     *  them directly into the mapped segments starting at <code>offset</code>.
+     *  Returns the number of bytes read, which will be less than <code>length</code>
+     *  if the channel reaches end-of-stream, or is non-blocking and has no more
+     *  data available. For a growable buffer, the file is first extended to
+     *  hold the entire range.
+     *
+     *  @throws IndexOutOfBoundsException if the requested range extends past
+     *          the end of a non-growable buffer.
+     *  @throws ReadOnlyBufferException if the buffer is not writable.
+     *
+     *  @since 1.1.0
+     */
+    public long transferFrom(ReadableByteChannel channel, long offset, long length)
+    throws IOException
+    {
+        if (! _mapping.isWritable)
+            throw new ReadOnlyBufferException();
+        ensureCapacity(offset + length);
+        checkRange(offset, length);
+
+        long total = 0;
+        while (total < length)
+        {
+            ByteBuffer buf = segmentView(offset + total, length - total);
+            while (buf.hasRemaining())
+            {
+                int count = channel.read(buf);
+                if (count <= 0)
+                    return total;
+                wrote(offset + total, count);
+                total += count;
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     *  Loads the specified range of the file into physical memory, by touching
+     *  each page in the range. This method blocks until all pages have been read;
+     *  it is intended to be called ahead of a sequential scan, so that the scan
+     *  does not fault on every page. The OS may evict pages at any time after
+     *  they've been loaded.
+     *
+     *  @throws IndexOutOfBoundsException if the requested range extends past
+     *          the end of the buffer.
+     *
+     *  @since 1.1.0
+     */
+    public void load(long offset, long length)
+    {
+        checkRange(offset, length);
+        _mapping.touch(offset, length);
+    }
+
+
+    /**
+     *  Loads the specified range of the file into physical memory on a background
+     *  thread, returning a <code>Future</code> that completes when the range has
+     *  been loaded. The buffer's mappings will not be released until the load has
+     *  completed, even if the buffer is closed.
+     *
+     *  @throws IndexOutOfBoundsException if the requested range extends past
+     *          the end of the buffer.
+     *
+     *  @since 1.1.0
+     */
+    public Future<?> prefetch(final long offset, final long length)
+    {
+        checkRange(offset, length);
+
+        final Mapping mapping = _mapping;
+        mapping.acquire();
+        try
+        {
+            return PrefetchExecutorHolder.EXECUTOR.submit(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        mapping.touch(offset, length);
+                    }
+                    finally
+                    {
+                        mapping.release();
+                    }
+                }
+            });
+        }
+        catch (RuntimeException ex)
+        {
+            mapping.release();
+            throw ex;
+        }
+    }
+
+
+    /**
+     *  Determines whether the specified range of the file is resident in physical
+     *  memory. This is a hint: a return of <code>false</code> means that at least
+     *  one page would fault, but pages may be evicted as soon as this method returns.
+     *  To learn how much of a large range is resident, call this method on its
+     *  sub-ranges.
+     *  <p>
+     *  This method must create a temporary mapping for the range, so it should not
+     *  be called in a tight loop.
+     *
+     *  @throws IndexOutOfBoundsException if the requested range extends past
+     *          the end of the buffer.
+     *
+     *  @since 1.1.0
+     */
+    public boolean isLoaded(long offset, long length)
+    throws IOException
+    {
+        checkRange(offset, length);
+        return _mapping.isLoaded(offset, length);
+    }
+
+
+    /**
+     *  Writes the passed array at the current append position, and advances that
+     *  position by the length of the array. Returns the index where the array was
+     *  written.
+     *  <p>
+     *  This method may be called concurrently from multiple threads, using either
+     *  this buffer or its clones (they share a single append position). Each call
+     *  writes to a distinct region of the buffer; however, there's no guarantee
+     *  that calls complete in the order that their regions were assigned.
+     *  <p>
+     *  If the append fails after its region has been assigned (for example, because
+     *  the file can't be extended), the append position is rolled back, provided
+     *  that no other thread has appended in the meantime. If another thread has,
+     *  the failed region remains as a gap in the data, with undefined content
+     *  (normally zeros); programs that append concurrently and need to detect such
+     *  gaps should write a record header or checksum.
+     *
+     *  @throws IndexOutOfBoundsException if the buffer is not growable and there
+     *          isn't space for the array; the append position is not changed.
+     *  @throws ReadOnlyBufferException if the buffer is read-only; the append
+     *          position is not changed.
+     *
+     *  @since 1.1.0
+     */
+    public long append(byte[] value)
+    {
+        checkOpen();
+        if (! _mapping.isWritable)
+            throw new ReadOnlyBufferException();
+
+        int len = value.length;
+        long start = _mapping.reserve(len);
+        boolean isComplete = false;
+        try
+        {
+            ensureCapacity(start + len);
+
+            long index = start;
+            int off = 0;
+            while (len > 0)
+            {
+                ByteBuffer buf = buffer(index);
+                int count = Math.min(len, buf.remaining());
+                buf.put(value, off, count);
+                wrote(index, count);
+                index += count;
+                off += count;
+                len -= count;
+            }
+            isComplete = true;
+            return start;
+        }
+        finally
+        {
+            if (! isComplete)
+                _mapping.unreserve(start, value.length);
+        }
+    }
+
+
+    /**
+     *  Returns the index at which the next call to {@link #append} will write. For
+     *  a newly opened buffer, this is the size of the file.
+     *
+     *  @since 1.1.0
+     */
+    public long getAppendPosition()
+    {
+        return _mapping.appendPosition.get();
+    }
+
+
+    /**
+     *  Sets the index at which the next call to {@link #append} will write. This is
+     *  typically called after reopening a growable file, to identify the logical
+     *  end of its data.
+     *
+     *  @since 1.1.0
+     */
+    public void setAppendPosition(long value)
+    {
+        _mapping.appendPosition.set(value);
+    }
+
+
+    /**
+     *  Creates a new buffer, whose size will be >= segment size, starting at
+     *  the specified offset.
+     */
+    public ByteBuffer slice(long index)
+    {
+        return buffer(index).slice();
+    }
+
+
+    /**
+     *  Iterates through the underlying buffers, calling <code>force()</code>
+     *  on each; this will cause the buffers' contents to be written to disk.
+     *  Note, however, that the OS may not physically write the buffers until
+     *  a future time.
+     */
+    public void force()
+    {
+        checkOpen();
+        for (MappedByteBuffer buf : _mapping.buffers)
+        {
+            if (buf != null)
+                buf.force();
+        }
+    }
+
+
+    /**
+     *  Forces the specified range of the buffer to disk. On JDK 13 and later, this
+     *  flushes only the pages in the range; on earlier JDKs it flushes each segment
+     *  that the range touches (the OS will still write only those pages that are
+     *  dirty, but must examine the entire segment).
+     *
+     *  @throws IndexOutOfBoundsException if the requested range extends past
+     *          the end of the buffer.
+     *
+     *  @since 1.1.0
+     */
+    public void force(long offset, long length)
+    {
+        checkRange(offset, length);
+        _mapping.force(offset, length);
+    }
+
+
+    /**
+     *  Creates a new buffer referencing the same file, but with a copy of the
+     *  original underlying mappings. The new and old buffers may be accessed
+     *  by different threads. The new buffer has the same byte order as this
+     *  one, and shares its append position and growth. It must be closed
+     *  separately.
+     */
+    @Override
+    public MappedFileBuffer clone()
+    {
+        checkOpen();
+        try
+        {
+            MappedFileBuffer that = (MappedFileBuffer)super.clone();
+            that._isClosed = new AtomicBoolean();
+            _mapping.acquire();
+            that.refreshBuffers();
+            return that;
+        }
+        catch (CloneNotSupportedException ex)
+        {
+            throw new UnreachableCodeException("I used to implement Cloneable, why don't I now?");
+        }
+    }
+
+
+    /**
+     *  Closes this buffer. If this is the last open buffer for the file (ie, all
+     *  clones have also been closed), the underlying mappings are released. Any
+     *  subsequent access to this buffer will throw <code>IllegalStateException</code>.
+     *  Closing an already-closed buffer has no effect.
+     *  <p>
+     *  Note that the JVM does not provide a supported way to unmap a buffer; this
+     *  method uses internal APIs if available, and otherwise leaves the mappings
+     *  to be released by the garbage collector.
+     *  <p>
+     *  This method may be called concurrently: only the first call releases this
+     *  buffer's reference to the mappings. However, it is the caller's responsibility
+     *  to ensure that no other thread is accessing a shared instance (or any clone,
+     *  if this is the last reference) when it is closed. Once the mappings have been
+     *  released, an access that has already passed the closed check will touch
+     *  unmapped memory, which can crash the JVM.
+     *
+     *  @since 1.1.0
+     */
+    public void close()
+    {
+        if (! _isClosed.compareAndSet(false, true))
+            return;
+
+        _mapping.release();
+    }
+
+
+    /**
+     *  Indicates whether this buffer has been closed.
+     *
+     *  @since 1.1.0
+     */
+    public boolean isClosed()
+    {
+        return _isClosed.get();
+    }
+
+
+
+//----------------------------------------------------------------------------
+//  Support for MappedFileBufferFlusher
+//----------------------------------------------------------------------------
+
+    /**
+     *  Starts tracking writes to this buffer and its clones. The passed listener
+     *  is invoked (by the writing thread) whenever the number of bytes written
+     *  since the last call to {@link #forceDirty} reaches the threshold.
+     *
+     *  @throws IllegalStateException if already tracking writes.
+     */
+    void startDirtyTracking(long threshold, Runnable thresholdListener)
+    {
+        checkOpen();
+        if (! _mapping.isWritable)
+            throw new ReadOnlyBufferException();
+        _mapping.startDirtyTracking(threshold, thresholdListener);
+    }
+
+
+    /**
+     *  Stops tracking writes to this buffer and its clones.
+     */
+    void stopDirtyTracking()
+    {
+        _mapping.stopDirtyTracking();
+    }
+
+
+    /**
+     *  Forces all segments that have been written since the last call, returning
+     *  the number of segments forced. May be called concurrently with writes.
+     */
+    int forceDirty()
+    {
+        checkOpen();
+        return _mapping.forceDirty();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the segment buffer containing the specified index. Callers must
+     *  only use absolute operations on this buffer, as it may be shared between
+     *  threads.
+     */
+    private ByteBuffer segment(long index)
+    {
+        return view().buffers[(int)(index / _segmentSize)];
+    }
+
+
+    /**
+     *  Returns the segment buffer for a write of the specified size, extending
+     *  the file if necessary.
+     */
+    private ByteBuffer writeSegment(long index, int size)
+    {
+        ensureCapacity(index + size);
+        return segment(index);
+    }
+
+
+    /**
+     *  Validates an atomic operation, and returns the address of the value, or 0
+     *  if <code>Unsafe</code> isn't available.
+     */
+    private long atomicAddress(long index, int size, boolean forWrite)
+    {
+        if ((index % size) != 0)
+            throw new IllegalArgumentException("index not aligned for " + size + "-byte access: " + index);
+
+        if (forWrite)
+        {
+            if (! _mapping.isWritable)
+                throw new ReadOnlyBufferException();
+            ensureCapacity(index + size);
+        }
+
+        View view = view();
+        long segNum = index / _segmentSize;
+        int pos = (int)(index % _segmentSize);
+        if ((index < 0) || (segNum >= view.buffers.length) || (pos + size > view.buffers[(int)segNum].capacity()))
+            throw new IndexOutOfBoundsException("index " + index + " exceeds buffer capacity");
+
+        return UnsafeAccess.isAvailable()
+             ? view.addresses[(int)segNum] + pos
+             : 0;
+    }
+
+
+    private static Object atomicLock(long index)
+    {
+        return ATOMIC_LOCKS[(int)((index >>> 3) & (ATOMIC_LOCK_COUNT - 1))];
+    }
+
+
+    /**
+     *  Converts between native order (used by <code>Unsafe</code>) and buffer order.
+     *  The operation is its own inverse.
+     */
+    private int toBufferOrder(int value)
+    {
+        return (_byteOrder == NATIVE_ORDER) ? value : Integer.reverseBytes(value);
+    }
+
+
+    private long toBufferOrder(long value)
+    {
+        return (_byteOrder == NATIVE_ORDER) ? value : Long.reverseBytes(value);
+    }
+
+
+    /**
+     *  Returns the current view, refreshing it if the mapping has changed.
+     */
+    private View view()
+    {
+        if (_isClosed.get())
+            throw new IllegalStateException("buffer has been closed: " + _mapping.file);
+
+        View view = _view;
+        if (view.version != _mapping.version)
+            view = refreshBuffers();
+        return view;
+    }
+
+
+    /**
+     *  Returns a duplicate of the segment buffer containing the specified index,
+     *  positioned at that index. This is used for bulk operations; since it's a
+     *  new object, it may be modified without affecting other threads.
+     */
+    // this is exposed for a white-box test of cloning
+    protected ByteBuffer buffer(long index)
+    {
+        ByteBuffer buf = segment(index).duplicate().order(_byteOrder);
+        buf.position((int)(index % _segmentSize));
+        return buf;
+    }
+
+
+    private static void checkArrayBounds(int arrayLength, int off, int len)
+    {
+        if ((off < 0) || (len < 0) || (off + len > arrayLength))
+            throw new IndexOutOfBoundsException(
+                    "invalid offset/length for array of size " + arrayLength + ": " + off + "/" + len);
+    }
+
+
+    private void checkRange(long offset, long length)
+    {
+        checkOpen();
+        if ((offset < 0) || (length < 0) || (offset + length > _mapping.size))
+            throw new IndexOutOfBoundsException(
+                    "invalid offset/length for buffer of size " + _mapping.size + ": " + offset + "/" + length);
+    }
+
+
+    /**
+     *  Returns an independent view of the segment containing the specified index,
+     *  with its position set to that index and its limit set so that it contains
+     *  at most <code>length</code> bytes.
+     */
+    private ByteBuffer segmentView(long index, long length)
+    {
+        ByteBuffer buf = buffer(index);
+        if (length < buf.remaining())
+            buf.limit(buf.position() + (int)length);
+        return buf;
+    }
+
+
+    /**
+     *  Verifies that a bulk operation can make progress: a count of zero means
+     *  that the request extends past the end of the file.
+     */
+    private static int checkCount(long index, int count)
+    {
+        if (count == 0)
+            throw new IndexOutOfBoundsException("request extends past end of buffer at index " + index);
+        return count;
+    }
+
+
+    private void checkOpen()
+    {
+        if (_isClosed.get())
+            throw new IllegalStateException("buffer has been closed: " + _mapping.file);
+    }
+
+
+    /**
+     *  Called after every write, to support dirty tracking.
+     */
+    private void wrote(long index, long size)
+    {
+        if (_mapping.isTrackingDirty)
+            _mapping.markDirty(index, size);
+    }
+
+
+    /**
+     *  Extends a growable buffer so that it's at least the specified size. Does
+     *  nothing for a non-growable buffer (subsequent access will throw).
+     */
+    private void ensureCapacity(long size)
+    {
+        checkOpen();
+        if (_mapping.isGrowable && (size > _mapping.size))
+        {
+            try
+            {
+                _mapping.grow(size);
+            }
+            catch (IOException ex)
+            {
+                throw new RuntimeException("unable to extend file: " + _mapping.file, ex);
+            }
+        }
+    }
+
+
+    /**
+     *  Replaces this object's buffers with duplicates of the current mapping.
+     *  May be called concurrently by multiple threads; each will construct an
+     *  equivalent view.
+     */
+    private View refreshBuffers()
+    {
+        // read version first: if there's a concurrent update, we'll refresh again
+        int version = _mapping.version;
+        View view = new View(_mapping.buffers, _byteOrder, version);
+        _view = view;
+        return view;
+    }
+
+
+    /**
+     *  An immutable set of duplicated segment buffers, along with the mapping
+     *  version that they represent. Since all fields are final, a view may be
+     *  published to other threads without synchronization.
+     */
+    private static class View
+    {
+        public final ByteBuffer[] buffers;
+        public final long[] addresses;
+        public final int version;
+
+        public View(MappedByteBuffer[] src, ByteOrder byteOrder, int version)
+        {
+            this.buffers = new ByteBuffer[src.length];
+            this.addresses = new long[src.length];
+            this.version = version;
+            for (int ii = 0 ; ii < src.length ; ii++)
+            {
+                // if the file is a multiple of the segment size, we
+                // can end up with an empty slot in the buffer array
+                if (src[ii] != null)
+                {
+                    buffers[ii] = src[ii].duplicate().order(byteOrder);
+                    if (UnsafeAccess.isAvailable())
+                        addresses[ii] = UnsafeAccess.address(src[ii]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  The mapped buffers for a file, along with other state that's shared by a
+     *  buffer and its clones. The buffers held by this object are never used for
+     *  relative access (which would change their position); they are duplicated
+     *  by the owning <code>MappedFileBuffer</code> instances.
+     */
+    private static class Mapping
+    {
+        public final File file;
+        public final long segmentSize;
+        public final boolean isWritable;
+        public final boolean isGrowable;
+        public final AtomicLong appendPosition;
+
+        // these are replaced when the mapping grows
+        public volatile MappedByteBuffer[] buffers;
+        public volatile long size;
+        public volatile int version;
+
+        // buffers replaced by growth; they may still be referenced by
+        // clones, so can't be unmapped until the mapping is released
+        private List<MappedByteBuffer> _retired = new ArrayList<MappedByteBuffer>();
+        private int _refCount = 1;
+
+        // written by touch(), so that the JIT can't eliminate its reads
+        private static volatile int touchSink;
+
+        // dirty tracking: the flags array is replaced when the mapping grows
+        public volatile boolean isTrackingDirty;
+        private volatile AtomicIntegerArray _dirtySegments;
+        private AtomicLong _dirtyBytes = new AtomicLong();
+        private long _dirtyThreshold;
+        private Runnable _thresholdListener;
+
+        // MappedByteBuffer.force(int,int) was added in JDK 13
+        private static Method _rangeForce;
+        static
+        {
+            try
+            {
+                _rangeForce = MappedByteBuffer.class.getMethod("force", Integer.TYPE, Integer.TYPE);
+            }
+            catch (Throwable ignored)
+            {
+                _rangeForce = null;
+            }
+        }
+
+        public Mapping(File file, long segmentSize, boolean isWritable, boolean isGrowable)
+        throws IOException
+        {
+            this.file = file;
+            this.segmentSize = segmentSize;
+            this.isWritable = isWritable;
+            this.isGrowable = isGrowable;
+
+            long fileSize = file.length();
+            this.appendPosition = new AtomicLong(fileSize);
+            this.buffers = map(new MappedByteBuffer[0], fileSize);
+            this.size = fileSize;
+        }
+
+        /**
+         *  Records a new reference to this mapping (from a clone).
+         */
+        public synchronized void acquire()
+        {
+            if (_refCount == 0)
+                throw new IllegalStateException("buffer has been closed: " + file);
+            _refCount++;
+        }
+
+        /**
+         *  Releases a reference to this mapping, unmapping all buffers if this
+         *  is the last reference.
+         */
+        public synchronized void release()
+        {
+            if (--_refCount > 0)
+                return;
+
+            MappedByteBuffer[] oldBuffers = buffers;
+            buffers = new MappedByteBuffer[0];
+            version++;
+            size = 0;
+
+            for (MappedByteBuffer buf : oldBuffers)
+                BufferReleaser.release(buf);
+            for (MappedByteBuffer buf : _retired)
+                BufferReleaser.release(buf);
+            _retired.clear();
+        }
+
+        /**
+         *  Reads one byte from each page in the specified range. Uses absolute
+         *  gets on the original buffers, so is safe for concurrent use.
+         */
+        public void touch(long offset, long length)
+        {
+            MappedByteBuffer[] bufs = buffers;
+            long end = offset + length;
+            int sum = 0;
+            for (long index = offset ; index < end ; index = (index / PAGE_SIZE + 1) * PAGE_SIZE)
+            {
+                sum += bufs[(int)(index / segmentSize)].get((int)(index % segmentSize));
+            }
+            touchSink = sum;
+        }
+
+        /**
+         *  Maps the specified range, in chunks no larger than the maximum segment size,
+         *  to determine whether it's resident.
+         */
+        public boolean isLoaded(long offset, long length)
+        throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                FileChannel channel = raf.getChannel();
+                long end = offset + length;
+                for (long index = offset ; index < end ; index += MAX_SEGMENT_SIZE)
+                {
+                    long chunkSize = Math.min(MAX_SEGMENT_SIZE, end - index);
+                    MappedByteBuffer chunk = channel.map(MapMode.READ_ONLY, index, chunkSize);
+                    boolean loaded = chunk.isLoaded();
+                    BufferReleaser.release(chunk);
+                    if (! loaded)
+                        return false;
+                }
+                return true;
+            }
+            finally
+            {
+                IOUtil.closeQuietly(raf);
+            }
+        }
+
+        /**
+         *  Forces the specified range, which may span segments.
+         */
+        public void force(long offset, long length)
+        {
+            MappedByteBuffer[] bufs = buffers;
+            long end = offset + length;
+            while (offset < end)
+            {
+                MappedByteBuffer buf = bufs[(int)(offset / segmentSize)];
+                int pos = (int)(offset % segmentSize);
+                int count = (int)Math.min(end - offset, buf.capacity() - pos);
+                forceRange(buf, pos, count);
+                offset += count;
+            }
+        }
+
+        private static void forceRange(MappedByteBuffer buf, int pos, int count)
+        {
+            if (_rangeForce != null)
+            {
+                try
+                {
+                    _rangeForce.invoke(buf, Integer.valueOf(pos), Integer.valueOf(count));
+                    return;
+                }
+                catch (Exception ignored)
+                {
+                    // fall through to a full force
+                }
+            }
+            buf.force();
+        }
+
+        public synchronized void startDirtyTracking(long threshold, Runnable listener)
+        {
+            if (isTrackingDirty)
+                throw new IllegalStateException("already tracking writes: " + file);
+
+            _dirtySegments = new AtomicIntegerArray(buffers.length);
+            _dirtyBytes.set(0);
+            _dirtyThreshold = (threshold > 0) ? threshold : Long.MAX_VALUE;
+            _thresholdListener = listener;
+            isTrackingDirty = true;
+        }
+
+        public synchronized void stopDirtyTracking()
+        {
+            isTrackingDirty = false;
+        }
+
+        /**
+         *  Records a write. Must be called after the write, so that a concurrent
+         *  forceDirty() that clears the flag will not miss the written data.
+         */
+        public void markDirty(long index, long length)
+        {
+            int first = (int)(index / segmentSize);
+            int last = (int)((index + length - 1) / segmentSize);
+            AtomicIntegerArray flags = _dirtySegments;
+            while (true)
+            {
+                for (int ii = first ; ii <= last ; ii++)
+                {
+                    if (flags.get(ii) == 0)
+                        flags.set(ii, 1);
+                }
+
+                // if the mapping grew, the flags were replaced; we must also mark
+                // the new array, in case it was copied before we marked the old
+                AtomicIntegerArray current = _dirtySegments;
+                if (current == flags)
+                    break;
+                flags = current;
+            }
+
+            long dirtyBytes = _dirtyBytes.addAndGet(length);
+            if ((dirtyBytes >= _dirtyThreshold) && (dirtyBytes - length < _dirtyThreshold))
+                _thresholdListener.run();
+        }
+
+        public int forceDirty()
+        {
+            _dirtyBytes.set(0);
+
+            AtomicIntegerArray flags = _dirtySegments;
+            if (flags == null)
+                return 0;
+
+            MappedByteBuffer[] bufs = buffers;
+            int count = 0;
+            for (int ii = 0 ; ii < flags.length() ; ii++)
+            {
+                // the flag is cleared before forcing; a concurrent write will set it
+                // again, and be picked up by the next call
+                if (flags.getAndSet(ii, 0) != 0)
+                {
+                    long offset = ii * segmentSize;
+                    long length = Math.min(segmentSize, size - offset);
+                    if ((ii < bufs.length) && (length > 0))
+                        force(offset, length);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         *  Reserves space for an append, returning its starting index.
+         */
+        public long reserve(int len)
+        {
+            while (true)
+            {
+                long index = appendPosition.get();
+                if (! isGrowable && (index + len > size))
+                    throw new IndexOutOfBoundsException(
+                            "append of " + len + " bytes at " + index + " exceeds capacity " + size);
+                if (appendPosition.compareAndSet(index, index + len))
+                    return index;
+            }
+        }
+
+        /**
+         *  Releases the space for a failed append, if no other append has been
+         *  reserved since.
+         */
+        public boolean unreserve(long index, int len)
+        {
+            return appendPosition.compareAndSet(index + len, index);
+        }
+
+        /**
+         *  Extends the file so that it's at least the requested size (rounded up to
+         *  a multiple of the segment size), and maps any new or extended segments.
+         */
+        public synchronized void grow(long requiredSize)
+        throws IOException
+        {
+            if (_refCount == 0)
+                throw new IllegalStateException("buffer has been closed: " + file);
+            if (requiredSize <= size)
+                return;
+
+            long newSize = ((requiredSize + segmentSize - 1) / segmentSize) * segmentSize;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                if (raf.length() < newSize)
+                    raf.setLength(newSize);
+            }
+            finally
+            {
+                IOUtil.closeQuietly(raf);
+            }
+
+            // order is important: a thread that sees the new size must also
+            // see the new version, and one that sees that must see new buffers
+            buffers = map(buffers, newSize);
+            if (_dirtySegments != null)
+            {
+                // publish the new array before copying, so that a concurrent
+                // markDirty() either marks the old array before we copy it,
+                // or sees the new array and marks it
+                AtomicIntegerArray oldFlags = _dirtySegments;
+                AtomicIntegerArray newFlags = new AtomicIntegerArray(buffers.length);
+                _dirtySegments = newFlags;
+                for (int ii = 0 ; ii < oldFlags.length() ; ii++)
+                {
+                    if (oldFlags.get(ii) != 0)
+                        newFlags.set(ii, 1);
+                }
+            }
+            version++;
+            size = newSize;
+        }
+
+        /**
+         *  Maps the file, reusing any existing buffers that are still the correct
+         *  size (the last one or two will be short if the file has grown).
+         */
+        private MappedByteBuffer[] map(MappedByteBuffer[] existing, long fileSize)
+        throws IOException
+        {
+            RandomAccessFile mappedFile = null;
+            try
+            {
+                String mode = isWritable ? "rw" : "r";
+                MapMode mapMode = isWritable ? MapMode.READ_WRITE : MapMode.READ_ONLY;
+
+                mappedFile = new RandomAccessFile(file, mode);
+                FileChannel channel = mappedFile.getChannel();
+
+                int bufArraySize = (int)(fileSize / segmentSize)
+                                 + ((fileSize % segmentSize != 0) ? 1 : 0);
+                MappedByteBuffer[] result = new MappedByteBuffer[bufArraySize];
+                int bufIdx = 0;
+                for (long offset = 0 ; offset < fileSize ; offset += segmentSize)
+                {
+                    long remainingFileSize = fileSize - offset;
+                    long thisSegmentSize = Math.min(2L * segmentSize, remainingFileSize);
+                    if ((bufIdx < existing.length) && (existing[bufIdx] != null)
+                            && (existing[bufIdx].capacity() == thisSegmentSize))
+                        result[bufIdx] = existing[bufIdx];
+                    else
+                        result[bufIdx] = channel.map(mapMode, offset, thisSegmentSize);
+                    bufIdx++;
+                }
+                for (int ii = 0 ; ii < existing.length ; ii++)
+                {
+                    if ((existing[ii] != null)
+                            && ((ii >= result.length) || (existing[ii] != result[ii])))
+                        _retired.add(existing[ii]);
+                }
+                return result;
+            }
+            finally
+            {
+                IOUtil.closeQuietly(mappedFile);
+            }
+        }
+    }
+
+
+    /**
+     *  Holds the executor used by {@link #prefetch}; it's only created if needed.
+     */
+    private static class PrefetchExecutorHolder
+    {
+        public final static ExecutorService EXECUTOR
+            = Executors.newCachedThreadPool(new NamedThreadFactory("MappedFileBuffer-prefetch"));
     }
 }
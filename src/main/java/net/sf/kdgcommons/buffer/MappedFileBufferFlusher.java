@@ -0,0 +1,231 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *  Periodically forces the dirty segments of a writable {@link MappedFileBuffer}
+ *  to disk, using a background thread. Once started, the flusher tracks all
+ *  writes to the buffer and its clones (at segment granularity), and only forces
+ *  those segments that have been written since the last flush.
+ *  <p>
+ *  A flush happens when the configured interval elapses, or when the number of
+ *  bytes written since the last flush reaches the configured threshold (in which
+ *  case the interval restarts), whichever comes first. Either may be disabled by
+ *  passing 0.
+ *  <p>
+ *  Only one flusher may be attached to a buffer (or any of its clones) at a time.
+ *  The flusher holds its own reference to the buffer's mappings, so must be closed
+ *  to release them; closing performs a final flush.
+ *
+ *  @since 1.1.0
+ */
+public class MappedFileBufferFlusher
+implements Closeable
+{
+    private MappedFileBuffer _buf;
+    private long _intervalMillis;
+    private Thread _thread;
+
+    private Object _lock = new Object();
+    private boolean _isRunning = true;
+    private boolean _isFlushRequested;
+    private long _flushCount;
+    private RuntimeException _failure;
+
+
+    /**
+     *  Creates the flusher and starts its background thread.
+     *
+     *  @param  buf         The buffer to flush. Must be writable.
+     *  @param  interval    The maximum time between flushes; 0 to flush only when
+     *                      the dirty-byte threshold is reached.
+     *  @param  unit        The unit of <code>interval</code>.
+     *  @param  threshold   The number of bytes written that will trigger a flush;
+     *                      0 to flush only on the interval.
+     *
+     *  @throws IllegalArgumentException if both interval and threshold are 0.
+     *  @throws IllegalStateException if the buffer already has a flusher.
+     */
+    public MappedFileBufferFlusher(MappedFileBuffer buf, long interval, TimeUnit unit, long threshold)
+    {
+        if ((interval <= 0) && (threshold <= 0))
+            throw new IllegalArgumentException("must specify interval or threshold");
+
+        _buf = buf.clone();
+        _intervalMillis = (interval > 0) ? Math.max(1, unit.toMillis(interval)) : 0;
+        try
+        {
+            _buf.startDirtyTracking(threshold, new Runnable()
+            {
+                public void run()
+                {
+                    requestFlush();
+                }
+            });
+        }
+        catch (RuntimeException ex)
+        {
+            _buf.close();
+            throw ex;
+        }
+
+        _thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                flushLoop();
+            }
+        }, "MappedFileBufferFlusher-" + buf.file().getName());
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Requests an immediate flush, without waiting for it to happen.
+     */
+    public void requestFlush()
+    {
+        synchronized (_lock)
+        {
+            _isFlushRequested = true;
+            _lock.notifyAll();
+        }
+    }
+
+
+    /**
+     *  Returns the number of flushes that have been performed. This includes
+     *  flushes where no segments were dirty.
+     */
+    public long getFlushCount()
+    {
+        synchronized (_lock)
+        {
+            return _flushCount;
+        }
+    }
+
+
+    /**
+     *  Stops the background thread, performs a final flush, and releases this
+     *  object's reference to the buffer's mappings. Does not close the buffer
+     *  passed to the constructor.
+     *
+     *  @throws IllegalStateException if any flush failed; the cause is the first
+     *          exception thrown by a flush.
+     */
+    public void close()
+    {
+        synchronized (_lock)
+        {
+            if (! _isRunning)
+                return;
+            _isRunning = false;
+            _lock.notifyAll();
+        }
+
+        boolean interrupted = false;
+        while (_thread.isAlive())
+        {
+            try
+            {
+                _thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        try
+        {
+            _buf.stopDirtyTracking();
+            flush();
+        }
+        finally
+        {
+            _buf.close();
+        }
+
+        synchronized (_lock)
+        {
+            if (_failure != null)
+                throw new IllegalStateException("flush failed: " + _buf.file(), _failure);
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void flushLoop()
+    {
+        while (true)
+        {
+            synchronized (_lock)
+            {
+                if (_isRunning && ! _isFlushRequested)
+                {
+                    try
+                    {
+                        _lock.wait(_intervalMillis);
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                        // fall through and flush
+                    }
+                }
+                if (! _isRunning)
+                    return;
+                _isFlushRequested = false;
+            }
+            flush();
+        }
+    }
+
+
+    private void flush()
+    {
+        try
+        {
+            _buf.forceDirty();
+        }
+        catch (RuntimeException ex)
+        {
+            synchronized (_lock)
+            {
+                if (_failure == null)
+                    _failure = ex;
+            }
+        }
+
+        synchronized (_lock)
+        {
+            _flushCount++;
+        }
+    }
+}
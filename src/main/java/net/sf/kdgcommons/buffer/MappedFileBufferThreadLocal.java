@@ -14,14 +14,26 @@
 
 package net.sf.kdgcommons.buffer;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  *  Holds a source {@link MappedFileBuffer} and makes thread-local copies of it.
+ *  As of 1.1.0, this is not necessary: a single <code>MappedFileBuffer</code> may
+ *  be shared between threads.
+ *  <p>
+ *  Each copy holds a reference to the source buffer's mappings, which will not
+ *  be released until all copies are closed. Call {@link #close} once all threads
+ *  are done with their copies.
  */
 public class MappedFileBufferThreadLocal
 extends ThreadLocal<MappedFileBuffer>
+implements Closeable
 {
     private MappedFileBuffer _src;
+    private List<MappedFileBuffer> _clones = new ArrayList<MappedFileBuffer>();
 
     public MappedFileBufferThreadLocal(MappedFileBuffer src)
     {
@@ -31,6 +43,22 @@ extends ThreadLocal<MappedFileBuffer>
     @Override
     protected synchronized MappedFileBuffer initialValue()
     {
-        return _src.clone();
+        MappedFileBuffer clone = _src.clone();
+        _clones.add(clone);
+        return clone;
+    }
+
+
+    /**
+     *  Closes all of the thread-local copies created by this object. Does not
+     *  close the source buffer.
+     *
+     *  @since 1.1.0
+     */
+    public synchronized void close()
+    {
+        for (MappedFileBuffer clone : _clones)
+            clone.close();
+        _clones.clear();
     }
 }
@@ -0,0 +1,711 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+
+/**
+ *  Describes the layout of binary records stored in a {@link BufferFacade}, and
+ *  provides flyweight access to those records. This replaces hand-written offset
+ *  arithmetic with declared fields, and lets a program scan millions of records
+ *  (for example, in a {@link MappedFileBuffer}) without creating an object per
+ *  record.
+ *  <p>
+ *  A layout is built by adding fields, in order; each <code>addXXX()</code> method
+ *  returns a typed field object. Once the layout has been used to create a record
+ *  or cursor, it can't be changed. For example:
+ *  <pre>
+ *      RecordLayout layout = new RecordLayout();
+ *      RecordLayout.IntField id = layout.addInt();
+ *      RecordLayout.DoubleField price = layout.addDouble();
+ *      RecordLayout.StringField name = layout.addString(32);
+ *
+ *      RecordLayout.Record rec = layout.newRecord(buf, 0);
+ *      for (long ii = 0 ; ii &lt; count ; ii++)
+ *      {
+ *          rec.moveTo(ii);
+ *          total += price.get(rec);
+ *      }
+ *  </pre>
+ *  There are two kinds of record storage:
+ *  <ul>
+ *  <li> Fixed-width records, which are stored consecutively starting at a base
+ *       offset, and accessed by index using a {@link Record}. Fixed-width layouts
+ *       may contain any field except a variable-length string.
+ *  <li> Length-prefixed records, where each record is preceded by a 4-byte length
+ *       and records are accessed sequentially using a {@link Cursor}. These may
+ *       contain variable-length strings, which are stored after all fixed-size
+ *       fields, in the order declared; accessing one of these fields requires
+ *       walking the variable-length fields that precede it.
+ *  </ul>
+ *  Both are subclasses of {@link Flyweight}, which is what fields accept.
+ *  <p>
+ *  Values are stored using the buffer's byte order. Strings are stored as UTF-8:
+ *  a fixed string is an unsigned 2-byte length followed by a slot of its maximum
+ *  size; a variable string is a 4-byte length followed by its bytes. Strings may
+ *  be retrieved into a <code>StringBuilder</code> without allocating objects.
+ *  <p>
+ *  Layouts and fields are immutable once frozen and may be shared between threads;
+ *  records and cursors hold position state and must be confined to a single thread.
+ *  Fields must only be used with records created by their own layout; this is not
+ *  checked.
+ *
+ *  @since 1.1.0
+ */
+public class RecordLayout
+{
+    private int _fixedSize;
+    private int _varFieldCount;
+    private boolean _isFrozen;
+
+
+//----------------------------------------------------------------------------
+//  Layout construction
+//----------------------------------------------------------------------------
+
+    /**
+     *  Adds a 4-byte <code>int</code> field.
+     */
+    public IntField addInt()
+    {
+        return new IntField(allocate(4));
+    }
+
+
+    /**
+     *  Adds an 8-byte <code>long</code> field.
+     */
+    public LongField addLong()
+    {
+        return new LongField(allocate(8));
+    }
+
+
+    /**
+     *  Adds an 8-byte <code>double</code> field.
+     */
+    public DoubleField addDouble()
+    {
+        return new DoubleField(allocate(8));
+    }
+
+
+    /**
+     *  Adds a fixed-size string field, which can hold up to <code>maxBytes</code>
+     *  bytes of UTF-8. The field occupies <code>maxBytes + 2</code> bytes in the
+     *  record.
+     *
+     *  @throws IllegalArgumentException if <code>maxBytes</code> is negative or
+     *          greater than 65,535.
+     */
+    public StringField addString(int maxBytes)
+    {
+        if ((maxBytes < 0) || (maxBytes > 0xFFFF))
+            throw new IllegalArgumentException("invalid string size: " + maxBytes);
+        return new StringField(allocate(maxBytes + 2), maxBytes);
+    }
+
+
+    /**
+     *  Adds a variable-length string field. A layout with such a field can only
+     *  be accessed with a {@link Cursor}.
+     */
+    public VarStringField addVarString()
+    {
+        checkNotFrozen();
+        return new VarStringField(_varFieldCount++);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the size of the fixed-size fields; for a fixed-width layout, this is
+     *  the record size.
+     */
+    public int fixedSize()
+    {
+        return _fixedSize;
+    }
+
+
+    /**
+     *  Indicates whether this layout has variable-length fields.
+     */
+    public boolean isVariable()
+    {
+        return _varFieldCount > 0;
+    }
+
+
+    /**
+     *  Creates a flyweight for fixed-width records stored consecutively in the
+     *  passed buffer, starting at the given offset. The flyweight is initially
+     *  positioned at record 0.
+     *
+     *  @throws IllegalStateException if this layout contains variable-length fields.
+     */
+    public Record newRecord(BufferFacade buf, long base)
+    {
+        if (isVariable())
+            throw new IllegalStateException("layout has variable-length fields; use newCursor()");
+
+        _isFrozen = true;
+        return new Record(this, buf, base);
+    }
+
+
+    /**
+     *  Creates a cursor over length-prefixed records stored in the passed buffer,
+     *  between the given start and end offsets. The cursor is initially positioned
+     *  before the first record.
+     *
+     *  @param  buf     The buffer containing the records.
+     *  @param  start   The offset of the first record's length prefix.
+     *  @param  end     The offset just past the last record; this is where the
+     *                  next record will be appended.
+     */
+    public Cursor newCursor(BufferFacade buf, long start, long end)
+    {
+        if ((start < 0) || (end < start))
+            throw new IllegalArgumentException("invalid start/end: " + start + "/" + end);
+
+        _isFrozen = true;
+        return new Cursor(this, buf, start, end);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void checkNotFrozen()
+    {
+        if (_isFrozen)
+            throw new IllegalStateException("layout is in use; can't add fields");
+    }
+
+
+    private int allocate(int size)
+    {
+        checkNotFrozen();
+        int offset = _fixedSize;
+        _fixedSize += size;
+        return offset;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Records
+//----------------------------------------------------------------------------
+
+    /**
+     *  The common base for {@link Record} and {@link Cursor}: a flyweight that
+     *  provides access to a single record at a time. Fields accept any flyweight;
+     *  how the flyweight moves between records depends on the subclass.
+     */
+    public static abstract class Flyweight
+    {
+        protected final RecordLayout _layout;
+        protected final BufferFacade _buf;
+        protected long _offset;
+        protected long _index;
+
+        protected Flyweight(RecordLayout layout, BufferFacade buf, long offset)
+        {
+            _layout = layout;
+            _buf = buf;
+            _offset = offset;
+        }
+
+        /**
+         *  Returns the index of the current record. For a cursor, this is the
+         *  number of records that precede it.
+         */
+        public long index()
+        {
+            return _index;
+        }
+
+        /**
+         *  Returns the buffer offset of the current record's first field.
+         */
+        public long offset()
+        {
+            return _offset;
+        }
+
+        /**
+         *  Returns the buffer that this flyweight accesses.
+         */
+        public BufferFacade buffer()
+        {
+            return _buf;
+        }
+
+        /**
+         *  Returns the offset of a variable-length field within the current record.
+         */
+        protected abstract long varFieldOffset(int varIndex);
+
+        /**
+         *  Returns the offset at which a variable-length field may be written, or
+         *  throws if it can't be written.
+         */
+        protected abstract long beginVarFieldWrite(int varIndex);
+
+        /**
+         *  Called after a variable-length field is written, with the offset
+         *  following it.
+         */
+        protected abstract void endVarFieldWrite(long nextOffset);
+    }
+
+
+    /**
+     *  A flyweight that accesses fixed-width records, stored consecutively from
+     *  a base offset, by index.
+     */
+    public static class Record
+    extends Flyweight
+    {
+        private final long _base;
+
+        protected Record(RecordLayout layout, BufferFacade buf, long base)
+        {
+            super(layout, buf, base);
+            _base = base;
+        }
+
+        /**
+         *  Positions this flyweight at the specified record. Returns the flyweight,
+         *  for chaining. Does not validate the index.
+         */
+        public Record moveTo(long index)
+        {
+            _index = index;
+            _offset = _base + index * _layout._fixedSize;
+            return this;
+        }
+
+        @Override
+        protected long varFieldOffset(int varIndex)
+        {
+            throw new IllegalStateException("fixed-width records do not have variable-length fields");
+        }
+
+        @Override
+        protected long beginVarFieldWrite(int varIndex)
+        {
+            throw new IllegalStateException("fixed-width records do not have variable-length fields");
+        }
+
+        @Override
+        protected void endVarFieldWrite(long nextOffset)
+        {
+            throw new IllegalStateException("fixed-width records do not have variable-length fields");
+        }
+    }
+
+
+    /**
+     *  A flyweight that moves sequentially through length-prefixed records, and
+     *  can append new records to the end of the data.
+     *  <p>
+     *  To append a record, call {@link #beginAppend}, set the record's fields
+     *  (variable-length fields must be set in the order that they were declared),
+     *  and then call {@link #endAppend}. Fixed-size fields that aren't set will be
+     *  zero (or empty strings).
+     */
+    public static class Cursor
+    extends Flyweight
+    {
+        private long _start;
+        private long _end;
+        private long _recordStart = -1;
+        private int _length;
+
+        private boolean _isAppending;
+        private int _nextVarField;
+        private long _appendOffset;
+
+        protected Cursor(RecordLayout layout, BufferFacade buf, long start, long end)
+        {
+            super(layout, buf, start);
+            _start = start;
+            _end = end;
+            _index = -1;
+        }
+
+        /**
+         *  Advances to the next record, returning <code>true</code> if there is
+         *  one, <code>false</code> if the cursor has reached the end of the data.
+         *
+         *  @throws IllegalStateException if the record's length prefix is not
+         *          consistent with the layout or the end of the data.
+         */
+        public boolean next()
+        {
+            checkNotAppending();
+            long pos = (_recordStart < 0) ? _start : _recordStart + 4 + _length;
+            if (pos + 4 > _end)
+                return false;
+
+            int length = _buf.getInt(pos);
+            if ((length < _layout._fixedSize) || (pos + 4 + length > _end))
+                throw new IllegalStateException("invalid record length at offset " + pos + ": " + length);
+
+            _recordStart = pos;
+            _length = length;
+            _offset = pos + 4;
+            _index++;
+            return true;
+        }
+
+        /**
+         *  Repositions the cursor before the first record.
+         */
+        public void reset()
+        {
+            checkNotAppending();
+            _recordStart = -1;
+            _length = 0;
+            _offset = _start;
+            _index = -1;
+        }
+
+        /**
+         *  Returns the length of the current record, excluding its prefix.
+         */
+        public int length()
+        {
+            return _length;
+        }
+
+        /**
+         *  Returns the offset just past the last record.
+         */
+        public long end()
+        {
+            return _end;
+        }
+
+        /**
+         *  Starts a new record at the end of the data, and positions the cursor on
+         *  it. The record's fixed-size fields are cleared.
+         */
+        public void beginAppend()
+        {
+            checkNotAppending();
+            _isAppending = true;
+            _nextVarField = 0;
+            _recordStart = _end;
+            _offset = _end + 4;
+            _appendOffset = _offset + _layout._fixedSize;
+
+            long pos = _offset;
+            for ( ; pos + 8 <= _appendOffset ; pos += 8)
+                _buf.putLong(pos, 0L);
+            for ( ; pos < _appendOffset ; pos++)
+                _buf.put(pos, (byte)0);
+        }
+
+        /**
+         *  Completes the record started by {@link #beginAppend}, writing its length
+         *  prefix and extending the data. The cursor remains positioned on the new
+         *  record.
+         *
+         *  @throws IllegalStateException if not appending, or if not all of the
+         *          variable-length fields have been set.
+         */
+        public void endAppend()
+        {
+            if (! _isAppending)
+                throw new IllegalStateException("not appending");
+            if (_nextVarField != _layout._varFieldCount)
+                throw new IllegalStateException("variable-length field " + _nextVarField + " has not been set");
+
+            _length = (int)(_appendOffset - _offset);
+            _buf.putInt(_recordStart, _length);
+            _end = _appendOffset;
+            _index++;
+            _isAppending = false;
+        }
+
+        @Override
+        protected long varFieldOffset(int varIndex)
+        {
+            if (_isAppending && (varIndex >= _nextVarField))
+                throw new IllegalStateException("variable-length field " + varIndex + " has not been set");
+
+            long pos = _offset + _layout._fixedSize;
+            for (int ii = 0 ; ii < varIndex ; ii++)
+                pos += 4 + _buf.getInt(pos);
+            return pos;
+        }
+
+        @Override
+        protected long beginVarFieldWrite(int varIndex)
+        {
+            if (! _isAppending)
+                throw new IllegalStateException("variable-length fields can only be set when appending");
+            if (varIndex != _nextVarField)
+                throw new IllegalStateException("variable-length fields must be set in order; expected "
+                                                + _nextVarField + ", was " + varIndex);
+            return _appendOffset;
+        }
+
+        @Override
+        protected void endVarFieldWrite(long nextOffset)
+        {
+            _appendOffset = nextOffset;
+            _nextVarField++;
+        }
+
+        private void checkNotAppending()
+        {
+            if (_isAppending)
+                throw new IllegalStateException("append in progress");
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Fields
+//----------------------------------------------------------------------------
+
+    /**
+     *  Base class for fixed-size fields: these are located at a constant offset
+     *  from the start of the record.
+     */
+    public static abstract class Field
+    {
+        protected final int _offset;
+
+        protected Field(int offset)
+        {
+            _offset = offset;
+        }
+
+        /**
+         *  Returns this field's offset from the start of the record.
+         */
+        public int offset()
+        {
+            return _offset;
+        }
+    }
+
+
+    /**
+     *  A 4-byte <code>int</code> field.
+     */
+    public static class IntField
+    extends Field
+    {
+        protected IntField(int offset)
+        {
+            super(offset);
+        }
+
+        public int get(Flyweight rec)
+        {
+            return rec._buf.getInt(rec._offset + _offset);
+        }
+
+        public void set(Flyweight rec, int value)
+        {
+            rec._buf.putInt(rec._offset + _offset, value);
+        }
+    }
+
+
+    /**
+     *  An 8-byte <code>long</code> field.
+     */
+    public static class LongField
+    extends Field
+    {
+        protected LongField(int offset)
+        {
+            super(offset);
+        }
+
+        public long get(Flyweight rec)
+        {
+            return rec._buf.getLong(rec._offset + _offset);
+        }
+
+        public void set(Flyweight rec, long value)
+        {
+            rec._buf.putLong(rec._offset + _offset, value);
+        }
+    }
+
+
+    /**
+     *  An 8-byte <code>double</code> field.
+     */
+    public static class DoubleField
+    extends Field
+    {
+        protected DoubleField(int offset)
+        {
+            super(offset);
+        }
+
+        public double get(Flyweight rec)
+        {
+            return rec._buf.getDouble(rec._offset + _offset);
+        }
+
+        public void set(Flyweight rec, double value)
+        {
+            rec._buf.putDouble(rec._offset + _offset, value);
+        }
+    }
+
+
+    /**
+     *  A fixed-size string field, holding up to a specified number of bytes of
+     *  UTF-8.
+     */
+    public static class StringField
+    extends Field
+    {
+        private int _maxBytes;
+
+        protected StringField(int offset, int maxBytes)
+        {
+            super(offset);
+            _maxBytes = maxBytes;
+        }
+
+        /**
+         *  Returns the maximum number of bytes that this field can hold.
+         */
+        public int maxBytes()
+        {
+            return _maxBytes;
+        }
+
+        /**
+         *  Returns the number of bytes in this field's value.
+         */
+        public int byteLength(Flyweight rec)
+        {
+            return rec._buf.getShort(rec._offset + _offset) & 0xFFFF;
+        }
+
+        /**
+         *  Appends the field's value to the passed <code>StringBuilder</code>,
+         *  without allocating any objects. Returns the number of characters
+         *  appended.
+         */
+        public int get(Flyweight rec, StringBuilder dst)
+        {
+            long pos = rec._offset + _offset;
+            int len = rec._buf.getShort(pos) & 0xFFFF;
+            return BufferUtil.decodeUTF8(rec._buf, pos + 2, len, dst);
+        }
+
+        /**
+         *  Returns the field's value as a new <code>String</code>.
+         */
+        public String getString(Flyweight rec)
+        {
+            StringBuilder sb = new StringBuilder(_maxBytes);
+            get(rec, sb);
+            return sb.toString();
+        }
+
+        /**
+         *  Sets the field's value.
+         *
+         *  @throws IllegalArgumentException if the UTF-8 representation of the
+         *          value exceeds the field's maximum size.
+         */
+        public void set(Flyweight rec, CharSequence value)
+        {
+            int len = BufferUtil.utf8Length(value);
+            if (len > _maxBytes)
+                throw new IllegalArgumentException("value too long: " + len + " bytes, maximum is " + _maxBytes);
+
+            long pos = rec._offset + _offset;
+            rec._buf.putShort(pos, (short)len);
+            BufferUtil.encodeUTF8(value, rec._buf, pos + 2);
+        }
+    }
+
+
+    /**
+     *  A variable-length string field. These are only available with length-prefixed
+     *  records, and may only be set when appending a record.
+     */
+    public static class VarStringField
+    {
+        private int _varIndex;
+
+        protected VarStringField(int varIndex)
+        {
+            _varIndex = varIndex;
+        }
+
+        /**
+         *  Returns the number of bytes in this field's value.
+         */
+        public int byteLength(Flyweight rec)
+        {
+            return rec._buf.getInt(rec.varFieldOffset(_varIndex));
+        }
+
+        /**
+         *  Appends the field's value to the passed <code>StringBuilder</code>,
+         *  without allocating any objects. Returns the number of characters
+         *  appended.
+         */
+        public int get(Flyweight rec, StringBuilder dst)
+        {
+            long pos = rec.varFieldOffset(_varIndex);
+            int len = rec._buf.getInt(pos);
+            return BufferUtil.decodeUTF8(rec._buf, pos + 4, len, dst);
+        }
+
+        /**
+         *  Returns the field's value as a new <code>String</code>.
+         */
+        public String getString(Flyweight rec)
+        {
+            StringBuilder sb = new StringBuilder();
+            get(rec, sb);
+            return sb.toString();
+        }
+
+        /**
+         *  Sets the field's value. This may only be called on a cursor that is
+         *  appending, after all preceding variable-length fields have been set.
+         *
+         *  @throws IllegalStateException if the field can't be set.
+         */
+        public void set(Flyweight rec, CharSequence value)
+        {
+            long pos = rec.beginVarFieldWrite(_varIndex);
+            int len = BufferUtil.encodeUTF8(value, rec._buf, pos + 4);
+            rec._buf.putInt(pos, len);
+            rec.endVarFieldWrite(pos + 4 + len);
+        }
+    }
+}
@@ -0,0 +1,1013 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ *  A {@link BufferFacade} backed by a chain of direct <code>ByteBuffer</code>s
+ *  ("slabs"), which grows as data is written. Like {@link MappedFileBuffer}, it
+ *  is addressed using a <code>long</code> index, and so is not limited to 2 GB;
+ *  unlike <code>MappedFileBuffer</code>, there's no file behind it. It's intended
+ *  for large in-memory structures, such as sort buffers or hash tables, that
+ *  should not live on the Java heap.
+ *  <p>
+ *  The buffer's capacity is always a multiple of the slab size, which must be a
+ *  power of 2. Any write past the current capacity allocates slabs to cover it;
+ *  a read past the capacity throws <code>IndexOutOfBoundsException</code>. New
+ *  slabs are zero-filled. Values are not aligned to slab boundaries, but access
+ *  to a value that spans slabs is significantly slower than to one that doesn't;
+ *  aligning values to their size ensures that none of them will span.
+ *  <p>
+ *  Memory may be returned before the buffer is discarded: {@link #truncate}
+ *  releases slabs from the end of the buffer, {@link #free} releases slabs from
+ *  anywhere within it (for example, the consumed part of a queue), and {@link
+ *  #close} releases all of them. Reading from a freed slab throws
+ *  <code>IllegalStateException</code>; writing to it allocates a new (zeroed)
+ *  slab. Where possible, released memory is returned to the operating system
+ *  immediately, rather than waiting for garbage collection.
+ *  <p>
+ *  As with <code>MappedFileBuffer</code>, all access uses absolute indexes, and
+ *  an instance may be shared between threads; growth is synchronized. However,
+ *  {@link #setByteOrder}, {@link #truncate}, {@link #free}, and {@link #close}
+ *  must not be called while other threads are accessing the buffer, because they
+ *  release memory that another thread may be using.
+ *
+ *  @since 1.1.0
+ */
+public class SlabBuffer
+implements BufferFacade, Closeable
+{
+    private final static int MAX_SLAB_SIZE = 0x40000000;    // 1 GB
+    private final static ByteBuffer[] NO_SLABS = new ByteBuffer[0];
+
+    private int _slabSize;
+    private long _slabMask;
+    private int _slabShift;
+    private ByteOrder _byteOrder = ByteOrder.BIG_ENDIAN;
+
+    // this array is replaced (never modified) when slabs are added or removed,
+    // so that readers don't need to synchronize
+    private volatile ByteBuffer[] _slabs = NO_SLABS;
+    private volatile boolean _isClosed;
+
+
+    /**
+     *  Creates an empty buffer, which will allocate slabs of the specified size
+     *  as it's written.
+     *
+     *  @param  slabSize    The size of each slab. Must be a power of 2, between
+     *                      8 bytes and 1 GB.
+     *
+     *  @throws IllegalArgumentException if the slab size is invalid.
+     */
+    public SlabBuffer(int slabSize)
+    {
+        this(slabSize, 0);
+    }
+
+
+    /**
+     *  Creates a buffer that is pre-allocated to (at least) the specified capacity.
+     *
+     *  @param  slabSize        The size of each slab. Must be a power of 2,
+     *                          between 8 bytes and 1 GB.
+     *  @param  initialCapacity The initial capacity of the buffer; will be rounded
+     *                          up to a multiple of the slab size.
+     *
+     *  @throws IllegalArgumentException if the slab size is invalid.
+     */
+    public SlabBuffer(int slabSize, long initialCapacity)
+    {
+        if ((slabSize < 8) || (slabSize > MAX_SLAB_SIZE) || (Integer.bitCount(slabSize) != 1))
+            throw new IllegalArgumentException("slab size must be a power of 2 between 8 and " + MAX_SLAB_SIZE + ": " + slabSize);
+
+        _slabSize = slabSize;
+        _slabMask = slabSize - 1;
+        _slabShift = Integer.numberOfTrailingZeros(slabSize);
+        ensureCapacity(initialCapacity);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the size of each slab.
+     */
+    public int slabSize()
+    {
+        return _slabSize;
+    }
+
+
+    /**
+     *  Returns the current capacity of this buffer: the number of slabs times
+     *  the slab size (including any slabs that have been freed).
+     */
+    public long capacity()
+    {
+        return (long)_slabs.length << _slabShift;
+    }
+
+
+    /**
+     *  Returns the same value as {@link #capacity}.
+     */
+    public long limit()
+    {
+        return capacity();
+    }
+
+
+    /**
+     *  Returns the number of bytes currently allocated (the capacity, less any
+     *  slabs that have been freed).
+     */
+    public long allocated()
+    {
+        long count = 0;
+        for (ByteBuffer slab : _slabs)
+        {
+            if (slab != null)
+                count++;
+        }
+        return count << _slabShift;
+    }
+
+
+    /**
+     *  Returns the byte-order of this buffer.
+     */
+    public ByteOrder getByteOrder()
+    {
+        return _byteOrder;
+    }
+
+
+    /**
+     *  Sets the byte-order of this buffer. Must not be called while other threads
+     *  are accessing the buffer.
+     */
+    public synchronized void setByteOrder(ByteOrder order)
+    {
+        _byteOrder = order;
+        for (ByteBuffer slab : _slabs)
+        {
+            if (slab != null)
+                slab.order(order);
+        }
+    }
+
+
+    /**
+     *  Ensures that the buffer can hold the specified number of bytes, allocating
+     *  slabs as needed. If the slab containing the last of those bytes has been
+     *  freed, it is reallocated; other freed slabs are not.
+     */
+    public void ensureCapacity(long size)
+    {
+        ByteBuffer[] slabs = _slabs;
+        long slabCount = (size + _slabMask) >>> _slabShift;
+        if ((slabCount <= slabs.length) && ((slabCount == 0) || (slabs[(int)slabCount - 1] != null)))
+            return;
+
+        allocate(Math.min(slabs.length, slabCount - 1), slabCount);
+    }
+
+
+    /**
+     *  Reduces the capacity of the buffer to the specified size (rounded up to a
+     *  multiple of the slab size), releasing the slabs beyond that size. Has no
+     *  effect if the buffer is already that size or smaller.
+     */
+    public synchronized void truncate(long size)
+    {
+        checkOpen();
+        ByteBuffer[] slabs = _slabs;
+        long slabCount = (size + _slabMask) >>> _slabShift;
+        if (slabCount >= slabs.length)
+            return;
+
+        ByteBuffer[] newSlabs = new ByteBuffer[(int)slabCount];
+        System.arraycopy(slabs, 0, newSlabs, 0, newSlabs.length);
+        _slabs = newSlabs;
+        for (int ii = newSlabs.length ; ii < slabs.length ; ii++)
+            BufferReleaser.release(slabs[ii]);
+    }
+
+
+    /**
+     *  Releases the slabs that are wholly contained within the specified range.
+     *  Slabs that are only partially covered by the range are not affected. Does
+     *  not change the buffer's capacity.
+     */
+    public synchronized void free(long offset, long length)
+    {
+        checkOpen();
+        ByteBuffer[] slabs = _slabs;
+        long first = (Math.max(offset, 0) + _slabMask) >>> _slabShift;
+        long last = Math.min((offset + length) >>> _slabShift, slabs.length);
+        if (first >= last)
+            return;
+
+        ByteBuffer[] newSlabs = slabs.clone();
+        for (int ii = (int)first ; ii < last ; ii++)
+            newSlabs[ii] = null;
+        _slabs = newSlabs;
+        for (int ii = (int)first ; ii < last ; ii++)
+            BufferReleaser.release(slabs[ii]);
+    }
+
+
+    /**
+     *  Releases all slabs. Subsequent access will throw <code>IllegalStateException</code>.
+     *  Closing an already-closed buffer has no effect.
+     */
+    public synchronized void close()
+    {
+        if (_isClosed)
+            return;
+
+        ByteBuffer[] slabs = _slabs;
+        _isClosed = true;
+        _slabs = NO_SLABS;
+        for (ByteBuffer slab : slabs)
+            BufferReleaser.release(slab);
+    }
+
+
+    /**
+     *  Indicates whether this buffer has been closed.
+     */
+    public boolean isClosed()
+    {
+        return _isClosed;
+    }
+
+
+    /**
+     *  Returns the single byte at the specified index.
+     */
+    public byte get(long index)
+    {
+        return slab(index).get((int)(index & _slabMask));
+    }
+
+
+    /**
+     *  Stores a single byte at the specified index, expanding the buffer if needed.
+     */
+    public void put(long index, byte value)
+    {
+        writeSlab(index, 1).put((int)(index & _slabMask), value);
+    }
+
+
+    /**
+     *  Returns the 2-byte <code>short</code> value at the specified index.
+     */
+    public short getShort(long index)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 2)
+            return slab(index).getShort(pos);
+
+        long bits = getSpanning(index, 2);
+        return (short)bits;
+    }
+
+
+    /**
+     *  Stores a 2-byte <code>short</code> value at the specified index,
+     *  expanding the buffer if needed.
+     */
+    public void putShort(long index, short value)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 2)
+            writeSlab(index, 2).putShort(pos, value);
+        else
+            putSpanning(index, 2, value);
+    }
+
+
+    /**
+     *  Returns the 4-byte <code>int</code> value at the specified index.
+     */
+    public int getInt(long index)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 4)
+            return slab(index).getInt(pos);
+
+        long bits = getSpanning(index, 4);
+        return (int)bits;
+    }
+
+
+    /**
+     *  Stores an 4-byte <code>int</code> value at the specified index,
+     *  expanding the buffer if needed.
+     */
+    public void putInt(long index, int value)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 4)
+            writeSlab(index, 4).putInt(pos, value);
+        else
+            putSpanning(index, 4, value);
+    }
+
+
+    /**
+     *  Returns the 8-byte <code>long</code> value at the specified index.
+     */
+    public long getLong(long index)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 8)
+            return slab(index).getLong(pos);
+
+        long bits = getSpanning(index, 8);
+        return bits;
+    }
+
+
+    /**
+     *  Stores a 8-byte <code>long</code> value at the specified index,
+     *  expanding the buffer if needed.
+     */
+    public void putLong(long index, long value)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 8)
+            writeSlab(index, 8).putLong(pos, value);
+        else
+            putSpanning(index, 8, value);
+    }
+
+
+    /**
+     *  Returns the 4-byte <code>float</code> value at the specified index.
+     */
+    public float getFloat(long index)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 4)
+            return slab(index).getFloat(pos);
+
+        long bits = getSpanning(index, 4);
+        return Float.intBitsToFloat((int)bits);
+    }
+
+
+    /**
+     *  Stores a 4-byte <code>float</code> value at the specified index,
+     *  expanding the buffer if needed.
+     */
+    public void putFloat(long index, float value)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 4)
+            writeSlab(index, 4).putFloat(pos, value);
+        else
+            putSpanning(index, 4, Float.floatToRawIntBits(value));
+    }
+
+
+    /**
+     *  Returns the 8-byte <code>double</code> value at the specified index.
+     */
+    public double getDouble(long index)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 8)
+            return slab(index).getDouble(pos);
+
+        long bits = getSpanning(index, 8);
+        return Double.longBitsToDouble(bits);
+    }
+
+
+    /**
+     *  Stores a 8-byte <code>double</code> value at the specified index,
+     *  expanding the buffer if needed.
+     */
+    public void putDouble(long index, double value)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 8)
+            writeSlab(index, 8).putDouble(pos, value);
+        else
+            putSpanning(index, 8, Double.doubleToRawLongBits(value));
+    }
+
+
+    /**
+     *  Returns the 2-byte <code>char</code> value at the specified index.
+     */
+    public char getChar(long index)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 2)
+            return slab(index).getChar(pos);
+
+        long bits = getSpanning(index, 2);
+        return (char)bits;
+    }
+
+
+    /**
+     *  Stores a 2-byte <code>char</code> value at the specified index,
+     *  expanding the buffer if needed.
+     */
+    public void putChar(long index, char value)
+    {
+        int pos = (int)(index & _slabMask);
+        if (pos <= _slabSize - 2)
+            writeSlab(index, 2).putChar(pos, value);
+        else
+            putSpanning(index, 2, value);
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> bytes starting at the specified index,
+     *  storing them in a newly created <code>byte[]</code>.
+     */
+    public byte[] getBytes(long index, int len)
+    {
+        return getBytes(index, new byte[len], 0, len);
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> bytes starting at the specified index,
+     *  storing them in an existing <code>byte[]</code> at the specified
+     *  offset. Returns the array as a convenience.
+     */
+    public byte[] getBytes(long index, byte[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRange(index, len);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = Math.min(len, buf.remaining());
+            buf.get(array, off, count);
+            index += count;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores the contents of the passed byte array, starting at the given index.
+     */
+    public void putBytes(long index, byte[] value)
+    {
+        putBytes(index, value, 0, value.length);
+    }
+
+
+    /**
+     *  Stores a section of the passed byte array, starting at the given index
+     *  and expanding the buffer if needed.
+     */
+    public void putBytes(long index, byte[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len);
+        while (len > 0)
+        {
+            ByteBuffer buf = writeBuffer(index);
+            int count = Math.min(len, buf.remaining());
+            buf.put(value, off, count);
+            index += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> short values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience.
+     */
+    public short[] getShorts(long index, short[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRange(index, len * 2L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = Math.min(len, buf.remaining() / 2);
+            if (count == 0)
+            {
+                array[off] = getShort(index);
+                count = 1;
+            }
+            else
+            {
+                buf.asShortBuffer().get(array, off, count);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed short array, starting at the given index
+     *  and expanding the buffer if needed.
+     */
+    public void putShorts(long index, short[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 2L);
+        while (len > 0)
+        {
+            ByteBuffer buf = writeBuffer(index);
+            int count = Math.min(len, buf.remaining() / 2);
+            if (count == 0)
+            {
+                putShort(index, value[off]);
+                count = 1;
+            }
+            else
+            {
+                buf.asShortBuffer().put(value, off, count);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> int values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience.
+     */
+    public int[] getInts(long index, int[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRange(index, len * 4L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = Math.min(len, buf.remaining() / 4);
+            if (count == 0)
+            {
+                array[off] = getInt(index);
+                count = 1;
+            }
+            else
+            {
+                buf.asIntBuffer().get(array, off, count);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed int array, starting at the given index
+     *  and expanding the buffer if needed.
+     */
+    public void putInts(long index, int[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 4L);
+        while (len > 0)
+        {
+            ByteBuffer buf = writeBuffer(index);
+            int count = Math.min(len, buf.remaining() / 4);
+            if (count == 0)
+            {
+                putInt(index, value[off]);
+                count = 1;
+            }
+            else
+            {
+                buf.asIntBuffer().put(value, off, count);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> long values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience.
+     */
+    public long[] getLongs(long index, long[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRange(index, len * 8L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = Math.min(len, buf.remaining() / 8);
+            if (count == 0)
+            {
+                array[off] = getLong(index);
+                count = 1;
+            }
+            else
+            {
+                buf.asLongBuffer().get(array, off, count);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed long array, starting at the given index
+     *  and expanding the buffer if needed.
+     */
+    public void putLongs(long index, long[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 8L);
+        while (len > 0)
+        {
+            ByteBuffer buf = writeBuffer(index);
+            int count = Math.min(len, buf.remaining() / 8);
+            if (count == 0)
+            {
+                putLong(index, value[off]);
+                count = 1;
+            }
+            else
+            {
+                buf.asLongBuffer().put(value, off, count);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> float values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience.
+     */
+    public float[] getFloats(long index, float[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRange(index, len * 4L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = Math.min(len, buf.remaining() / 4);
+            if (count == 0)
+            {
+                array[off] = getFloat(index);
+                count = 1;
+            }
+            else
+            {
+                buf.asFloatBuffer().get(array, off, count);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed float array, starting at the given index
+     *  and expanding the buffer if needed.
+     */
+    public void putFloats(long index, float[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 4L);
+        while (len > 0)
+        {
+            ByteBuffer buf = writeBuffer(index);
+            int count = Math.min(len, buf.remaining() / 4);
+            if (count == 0)
+            {
+                putFloat(index, value[off]);
+                count = 1;
+            }
+            else
+            {
+                buf.asFloatBuffer().put(value, off, count);
+            }
+            index += count * 4L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> double values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience.
+     */
+    public double[] getDoubles(long index, double[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRange(index, len * 8L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = Math.min(len, buf.remaining() / 8);
+            if (count == 0)
+            {
+                array[off] = getDouble(index);
+                count = 1;
+            }
+            else
+            {
+                buf.asDoubleBuffer().get(array, off, count);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed double array, starting at the given index
+     *  and expanding the buffer if needed.
+     */
+    public void putDoubles(long index, double[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 8L);
+        while (len > 0)
+        {
+            ByteBuffer buf = writeBuffer(index);
+            int count = Math.min(len, buf.remaining() / 8);
+            if (count == 0)
+            {
+                putDouble(index, value[off]);
+                count = 1;
+            }
+            else
+            {
+                buf.asDoubleBuffer().put(value, off, count);
+            }
+            index += count * 8L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Retrieves <code>len</code> char values starting at the specified index,
+     *  storing them in an existing array at the specified offset. Returns the
+     *  array as a convenience.
+     */
+    public char[] getChars(long index, char[] array, int off, int len)
+    {
+        checkArrayBounds(array.length, off, len);
+        checkRange(index, len * 2L);
+        while (len > 0)
+        {
+            ByteBuffer buf = buffer(index);
+            int count = Math.min(len, buf.remaining() / 2);
+            if (count == 0)
+            {
+                array[off] = getChar(index);
+                count = 1;
+            }
+            else
+            {
+                buf.asCharBuffer().get(array, off, count);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+        return array;
+    }
+
+
+    /**
+     *  Stores a section of the passed char array, starting at the given index
+     *  and expanding the buffer if needed.
+     */
+    public void putChars(long index, char[] value, int off, int len)
+    {
+        checkArrayBounds(value.length, off, len);
+        ensureCapacity(index + len * 2L);
+        while (len > 0)
+        {
+            ByteBuffer buf = writeBuffer(index);
+            int count = Math.min(len, buf.remaining() / 2);
+            if (count == 0)
+            {
+                putChar(index, value[off]);
+                count = 1;
+            }
+            else
+            {
+                buf.asCharBuffer().put(value, off, count);
+            }
+            index += count * 2L;
+            off += count;
+            len -= count;
+        }
+    }
+
+
+    /**
+     *  Returns a view of the slab containing the specified index, with position 0
+     *  corresponding to that index, and limit at the end of the slab.
+     */
+    public ByteBuffer slice(long index)
+    {
+        return buffer(index).slice().order(_byteOrder);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void checkOpen()
+    {
+        if (_isClosed)
+            throw new IllegalStateException("buffer has been closed");
+    }
+
+
+    private static void checkArrayBounds(int arrayLength, int off, int len)
+    {
+        if ((off < 0) || (len < 0) || (off + len > arrayLength))
+            throw new IndexOutOfBoundsException(
+                    "invalid offset/length for array of size " + arrayLength + ": " + off + "/" + len);
+    }
+
+
+    private void checkRange(long index, long length)
+    {
+        checkOpen();
+        long capacity = capacity();
+        if ((index < 0) || (length < 0) || (index + length > capacity))
+            throw new IndexOutOfBoundsException(
+                    "invalid index/length for buffer of size " + capacity + ": " + index + "/" + length);
+    }
+
+
+    /**
+     *  Returns the slab containing the specified index. Callers must only use
+     *  absolute operations on this buffer, as it may be shared between threads.
+     */
+    private ByteBuffer slab(long index)
+    {
+        ByteBuffer[] slabs = _slabs;
+        long slabNum = index >>> _slabShift;
+        if (slabNum >= slabs.length)
+        {
+            checkOpen();
+            throw new IndexOutOfBoundsException("index " + index + " exceeds buffer capacity " + capacity());
+        }
+
+        ByteBuffer slab = slabs[(int)slabNum];
+        if (slab == null)
+            throw new IllegalStateException("index " + index + " is in a freed slab");
+        return slab;
+    }
+
+
+    /**
+     *  Returns the slab containing the specified index, for a write of the specified
+     *  size, expanding the buffer if necessary.
+     */
+    private ByteBuffer writeSlab(long index, int size)
+    {
+        if (index < 0)
+            throw new IndexOutOfBoundsException("negative index: " + index);
+        ensureCapacity(index + size);
+        return slab(index);
+    }
+
+
+    /**
+     *  Returns a duplicate of the slab containing the specified index, positioned
+     *  at that index. This is used for bulk operations; since it's a new object,
+     *  it may be modified without affecting other threads.
+     */
+    private ByteBuffer buffer(long index)
+    {
+        if (index < 0)
+            throw new IndexOutOfBoundsException("negative index: " + index);
+        ByteBuffer buf = slab(index).duplicate().order(_byteOrder);
+        buf.position((int)(index & _slabMask));
+        return buf;
+    }
+
+
+    /**
+     *  Returns a duplicate of the slab containing the specified index for a write,
+     *  reallocating it if it has been freed.
+     */
+    private ByteBuffer writeBuffer(long index)
+    {
+        ensureCapacity((index & ~_slabMask) + _slabSize);
+        return buffer(index);
+    }
+
+
+    /**
+     *  Allocates the specified range of slabs, extending the slab array if needed.
+     *  Slabs in that range that are already allocated are retained.
+     */
+    private synchronized void allocate(long firstSlab, long slabCount)
+    {
+        checkOpen();
+        if (slabCount > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("size exceeds maximum slab count: " + slabCount);
+
+        ByteBuffer[] slabs = _slabs;
+        ByteBuffer[] newSlabs = new ByteBuffer[(int)Math.max(slabCount, slabs.length)];
+        System.arraycopy(slabs, 0, newSlabs, 0, slabs.length);
+        for (int ii = (int)firstSlab ; ii < slabCount ; ii++)
+        {
+            if (newSlabs[ii] == null)
+                newSlabs[ii] = ByteBuffer.allocateDirect(_slabSize).order(_byteOrder);
+        }
+        _slabs = newSlabs;
+    }
+
+
+    /**
+     *  Reads a value that spans slabs, returning its bytes in big-endian order
+     *  (ie, as they would be returned by a big-endian buffer).
+     */
+    private long getSpanning(long index, int size)
+    {
+        checkRange(index, size);
+        long bits = 0;
+        for (int ii = 0 ; ii < size ; ii++)
+        {
+            bits = (bits << 8) | (get(index + ii) & 0xFF);
+        }
+        return (_byteOrder == ByteOrder.BIG_ENDIAN)
+             ? bits
+             : Long.reverseBytes(bits) >> (64 - size * 8);
+    }
+
+
+    /**
+     *  Writes a value that spans slabs. Bytes are written in big-endian order,
+     *  after swapping the value if needed.
+     */
+    private void putSpanning(long index, int size, long bits)
+    {
+        if (_byteOrder != ByteOrder.BIG_ENDIAN)
+            bits = Long.reverseBytes(bits) >>> (64 - size * 8);
+        for (int ii = size - 1 ; ii >= 0 ; ii--)
+        {
+            put(index + ii, (byte)bits);
+            bits >>>= 8;
+        }
+    }
+}
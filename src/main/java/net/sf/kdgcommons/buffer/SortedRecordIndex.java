@@ -0,0 +1,389 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package net.sf.kdgcommons.buffer;
+
+import net.sf.kdgcommons.collections.BinarySearch;
+import net.sf.kdgcommons.collections.InplaceSort;
+
+
+/**
+ *  A sorted index over fixed-width records stored in a {@link BufferFacade},
+ *  keyed by a <code>long</code> value at a fixed offset within each record. The
+ *  intended use is persistent, read-mostly reference data in a {@link MappedFileBuffer}:
+ *  write the records, call {@link #sort} once to order them in place, and then
+ *  look them up by key for the life of the file.
+ *  <p>
+ *  Sorting uses {@link InplaceSort}, moving whole records within the buffer.
+ *  Lookups use {@link BinarySearch}, reading keys directly from the buffer;
+ *  neither creates objects per comparison or per lookup. Range scans use a
+ *  {@link Cursor}, which may be repositioned any number of times.
+ *  <p>
+ *  Keys are compared as signed values, using the buffer's byte order. Records
+ *  with equal keys are permitted; lookups find the first of them. Because the
+ *  underlying sort and search operate on <code>int</code> indexes, an index is
+ *  limited to <code>Integer.MAX_VALUE</code> records (although the records
+ *  themselves may be anywhere in a buffer larger than 2GB).
+ *  <p>
+ *  Instances may be shared between threads for lookups, provided that the buffer
+ *  itself supports concurrent reads (see {@link BufferFacadeFactory#createThreadsafe}
+ *  and {@link MappedFileBufferThreadLocal}). Sorting must not be concurrent with any
+ *  other access. Cursors must be confined to a single thread.
+ *
+ *  @since 1.1.0
+ */
+public class SortedRecordIndex
+{
+    private BufferFacade _buf;
+    private long _base;
+    private int _recordSize;
+    private int _keyOffset;
+    private int _count;
+
+    private ThreadLocal<Searcher> _searchers = new ThreadLocal<Searcher>()
+    {
+        @Override
+        protected Searcher initialValue()
+        {
+            return new Searcher();
+        }
+    };
+
+
+    /**
+     *  Creates an index over <code>count</code> records, each <code>recordSize</code>
+     *  bytes long, starting at offset <code>base</code> in the buffer, with an 8-byte
+     *  key at <code>keyOffset</code> within each record.
+     *
+     *  @throws IllegalArgumentException if any of the parameters are negative, if
+     *          the key does not fit within the record, or if the records do not fit
+     *          within the buffer's capacity.
+     */
+    public SortedRecordIndex(BufferFacade buf, long base, int recordSize, int keyOffset, int count)
+    {
+        if ((base < 0) || (count < 0))
+            throw new IllegalArgumentException("invalid base/count: " + base + "/" + count);
+        if ((keyOffset < 0) || (keyOffset + 8 > recordSize))
+            throw new IllegalArgumentException("key offset " + keyOffset + " does not fit in record size " + recordSize);
+        if (base + (long)recordSize * count > buf.capacity())
+            throw new IllegalArgumentException("records extend past end of buffer");
+
+        _buf = buf;
+        _base = base;
+        _recordSize = recordSize;
+        _keyOffset = keyOffset;
+        _count = count;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public Methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the number of records in this index.
+     */
+    public int count()
+    {
+        return _count;
+    }
+
+
+    /**
+     *  Returns the size of each record, in bytes.
+     */
+    public int recordSize()
+    {
+        return _recordSize;
+    }
+
+
+    /**
+     *  Returns the buffer offset of the record at the specified index.
+     */
+    public long offset(int index)
+    {
+        return _base + (long)index * _recordSize;
+    }
+
+
+    /**
+     *  Returns the key of the record at the specified index.
+     */
+    public long getKey(int index)
+    {
+        return _buf.getLong(offset(index) + _keyOffset);
+    }
+
+
+    /**
+     *  Sorts the records in place, by key. This allocates two record-sized
+     *  scratch arrays, regardless of the number of records.
+     */
+    public void sort()
+    {
+        InplaceSort.sort(new Sorter());
+    }
+
+
+    /**
+     *  Determines whether the records are in key order. This is useful when
+     *  reopening a file that may or may not have been sorted.
+     */
+    public boolean isSorted()
+    {
+        if (_count == 0)
+            return true;
+
+        long prev = getKey(0);
+        for (int ii = 1 ; ii < _count ; ii++)
+        {
+            long key = getKey(ii);
+            if (key < prev)
+                return false;
+            prev = key;
+        }
+        return true;
+    }
+
+
+    /**
+     *  Searches for a record with the specified key. Follows the convention of
+     *  <code>Arrays.binarySearch()</code>: returns the index of the record if
+     *  found, <code>(-(insertionPoint) - 1)</code> if not. If there are several
+     *  records with the key, returns the first of them.
+     */
+    public int find(long key)
+    {
+        return _searchers.get().search(key, false);
+    }
+
+
+    /**
+     *  Returns the index of the first record whose key is greater than or equal
+     *  to the passed key; {@link #count} if there is no such record.
+     */
+    public int lowerBound(long key)
+    {
+        return toIndex(_searchers.get().search(key, false));
+    }
+
+
+    /**
+     *  Returns the index of the first record whose key is strictly greater than
+     *  the passed key; {@link #count} if there is no such record.
+     */
+    public int upperBound(long key)
+    {
+        return toIndex(_searchers.get().search(key, true));
+    }
+
+
+    /**
+     *  Returns a new cursor, which is positioned before the first record. The
+     *  cursor may be reused for any number of scans.
+     */
+    public Cursor newCursor()
+    {
+        return new Cursor();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static int toIndex(int searchResult)
+    {
+        return (searchResult >= 0) ? searchResult : -searchResult - 1;
+    }
+
+
+    private static int compareKeys(long k1, long k2)
+    {
+        return (k1 < k2) ? -1
+             : (k1 > k2) ? 1
+                         : 0;
+    }
+
+
+    /**
+     *  The sort accessor. Swaps records through a pair of scratch arrays.
+     */
+    private class Sorter
+    implements InplaceSort.Accessor
+    {
+        private byte[] _scratch1 = new byte[_recordSize];
+        private byte[] _scratch2 = new byte[_recordSize];
+
+        public int start()
+        {
+            return 0;
+        }
+
+        public int end()
+        {
+            return _count;
+        }
+
+        public int compare(int i1, int i2)
+        {
+            return compareKeys(getKey(i1), getKey(i2));
+        }
+
+        public void swap(int i1, int i2)
+        {
+            long off1 = offset(i1);
+            long off2 = offset(i2);
+            _buf.getBytes(off1, _scratch1, 0, _recordSize);
+            _buf.getBytes(off2, _scratch2, 0, _recordSize);
+            _buf.putBytes(off1, _scratch2, 0, _recordSize);
+            _buf.putBytes(off2, _scratch1, 0, _recordSize);
+        }
+    }
+
+
+    /**
+     *  The search accessor. To avoid boxing, the key being sought is held in a
+     *  field, and the value passed to <code>compare()</code> is ignored; as a
+     *  result, instances are not threadsafe.
+     *  <p>
+     *  When searching for an upper bound, a matching key compares as greater
+     *  than the record, so the search reports the position after all matches.
+     */
+    private class Searcher
+    implements BinarySearch.Accessor<Object>
+    {
+        private long _key;
+        private boolean _isUpperBound;
+
+        public int search(long key, boolean isUpperBound)
+        {
+            _key = key;
+            _isUpperBound = isUpperBound;
+            return BinarySearch.search(this, null);
+        }
+
+        public int start()
+        {
+            return 0;
+        }
+
+        public int end()
+        {
+            return _count;
+        }
+
+        public int compare(Object ignored, int index)
+        {
+            int cmp = compareKeys(_key, getKey(index));
+            return ((cmp == 0) && _isUpperBound) ? 1 : cmp;
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Range scans
+//----------------------------------------------------------------------------
+
+    /**
+     *  A flyweight that scans a range of records in key order. A new cursor is
+     *  positioned before the first record; call {@link #seek} to restrict it to
+     *  a range of keys, and {@link #next} to advance to each record in turn:
+     *  <pre>
+     *      SortedRecordIndex.Cursor cursor = index.newCursor();
+     *      cursor.seek(lowKey, highKey);
+     *      while (cursor.next())
+     *      {
+     *          total += buf.getDouble(cursor.offset() + VALUE_OFFSET);
+     *      }
+     *  </pre>
+     *  Cursors hold position state, and must be confined to a single thread.
+     */
+    public class Cursor
+    {
+        private Searcher _searcher = new Searcher();
+        private int _index;
+        private int _end;
+
+        protected Cursor()
+        {
+            reset();
+        }
+
+        /**
+         *  Positions the cursor before the first record, covering all records.
+         */
+        public void reset()
+        {
+            _index = -1;
+            _end = _count;
+        }
+
+        /**
+         *  Positions the cursor before the first record whose key is greater than
+         *  or equal to <code>lowKey</code>, covering all records whose keys are
+         *  less than or equal to <code>highKey</code>. If <code>highKey</code> is
+         *  less than <code>lowKey</code>, the range is empty.
+         *
+         *  @return The number of records in the range.
+         */
+        public int seek(long lowKey, long highKey)
+        {
+            int start = toIndex(_searcher.search(lowKey, false));
+            int end = toIndex(_searcher.search(highKey, true));
+            _index = start - 1;
+            _end = Math.max(start, end);
+            return _end - start;
+        }
+
+        /**
+         *  Advances to the next record in the range, returning <code>true</code>
+         *  if there is one, <code>false</code> if the cursor has reached the end
+         *  of the range.
+         */
+        public boolean next()
+        {
+            if (_index + 1 >= _end)
+                return false;
+            _index++;
+            return true;
+        }
+
+        /**
+         *  Returns the index of the current record.
+         */
+        public int index()
+        {
+            return _index;
+        }
+
+        /**
+         *  Returns the buffer offset of the current record.
+         */
+        public long offset()
+        {
+            return SortedRecordIndex.this.offset(_index);
+        }
+
+        /**
+         *  Returns the key of the current record.
+         */
+        public long key()
+        {
+            return getKey(_index);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+
+/**
+ *  Provides access to <code>sun.misc.Unsafe</code>, for those classes in this
+ *  package that operate directly on buffer memory. Callers must check {@link
+ *  #isAvailable} and provide a fallback if it returns <code>false</code>; if it
+ *  returns <code>true</code>, they may use {@link UnsafeHolder#UNSAFE}.
+ *  <p>
+ *  Like {@link BufferReleaser}, this class finds <code>Unsafe</code> by reflection,
+ *  so it has no compile-time dependency on the JDK-internal class.
+ *  <p>
+ *  Nothing here performs bounds checks; that's the caller's responsibility.
+ */
+final class UnsafeAccess
+{
+    private final static Object UNSAFE;
+    private final static long ADDRESS_OFFSET;
+
+    // architectures that permit unaligned multi-byte access; this is the same
+    // list that java.nio.Bits.unaligned() uses
+    private final static String[] UNALIGNED_ARCHS = new String[]
+    {
+        "i386", "x86", "amd64", "x86_64", "ppc64", "ppc64le", "aarch64"
+    };
+    private final static boolean UNALIGNED;
+
+    // the JDK breaks large copies into chunks, to allow safepoints; so do we
+    public final static long COPY_CHUNK_SIZE = 1024 * 1024;
+
+    // base offsets for primitive arrays; only valid if Unsafe is available
+    public final static long BYTE_ARRAY_OFFSET;
+    public final static long SHORT_ARRAY_OFFSET;
+    public final static long INT_ARRAY_OFFSET;
+    public final static long LONG_ARRAY_OFFSET;
+    public final static long FLOAT_ARRAY_OFFSET;
+    public final static long DOUBLE_ARRAY_OFFSET;
+    public final static long CHAR_ARRAY_OFFSET;
+
+    static
+    {
+        Object unsafe = null;
+        long addressOffset = -1;
+        long[] arrayOffsets = new long[] { -1, -1, -1, -1, -1, -1, -1 };
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object candidate = field.get(null);
+
+            Method objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+            addressOffset = ((Long)objectFieldOffset.invoke(candidate, Buffer.class.getDeclaredField("address"))).longValue();
+
+            Method arrayBaseOffset = unsafeClass.getMethod("arrayBaseOffset", Class.class);
+            Class<?>[] arrayClasses = new Class<?>[]
+            {
+                byte[].class, short[].class, int[].class, long[].class,
+                float[].class, double[].class, char[].class
+            };
+            for (int ii = 0 ; ii < arrayClasses.length ; ii++)
+                arrayOffsets[ii] = ((Integer)arrayBaseOffset.invoke(candidate, arrayClasses[ii])).longValue();
+
+            // the object-relative copy was added in JDK 7; we require it
+            unsafeClass.getMethod("copyMemory", Object.class, Long.TYPE, Object.class, Long.TYPE, Long.TYPE);
+            unsafe = candidate;
+        }
+        catch (Throwable ignored)
+        {
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+        ADDRESS_OFFSET = addressOffset;
+        UNALIGNED = isUnalignedArch(System.getProperty("os.arch", ""));
+
+        BYTE_ARRAY_OFFSET   = arrayOffsets[0];
+        SHORT_ARRAY_OFFSET  = arrayOffsets[1];
+        INT_ARRAY_OFFSET    = arrayOffsets[2];
+        LONG_ARRAY_OFFSET   = arrayOffsets[3];
+        FLOAT_ARRAY_OFFSET  = arrayOffsets[4];
+        DOUBLE_ARRAY_OFFSET = arrayOffsets[5];
+        CHAR_ARRAY_OFFSET   = arrayOffsets[6];
+    }
+
+
+    private UnsafeAccess()
+    {
+        // this is a static utility class
+    }
+
+
+    /**
+     *  Indicates whether <code>Unsafe</code> is available in this JVM.
+     */
+    public static boolean isAvailable()
+    {
+        return UNSAFE != null;
+    }
+
+
+    /**
+     *  Returns the <code>Unsafe</code> instance, typed as the caller requires;
+     *  this exists so that {@link UnsafeHolder} doesn't need a cast. Must not be
+     *  called unless {@link #isAvailable} returns <code>true</code>.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T unsafe()
+    {
+        return (T)UNSAFE;
+    }
+
+
+    /**
+     *  Indicates whether the platform supports unaligned multi-byte access. Calling
+     *  <code>Unsafe.getLong()</code> (etc) on an unaligned address is undefined on
+     *  architectures that require alignment, and may crash the JVM.
+     */
+    public static boolean isUnalignedSupported()
+    {
+        return UNALIGNED;
+    }
+
+
+    /**
+     *  Determines whether the named architecture (the <code>os.arch</code> system
+     *  property) supports unaligned access. Exposed for testing.
+     */
+    static boolean isUnalignedArch(String arch)
+    {
+        for (String candidate : UNALIGNED_ARCHS)
+        {
+            if (candidate.equals(arch))
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     *  Copies memory between objects or addresses (a <code>null</code> object means
+     *  that the offset is an absolute address), in chunks.
+     */
+    public static void copy(Object src, long srcOffset, Object dst, long dstOffset, long length)
+    {
+        while (length > 0)
+        {
+            long chunk = Math.min(length, COPY_CHUNK_SIZE);
+            UnsafeHolder.UNSAFE.copyMemory(src, srcOffset, dst, dstOffset, chunk);
+            srcOffset += chunk;
+            dstOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+
+    /**
+     *  Returns the memory address of the first byte of a direct buffer (ignoring
+     *  its position).
+     *
+     *  @throws IllegalArgumentException if passed a non-direct buffer.
+     */
+    public static long address(ByteBuffer buf)
+    {
+        if (! buf.isDirect())
+            throw new IllegalArgumentException("buffer is not direct");
+        return UnsafeHolder.UNSAFE.getLong(buf, ADDRESS_OFFSET);
+    }
+}
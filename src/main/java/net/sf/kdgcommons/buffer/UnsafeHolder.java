@@ -0,0 +1,34 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+
+/**
+ *  Holds the <code>sun.misc.Unsafe</code> instance found by {@link UnsafeAccess}.
+ *  This is the only class in the package that refers to <code>Unsafe</code> at
+ *  compile time, which confines the compiler's proprietary-API warning (which
+ *  can't be suppressed) to a single line. It must not be referenced unless
+ *  {@link UnsafeAccess#isAvailable} returns <code>true</code>.
+ */
+final class UnsafeHolder
+{
+    public final static sun.misc.Unsafe UNSAFE = UnsafeAccess.unsafe();
+
+
+    private UnsafeHolder()
+    {
+        // this is a static utility class
+    }
+}
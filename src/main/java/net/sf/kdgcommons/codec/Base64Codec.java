@@ -17,7 +17,8 @@ package net.sf.kdgcommons.codec;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import net.sf.kdgcommons.lang.StringUtil;
 
@@ -33,6 +34,11 @@ import net.sf.kdgcommons.lang.StringUtil;
  *  any specified start/end/separation strings (the separation string may appear
  *  any where in the source string, the start/end strings must appear in their
  *  respective locations).
+ *  <p>
+ *  In addition to the stream-oriented methods defined by {@link Codec}, this class
+ *  provides methods that encode and decode between arrays and between buffers. These
+ *  work on blocks of data using table lookups, and are the preferred way to convert
+ *  large amounts of data; the stream methods are implemented in terms of them.
  *
  *  @since 1.0.14
  */
@@ -46,31 +52,31 @@ extends Codec
     public enum Option
     {
         /** Produces an unbroken string of base-64 characters. */
-        UNBROKEN(Integer.MAX_VALUE, null, defaultCharLookup, defaultValueLookup, '='),
+        UNBROKEN(Integer.MAX_VALUE, null, defaultEncodeTable, defaultDecodeTable, true),
 
         /** RFC-1421: 64 characters, CR+LF separator */
-        RFC1421(64, new byte[] { 13, 10 }, defaultCharLookup, defaultValueLookup, '='),
+        RFC1421(64, new byte[] { 13, 10 }, defaultEncodeTable, defaultDecodeTable, true),
 
         /**
          *  RFC4648 <a href="http://tools.ietf.org/html/rfc4648#section-5">filename</a> format:
          *  an unbroken string using filename-safe symbolic encoding, without pad characters.
          */
-        FILENAME(Integer.MAX_VALUE, null, filenameCharLookup, filenameValueLookup, '\0');
+        FILENAME(Integer.MAX_VALUE, null, filenameEncodeTable, filenameDecodeTable, false);
 
 
         private final int _lineLength;
         private final byte[] _separator;
-        private final char[] _charLookup;
-        private final HashMap<Character,Integer> _valueLookup;
-        private final char _padChar;
+        private final byte[] _encodeTable;
+        private final byte[] _decodeTable;
+        private final boolean _paddingRequired;
 
-        private Option(int lineLength, byte[] separator, char[] charLookup, HashMap<Character,Integer> valueLookup, char padChar)
+        private Option(int lineLength, byte[] separator, byte[] encodeTable, byte[] decodeTable, boolean paddingRequired)
         {
             _lineLength = lineLength;
             _separator = separator;
-            _charLookup = charLookup;
-            _valueLookup = valueLookup;
-            _padChar = padChar;
+            _encodeTable = encodeTable;
+            _decodeTable = decodeTable;
+            _paddingRequired = paddingRequired;
         }
     }
 
@@ -78,38 +84,42 @@ extends Codec
 //  Encoding Tables
 //----------------------------------------------------------------------------
 
-    private static char[] defaultCharLookup =
-    {
-        'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
-        'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
-        'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
-        'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
-        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
-    };
-
-    private static HashMap<Character,Integer> defaultValueLookup = new HashMap<Character,Integer>(64);
-    static
-    {
-        defaultValueLookup.put('=', -1);
-        for (int ii = 0 ; ii < defaultCharLookup.length ; ii++)
-            defaultValueLookup.put(Character.valueOf(defaultCharLookup[ii]), Integer.valueOf(ii));
-    }
+    // the decode tables map every possible byte value to either its 6-bit value
+    // or one of these flags; the flags are negative so that a group of four
+    // lookups can be combined and checked with a single comparison
 
-    private static char[] filenameCharLookup =
-    {
-        'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
-        'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
-        'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
-        'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
-        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-', '_'
-    };
-
-    private static HashMap<Character,Integer> filenameValueLookup = new HashMap<Character,Integer>(64);
-    static
+    private final static byte INVALID = -1;
+    private final static byte WHITESPACE = -2;
+    private final static byte PAD = -3;
+
+    private final static byte PAD_CHAR = '=';
+
+    // size of the chunks used when converting streams and non-array buffers;
+    // a multiple of 3 so that encoding chunks are group-aligned
+
+    private final static int CHUNK_SIZE = 3 * 4096;
+
+
+    private static byte[] defaultEncodeTable = StringUtil.toUTF8(
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+
+    private static byte[] defaultDecodeTable = createDecodeTable(defaultEncodeTable);
+
+    private static byte[] filenameEncodeTable = StringUtil.toUTF8(
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_");
+
+    private static byte[] filenameDecodeTable = createDecodeTable(filenameEncodeTable);
+
+
+    private static byte[] createDecodeTable(byte[] encodeTable)
     {
-        filenameValueLookup.put('=', -1);
-        for (int ii = 0 ; ii < filenameCharLookup.length ; ii++)
-            filenameValueLookup.put(Character.valueOf(filenameCharLookup[ii]), Integer.valueOf(ii));
+        byte[] table = new byte[256];
+        for (int ii = 0 ; ii < table.length ; ii++)
+            table[ii] = Character.isWhitespace(ii) ? WHITESPACE : INVALID;
+        for (int ii = 0 ; ii < encodeTable.length ; ii++)
+            table[encodeTable[ii] & 0xFF] = (byte)ii;
+        table[PAD_CHAR] = PAD;
+        return table;
     }
 
 //----------------------------------------------------------------------------
@@ -118,9 +128,8 @@ extends Codec
 
     private int _lineLength;
     private byte[] _separator;
-    private char[] _charLookup;
-    private HashMap<Character,Integer> _valueLookup;
-    private char _padChar;
+    private byte[] _encodeTable;
+    private byte[] _decodeTable;
     private boolean _paddingRequired;
 
 
@@ -138,7 +147,7 @@ extends Codec
      */
     public Base64Codec(Option option)
     {
-        this(option._lineLength, option._separator, option._charLookup, option._valueLookup, option._padChar);
+        this(option._lineLength, option._separator, option._encodeTable, option._decodeTable, option._paddingRequired);
     }
 
 
@@ -158,21 +167,20 @@ extends Codec
      */
     public Base64Codec(int lineLength, byte[] separator)
     {
-        this(lineLength, separator, defaultCharLookup, defaultValueLookup, '=');
+        this(lineLength, separator, defaultEncodeTable, defaultDecodeTable, true);
     }
 
 
     /**
      *  Internal constructor that specifies all values, including lookup tables.
      */
-    private Base64Codec(int lineLength, byte[] separator, char[] charLookup, HashMap<Character,Integer> valueLookup, char padChar)
+    private Base64Codec(int lineLength, byte[] separator, byte[] encodeTable, byte[] decodeTable, boolean paddingRequired)
     {
         _lineLength = lineLength;
-        _separator = separator;
-        _charLookup = charLookup;
-        _valueLookup = valueLookup;
-        _padChar = padChar;
-        _paddingRequired = (_padChar != '\0');
+        _separator = ((separator != null) && (separator.length > 0)) ? separator : null;
+        _encodeTable = encodeTable;
+        _decodeTable = decodeTable;
+        _paddingRequired = paddingRequired;
     }
 
 //----------------------------------------------------------------------------
@@ -182,14 +190,275 @@ extends Codec
     @Override
     public void encode(InputStream in, OutputStream out)
     {
-        new Encoder(in, out).encode();
+        try
+        {
+            Encoder encoder = new Encoder();
+            byte[] src = new byte[CHUNK_SIZE];
+            byte[] dst = new byte[maxChunkEncodedLength(CHUNK_SIZE)];
+            while (true)
+            {
+                int count = readFully(in, src);
+                if (count == 0)
+                    return;
+
+                int dstPos = encoder.encode(src, 0, count, dst, 0);
+                out.write(dst, 0, dstPos);
+                if (count < src.length)
+                    return;
+            }
+        }
+        catch (CodecException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            throw new CodecException("unable to encode", ex);
+        }
     }
 
 
     @Override
     public void decode(InputStream in, OutputStream out)
     {
-        new Decoder(in, out).decode();
+        try
+        {
+            Decoder decoder = new Decoder();
+            byte[] src = new byte[CHUNK_SIZE];
+            byte[] dst = new byte[maxChunkDecodedLength(CHUNK_SIZE)];
+            int carry = 0;
+            boolean isFinal = false;
+            while (! isFinal && ! decoder.isDone())
+            {
+                int count = readFully(in, src, carry);
+                isFinal = (count < src.length);
+
+                decoder.decode(src, 0, count, dst, 0, dst.length, isFinal);
+                out.write(dst, 0, decoder.dstPos());
+
+                carry = count - decoder.srcPos();
+                System.arraycopy(src, decoder.srcPos(), src, 0, carry);
+            }
+            decoder.finish(dst, 0, dst.length);
+            out.write(dst, 0, decoder.dstPos());
+        }
+        catch (CodecException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            throw new CodecException("unable to decode", ex);
+        }
+    }
+
+
+    /**
+     *  Encodes a section of the passed array. Unlike the superclass implementation,
+     *  this does not use intermediate streams.
+     */
+    @Override
+    public byte[] encode(byte[] src, int off, int len)
+    {
+        long size = encodedLength(len);
+        if (size > Integer.MAX_VALUE)
+            throw new CodecException("encoded data too large for array: " + size + " bytes");
+
+        byte[] dst = new byte[(int)size];
+        new Encoder().encode(src, off, off + len, dst, 0);
+        return dst;
+    }
+
+
+    /**
+     *  Decodes a section of the passed array. Unlike the superclass implementation,
+     *  this does not use intermediate streams.
+     */
+    @Override
+    public byte[] decode(byte[] src, int off, int len)
+    {
+        byte[] dst = new byte[maxChunkDecodedLength(len)];
+        int count = decode(src, off, len, dst, 0);
+        if (count == dst.length)
+            return dst;
+
+        byte[] result = new byte[count];
+        System.arraycopy(dst, 0, result, 0, count);
+        return result;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Block conversions
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the number of bytes that will be produced by encoding the specified
+     *  number of source bytes, including padding and separators.
+     *
+     *  @since 1.1.0
+     */
+    public long encodedLength(long srcLen)
+    {
+        long groups = (srcLen + 2) / 3;
+        int remainder = (int)(srcLen % 3);
+        long length = (_paddingRequired || (remainder == 0))
+                    ? groups * 4
+                    : (groups - 1) * 4 + remainder + 1;
+
+        if ((_separator != null) && (groups > 0))
+        {
+            long breaks = (_lineLength <= 0) ? groups : (groups - 1) / groupsPerLine();
+            length += breaks * _separator.length;
+        }
+        return length;
+    }
+
+
+    /**
+     *  Encodes <code>len</code> bytes from <code>src</code>, starting at <code>srcOff</code>,
+     *  and writes the result into <code>dst</code>, starting at <code>dstOff</code>.
+     *  Returns the number of bytes written, which is the same as {@link #encodedLength}.
+     *
+     *  @throws IndexOutOfBoundsException if the destination array is not large enough
+     *          to hold the encoded data; the array is not modified.
+     *
+     *  @since 1.1.0
+     */
+    public int encode(byte[] src, int srcOff, int len, byte[] dst, int dstOff)
+    {
+        long size = encodedLength(len);
+        if (dstOff + size > dst.length)
+            throw new IndexOutOfBoundsException("destination too small: requires " + size + " bytes");
+
+        return new Encoder().encode(src, srcOff, srcOff + len, dst, dstOff) - dstOff;
+    }
+
+
+    /**
+     *  Encodes the remaining content of <code>src</code> into <code>dst</code>. On
+     *  return, the source buffer's position is its limit, and the destination
+     *  buffer's position has been advanced past the encoded data. Returns the
+     *  number of bytes written.
+     *
+     *  @throws BufferOverflowException if the destination buffer does not have room
+     *          for the encoded data; neither buffer is modified.
+     *
+     *  @since 1.1.0
+     */
+    public int encode(ByteBuffer src, ByteBuffer dst)
+    {
+        int len = src.remaining();
+        long size = encodedLength(len);
+        if (size > dst.remaining())
+            throw new BufferOverflowException();
+
+        Encoder encoder = new Encoder();
+        if (src.hasArray() && dst.hasArray())
+        {
+            int srcOff = src.arrayOffset() + src.position();
+            int dstOff = dst.arrayOffset() + dst.position();
+            encoder.encode(src.array(), srcOff, srcOff + len, dst.array(), dstOff);
+        }
+        else
+        {
+            byte[] srcChunk = new byte[Math.min(CHUNK_SIZE, len)];
+            byte[] dstChunk = new byte[maxChunkEncodedLength(srcChunk.length)];
+            ByteBuffer src2 = src.duplicate();
+            ByteBuffer dst2 = dst.duplicate();
+            while (src2.hasRemaining())
+            {
+                int count = Math.min(srcChunk.length, src2.remaining());
+                src2.get(srcChunk, 0, count);
+                int dstPos = encoder.encode(srcChunk, 0, count, dstChunk, 0);
+                dst2.put(dstChunk, 0, dstPos);
+            }
+        }
+
+        src.position(src.limit());
+        dst.position(dst.position() + (int)size);
+        return (int)size;
+    }
+
+
+    /**
+     *  Decodes <code>len</code> bytes from <code>src</code>, starting at <code>srcOff</code>,
+     *  and writes the result into <code>dst</code>, starting at <code>dstOff</code>.
+     *  Returns the number of bytes written. As with the stream methods, whitespace and
+     *  separators are ignored, and decoding stops at the first pad character.
+     *
+     *  @throws IndexOutOfBoundsException if the destination array is not large enough
+     *          to hold the decoded data. Content of the destination array past
+     *          <code>dstOff</code> is undefined.
+     *
+     *  @since 1.1.0
+     */
+    public int decode(byte[] src, int srcOff, int len, byte[] dst, int dstOff)
+    {
+        Decoder decoder = new Decoder();
+        decoder.decode(src, srcOff, srcOff + len, dst, dstOff, dst.length, true);
+        decoder.finish(dst, decoder.dstPos(), dst.length);
+        return decoder.dstPos() - dstOff;
+    }
+
+
+    /**
+     *  Decodes the remaining content of <code>src</code> into <code>dst</code>. On
+     *  return, the source buffer's position is its limit, and the destination
+     *  buffer's position has been advanced past the decoded data. Returns the
+     *  number of bytes written.
+     *
+     *  @throws BufferOverflowException if the destination buffer does not have room
+     *          for the decoded data. Neither buffer's position is changed, but content
+     *          of the destination buffer past its position is undefined.
+     *
+     *  @since 1.1.0
+     */
+    public int decode(ByteBuffer src, ByteBuffer dst)
+    {
+        int len = src.remaining();
+        int dstStart = dst.position();
+        Decoder decoder = new Decoder();
+        if (src.hasArray() && dst.hasArray())
+        {
+            int srcOff = src.arrayOffset() + src.position();
+            int dstOff = dst.arrayOffset() + dstStart;
+            try
+            {
+                int dstEnd = dstOff + dst.remaining();
+                decoder.decode(src.array(), srcOff, srcOff + len, dst.array(), dstOff, dstEnd, true);
+                decoder.finish(dst.array(), decoder.dstPos(), dstEnd);
+            }
+            catch (IndexOutOfBoundsException ex)
+            {
+                throw new BufferOverflowException();
+            }
+            dst.position(dstStart + decoder.dstPos() - dstOff);
+        }
+        else
+        {
+            byte[] srcChunk = new byte[Math.min(CHUNK_SIZE, len)];
+            byte[] dstChunk = new byte[maxChunkDecodedLength(srcChunk.length)];
+            ByteBuffer src2 = src.duplicate();
+            ByteBuffer dst2 = dst.duplicate();
+            boolean isFinal = false;
+            while (! isFinal && ! decoder.isDone())
+            {
+                int srcStart = src2.position();
+                int count = Math.min(srcChunk.length, src2.remaining());
+                isFinal = (count == src2.remaining());
+                src2.get(srcChunk, 0, count);
+                decoder.decode(srcChunk, 0, count, dstChunk, 0, dstChunk.length, isFinal);
+                src2.position(srcStart + decoder.srcPos());
+                putChunk(dst2, dstChunk, decoder.dstPos());
+            }
+            decoder.finish(dstChunk, 0, dstChunk.length);
+            putChunk(dst2, dstChunk, decoder.dstPos());
+            dst.position(dst2.position());
+        }
+
+        src.position(src.limit());
+        return dst.position() - dstStart;
     }
 
 
@@ -224,158 +493,323 @@ extends Codec
 //  Internals
 //----------------------------------------------------------------------------
 
-    private class Encoder
+    /**
+     *  Returns the number of 4-character groups on each line, for a positive line
+     *  length. A separator is written before any group that starts at or past the
+     *  line length, so lines whose length isn't a multiple of 4 are rounded up.
+     */
+    private long groupsPerLine()
     {
-        private InputStream _in;
-        private OutputStream _out;
-        private int _breakCount;
+        return (_lineLength + 3L) / 4;
+    }
 
-        public Encoder(InputStream in, OutputStream out)
+
+    /**
+     *  Returns the maximum number of bytes produced by encoding a chunk of the given
+     *  size, in the middle of a larger source. This differs from {@link #encodedLength}
+     *  in that the chunk may be preceded by a separator.
+     */
+    private int maxChunkEncodedLength(int chunkSize)
+    {
+        int groups = (chunkSize + 2) / 3;
+        return groups * 4 + ((_separator == null) ? 0 : groups * _separator.length);
+    }
+
+
+    /**
+     *  Returns the maximum number of bytes produced by decoding a chunk of the given
+     *  size, allowing for a partial group carried from the previous chunk.
+     */
+    private static int maxChunkDecodedLength(int chunkSize)
+    {
+        return chunkSize / 4 * 3 + 3;
+    }
+
+
+    /**
+     *  Reads from the stream until the array is filled or it reaches end-of-file.
+     *  Returns the number of bytes in the array, including the initial carry.
+     */
+    private static int readFully(InputStream in, byte[] buf, int carry)
+    throws IOException
+    {
+        int count = carry;
+        while (count < buf.length)
         {
-            _in = in;
-            _out = out;
+            int r = in.read(buf, count, buf.length - count);
+            if (r < 0)
+                break;
+            count += r;
         }
+        return count;
+    }
+
+
+    private static int readFully(InputStream in, byte[] buf)
+    throws IOException
+    {
+        return readFully(in, buf, 0);
+    }
+
 
-        public void encode()
+    private static void putChunk(ByteBuffer dst, byte[] chunk, int count)
+    {
+        if (count > dst.remaining())
+            throw new BufferOverflowException();
+        dst.put(chunk, 0, count);
+    }
+
+
+    /**
+     *  Encodes arrays of source bytes, tracking line length between calls. Each
+     *  call must consume a multiple of 3 bytes, except for the last.
+     */
+    private class Encoder
+    {
+        private int _breakCount;
+
+        /**
+         *  Encodes <code>src[srcPos..srcEnd)</code> into <code>dst</code>, which
+         *  must be large enough. Returns the destination position after encoding.
+         */
+        public int encode(byte[] src, int srcPos, int srcEnd, byte[] dst, int dstPos)
         {
-            try
+            byte[] table = _encodeTable;
+            while (srcEnd - srcPos >= 3)
             {
-                while (true)
-                {
-                    int b1 = _in.read();
-                    int b2 = _in.read();
-                    int b3 = _in.read();
-                    if (b1 < 0) return;
+                dstPos = insertBreakIfNeeded(dst, dstPos);
 
-                    insertBreakIfNeeded();
-                    encodeGroup(b1, b2, b3);
+                // encode all of the groups that fit on the current line, without
+                // checking for breaks
+                int groups = Math.min(groupsBeforeBreak(), (srcEnd - srcPos) / 3);
+                int runEnd = srcPos + groups * 3;
+                while (srcPos < runEnd)
+                {
+                    int bits = ((src[srcPos] & 0xFF) << 16)
+                             | ((src[srcPos + 1] & 0xFF) << 8)
+                             | (src[srcPos + 2] & 0xFF);
+                    dst[dstPos]     = table[bits >>> 18];
+                    dst[dstPos + 1] = table[(bits >>> 12) & 0x3F];
+                    dst[dstPos + 2] = table[(bits >>> 6) & 0x3F];
+                    dst[dstPos + 3] = table[bits & 0x3F];
+                    srcPos += 3;
+                    dstPos += 4;
                 }
+                if (_separator != null)
+                    _breakCount += groups * 4;
             }
-            catch (CodecException ex)
-            {
-                throw ex;
-            }
-            catch (Exception ex)
-            {
-                throw new CodecException("unable to encode", ex);
-            }
-        }
 
-        private void insertBreakIfNeeded()
-        throws IOException
-        {
-            if ((_separator != null) && (_breakCount >= _lineLength))
+            int remaining = srcEnd - srcPos;
+            if (remaining > 0)
             {
-                _out.write(_separator);
-                _breakCount = 0;
+                dstPos = insertBreakIfNeeded(dst, dstPos);
+
+                int b1 = src[srcPos] & 0xFF;
+                int b2 = (remaining > 1) ? src[srcPos + 1] & 0xFF : 0;
+                dst[dstPos++] = table[b1 >>> 2];
+                dst[dstPos++] = table[((b1 & 0x03) << 4) | (b2 >>> 4)];
+                if (remaining > 1)
+                    dst[dstPos++] = table[(b2 & 0x0F) << 2];
+                else if (_paddingRequired)
+                    dst[dstPos++] = PAD_CHAR;
+                if (_paddingRequired)
+                    dst[dstPos++] = PAD_CHAR;
+                _breakCount += 4;
             }
+
+            return dstPos;
         }
 
-        private boolean encodeGroup(int b1, int b2, int b3)
-        throws IOException
+        private int insertBreakIfNeeded(byte[] dst, int dstPos)
         {
-            int e1 = b1 >>> 2;
-
-            int e2 = (b1 & 0x03) << 4;
-            if (b2 >= 0)
-                e2 |= b2 >> 4;
-
-            int e3 = (b2 & 0xF) << 2;
-            if (b3 >= 0)
-                e3 |= b3 >> 6;
-
-            int e4 = b3 & 0x3F;
+            if ((_separator == null) || (_breakCount < _lineLength))
+                return dstPos;
 
-            _out.write(_charLookup[e1]);
-            _out.write(_charLookup[e2]);
-            writeOrPad(b2, e3);
-            writeOrPad(b3, e4);
-
-            _breakCount += 4;
-            return true;
+            System.arraycopy(_separator, 0, dst, dstPos, _separator.length);
+            _breakCount = 0;
+            return dstPos + _separator.length;
         }
 
-
-        private void writeOrPad(int byteVal, int encVal)
-        throws IOException
+        /**
+         *  Returns the number of groups that can be written before the next
+         *  separator: a separator precedes any group that would start at or
+         *  past the line length. Always at least 1, because this is called
+         *  after {@link #insertBreakIfNeeded}.
+         */
+        private int groupsBeforeBreak()
         {
-            if (byteVal >= 0)
-                _out.write(_charLookup[encVal]);
-            else if (_padChar != '\0')
-                _out.write(_padChar);
-        }
+            if (_separator == null)
+                return Integer.MAX_VALUE;
 
+            long groups = ((long)_lineLength - _breakCount + 3) / 4;
+            return (int)Math.max(1, Math.min(groups, Integer.MAX_VALUE));
+        }
     }
 
 
+    /**
+     *  Decodes arrays of source bytes, carrying partial groups between calls.
+     *  The source and destination positions after each call are available from
+     *  {@link #srcPos} and {@link #dstPos}.
+     */
     private class Decoder
     {
-        private InputStream _in;
-        private OutputStream _out;
+        private int _accum;
+        private int _pending;
+        private boolean _isDone;
+
+        private int _srcPos;
+        private int _dstPos;
+        private int _dstEnd;
+        private byte[] _dst;
 
-        public Decoder(InputStream in, OutputStream out)
+        public int srcPos()
         {
-            _in = in;
-            _out = out;
+            return _srcPos;
         }
 
-        public void decode()
+        public int dstPos()
         {
-            try
-            {
-                do
-                {
-                    skipIfSeparator(_in, _separator);
-                }
-                while (decodeGroup());
-            }
-            catch (CodecException ex)
-            {
-                throw ex;
-            }
-            catch (Exception ex)
-            {
-                throw new CodecException("unable to decode", ex);
-            }
+            return _dstPos;
         }
 
-        private boolean decodeGroup()
-        throws IOException
+        public boolean isDone()
         {
-            int e1 = next(true);
-            if (e1 < 0) return false;
+            return _isDone;
+        }
+
+        /**
+         *  Decodes <code>src[srcPos..srcEnd)</code> into <code>dst[dstPos..dstEnd)</code>.
+         *  Unless <code>isFinal</code> is set, this will stop short of a possible
+         *  separator at the end of the source, so that the caller can retry it with
+         *  more data.
+         *
+         *  @throws IndexOutOfBoundsException if the decoded data exceeds <code>dstEnd</code>.
+         */
+        public void decode(byte[] src, int srcPos, int srcEnd, byte[] dst, int dstPos, int dstEnd, boolean isFinal)
+        {
+            byte[] table = _decodeTable;
+            int sepStart = (_separator == null) ? Integer.MIN_VALUE : _separator[0];
 
-            int e2 = next(! _paddingRequired);
-            int e3 = next(! _paddingRequired);
-            int e4 = next(! _paddingRequired);
+            _dst = dst;
+            _dstEnd = dstEnd;
 
-            _out.write((e1 << 2) | ((e2 & 0x30) >> 4));
-            if (e3 < 0) return false;
+            while ((srcPos < srcEnd) && ! _isDone)
+            {
+                if (_pending == 0)
+                {
+                    // fast path: whole groups with no whitespace, padding, or separators;
+                    // any flag value makes the combined value negative
+                    while ((srcEnd - srcPos >= 4) && (dstEnd - dstPos >= 3) && (src[srcPos] != sepStart))
+                    {
+                        int bits = (table[src[srcPos] & 0xFF] << 18)
+                                 | (table[src[srcPos + 1] & 0xFF] << 12)
+                                 | (table[src[srcPos + 2] & 0xFF] << 6)
+                                 | table[src[srcPos + 3] & 0xFF];
+                        if (bits < 0)
+                            break;
+                        dst[dstPos]     = (byte)(bits >> 16);
+                        dst[dstPos + 1] = (byte)(bits >> 8);
+                        dst[dstPos + 2] = (byte)bits;
+                        srcPos += 4;
+                        dstPos += 3;
+                    }
+                    if (srcPos == srcEnd)
+                        break;
+
+                    if (src[srcPos] == sepStart)
+                    {
+                        int match = matchSeparator(src, srcPos, srcEnd);
+                        if (match == _separator.length)
+                        {
+                            srcPos += match;
+                            continue;
+                        }
+                        if ((srcPos + match == srcEnd) && ! isFinal)
+                            break;
+                    }
+                }
 
-            _out.write(((e2 & 0x0F) << 4) | ((e3 & 0x3C) >> 2));
-            if (e4 < 0) return false;
+                int b = src[srcPos++] & 0xFF;
+                int value = table[b];
+                if (value >= 0)
+                {
+                    _accum = (_accum << 6) | value;
+                    if (++_pending == 4)
+                        dstPos = writeGroup(dstPos);
+                }
+                else if (value == PAD)
+                {
+                    dstPos = writePartialGroup(dstPos);
+                    _isDone = true;
+                }
+                else if (value != WHITESPACE)
+                {
+                    throw new InvalidSourceByteException(b);
+                }
+            }
 
-            _out.write(((e3 & 0x03) << 6) | e4);
-            return true;
+            _srcPos = ((srcPos < srcEnd) && ! _isDone) ? srcPos : srcEnd;
+            _dstPos = dstPos;
         }
 
-        private int next(boolean eofAllowed)
-        throws IOException
+        /**
+         *  Called at the end of the source data, to write any partial group into
+         *  <code>dst[dstPos..dstEnd)</code>.
+         */
+        public void finish(byte[] dst, int dstPos, int dstEnd)
         {
-            int b = nextNonWhitespace(_in);
-            if (b < 0)
+            _dst = dst;
+            _dstEnd = dstEnd;
+            if (! _isDone && (_pending > 0))
             {
-                if (eofAllowed) return -1;
-                else throw new CodecException("unexpected EOF");
+                if (_paddingRequired)
+                    throw new CodecException("unexpected EOF");
+                dstPos = writePartialGroup(dstPos);
             }
+            _isDone = true;
+            _dstPos = dstPos;
+        }
 
-            if (b == _padChar) return -1;
+        private int matchSeparator(byte[] src, int srcPos, int srcEnd)
+        {
+            int count = 0;
+            while ((count < _separator.length) && (srcPos + count < srcEnd)
+                    && (src[srcPos + count] == _separator[count]))
+                count++;
+            return count;
+        }
 
-            Integer val = _valueLookup.get(Character.valueOf((char)b));
-            if (val == null) throw new InvalidSourceByteException(b);
+        private int writeGroup(int dstPos)
+        {
+            if (_dstEnd - dstPos < 3)
+                throw new IndexOutOfBoundsException("decoded data exceeds destination");
+
+            _dst[dstPos++] = (byte)(_accum >> 16);
+            _dst[dstPos++] = (byte)(_accum >> 8);
+            _dst[dstPos++] = (byte)_accum;
+            _accum = 0;
+            _pending = 0;
+            return dstPos;
+        }
 
-            return val.intValue();
+        private int writePartialGroup(int dstPos)
+        {
+            int count = _pending - 1;
+            if (count < 0)
+                return dstPos;
+            if (count == 0)
+                throw new CodecException("incomplete group");
+            if (_dstEnd - dstPos < count)
+                throw new IndexOutOfBoundsException("decoded data exceeds destination");
+
+            int bits = _accum << (6 * (4 - _pending));
+            _dst[dstPos++] = (byte)(bits >> 16);
+            if (count > 1)
+                _dst[dstPos++] = (byte)(bits >> 8);
+            _accum = 0;
+            _pending = 0;
+            return dstPos;
         }
     }
-
 }
@@ -0,0 +1,399 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.util;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.kdgcommons.buffer.BufferFacade;
+import net.sf.kdgcommons.buffer.BufferFacadeFactory;
+import net.sf.kdgcommons.buffer.MappedFileBuffer;
+import net.sf.kdgcommons.util.ReadThroughCache.Retriever;
+
+
+/**
+ *  A read-through cache that stores serialized keys and values outside of the Java
+ *  heap, in a {@link BufferFacade} (typically wrapping a direct <code>ByteBuffer</code>
+ *  or a {@link MappedFileBuffer}). It's intended as a second-level cache, holding far
+ *  more data than would be reasonable on the heap, and is normally placed behind a
+ *  {@link ReadThroughCache}:
+ *  <pre>
+ *      BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(size));
+ *      OffHeapCache&lt;String,Foo&gt; l2 = new OffHeapCache&lt;String,Foo&gt;(
+ *                                          storage, 16, 100000, keySerializer, fooSerializer, retriever);
+ *      ReadThroughCache&lt;String,Foo&gt; l1 = new ReadThroughCache&lt;String,Foo&gt;(1000, l2);
+ *  </pre>
+ *  <p>
+ *  The storage is divided into equal-sized segments, each of which is independently
+ *  locked and managed as a circular log: new entries are appended at the segment's
+ *  write position, overwriting the oldest entries in that segment. This means that
+ *  eviction is first-in-first-out within a segment; the on-heap cache in front of
+ *  this one is expected to take care of recency.
+ *  <p>
+ *  Each segment has an on-heap index, consisting of a hash code and log position for
+ *  each entry (12 bytes per entry). The index is fixed-size, and lookups only examine
+ *  a small number of slots; if those slots are full, the oldest is replaced (which
+ *  evicts its entry). Index entries that refer to overwritten log positions are
+ *  ignored, so there's no cleanup when the log wraps.
+ *  <p>
+ *  Entries larger than a segment are not cached (they're simply returned from the
+ *  retriever). Values may be <code>null</code>, and are cached as such; keys may not.
+ *  <p>
+ *  Instances are thread-safe, provided that the storage facade supports concurrent
+ *  access to different locations (ie, it's created by {@link
+ *  BufferFacadeFactory#createThreadsafe}) and that the serializers and retriever are
+ *  thread-safe. However, there is no synchronization between concurrent retrievals
+ *  for the same key (use a <code>ReadThroughCache</code> in front of this cache if
+ *  you need that).
+ *
+ *  @since 1.1.0
+ */
+public class OffHeapCache<K,V>
+implements Retriever<K,V>
+{
+    /**
+     *  Converts objects to and from bytes, for storage in the cache. Serialized keys
+     *  are used to verify lookups, so two keys that are equal must serialize to the
+     *  same bytes.
+     */
+    public interface Serializer<T>
+    {
+        public byte[] serialize(T obj);
+
+        public T deserialize(byte[] bytes);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Instance variables and constructors
+//----------------------------------------------------------------------------
+
+    private final static int PROBE_LIMIT = 8;
+    private final static int HEADER_SIZE = 8;       // key length, value length
+    private final static byte[] NULL_VALUE = new byte[0];
+
+    private Serializer<K> _keySerializer;
+    private Serializer<V> _valueSerializer;
+    private Retriever<K,V> _delegate;
+    private Segment[] _segments;
+    private int _segmentShift;
+
+
+    /**
+     *  @param storage          Holds the cached data. The entire facade, from index 0 to
+     *                          its capacity, is used.
+     *  @param segmentCount     The number of segments. This is rounded up to a power of
+     *                          two, and limits the number of threads that can concurrently
+     *                          update the cache.
+     *  @param maxEntries       The expected maximum number of entries in the cache, used
+     *                          to size the index (which is given 25% more slots).
+     *  @param keySerializer    Converts keys to and from bytes.
+     *  @param valueSerializer  Converts values to and from bytes.
+     *  @param delegate         Used to retrieve values that aren't in the cache.
+     */
+    public OffHeapCache(BufferFacade storage, int segmentCount, int maxEntries,
+                        Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                        Retriever<K,V> delegate)
+    {
+        if (segmentCount < 1)
+            throw new IllegalArgumentException("segment count must be > 0: " + segmentCount);
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maximum entries must be > 0: " + maxEntries);
+
+        int count = 1;
+        int shift = 0;
+        while (count < segmentCount)
+        {
+            count <<= 1;
+            shift++;
+        }
+
+        long segmentSize = storage.capacity() / count;
+        if (segmentSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("storage too small for " + count + " segments: " + storage.capacity());
+
+        int slotsPerSegment = PROBE_LIMIT;
+        long desiredSlots = ((long)maxEntries + maxEntries / 4) / count;
+        while ((slotsPerSegment < desiredSlots) && (slotsPerSegment < (1 << 30)))
+            slotsPerSegment <<= 1;
+
+        _keySerializer = keySerializer;
+        _valueSerializer = valueSerializer;
+        _delegate = delegate;
+        _segmentShift = 32 - shift;
+        _segments = new Segment[count];
+        for (int ii = 0 ; ii < count ; ii++)
+            _segments[ii] = new Segment(storage, ii * segmentSize, segmentSize, slotsPerSegment);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the value associated with the passed key, invoking the delegate
+     *  retriever if it isn't in the cache.
+     */
+    public V retrieve(K key) throws InterruptedException
+    {
+        byte[] keyBytes = _keySerializer.serialize(key);
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+
+        byte[] valueBytes = segment.get(hash, keyBytes);
+        if (valueBytes == NULL_VALUE)
+            return null;
+        if (valueBytes != null)
+            return _valueSerializer.deserialize(valueBytes);
+
+        V value = _delegate.retrieve(key);
+        valueBytes = (value == null) ? null : _valueSerializer.serialize(value);
+        segment.put(hash, keyBytes, valueBytes);
+        return value;
+    }
+
+
+    /**
+     *  Removes all entries from the cache. This only updates the index; the storage
+     *  is not touched.
+     */
+    public void clear()
+    {
+        for (Segment segment : _segments)
+            segment.clear();
+    }
+
+
+    /**
+     *  Returns the number of entries in the cache. This examines every index slot,
+     *  so should not be called frequently.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : _segments)
+            size += segment.size();
+        return size;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static int hash(byte[] bytes)
+    {
+        // FNV-1a, which distributes well in both high and low bits; we use the high
+        // bits to select a segment and the low bits to select an index slot
+        int h = 0x811c9dc5;
+        for (int ii = 0 ; ii < bytes.length ; ii++)
+        {
+            h ^= bytes[ii] & 0xFF;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+
+    private Segment segmentFor(int hash)
+    {
+        return (_segmentShift == 32)
+             ? _segments[0]
+             : _segments[hash >>> _segmentShift];
+    }
+
+
+    /**
+     *  A single segment, managed as a circular log. Log positions increase without
+     *  limit; the physical location of an entry is its position modulo the segment
+     *  size. An entry is valid as long as the write position has not advanced more
+     *  than a segment's size past its start.
+     *  <p>
+     *  Each entry consists of an 8-byte header (key length and value length, the
+     *  latter -1 for a null value), followed by the key and value bytes. An entry
+     *  never wraps around the end of the segment: if there isn't enough space left,
+     *  the write position advances to the start of the segment.
+     */
+    private static class Segment
+    {
+        private BufferFacade _storage;
+        private long _base;
+        private long _size;
+        private long _writePosition;
+
+        // index: a position of 0 indicates an unused slot, so positions are stored + 1
+        private int[] _hashes;
+        private long[] _positions;
+        private int _slotMask;
+
+        private ReentrantLock _lock = new ReentrantLock();
+
+        public Segment(BufferFacade storage, long base, long size, int slots)
+        {
+            _storage = storage;
+            _base = base;
+            _size = size;
+            _hashes = new int[slots];
+            _positions = new long[slots];
+            _slotMask = slots - 1;
+        }
+
+        /**
+         *  Returns the value bytes for the passed key, {@link #NULL_VALUE} if the
+         *  value is null, or null if there is no entry for the key.
+         */
+        public byte[] get(int hash, byte[] keyBytes)
+        {
+            _lock.lock();
+            try
+            {
+                int slot = find(hash, keyBytes);
+                if (slot < 0)
+                    return null;
+
+                long offset = offsetOf(_positions[slot] - 1);
+                int keyLen = _storage.getInt(offset);
+                int valueLen = _storage.getInt(offset + 4);
+                return (valueLen < 0)
+                     ? NULL_VALUE
+                     : _storage.getBytes(offset + HEADER_SIZE + keyLen, valueLen);
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public void put(int hash, byte[] keyBytes, byte[] valueBytes)
+        {
+            long entrySize = HEADER_SIZE + keyBytes.length + ((valueBytes == null) ? 0 : valueBytes.length);
+            if (entrySize > _size)
+                return;
+
+            _lock.lock();
+            try
+            {
+                long remaining = _size - (_writePosition % _size);
+                if (entrySize > remaining)
+                    _writePosition += remaining;
+
+                long position = _writePosition;
+                long offset = offsetOf(position);
+                _storage.putInt(offset, keyBytes.length);
+                _storage.putInt(offset + 4, (valueBytes == null) ? -1 : valueBytes.length);
+                _storage.putBytes(offset + HEADER_SIZE, keyBytes);
+                if (valueBytes != null)
+                    _storage.putBytes(offset + HEADER_SIZE + keyBytes.length, valueBytes);
+                _writePosition += entrySize;
+
+                int slot = find(hash, keyBytes);
+                if (slot < 0)
+                    slot = selectSlot(hash);
+                _hashes[slot] = hash;
+                _positions[slot] = position + 1;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public void clear()
+        {
+            _lock.lock();
+            try
+            {
+                Arrays.fill(_positions, 0L);
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public int size()
+        {
+            _lock.lock();
+            try
+            {
+                int count = 0;
+                for (int ii = 0 ; ii < _positions.length ; ii++)
+                {
+                    if (isValid(ii))
+                        count++;
+                }
+                return count;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        // all of the following methods must be called while holding the lock
+
+        private long offsetOf(long position)
+        {
+            return _base + (position % _size);
+        }
+
+        private boolean isValid(int slot)
+        {
+            long position = _positions[slot] - 1;
+            return (position >= 0) && (_writePosition - position <= _size);
+        }
+
+        /**
+         *  Returns the slot holding a valid entry for the passed key, -1 if none.
+         */
+        private int find(int hash, byte[] keyBytes)
+        {
+            for (int ii = 0 ; ii < PROBE_LIMIT ; ii++)
+            {
+                int slot = (hash + ii) & _slotMask;
+                if ((_hashes[slot] != hash) || ! isValid(slot))
+                    continue;
+
+                long offset = offsetOf(_positions[slot] - 1);
+                int keyLen = _storage.getInt(offset);
+                if ((keyLen == keyBytes.length)
+                    && Arrays.equals(keyBytes, _storage.getBytes(offset + HEADER_SIZE, keyLen)))
+                {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         *  Returns the first unused or invalid slot for the passed hash, or if all
+         *  slots are in use, the slot holding the oldest entry.
+         */
+        private int selectSlot(int hash)
+        {
+            int oldestSlot = hash & _slotMask;
+            for (int ii = 0 ; ii < PROBE_LIMIT ; ii++)
+            {
+                int slot = (hash + ii) & _slotMask;
+                if (! isValid(slot))
+                    return slot;
+                if (_positions[slot] < _positions[oldestSlot])
+                    oldestSlot = slot;
+            }
+            return oldestSlot;
+        }
+    }
+}
@@ -14,11 +14,38 @@
 
 package net.sf.kdgcommons.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import net.sf.kdgcommons.lang.NamedThreadFactory;
+
 
 /**
  *  A size-limited LRU cache that uses a retriever function to load values. Instances are
@@ -27,7 +54,36 @@ import java.util.concurrent.locks.ReentrantLock;
  *  <p>
  *  Note that the cache itself implements the {@link #Retriever} interface; caches may be
  *  stacked.
- *  
+ *  <p>
+ *  By default, the cache is a single access-ordered map, and every retrieval (hit or miss)
+ *  synchronizes on it. For heavily concurrent use, create the cache with a concurrency level
+ *  greater than 1 (via {@link Builder}): the cache is then split into independently locked
+ *  segments, and hits do not acquire any lock. Instead, each hit is recorded in a buffer,
+ *  and those buffers are used to update the segment's LRU order the next time that the
+ *  segment is locked. As a result, eviction is only approximately LRU, and the cache may
+ *  hold slightly more than <code>size</code> entries (because each segment is sized to hold
+ *  its share, rounded up). In this mode, keys may not be <code>null</code>.
+ *  <p>
+ *  Entries may also be given a limited lifetime, measured from when they were loaded
+ *  ("expire after write") and/or from when they were last retrieved ("expire after
+ *  access"). Expired entries are not actively removed; they're discarded when next
+ *  retrieved (and reloaded), or when evicted by the LRU policy. To avoid making the
+ *  caller that finds an expired entry wait for a reload, you can also configure
+ *  "refresh after write": the first retrieval after this interval returns the existing
+ *  value, and starts a background reload (on the cache's executor) that replaces it.
+ *  If the reload throws, the existing value remains in the cache, and the next
+ *  retrieval will try again.
+ *  <p>
+ *  If cached values vary widely in size, limiting the number of entries is a poor way to
+ *  control memory use. Instead, you can provide a {@link Weigher} and a maximum total
+ *  weight: the cache will evict entries in LRU order until the total weight of its
+ *  entries is within that limit (the count limit still applies as well).
+ *  <p>
+ *  If built with {@link Builder#recordStats}, the cache maintains counters of hits,
+ *  misses, loads, and so on, which may be retrieved as a {@link Stats} snapshot or
+ *  exposed via JMX. The counters are striped by thread, so recording them adds little
+ *  overhead, even when the cache is heavily contended.
+ *
  *  @since 1.0.15
  */
 public class ReadThroughCache<K,V>
@@ -46,6 +102,209 @@ public class ReadThroughCache<K,V>
     }
 
 
+    /**
+     *  An optional extension to {@link Retriever}, for retrievers that can retrieve
+     *  multiple values more efficiently than one at a time (for example, with a single
+     *  database query). If the cache's retriever implements this interface, it will be
+     *  used by {@link ReadThroughCache#retrieveAll} to retrieve all keys that are not
+     *  already in the cache.
+     *
+     *  @since 1.1.0
+     */
+    public interface BatchRetriever<KK,VV>
+    extends Retriever<KK,VV>
+    {
+        /**
+         *  Retrieves the values corresponding to the passed keys. Keys that are missing
+         *  from the returned map are treated as having a <code>null</code> value (and
+         *  that value will be cached).
+         */
+        Map<KK,VV> retrieveAll(Collection<KK> keys) throws InterruptedException;
+    }
+
+
+    /**
+     *  Computes the weight of a cache entry, for caches that are limited by total weight
+     *  rather than (or as well as) entry count. Weight is in arbitrary units (typically
+     *  bytes), must not be negative, and is computed once when the entry is loaded.
+     *
+     *  @since 1.1.0
+     */
+    public interface Weigher<KK,VV>
+    {
+        int weigh(KK key, VV value);
+    }
+
+
+    /**
+     *  The management interface exposed by {@link #registerMBean}. Each call reads the
+     *  cache's current statistics; see {@link Stats} for descriptions.
+     *
+     *  @since 1.1.0
+     */
+    public interface StatsMBean
+    {
+        public int getSize();
+        public long getWeight();
+        public long getHitCount();
+        public long getMissCount();
+        public double getHitRate();
+        public long getLoadSuccessCount();
+        public long getLoadFailureCount();
+        public long getTotalLoadTime();
+        public double getAverageLoadTime();
+        public long getEvictionCount();
+        public int getBlockedThreadCount();
+    }
+
+
+    /**
+     *  An immutable snapshot of the cache's statistics, returned by {@link #stats}.
+     *  Counters are read individually, so a snapshot taken while the cache is in use
+     *  may not be entirely consistent (for example, the miss count may be updated
+     *  before the corresponding load count).
+     *
+     *  @since 1.1.0
+     */
+    public static class Stats
+    implements StatsMBean
+    {
+        private int size;
+        private long weight;
+        private long hitCount;
+        private long missCount;
+        private long loadSuccessCount;
+        private long loadFailureCount;
+        private long totalLoadTime;
+        private long evictionCount;
+        private int blockedThreadCount;
+
+        private Stats(int size, long weight, long hitCount, long missCount,
+                      long loadSuccessCount, long loadFailureCount, long totalLoadTime,
+                      long evictionCount, int blockedThreadCount)
+        {
+            this.size = size;
+            this.weight = weight;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.loadSuccessCount = loadSuccessCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadTime = totalLoadTime;
+            this.evictionCount = evictionCount;
+            this.blockedThreadCount = blockedThreadCount;
+        }
+
+        /**
+         *  Returns the number of entries in the cache.
+         */
+        public int getSize()
+        {
+            return size;
+        }
+
+        /**
+         *  Returns the total weight of entries in the cache.
+         */
+        public long getWeight()
+        {
+            return weight;
+        }
+
+        /**
+         *  Returns the number of retrievals that were satisfied from the cache.
+         */
+        public long getHitCount()
+        {
+            return hitCount;
+        }
+
+        /**
+         *  Returns the number of retrievals that were not satisfied from the cache
+         *  (including those that waited for another thread's load).
+         */
+        public long getMissCount()
+        {
+            return missCount;
+        }
+
+        /**
+         *  Returns the ratio of hits to total retrievals; 1.0 if there have not been
+         *  any retrievals.
+         */
+        public double getHitRate()
+        {
+            long total = hitCount + missCount;
+            return (total == 0) ? 1.0 : (double)hitCount / total;
+        }
+
+        /**
+         *  Returns the number of times that the retriever returned a value (including
+         *  background refreshes).
+         */
+        public long getLoadSuccessCount()
+        {
+            return loadSuccessCount;
+        }
+
+        /**
+         *  Returns the number of times that the retriever threw.
+         */
+        public long getLoadFailureCount()
+        {
+            return loadFailureCount;
+        }
+
+        /**
+         *  Returns the total time, in nanoseconds, spent in the retriever (successful
+         *  or not).
+         */
+        public long getTotalLoadTime()
+        {
+            return totalLoadTime;
+        }
+
+        /**
+         *  Returns the average time, in nanoseconds, for a call to the retriever; 0 if
+         *  there have not been any calls.
+         */
+        public double getAverageLoadTime()
+        {
+            long total = loadSuccessCount + loadFailureCount;
+            return (total == 0) ? 0.0 : (double)totalLoadTime / total;
+        }
+
+        /**
+         *  Returns the number of entries that have been evicted to keep the cache
+         *  within its size or weight limit. This count is maintained even if the
+         *  cache is not recording other statistics.
+         */
+        public long getEvictionCount()
+        {
+            return evictionCount;
+        }
+
+        /**
+         *  Returns the number of threads that, at the time of the snapshot, were
+         *  waiting for another thread to retrieve a value (only applies to {@link
+         *  Synchronization#BY_KEY}).
+         */
+        public int getBlockedThreadCount()
+        {
+            return blockedThreadCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Stats[size=" + size + ", weight=" + weight
+                 + ", hits=" + hitCount + ", misses=" + missCount
+                 + ", loadSuccesses=" + loadSuccessCount + ", loadFailures=" + loadFailureCount
+                 + ", totalLoadTime=" + totalLoadTime + ", evictions=" + evictionCount
+                 + ", blockedThreads=" + blockedThreadCount + "]";
+        }
+    }
+
+
     /**
      *  Options for controlling concurrent retrieval.
      */
@@ -58,9 +317,11 @@ public class ReadThroughCache<K,V>
         NONE,
 
         /**
-         *  Per-key synchronization: each retrieval request establishes a lock that is cleared
-         *  when the retrieval completes. Subsequent retrieves for the same key will block until
-         *  the first returns. This is the default behavior.
+         *  Per-key synchronization: the first request for a key starts a retrieval, and
+         *  subsequent requests for the same key wait for it to complete. All waiting threads
+         *  receive the retrieved value or, if the retriever throws, the same exception (the
+         *  only exception is if the retrieving thread is interrupted, in which case one of
+         *  the waiting threads will start a new retrieval). This is the default behavior.
          */
         BY_KEY,
 
@@ -73,6 +334,158 @@ public class ReadThroughCache<K,V>
     }
 
 
+    /**
+     *  Used to construct a cache with non-default options. Each of the configuration
+     *  methods returns the builder, so that calls may be chained:
+     *  <pre>
+     *      ReadThroughCache&lt;String,Foo&gt; cache
+     *          = new ReadThroughCache.Builder&lt;String,Foo&gt;(1000, retriever)
+     *            .concurrencyLevel(16)
+     *            .build();
+     *  </pre>
+     *  A builder may be used to construct multiple caches; they will not share any state.
+     */
+    public static class Builder<K,V>
+    {
+        private int size;
+        private Retriever<K,V> retriever;
+        private Synchronization synchronization = Synchronization.BY_KEY;
+        private int concurrencyLevel = 1;
+        private Executor executor;
+        private long expireAfterWriteNanos;
+        private long expireAfterAccessNanos;
+        private long refreshAfterWriteNanos;
+        private Weigher<? super K,? super V> weigher;
+        private long maxWeight = Long.MAX_VALUE;
+        private boolean recordStats;
+
+        /**
+         *  @param size         Maximum number of items in the cache.
+         *  @param retriever    The function to retrieve items.
+         */
+        public Builder(int size, Retriever<K,V> retriever)
+        {
+            this.size = size;
+            this.retriever = retriever;
+        }
+
+        /**
+         *  Sets the synchronization strategy; default is {@link Synchronization#BY_KEY}.
+         */
+        public Builder<K,V> synchronization(Synchronization value)
+        {
+            this.synchronization = value;
+            return this;
+        }
+
+        /**
+         *  Sets the number of threads that are expected to access the cache concurrently;
+         *  default is 1. Any value greater than 1 produces a segmented cache, with the
+         *  number of segments equal to this value rounded up to a power of 2 (but no more
+         *  than the size of the cache).
+         */
+        public Builder<K,V> concurrencyLevel(int value)
+        {
+            if (value < 1)
+                throw new IllegalArgumentException("concurrency level must be > 0: " + value);
+
+            this.concurrencyLevel = value;
+            return this;
+        }
+
+        /**
+         *  Sets the executor used for asynchronous operations (such as {@link
+         *  ReadThroughCache#retrieveAsync}). By default, all caches share a pool
+         *  of daemon threads that grows as needed; supply your own executor if you
+         *  want to limit the number of concurrent retrievals.
+         */
+        public Builder<K,V> executor(Executor value)
+        {
+            this.executor = value;
+            return this;
+        }
+
+        /**
+         *  Sets the maximum time that an entry remains valid after it is loaded. By
+         *  default, entries do not expire.
+         */
+        public Builder<K,V> expireAfterWrite(long duration, TimeUnit unit)
+        {
+            this.expireAfterWriteNanos = toNanos("expiration", duration, unit);
+            return this;
+        }
+
+        /**
+         *  Sets the maximum time that an entry remains valid after it is last retrieved.
+         *  By default, entries do not expire.
+         */
+        public Builder<K,V> expireAfterAccess(long duration, TimeUnit unit)
+        {
+            this.expireAfterAccessNanos = toNanos("expiration", duration, unit);
+            return this;
+        }
+
+        /**
+         *  Sets the time after which an entry is reloaded in the background (while
+         *  continuing to return the existing value). To be useful alongside {@link
+         *  #expireAfterWrite}, this should be shorter than the expiration time. By
+         *  default, entries are not refreshed.
+         */
+        public Builder<K,V> refreshAfterWrite(long duration, TimeUnit unit)
+        {
+            this.refreshAfterWriteNanos = toNanos("refresh", duration, unit);
+            return this;
+        }
+
+        /**
+         *  Limits the cache by total weight, as computed by the passed weigher. The
+         *  count limit passed to the constructor continues to apply; if you only
+         *  care about weight, make it large enough to never be reached (it is also
+         *  used to size the underlying hash table, so don't make it too large).
+         *  <p>
+         *  In a segmented cache, each segment is given an equal share of the weight,
+         *  so a single entry cannot be larger than <code>maxWeight</code> divided
+         *  by the number of segments (if it is, it will be evicted as soon as it's
+         *  added, and therefore reloaded on every retrieval).
+         */
+        public Builder<K,V> weigher(Weigher<? super K,? super V> value, long maxWeight)
+        {
+            if (maxWeight <= 0)
+                throw new IllegalArgumentException("maximum weight must be > 0: " + maxWeight);
+
+            this.weigher = value;
+            this.maxWeight = maxWeight;
+            return this;
+        }
+
+        /**
+         *  Enables recording of statistics (other than eviction count, which is always
+         *  recorded). By default, statistics are not recorded.
+         */
+        public Builder<K,V> recordStats()
+        {
+            this.recordStats = true;
+            return this;
+        }
+
+        /**
+         *  Creates a new cache using the current configuration.
+         */
+        public ReadThroughCache<K,V> build()
+        {
+            return new ReadThroughCache<K,V>(this);
+        }
+
+        private static long toNanos(String name, long duration, TimeUnit unit)
+        {
+            if (duration <= 0)
+                throw new IllegalArgumentException(name + " time must be > 0: " + duration);
+
+            return unit.toNanos(duration);
+        }
+    }
+
+
 //----------------------------------------------------------------------------
 //  Public methods
 //----------------------------------------------------------------------------
@@ -85,14 +498,111 @@ public class ReadThroughCache<K,V>
 
 
     /**
-     *  Returns the count of mappings currently in the cache.
+     *  Retrieves multiple values, returning a map in the iteration order of the passed
+     *  keys (duplicate keys are retrieved once). Values that are not in the cache are
+     *  retrieved in a single call if the cache's retriever is a {@link BatchRetriever},
+     *  otherwise one at a time. Either way, the cache's synchronization option applies:
+     *  with {@link Synchronization#BY_KEY}, keys that another thread is already loading
+     *  are not loaded again, and other threads will wait for the keys loaded by this
+     *  call.
+     *  <p>
+     *  If the retriever throws, this method throws, even if some keys were retrieved.
+     *
+     *  @since 1.1.0
+     */
+    public Map<K,V> retrieveAll(Collection<? extends K> keys) throws InterruptedException
+    {
+        return retriever.retrieveAll(keys);
+    }
+
+
+    /**
+     *  Retrieves a value asynchronously. If the value is already cached, the returned
+     *  <code>Future</code> is already complete. Otherwise the retrieval runs on the
+     *  cache's executor, and the returned <code>Future</code> completes when it does;
+     *  an exception thrown by the retriever is reported by the future's <code>get()
+     *  </code> as an <code>ExecutionException</code>.
+     *  <p>
+     *  This allows a caller to start retrieval for many keys, then wait for all of
+     *  them. With {@link Synchronization#BY_KEY}, asynchronous and synchronous calls
+     *  for the same key share a single in-flight retrieval; because other callers
+     *  depend on it, the returned future can't be cancelled.
+     *
+     *  @since 1.1.0
+     */
+    public Future<V> retrieveAsync(K key)
+    {
+        return retriever.retrieveAsync(key);
+    }
+
+
+    /**
+     *  Returns the count of mappings currently in the cache. This includes expired
+     *  entries that have not yet been discarded.
      */
     public int size()
     {
-        synchronized (cacheLock)
+        return store.size();
+    }
+
+
+    /**
+     *  Returns the total weight of the mappings currently in the cache. If the cache
+     *  was not configured with a {@link Weigher}, each entry has weight 1, so this is
+     *  equal to {@link #size}.
+     *
+     *  @since 1.1.0
+     */
+    public long weight()
+    {
+        return store.weight();
+    }
+
+
+    /**
+     *  Returns a snapshot of the cache's statistics. If the cache was not built with
+     *  {@link Builder#recordStats}, all values other than size, weight, and eviction
+     *  count will be zero.
+     *
+     *  @since 1.1.0
+     */
+    public Stats stats()
+    {
+        if (stats == null)
+            return new Stats(store.size(), store.weight(), 0, 0, 0, 0, 0, store.evictionCount(), 0);
+
+        return new Stats(store.size(), store.weight(),
+                         stats.hits.sum(), stats.misses.sum(),
+                         stats.loadSuccesses.sum(), stats.loadFailures.sum(), stats.loadTime.sum(),
+                         store.evictionCount(), stats.blockedThreads.get());
+    }
+
+
+    /**
+     *  Registers an MBean that exposes this cache's statistics (as {@link StatsMBean}),
+     *  using the passed server and name. To remove the bean, call the server's
+     *  <code>unregisterMBean()</code> method.
+     *
+     *  @since 1.1.0
+     */
+    public ObjectInstance registerMBean(MBeanServer server, ObjectName name)
+    throws JMException
+    {
+        StatsMBean bean = new StatsMBean()
         {
-            return cache.size();
-        }
+            public int getSize()                { return stats().getSize(); }
+            public long getWeight()             { return stats().getWeight(); }
+            public long getHitCount()           { return stats().getHitCount(); }
+            public long getMissCount()          { return stats().getMissCount(); }
+            public double getHitRate()          { return stats().getHitRate(); }
+            public long getLoadSuccessCount()   { return stats().getLoadSuccessCount(); }
+            public long getLoadFailureCount()   { return stats().getLoadFailureCount(); }
+            public long getTotalLoadTime()      { return stats().getTotalLoadTime(); }
+            public double getAverageLoadTime()  { return stats().getAverageLoadTime(); }
+            public long getEvictionCount()      { return stats().getEvictionCount(); }
+            public int getBlockedThreadCount()  { return stats().getBlockedThreadCount(); }
+        };
+        return server.registerMBean(new StandardMBean(bean, StatsMBean.class), name);
     }
 
 
@@ -101,19 +611,24 @@ public class ReadThroughCache<K,V>
      */
     public void clear()
     {
-        synchronized (cacheLock)
-        {
-            cache.clear();
-        }
+        store.clear();
     }
 
 //----------------------------------------------------------------------------
 //  Constructors and instance variables
 //----------------------------------------------------------------------------
 
-    private Retriever<K,V> retriever;
-    private Object cacheLock = new Object();
-    private Map<K,V> cache = null;
+    private final static Object NULL_KEY = new Object();
+
+    private AbstractDelegatingRetriever retriever;
+    private Store<K,V> store;
+    private Executor executor;
+    private long expireAfterWriteNanos;
+    private long expireAfterAccessNanos;
+    private long refreshAfterWriteNanos;
+    private boolean isTimed;
+    private Weigher<? super K,? super V> weigher;
+    private StatsCounter stats;
 
     /**
      *  Base constructor.
@@ -125,9 +640,29 @@ public class ReadThroughCache<K,V>
      *  @param retriever    The function to retrieve items.
      *  @param syncOpt      The synchronization strategy.
      */
-    public ReadThroughCache(final int size, Retriever<K,V> retriever, Synchronization syncOpt)
+    public ReadThroughCache(int size, Retriever<K,V> retriever, Synchronization syncOpt)
+    {
+        this(new Builder<K,V>(size, retriever).synchronization(syncOpt));
+    }
+
+
+    /**
+     *  Convenience constructor: creates an instance with specified size and retriever,
+     *  using per-key synchronization.
+     */
+    public ReadThroughCache(int size, Retriever<K,V> retriever)
+    {
+        this(size, retriever, Synchronization.BY_KEY);
+    }
+
+
+    /**
+     *  Constructs an instance from a {@link Builder}.
+     */
+    private ReadThroughCache(Builder<K,V> builder)
     {
-        switch (syncOpt)
+        Retriever<K,V> retriever = builder.retriever;
+        switch (builder.synchronization)
         {
             case NONE :
                 this.retriever = new UnsynchronizedRetriever(retriever);
@@ -136,32 +671,31 @@ public class ReadThroughCache<K,V>
                 this.retriever = new ByKeyRetriever(retriever);
                 break;
             case SINGLE_THREADED :
-//                this.retriever = new UnsynchronizedRetriever(retriever);
                 this.retriever = new SingleThreadedRetriever(retriever);
                 break;
             default :
-                throw new IllegalArgumentException("invalid synchronization option: " + syncOpt);
+                throw new IllegalArgumentException("invalid synchronization option: " + builder.synchronization);
         }
 
-        cache = new LinkedHashMap<K,V>(size, 0.75f, true)
-        {
-             private static final long serialVersionUID = 1L;
+        executor = (builder.executor != null)
+                 ? builder.executor
+                 : DefaultExecutorHolder.EXECUTOR;
 
-             @Override
-             protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
-                return size() > size;
-             }
-        };
-    }
+        store = (builder.concurrencyLevel > 1)
+              ? new SegmentedStore<K,V>(builder.size, builder.maxWeight, builder.concurrencyLevel)
+              : new SynchronizedStore<K,V>(builder.size, builder.maxWeight);
 
+        weigher = builder.weigher;
 
-    /**
-     *  Convenience constructor: creates an instance with specified size and retriever,
-     *  using per-key synchronization.
-     */
-    public ReadThroughCache(int size, Retriever<K,V> retriever)
-    {
-        this(size, retriever, Synchronization.BY_KEY);
+        if (builder.recordStats)
+            stats = new StatsCounter();
+
+        expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+        isTimed = (expireAfterWriteNanos > 0)
+               || (expireAfterAccessNanos > 0)
+               || (refreshAfterWriteNanos > 0);
     }
 
 
@@ -169,60 +703,290 @@ public class ReadThroughCache<K,V>
 //  Internals
 //----------------------------------------------------------------------------
 
-    private abstract class AbstractDelegatingRetriever
-    implements Retriever<K,V>
+    /**
+     *  Creates a new entry, computing its weight.
+     */
+    private CacheEntry<K,V> newEntry(K key, V value)
     {
-        protected Retriever<K,V> delegate;
-
-        protected AbstractDelegatingRetriever(Retriever<K,V> delegate)
-        {
-            this.delegate = delegate;
-        }
-
-        public V retrieve(K key) throws InterruptedException
+        int weight = 1;
+        if (weigher != null)
         {
-            synchronized (cacheLock)
-            {
-                if (cache.containsKey(key))
-                    return cache.get(key);
-            }
-            return retrieve0(key);
+            weight = weigher.weigh(key, value);
+            if (weight < 0)
+                throw new IllegalStateException("negative weight (" + weight + ") for key: " + key);
         }
-
-        public abstract V retrieve0(K key) throws InterruptedException;
+        return new CacheEntry<K,V>(key, value, weight);
     }
 
 
-    private class UnsynchronizedRetriever
-    extends AbstractDelegatingRetriever
+    /**
+     *  Retrieves an entry from the store, applying expiration and refresh rules.
+     *  Returns <code>null</code> if there is no entry or it has expired.
+     */
+    private CacheEntry<K,V> lookup(K key)
     {
-        public UnsynchronizedRetriever(Retriever<K,V> delegate)
+        CacheEntry<K,V> entry = store.get(key);
+        if ((entry == null) || ! isTimed)
+            return entry;
+
+        long now = System.nanoTime();
+        if (((expireAfterWriteNanos > 0) && (now - entry.writeTime >= expireAfterWriteNanos))
+            || ((expireAfterAccessNanos > 0) && (now - entry.accessTime >= expireAfterAccessNanos)))
         {
-            super(delegate);
+            store.remove(entry);
+            return null;
         }
 
-        @Override
-        public V retrieve0(K key) throws InterruptedException
-        {
-            V value = delegate.retrieve(key);
+        if (expireAfterAccessNanos > 0)
+            entry.accessTime = now;
 
-            synchronized (cacheLock)
-            {
-                if (cache.containsKey(key))
-                    return cache.get(key);
+        if ((refreshAfterWriteNanos > 0) && (now - entry.writeTime >= refreshAfterWriteNanos))
+            refresh(entry);
 
-                cache.put(key, value);
+        return entry;
+    }
+
+
+    /**
+     *  Starts a background reload of the passed entry, unless one is already running.
+     */
+    private void refresh(final CacheEntry<K,V> entry)
+    {
+        if (! entry.startRefresh())
+            return;
+
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        V value = retriever.reload(entry.key);
+                        store.replace(entry, newEntry(entry.key, value));
+                    }
+                    catch (Throwable ignored)
+                    {
+                        // we'll keep the existing value, and try again on next access
+                        entry.endRefresh();
+                    }
+                }
+            });
+        }
+        catch (RuntimeException ignored)
+        {
+            // executor rejected task; same response as failed reload
+            entry.endRefresh();
+        }
+    }
+
+
+    private abstract class AbstractDelegatingRetriever
+    implements Retriever<K,V>
+    {
+        protected Retriever<K,V> delegate;
+        protected BatchRetriever<K,V> batchDelegate;
+
+        protected AbstractDelegatingRetriever(Retriever<K,V> delegate)
+        {
+            this.delegate = delegate;
+            if (delegate instanceof BatchRetriever)
+                this.batchDelegate = (BatchRetriever<K,V>)delegate;
+        }
+
+        public V retrieve(K key) throws InterruptedException
+        {
+            CacheEntry<K,V> entry = lookup(key);
+            recordLookup(entry);
+            if (entry != null)
+                return entry.value;
+
+            return retrieve0(key);
+        }
+
+        public abstract V retrieve0(K key) throws InterruptedException;
+
+        /**
+         *  Invokes the delegate to refresh an existing entry; does not touch the store.
+         */
+        public V reload(K key) throws InterruptedException
+        {
+            return load(key);
+        }
+
+        public Future<V> retrieveAsync(K key)
+        {
+            CacheEntry<K,V> entry = lookup(key);
+            recordLookup(entry);
+            if (entry != null)
+                return new CompletedFuture<V>(entry.value);
+
+            return retrieveAsync0(key);
+        }
+
+        /**
+         *  Invokes the delegate, recording statistics if enabled. All calls to the
+         *  delegate should go through this method.
+         */
+        protected V load(K key) throws InterruptedException
+        {
+            if (stats == null)
+                return delegate.retrieve(key);
+
+            long start = System.nanoTime();
+            boolean success = false;
+            try
+            {
+                V value = delegate.retrieve(key);
+                success = true;
                 return value;
             }
+            finally
+            {
+                stats.recordLoad(success, System.nanoTime() - start);
+            }
+        }
+
+        /**
+         *  Invokes the batch delegate, recording statistics if enabled. The entire
+         *  batch is recorded as a single load.
+         */
+        protected Map<K,V> loadAll(Collection<K> keys) throws InterruptedException
+        {
+            if (stats == null)
+                return batchDelegate.retrieveAll(keys);
+
+            long start = System.nanoTime();
+            boolean success = false;
+            try
+            {
+                Map<K,V> values = batchDelegate.retrieveAll(keys);
+                success = true;
+                return values;
+            }
+            finally
+            {
+                stats.recordLoad(success, System.nanoTime() - start);
+            }
+        }
+
+        public Map<K,V> retrieveAll(Collection<? extends K> keys) throws InterruptedException
+        {
+            Map<K,V> found = new HashMap<K,V>();
+            Set<K> misses = new LinkedHashSet<K>();
+            for (K key : keys)
+            {
+                if (found.containsKey(key) || misses.contains(key))
+                    continue;
+
+                CacheEntry<K,V> entry = lookup(key);
+                recordLookup(entry);
+                if (entry != null)
+                    found.put(key, entry.value);
+                else
+                    misses.add(key);
+            }
+
+            if (! misses.isEmpty())
+                retrieveAll0(misses, found);
+
+            // return values in the order that the keys were provided
+            Map<K,V> result = new LinkedHashMap<K,V>();
+            for (K key : keys)
+                result.put(key, found.get(key));
+            return result;
+        }
+
+        /**
+         *  Retrieves all of the passed keys, which have already been recorded as cache
+         *  misses, adding their values to the passed map. The default implementation
+         *  uses the batch delegate if it exists, otherwise retrieves keys one at a time.
+         */
+        protected void retrieveAll0(Collection<K> keys, Map<K,V> found) throws InterruptedException
+        {
+            if (batchDelegate == null)
+            {
+                for (K key : keys)
+                    found.put(key, retrieve0(key));
+                return;
+            }
+
+            Map<K,V> values = loadAll(keys);
+            for (K key : keys)
+            {
+                V value = values.get(key);
+                found.put(key, store.putIfAbsent(newEntry(key, value)).value);
+            }
+        }
+
+        private void recordLookup(CacheEntry<K,V> entry)
+        {
+            if (stats == null)
+                return;
+
+            if (entry != null)
+                stats.hits.increment();
+            else
+                stats.misses.increment();
+        }
+
+        /**
+         *  Default asynchronous retrieval: runs the synchronous retrieval on the executor.
+         */
+        protected Future<V> retrieveAsync0(final K key)
+        {
+            FutureTask<V> task = new FutureTask<V>(new Callable<V>()
+            {
+                public V call() throws Exception
+                {
+                    // the miss has already been recorded, so we don't call retrieve()
+                    CacheEntry<K,V> entry = lookup(key);
+                    return (entry != null) ? entry.value : retrieve0(key);
+                }
+            });
+            executor.execute(task);
+            return task;
+        }
+    }
+
+
+    private class UnsynchronizedRetriever
+    extends AbstractDelegatingRetriever
+    {
+        public UnsynchronizedRetriever(Retriever<K,V> delegate)
+        {
+            super(delegate);
+        }
+
+        @Override
+        public V retrieve0(K key) throws InterruptedException
+        {
+            V value = load(key);
+            return store.putIfAbsent(newEntry(key, value)).value;
         }
     }
 
 
+    /**
+     *  Implements per-key synchronization: the first thread to miss on a key creates
+     *  a {@link LoadTask} and runs it; other threads that miss on the same key wait
+     *  for that task to complete, and get its result (value or exception).
+     *  <p>
+     *  For bulk retrieval, the calling thread claims all of the keys that aren't
+     *  already being loaded, and loads them in a single batch. It then waits for the
+     *  keys that were claimed by other threads.
+     */
     private class ByKeyRetriever
     extends AbstractDelegatingRetriever
     {
-        private Object internalLock = new Object();
-        private Map<K,ReentrantLock> keyLocks = new HashMap<K,ReentrantLock>();
+        /**
+         *  The number of times that a waiting thread will retrieve a key whose loader
+         *  was interrupted, before giving up and throwing the loader's exception.
+         */
+        private final static int MAX_LOAD_ATTEMPTS = 3;
+
+        private ConcurrentHashMap<Object,LoadTask> inFlight = new ConcurrentHashMap<Object,LoadTask>();
 
         public ByKeyRetriever(Retriever<K,V> delegate)
         {
@@ -232,68 +996,285 @@ public class ReadThroughCache<K,V>
         @Override
         public V retrieve0(K key) throws InterruptedException
         {
-            ReentrantLock keyLock = getOrCreateLock(key);
-            if (keyLock == null)
-            {
-                return doRetrieve(key);
-            }
-            else
+            for (int attempt = 1 ; ; attempt++)
             {
-                keyLock.lockInterruptibly();
-                keyLock.unlock();
-                synchronized (cacheLock)
+                LoadTask task = inFlight.get(maskNull(key));
+                boolean isOwner = false;
+                if (task == null)
                 {
-                    V value = cache.get(key);
-                    if ((value != null) || cache.containsKey(key))
-                        return value;
+                    LoadTask newTask = new LoadTask(key);
+                    task = inFlight.putIfAbsent(newTask.mapKey, newTask);
+                    if (task == null)
+                    {
+                        task = newTask;
+                        isOwner = true;
+                        task.run();
+                    }
+                }
+
+                try
+                {
+                    return await(task, isOwner);
                 }
+                catch (LoaderInterruptedException ex)
+                {
+                    if (attempt >= MAX_LOAD_ATTEMPTS)
+                        throw ex.getCause();
 
-                // if we fall through to here, it means that the blocking process has
-                // thrown an exception and it's up to us to retrieve the data; we'll
-                // assume that *someone* will retrieve the value before we blow stack
-                return retrieve0(key);
+                    // the task releases waiters before it removes itself from
+                    // the map, so make sure that we don't find it again
+                    inFlight.remove(task.mapKey, task);
+                }
             }
         }
 
-        private ReentrantLock getOrCreateLock(K key) throws InterruptedException
+        @Override
+        protected void retrieveAll0(Collection<K> keys, Map<K,V> found) throws InterruptedException
         {
-            synchronized (internalLock)
+            List<LoadTask> claimed = new ArrayList<LoadTask>();
+            List<LoadTask> waiting = new ArrayList<LoadTask>();
+            for (K key : keys)
+            {
+                LoadTask task = inFlight.get(maskNull(key));
+                if (task == null)
+                {
+                    LoadTask newTask = new LoadTask(key);
+                    task = inFlight.putIfAbsent(newTask.mapKey, newTask);
+                    if (task == null)
+                    {
+                        claimed.add(newTask);
+                        continue;
+                    }
+                }
+                waiting.add(task);
+            }
+
+            if (batchDelegate == null)
             {
-                ReentrantLock lock = keyLocks.get(key);
-                if (lock != null)
-                    return lock;
+                for (LoadTask task : claimed)
+                    task.run();
+            }
+            else if (! claimed.isEmpty())
+            {
+                loadClaimed(claimed);
+            }
 
-                lock = new ReentrantLock();
-                lock.lockInterruptibly();
-                keyLocks.put(key, lock);
-                return null;
+            for (LoadTask task : claimed)
+                found.put(task.key, awaitOwned(task));
+            for (LoadTask task : waiting)
+            {
+                try
+                {
+                    found.put(task.key, await(task, false));
+                }
+                catch (LoaderInterruptedException ex)
+                {
+                    inFlight.remove(task.mapKey, task);
+                    found.put(task.key, retrieve0(task.key));
+                }
             }
         }
 
-        private void removeLock(K key)
+        @Override
+        protected Future<V> retrieveAsync0(K key)
         {
-            ReentrantLock lock = null;
-            synchronized (internalLock)
+            LoadTask task = inFlight.get(maskNull(key));
+            if (task != null)
+                return task;
+
+            LoadTask newTask = new LoadTask(key);
+            task = inFlight.putIfAbsent(newTask.mapKey, newTask);
+            if (task != null)
+                return task;
+
+            try
             {
-                lock = keyLocks.remove(key);
+                executor.execute(newTask);
             }
-            lock.unlock();
+            catch (RuntimeException ex)
+            {
+                // we've claimed the key, so must complete the task or it will
+                // block every future retrieval
+                newTask.fail(ex);
+                throw ex;
+            }
+            return newTask;
         }
 
-        private V doRetrieve(K key) throws InterruptedException
+        /**
+         *  Loads the keys for all of the passed tasks in a single batch, and completes
+         *  those tasks. If the batch fails, all tasks are completed with its exception.
+         */
+        private void loadClaimed(List<LoadTask> claimed)
+        throws InterruptedException
         {
+            // as with a single load, another thread may have completed a retrieval
+            // between our cache miss and claiming the key
+            List<K> keys = new ArrayList<K>(claimed.size());
+            for (LoadTask task : claimed)
+            {
+                CacheEntry<K,V> entry = lookup(task.key);
+                if (entry != null)
+                    task.complete(entry.value);
+                else
+                    keys.add(task.key);
+            }
+
+            if (keys.isEmpty())
+                return;
+
             try
             {
-                V value = delegate.retrieve(key);
-                synchronized (cacheLock)
+                Map<K,V> values = loadAll(keys);
+                for (LoadTask task : claimed)
                 {
-                    cache.put(key, value);
+                    if (task.isDone())
+                        continue;
+
+                    V value = values.get(task.key);
+                    store.put(newEntry(task.key, value));
+                    task.complete(value);
                 }
-                return value;
+            }
+            catch (InterruptedException ex)
+            {
+                failAll(claimed, ex);
+            }
+            catch (RuntimeException ex)
+            {
+                failAll(claimed, ex);
+            }
+            catch (Error ex)
+            {
+                failAll(claimed, ex);
+            }
+        }
+
+        private void failAll(List<LoadTask> tasks, Throwable ex)
+        {
+            for (LoadTask task : tasks)
+                task.fail(ex);
+        }
+
+        /**
+         *  Waits for a task to complete and returns its value, or throws its exception.
+         *  If the task failed because the loading thread was interrupted, that doesn't
+         *  mean that the load would fail for a waiting thread, so this throws {@link
+         *  LoaderInterruptedException}; the caller may try again (and probably become
+         *  the loader), up to {@link #MAX_LOAD_ATTEMPTS} times.
+         */
+        private V await(LoadTask task, boolean isOwner)
+        throws InterruptedException, LoaderInterruptedException
+        {
+            Throwable failure = null;
+            boolean isBlocked = ! isOwner && ! task.isDone() && (stats != null);
+            if (isBlocked)
+                stats.blockedThreads.incrementAndGet();
+            try
+            {
+                return task.get();
+            }
+            catch (ExecutionException ex)
+            {
+                failure = ex.getCause();
             }
             finally
             {
-                removeLock(key);
+                if (isBlocked)
+                    stats.blockedThreads.decrementAndGet();
+            }
+
+            if ((failure instanceof InterruptedException) && ! isOwner)
+                throw new LoaderInterruptedException((InterruptedException)failure);
+
+            if (failure instanceof InterruptedException)
+                throw (InterruptedException)failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException)failure;
+            if (failure instanceof Error)
+                throw (Error)failure;
+            throw new RuntimeException("unexpected exception from retriever", failure);
+        }
+
+
+        /**
+         *  Waits for a task that was claimed by the calling thread.
+         */
+        private V awaitOwned(LoadTask task)
+        throws InterruptedException
+        {
+            try
+            {
+                return await(task, true);
+            }
+            catch (LoaderInterruptedException ex)
+            {
+                // only thrown to waiters, never to the loader
+                throw ex.getCause();
+            }
+        }
+
+
+        /**
+         *  A single in-flight retrieval. The value is added to the cache before the
+         *  task completes, and the task removes itself from the in-flight map after
+         *  it completes, so that there's no point at which another thread could miss
+         *  both and start a second retrieval.
+         *  <p>
+         *  Tasks that are claimed for a batch are never run; instead they're completed
+         *  explicitly when the batch finishes.
+         *  <p>
+         *  Because a task is shared by every caller waiting on its key (including those
+         *  that receive it from {@link #retrieveAsync}), it can't be cancelled: doing so
+         *  would interrupt the loader and fail all of the other callers.
+         */
+        private class LoadTask
+        extends FutureTask<V>
+        {
+            public final K key;
+            public final Object mapKey;
+
+            public LoadTask(final K key)
+            {
+                super(new Callable<V>()
+                {
+                    public V call() throws Exception
+                    {
+                        // another thread may have completed a retrieval between our
+                        // cache miss and claiming the key
+                        CacheEntry<K,V> entry = lookup(key);
+                        if (entry != null)
+                            return entry.value;
+
+                        V value = load(key);
+                        store.put(newEntry(key, value));
+                        return value;
+                    }
+                });
+                this.key = key;
+                this.mapKey = maskNull(key);
+            }
+
+            public void complete(V value)
+            {
+                set(value);
+            }
+
+            public void fail(Throwable ex)
+            {
+                setException(ex);
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning)
+            {
+                return false;
+            }
+
+            @Override
+            protected void done()
+            {
+                inFlight.remove(mapKey, this);
             }
         }
     }
@@ -310,16 +1291,719 @@ public class ReadThroughCache<K,V>
         @Override
         public synchronized V retrieve0(K key) throws InterruptedException
         {
-            V value = delegate.retrieve(key);
+            V value = load(key);
+            return store.putIfAbsent(newEntry(key, value)).value;
+        }
 
-            synchronized (cacheLock)
-            {
-                if (cache.containsKey(key))
-                    return cache.get(key);
+        @Override
+        protected synchronized void retrieveAll0(Collection<K> keys, Map<K,V> found) throws InterruptedException
+        {
+            super.retrieveAll0(keys, found);
+        }
 
-                cache.put(key, value);
-                return value;
-            }
+        @Override
+        public synchronized V reload(K key) throws InterruptedException
+        {
+            return load(key);
+        }
+    }
+
+
+    /**
+     *  Thrown by {@link ByKeyRetriever} when the thread that was loading a key
+     *  was interrupted; carries that thread's exception.
+     */
+    private static class LoaderInterruptedException
+    extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        public LoaderInterruptedException(InterruptedException cause)
+        {
+            super(cause);
+        }
+
+        @Override
+        public InterruptedException getCause()
+        {
+            return (InterruptedException)super.getCause();
+        }
+    }
+
+
+    /**
+     *  A <code>Future</code> for a value that was already in the cache.
+     */
+    private static class CompletedFuture<V>
+    implements Future<V>
+    {
+        private V value;
+
+        public CompletedFuture(V value)
+        {
+            this.value = value;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
         }
+
+        public boolean isDone()
+        {
+            return true;
+        }
+
+        public V get()
+        {
+            return value;
+        }
+
+        public V get(long timeout, TimeUnit unit)
+        {
+            return value;
+        }
+    }
+
+
+    /**
+     *  <code>ConcurrentHashMap</code> doesn't allow null keys, but we do.
+     */
+    private static Object maskNull(Object key)
+    {
+        return (key == null) ? NULL_KEY : key;
+    }
+
+
+    /**
+     *  The default executor for asynchronous operations, created on first use.
+     */
+    private static class DefaultExecutorHolder
+    {
+        public final static ExecutorService EXECUTOR
+            = Executors.newCachedThreadPool(new NamedThreadFactory("ReadThroughCache"));
+    }
+
+
+    /**
+     *  Holds the live statistics counters.
+     */
+    private static class StatsCounter
+    {
+        public StripedCounter hits = new StripedCounter();
+        public StripedCounter misses = new StripedCounter();
+        public StripedCounter loadSuccesses = new StripedCounter();
+        public StripedCounter loadFailures = new StripedCounter();
+        public StripedCounter loadTime = new StripedCounter();
+        public AtomicInteger blockedThreads = new AtomicInteger();
+
+        public void recordLoad(boolean success, long elapsed)
+        {
+            if (success)
+                loadSuccesses.increment();
+            else
+                loadFailures.increment();
+            loadTime.add(elapsed);
+        }
+    }
+
+
+    /**
+     *  A counter that is split into multiple cells, selected by thread ID, so that
+     *  concurrent updates rarely touch the same cell. Cells are spaced a cache line
+     *  apart, to avoid false sharing. Reading the counter sums all cells.
+     */
+    private static class StripedCounter
+    {
+        private final static int CELL_SPACING = 8;      // 64 bytes between cells
+        private final static int CELL_COUNT = cellCount();
+        private final static int CELL_MASK = CELL_COUNT - 1;
+
+        private AtomicLongArray cells = new AtomicLongArray(CELL_COUNT * CELL_SPACING);
+
+        public void increment()
+        {
+            add(1);
+        }
+
+        public void add(long value)
+        {
+            int cell = (int)Thread.currentThread().getId() & CELL_MASK;
+            cells.getAndAdd(cell * CELL_SPACING, value);
+        }
+
+        public long sum()
+        {
+            long sum = 0;
+            for (int ii = 0 ; ii < CELL_COUNT ; ii++)
+                sum += cells.get(ii * CELL_SPACING);
+            return sum;
+        }
+
+        private static int cellCount()
+        {
+            int count = 1;
+            int processors = Runtime.getRuntime().availableProcessors();
+            while ((count < processors) && (count < 64))
+                count <<= 1;
+            return count;
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Storage
+//----------------------------------------------------------------------------
+
+    /**
+     *  Holds a cached value. This allows the cache to store <code>null</code>, and
+     *  provides the links used by the segmented store to maintain its LRU list. It
+     *  also holds the timestamps used for expiration and refresh.
+     */
+    private static class CacheEntry<K,V>
+    {
+        @SuppressWarnings("rawtypes")
+        private final static AtomicIntegerFieldUpdater<CacheEntry> REFRESHING
+            = AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "refreshing");
+
+        public final K key;
+        public final V value;
+        public final int weight;
+        public final long writeTime;
+        public volatile long accessTime;
+
+        private volatile int refreshing;
+
+        // these are only accessed by the segmented store, while holding the
+        // segment's lock; an entry that isn't in the list has null links
+        public CacheEntry<K,V> prev;
+        public CacheEntry<K,V> next;
+
+        public CacheEntry(K key, V value, int weight)
+        {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = System.nanoTime();
+            this.accessTime = writeTime;
+        }
+
+        /**
+         *  Returns true if the caller should start a refresh, false if one is
+         *  already in progress.
+         */
+        public boolean startRefresh()
+        {
+            return REFRESHING.compareAndSet(this, 0, 1);
+        }
+
+        public void endRefresh()
+        {
+            refreshing = 0;
+        }
+    }
+
+
+    /**
+     *  Manages the cached entries, including eviction. Implementations must be
+     *  thread-safe.
+     */
+    private interface Store<K,V>
+    {
+        /**
+         *  Returns the entry for the specified key, <code>null</code> if there isn't
+         *  one. This is considered an access for purposes of LRU ordering.
+         */
+        public CacheEntry<K,V> get(K key);
+
+        /**
+         *  Adds an entry, replacing any existing entry for the same key.
+         */
+        public void put(CacheEntry<K,V> entry);
+
+        /**
+         *  Adds an entry if there isn't already one for its key. Returns the entry
+         *  that is in the cache after this call.
+         */
+        public CacheEntry<K,V> putIfAbsent(CacheEntry<K,V> entry);
+
+        /**
+         *  Removes the passed entry, if it's still in the cache.
+         */
+        public void remove(CacheEntry<K,V> entry);
+
+        /**
+         *  Replaces an existing entry, if it's still in the cache. If not, the new
+         *  entry is discarded.
+         */
+        public void replace(CacheEntry<K,V> oldEntry, CacheEntry<K,V> newEntry);
+
+        public int size();
+
+        public long weight();
+
+        /**
+         *  Returns the number of entries that have been evicted to stay within the
+         *  store's limits.
+         */
+        public long evictionCount();
+
+        public void clear();
+    }
+
+
+    /**
+     *  The original store: an access-ordered <code>LinkedHashMap</code>, with all
+     *  operations synchronized.
+     */
+    private static class SynchronizedStore<K,V>
+    implements Store<K,V>
+    {
+        private int maxSize;
+        private long maxWeight;
+        private long weight;
+        private long evictionCount;
+        private LinkedHashMap<K,CacheEntry<K,V>> map;
+
+        public SynchronizedStore(int size, long maxWeight)
+        {
+            this.maxSize = size;
+            this.maxWeight = maxWeight;
+            this.map = new LinkedHashMap<K,CacheEntry<K,V>>(size, 0.75f, true);
+        }
+
+        public synchronized CacheEntry<K,V> get(K key)
+        {
+            return map.get(key);
+        }
+
+        public synchronized void put(CacheEntry<K,V> entry)
+        {
+            add(entry);
+            evict();
+        }
+
+        public synchronized CacheEntry<K,V> putIfAbsent(CacheEntry<K,V> entry)
+        {
+            CacheEntry<K,V> existing = map.get(entry.key);
+            if (existing != null)
+                return existing;
+
+            add(entry);
+            evict();
+            return entry;
+        }
+
+        public synchronized void remove(CacheEntry<K,V> entry)
+        {
+            if (map.get(entry.key) == entry)
+            {
+                map.remove(entry.key);
+                weight -= entry.weight;
+            }
+        }
+
+        public synchronized void replace(CacheEntry<K,V> oldEntry, CacheEntry<K,V> newEntry)
+        {
+            if (map.get(oldEntry.key) == oldEntry)
+            {
+                add(newEntry);
+                evict();
+            }
+        }
+
+        public synchronized int size()
+        {
+            return map.size();
+        }
+
+        public synchronized long weight()
+        {
+            return weight;
+        }
+
+        public synchronized long evictionCount()
+        {
+            return evictionCount;
+        }
+
+        public synchronized void clear()
+        {
+            map.clear();
+            weight = 0;
+        }
+
+        private void add(CacheEntry<K,V> entry)
+        {
+            CacheEntry<K,V> existing = map.put(entry.key, entry);
+            if (existing != null)
+                weight -= existing.weight;
+            weight += entry.weight;
+        }
+
+        private void evict()
+        {
+            Iterator<CacheEntry<K,V>> itx = map.values().iterator();
+            while ((map.size() > maxSize) || (weight > maxWeight))
+            {
+                CacheEntry<K,V> eldest = itx.next();
+                itx.remove();
+                weight -= eldest.weight;
+                evictionCount++;
+            }
+        }
+    }
+
+
+    /**
+     *  A store that divides entries between independently-locked segments. Lookups
+     *  do not lock; see {@link Segment} for details.
+     */
+    private static class SegmentedStore<K,V>
+    implements Store<K,V>
+    {
+        private Segment<K,V>[] segments;
+        private int segmentShift;
+        private int segmentMask;
+
+        @SuppressWarnings({"unchecked","rawtypes"})
+        public SegmentedStore(int size, long maxWeight, int concurrencyLevel)
+        {
+            int count = 1;
+            int shift = 0;
+            while ((count < concurrencyLevel) && (count < size))
+            {
+                count <<= 1;
+                shift++;
+            }
+
+            segmentShift = 32 - shift;
+            segmentMask = count - 1;
+            segments = new Segment[count];
+
+            int segmentCapacity = (size + count - 1) / count;
+            long segmentMaxWeight = (maxWeight == Long.MAX_VALUE)
+                                  ? Long.MAX_VALUE
+                                  : (maxWeight + count - 1) / count;
+            for (int ii = 0 ; ii < count ; ii++)
+                segments[ii] = new Segment<K,V>(segmentCapacity, segmentMaxWeight);
+        }
+
+        public CacheEntry<K,V> get(K key)
+        {
+            return segmentFor(key).get(key);
+        }
+
+        public void put(CacheEntry<K,V> entry)
+        {
+            segmentFor(entry.key).put(entry, false);
+        }
+
+        public CacheEntry<K,V> putIfAbsent(CacheEntry<K,V> entry)
+        {
+            return segmentFor(entry.key).put(entry, true);
+        }
+
+        public void remove(CacheEntry<K,V> entry)
+        {
+            segmentFor(entry.key).replace(entry, null);
+        }
+
+        public void replace(CacheEntry<K,V> oldEntry, CacheEntry<K,V> newEntry)
+        {
+            segmentFor(oldEntry.key).replace(oldEntry, newEntry);
+        }
+
+        public int size()
+        {
+            int size = 0;
+            for (Segment<K,V> segment : segments)
+                size += segment.count;
+            return size;
+        }
+
+        public long weight()
+        {
+            long weight = 0;
+            for (Segment<K,V> segment : segments)
+                weight += segment.weight;
+            return weight;
+        }
+
+        public long evictionCount()
+        {
+            long count = 0;
+            for (Segment<K,V> segment : segments)
+                count += segment.evictionCount;
+            return count;
+        }
+
+        public void clear()
+        {
+            for (Segment<K,V> segment : segments)
+                segment.clear();
+        }
+
+        private Segment<K,V> segmentFor(Object key)
+        {
+            // we use the high bits of the hash to select a segment, while the segment's
+            // map uses the low bits; this mixing function (borrowed from the JDK's
+            // ConcurrentHashMap) ensures that both are well distributed
+            int h = key.hashCode();
+            h += (h << 15) ^ 0xffffcd7d;
+            h ^= (h >>> 10);
+            h += (h << 3);
+            h ^= (h >>> 6);
+            h += (h << 2) + (h << 14);
+            h ^= (h >>> 16);
+            return segments[(h >>> segmentShift) & segmentMask];
+        }
+    }
+
+
+    /**
+     *  A single segment of the segmented store. Entries are held in a
+     *  <code>ConcurrentHashMap</code>, so may be retrieved without locking, and
+     *  also in a doubly-linked list that is ordered by access (eldest first).
+     *  <p>
+     *  Rather than update the list on every access (which would need a lock),
+     *  accessed entries are recorded in a set of small, lossy ring buffers. The
+     *  buffer is selected by thread ID, so that threads on different cores rarely
+     *  update the same counter. When a buffer fills, the reading thread tries to
+     *  lock the segment and replay the buffer; if it can't get the lock it simply
+     *  continues (the buffer will be overwritten, losing some access information).
+     *  All buffers are drained whenever the segment is locked for an update, so
+     *  recent accesses are reflected before any eviction decision.
+     */
+    private static class Segment<K,V>
+    {
+        private final static int READ_BUFFER_SIZE = 16;     // must be power of 2
+        private final static int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+        private final static int READ_BUFFER_COUNT = readBufferCount();
+        private final static int READ_BUFFER_COUNT_MASK = READ_BUFFER_COUNT - 1;
+
+        private int capacity;
+        private long maxWeight;
+        private ConcurrentHashMap<K,CacheEntry<K,V>> map;
+        private ReentrantLock lock = new ReentrantLock();
+        private CacheEntry<K,V> head = new CacheEntry<K,V>(null, null, 0);
+        private ReadBuffer<K,V>[] readBuffers;
+
+        // written under lock, read without
+        public volatile int count;
+        public volatile long weight;
+        public volatile long evictionCount;
+
+        @SuppressWarnings({"unchecked","rawtypes"})
+        public Segment(int capacity, long maxWeight)
+        {
+            this.capacity = capacity;
+            this.maxWeight = maxWeight;
+            this.map = new ConcurrentHashMap<K,CacheEntry<K,V>>((int)(capacity / 0.75f) + 1);
+
+            head.prev = head;
+            head.next = head;
+
+            readBuffers = new ReadBuffer[READ_BUFFER_COUNT];
+            for (int ii = 0 ; ii < readBuffers.length ; ii++)
+                readBuffers[ii] = new ReadBuffer<K,V>();
+        }
+
+        public CacheEntry<K,V> get(K key)
+        {
+            CacheEntry<K,V> entry = map.get(key);
+            if (entry != null)
+                recordRead(entry);
+            return entry;
+        }
+
+        public CacheEntry<K,V> put(CacheEntry<K,V> entry, boolean onlyIfAbsent)
+        {
+            lock.lock();
+            try
+            {
+                drainAllReadBuffers();
+
+                CacheEntry<K,V> existing = map.get(entry.key);
+                if (existing != null)
+                {
+                    if (onlyIfAbsent)
+                    {
+                        moveToTail(existing);
+                        return existing;
+                    }
+                    unlink(existing);
+                    count--;
+                    weight -= existing.weight;
+                }
+
+                map.put(entry.key, entry);
+                linkAtTail(entry);
+                count++;
+                weight += entry.weight;
+
+                evict();
+                return entry;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         *  Replaces the old entry with the new entry, if the old entry is still in
+         *  the segment. If the new entry is null, simply removes the old entry.
+         */
+        public void replace(CacheEntry<K,V> oldEntry, CacheEntry<K,V> newEntry)
+        {
+            lock.lock();
+            try
+            {
+                if (map.get(oldEntry.key) != oldEntry)
+                    return;
+
+                drainAllReadBuffers();
+                unlink(oldEntry);
+                weight -= oldEntry.weight;
+                if (newEntry != null)
+                {
+                    map.put(newEntry.key, newEntry);
+                    linkAtTail(newEntry);
+                    weight += newEntry.weight;
+                    evict();
+                }
+                else
+                {
+                    map.remove(oldEntry.key);
+                    count--;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public void clear()
+        {
+            lock.lock();
+            try
+            {
+                drainAllReadBuffers();
+                while (head.next != head)
+                    unlink(head.next);
+                map.clear();
+                count = 0;
+                weight = 0;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void recordRead(CacheEntry<K,V> entry)
+        {
+            int bufferIdx = (int)Thread.currentThread().getId() & READ_BUFFER_COUNT_MASK;
+            ReadBuffer<K,V> buffer = readBuffers[bufferIdx];
+            int slot = buffer.writeCount.getAndIncrement() & READ_BUFFER_MASK;
+            buffer.entries.set(slot, entry);
+
+            if ((slot == READ_BUFFER_MASK) && lock.tryLock())
+            {
+                try
+                {
+                    drainReadBuffer(buffer);
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // all of the following methods must be called while holding the lock
+
+        private void evict()
+        {
+            while ((count > capacity) || (weight > maxWeight))
+            {
+                CacheEntry<K,V> eldest = head.next;
+                unlink(eldest);
+                map.remove(eldest.key);
+                count--;
+                weight -= eldest.weight;
+                evictionCount++;
+            }
+        }
+
+        private void drainAllReadBuffers()
+        {
+            for (ReadBuffer<K,V> buffer : readBuffers)
+                drainReadBuffer(buffer);
+        }
+
+        private void drainReadBuffer(ReadBuffer<K,V> buffer)
+        {
+            for (int ii = 0 ; ii < READ_BUFFER_SIZE ; ii++)
+            {
+                CacheEntry<K,V> entry = buffer.entries.get(ii);
+                if (entry == null)
+                    continue;
+
+                buffer.entries.set(ii, null);
+                // the entry may have been evicted or replaced since it was read
+                if (entry.next != null)
+                    moveToTail(entry);
+            }
+        }
+
+        private void linkAtTail(CacheEntry<K,V> entry)
+        {
+            entry.prev = head.prev;
+            entry.next = head;
+            head.prev.next = entry;
+            head.prev = entry;
+        }
+
+        private void unlink(CacheEntry<K,V> entry)
+        {
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+        }
+
+        private void moveToTail(CacheEntry<K,V> entry)
+        {
+            unlink(entry);
+            linkAtTail(entry);
+        }
+
+        private static int readBufferCount()
+        {
+            int count = 1;
+            int processors = Runtime.getRuntime().availableProcessors();
+            while ((count < processors) && (count < 16))
+                count <<= 1;
+            return count;
+        }
+    }
+
+
+    /**
+     *  Records accesses for a {@link Segment}.
+     */
+    private static class ReadBuffer<K,V>
+    {
+        public AtomicInteger writeCount = new AtomicInteger();
+        public AtomicReferenceArray<CacheEntry<K,V>> entries
+            = new AtomicReferenceArray<CacheEntry<K,V>>(Segment.READ_BUFFER_SIZE);
     }
 }
@@ -0,0 +1,272 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+
+import junit.framework.TestCase;
+
+
+public class TestBufferFacadeChannel
+extends TestCase
+{
+    public void testReadIntoHeapBuffer() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+        for (int ii = 0 ; ii < 200 ; ii++)
+            buf.put(ii, (byte)ii);
+
+        BufferFacadeChannel ch = new BufferFacadeChannel(buf, 200);
+        ch.position(10);
+
+        ByteBuffer dst = ByteBuffer.allocate(150);
+        dst.position(5);
+        assertEquals("bytes read",          145, ch.read(dst));
+        assertEquals("dst position",        150, dst.position());
+        assertEquals("first byte",          10, dst.get(5));
+        assertEquals("last byte",           (byte)154, dst.get(149));
+        assertEquals("channel position",    155L, ch.position());
+
+        dst.clear();
+        assertEquals("partial read",        45, ch.read(dst));
+        assertEquals("read at EOF",         -1, ch.read(dst));
+    }
+
+
+    public void testReadIntoDirectBuffer() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+        for (int ii = 0 ; ii < 200 ; ii++)
+            buf.put(ii, (byte)ii);
+
+        BufferFacadeChannel ch = new BufferFacadeChannel(buf, 200);
+        ByteBuffer dst = ByteBuffer.allocateDirect(300);
+        assertEquals("bytes read",          200, ch.read(dst));
+        for (int ii = 0 ; ii < 200 ; ii++)
+            assertEquals("byte " + ii, (byte)ii, dst.get(ii));
+    }
+
+
+    public void testReadIntoDirectBufferFromPagedFile() throws Exception
+    {
+        File file = File.createTempFile("TestBufferFacadeChannel", ".tmp");
+        file.deleteOnExit();
+        try
+        {
+            FileChannelBuffer buf = new FileChannelBuffer(file, true, 64, 4);
+            for (int ii = 0 ; ii < 20000 ; ii++)
+                buf.put(ii, (byte)ii);
+
+            // this spans many pages, and exceeds the copy buffer size
+            BufferFacadeChannel ch = new BufferFacadeChannel(buf);
+            ByteBuffer dst = ByteBuffer.allocateDirect(20000);
+            assertEquals("bytes read",      20000, ch.read(dst));
+            for (int ii = 0 ; ii < 20000 ; ii++)
+                assertEquals("byte " + ii, (byte)ii, dst.get(ii));
+            buf.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+
+    public void testReadIntoDirectBufferWithoutSlice() throws Exception
+    {
+        // third-party facades aren't required to support slices
+        BufferFacade buf = new BufferFacadeFactory.ByteBufferFacade(ByteBuffer.allocate(200))
+        {
+            @Override
+            public ByteBuffer slice(long index)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+        for (int ii = 0 ; ii < 200 ; ii++)
+            buf.put(ii, (byte)ii);
+
+        BufferFacadeChannel ch = new BufferFacadeChannel(buf);
+        ByteBuffer dst = ByteBuffer.allocateDirect(300);
+        assertEquals("bytes read",          200, ch.read(dst));
+        for (int ii = 0 ; ii < 200 ; ii++)
+            assertEquals("byte " + ii, (byte)ii, dst.get(ii));
+    }
+
+
+    public void testReadPastBufferLimit() throws Exception
+    {
+        // size is larger than the buffer, which the constructor allows
+        BufferFacadeChannel ch = new BufferFacadeChannel(BufferFacadeFactory.create(ByteBuffer.allocate(16)), 32);
+
+        ch.position(10);
+        assertEquals("read truncated at buffer limit", 6, ch.read(ByteBuffer.allocateDirect(20)));
+        assertEquals("position after partial read",    16L, ch.position());
+
+        ByteBuffer[] dsts = new ByteBuffer[] { ByteBuffer.allocate(8), ByteBuffer.allocateDirect(8) };
+        for (ByteBuffer dst : dsts)
+        {
+            try
+            {
+                ch.read(dst);
+                fail("able to read past buffer limit, direct = " + dst.isDirect());
+            }
+            catch (IOException ex)
+            {
+                // success
+            }
+        }
+        assertEquals("read with nothing remaining",    0, ch.read(ByteBuffer.allocate(0)));
+    }
+
+
+    public void testWrite() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+        BufferFacadeChannel ch = new BufferFacadeChannel(buf, 0);
+
+        ByteBuffer heap = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+        heap.position(1);
+        assertEquals("heap write",          4, ch.write(heap));
+        assertFalse("heap buffer consumed", heap.hasRemaining());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(10000);
+        for (int ii = 0 ; ii < direct.capacity() ; ii++)
+            direct.put(ii, (byte)(ii * 7));
+        assertEquals("direct write",        10000, ch.write(direct));
+
+        assertEquals("position",            10004L, ch.position());
+        assertEquals("size",                10004L, ch.size());
+        assertEquals("first heap byte",     2, buf.get(0));
+        assertEquals("last heap byte",      5, buf.get(3));
+        for (int ii = 0 ; ii < 10000 ; ii++)
+            assertEquals("direct byte " + ii, (byte)(ii * 7), buf.get(4 + ii));
+
+        // writing past the size leaves a gap
+        ch.position(20000);
+        ch.write(ByteBuffer.wrap(new byte[] { 99 }));
+        assertEquals("size after gap",      20001L, ch.size());
+        assertEquals("written after gap",   99, buf.get(20000));
+    }
+
+
+    public void testWriteErrors() throws Exception
+    {
+        ByteBuffer bb = ByteBuffer.allocate(10);
+        BufferFacadeChannel ch = new BufferFacadeChannel(BufferFacadeFactory.createThreadsafe(bb));
+        ch.position(8);
+        try
+        {
+            ch.write(ByteBuffer.allocate(4));
+            fail("able to write past capacity");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+
+        BufferFacadeChannel ch2 = new BufferFacadeChannel(BufferFacadeFactory.createThreadsafe(bb.asReadOnlyBuffer()));
+        try
+        {
+            ch2.write(ByteBuffer.allocate(4));
+            fail("able to write to read-only buffer");
+        }
+        catch (NonWritableChannelException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testTruncate() throws Exception
+    {
+        BufferFacadeChannel ch = new BufferFacadeChannel(BufferFacadeFactory.createThreadsafe(ByteBuffer.allocate(100)));
+        assertEquals("initial size",        100L, ch.size());
+
+        ch.position(80);
+        assertSame("truncate returns channel", ch, ch.truncate(50));
+        assertEquals("size after truncate", 50L, ch.size());
+        assertEquals("position after truncate", 50L, ch.position());
+        assertEquals("read at new size",    -1, ch.read(ByteBuffer.allocate(10)));
+
+        ch.truncate(70);
+        assertEquals("truncate doesn't extend", 50L, ch.size());
+    }
+
+
+    public void testClose() throws Exception
+    {
+        BufferFacadeChannel ch = new BufferFacadeChannel(BufferFacadeFactory.createThreadsafe(ByteBuffer.allocate(100)));
+        assertTrue("open", ch.isOpen());
+        ch.close();
+        assertFalse("closed", ch.isOpen());
+
+        try
+        {
+            ch.read(ByteBuffer.allocate(10));
+            fail("able to read after close");
+        }
+        catch (ClosedChannelException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testLargeMappedFile() throws Exception
+    {
+        // a sparse file, so this doesn't consume 3 GB of disk
+        File file = File.createTempFile("TestBufferFacadeChannel", ".tmp");
+        file.deleteOnExit();
+        try
+        {
+            long size = 3L * 1024 * 1024 * 1024;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            raf.close();
+
+            MappedFileBuffer buf = new MappedFileBuffer(file, true);
+            BufferFacadeChannel ch = new BufferFacadeChannel(buf);
+            assertEquals("size",            size, ch.size());
+
+            // straddles the boundary at 2 GB
+            long position = 0x7FFFFFF0L;
+            ByteBuffer src = ByteBuffer.allocate(64);
+            for (int ii = 0 ; ii < 64 ; ii++)
+                src.put(ii, (byte)(ii + 1));
+            ch.position(position).write(src);
+
+            ByteBuffer dst = ByteBuffer.allocateDirect(64);
+            ch.position(position).read(dst);
+            for (int ii = 0 ; ii < 64 ; ii++)
+                assertEquals("byte " + ii, (byte)(ii + 1), dst.get(ii));
+
+            BufferFacadeInputStream in = new BufferFacadeInputStream(buf, size - 10);
+            assertEquals("stream at end of file", 10L, in.skip(20));
+            assertEquals("EOF", -1, in.read());
+
+            buf.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
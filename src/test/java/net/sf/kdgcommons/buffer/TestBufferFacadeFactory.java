@@ -18,6 +18,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
@@ -470,4 +472,251 @@ extends TestCase
         ByteBuffer b2 = facade.slice(100);
         assertEquals(0x12345678, b2.getInt(0));
     }
+
+
+    public void testBulkOperations() throws Exception
+    {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        MappedFileBuffer mappedBuf = createMappedFile("testBulkOperations", 4096);
+
+        BufferFacade[] facades = new BufferFacade[]
+        {
+            BufferFacadeFactory.create(buf),
+            BufferFacadeFactory.create(buf, 1000),
+            BufferFacadeFactory.createThreadsafe(buf),
+            BufferFacadeFactory.createThreadsafe(buf, 1000),
+            BufferFacadeFactory.create(mappedBuf),
+            BufferFacadeFactory.create(mappedBuf, 1000),
+            BufferFacadeFactory.createThreadsafe(mappedBuf),
+            BufferFacadeFactory.createThreadsafe(mappedBuf, 1000),
+            BufferFacadeFactory.createUnsafe(buf),
+            BufferFacadeFactory.createUnsafe(ByteBuffer.allocateDirect(4096), 1000, true),
+            BufferFacadeFactory.createUnsafe(ByteBuffer.allocateDirect(4096).order(ByteOrder.LITTLE_ENDIAN)),
+            BufferFacadeFactory.createUnsafe(ByteBuffer.allocate(4096).order(ByteOrder.BIG_ENDIAN), 1000, false)
+        };
+
+        for (int ff = 0 ; ff < facades.length ; ff++)
+        {
+            BufferFacade facade = facades[ff];
+
+            facade.putBytes(1, new byte[] { 1, 2, 3, 4 }, 1, 2);
+            assertEquals("putBytes, facade " + ff, 3, facade.get(2));
+            assertTrue("getBytes, facade " + ff, Arrays.equals(new byte[] { 0, 2, 3 }, facade.getBytes(1, new byte[3], 1, 2)));
+
+            facade.putShorts(11, new short[] { 1, 2, 3 }, 0, 3);
+            assertEquals("putShorts, facade " + ff, 3, facade.getShort(15));
+            assertTrue("getShorts, facade " + ff, Arrays.equals(new short[] { 1, 2, 3 }, facade.getShorts(11, new short[3], 0, 3)));
+
+            facade.putInts(21, new int[] { 1, 2, 3 }, 0, 3);
+            assertEquals("putInts, facade " + ff, 3, facade.getInt(29));
+            assertTrue("getInts, facade " + ff, Arrays.equals(new int[] { 1, 2, 3 }, facade.getInts(21, new int[3], 0, 3)));
+
+            facade.putLongs(41, new long[] { 1, 2, 3 }, 0, 3);
+            assertEquals("putLongs, facade " + ff, 3, facade.getLong(57));
+            assertTrue("getLongs, facade " + ff, Arrays.equals(new long[] { 1, 2, 3 }, facade.getLongs(41, new long[3], 0, 3)));
+
+            facade.putFloats(71, new float[] { 1, 2, 3 }, 0, 3);
+            assertEquals("putFloats, facade " + ff, 3.0f, facade.getFloat(79), 0.0f);
+            assertTrue("getFloats, facade " + ff, Arrays.equals(new float[] { 1, 2, 3 }, facade.getFloats(71, new float[3], 0, 3)));
+
+            facade.putDoubles(91, new double[] { 1, 2, 3 }, 0, 3);
+            assertEquals("putDoubles, facade " + ff, 3.0, facade.getDouble(107), 0.0);
+            assertTrue("getDoubles, facade " + ff, Arrays.equals(new double[] { 1, 2, 3 }, facade.getDoubles(91, new double[3], 0, 3)));
+
+            facade.putChars(121, new char[] { 'A', 'B', 'C' }, 0, 3);
+            assertEquals("putChars, facade " + ff, 'C', facade.getChar(125));
+            assertTrue("getChars, facade " + ff, Arrays.equals(new char[] { 'A', 'B', 'C' }, facade.getChars(121, new char[3], 0, 3)));
+        }
+    }
+
+
+    public void testUnsafeBasicOps() throws Exception
+    {
+        ByteBuffer[] bufs = new ByteBuffer[]
+        {
+            ByteBuffer.allocate(4096),
+            ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN),
+            ByteBuffer.allocateDirect(4096),
+            ByteBuffer.allocateDirect(4096).order(ByteOrder.LITTLE_ENDIAN)
+        };
+
+        for (ByteBuffer buf : bufs)
+        {
+            String desc = (buf.isDirect() ? "direct" : "heap") + ", " + buf.order() + ": ";
+            buf.limit(2048);
+            BufferFacade facade = BufferFacadeFactory.createUnsafe(buf, 1000, false);
+            assertEquals(desc + "facade type",
+                         BufferFacadeFactory.UnsafeFacade.isSupported(),
+                         facade instanceof BufferFacadeFactory.UnsafeFacade);
+
+            assertEquals(desc + "capacity", 3096, facade.capacity());
+            assertEquals(desc + "limit",    1048, facade.limit());
+
+            facade.put(10, (byte)0x5A);
+            assertEquals(desc + "put", 0x5A, buf.get(1010));
+            assertEquals(desc + "get", 0x5A, facade.get(10));
+
+            facade.putShort(21, (short)0x5AA5);
+            assertEquals(desc + "putShort", 0x5AA5, buf.getShort(1021));
+            assertEquals(desc + "getShort", 0x5AA5, facade.getShort(21));
+
+            facade.putInt(31, 0xA5A55A5A);
+            assertEquals(desc + "putInt", 0xA5A55A5A, buf.getInt(1031));
+            assertEquals(desc + "getInt", 0xA5A55A5A, facade.getInt(31));
+
+            facade.putLong(41, 0x1234567890ABCDEFL);
+            assertEquals(desc + "putLong", 0x1234567890ABCDEFL, buf.getLong(1041));
+            assertEquals(desc + "getLong", 0x1234567890ABCDEFL, facade.getLong(41));
+
+            facade.putFloat(51, 123456.5f);
+            assertEquals(desc + "putFloat", 123456.5f, buf.getFloat(1051), .01);
+            assertEquals(desc + "getFloat", 123456.5f, facade.getFloat(51), .01);
+
+            facade.putDouble(61, 12345678901234.5);
+            assertEquals(desc + "putDouble", 12345678901234.5, buf.getDouble(1061), .01);
+            assertEquals(desc + "getDouble", 12345678901234.5, facade.getDouble(61), .01);
+
+            facade.putChar(71, 'A');
+            assertEquals(desc + "putChar", 'A', buf.getChar(1071));
+            assertEquals(desc + "getChar", 'A', facade.getChar(71));
+
+            byte[] bb = new byte[] { (byte)0x5A, (byte)0x00, (byte)0x5A };
+            buf.put(1083, (byte)0x01);    // sentinel
+            facade.putBytes(80, bb);
+            assertEquals(desc + "putBytes", 0x5A, buf.get(1082));
+            assertEquals(desc + "putBytes sentinel", 0x01, buf.get(1083));
+            assertTrue(desc + "getBytes", Arrays.equals(bb, facade.getBytes(80, 3)));
+
+            long[] longs = new long[] { 1L, 0x0102030405060708L, -1L };
+            facade.putLongs(201, longs, 0, 3);
+            assertEquals(desc + "putLongs", 0x0102030405060708L, buf.getLong(1209));
+            assertTrue(desc + "getLongs", Arrays.equals(longs, facade.getLongs(201, new long[3], 0, 3)));
+
+            double[] doubles = new double[] { 1.5, -2.5 };
+            facade.putDoubles(301, doubles, 0, 2);
+            assertEquals(desc + "putDoubles", -2.5, buf.getDouble(1309), 0.0);
+            assertTrue(desc + "getDoubles", Arrays.equals(doubles, facade.getDoubles(301, new double[2], 0, 2)));
+
+            buf.putInt(1100, 0x12345678);
+            ByteBuffer b2 = facade.slice(100);
+            assertEquals(desc + "slice", 0x12345678, b2.order(buf.order()).getInt(0));
+        }
+    }
+
+
+    public void testUnsafeBoundsChecks() throws Exception
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+        BufferFacade unchecked = BufferFacadeFactory.createUnsafe(buf);
+        BufferFacade checked = BufferFacadeFactory.createUnsafe(buf, 0, true);
+
+        // bulk operations are always checked
+        try
+        {
+            unchecked.getBytes(4000, 100);
+            fail("unchecked facade allowed bulk read past limit");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            unchecked.putInts(-4, new int[2], 0, 2);
+            fail("unchecked facade allowed bulk write before start");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            unchecked.getLongs(0, new long[2], 1, 2);
+            fail("unchecked facade allowed bulk read past end of array");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        // single-value operations are only checked in checked mode
+        assertEquals("last long", 0L, checked.getLong(4088));
+        try
+        {
+            checked.getLong(4089);
+            fail("checked facade allowed read past limit");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            checked.putShort(-1, (short)0);
+            fail("checked facade allowed write before start");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testUnsafeReadOnlyBuffer() throws Exception
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+        buf.putInt(100, 12345);
+
+        BufferFacade facade = BufferFacadeFactory.createUnsafe(buf.asReadOnlyBuffer());
+        assertEquals("read via read-only facade", 12345, facade.getInt(100));
+        try
+        {
+            facade.putInt(100, 0);
+            fail("able to write read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            facade.putBytes(100, new byte[4]);
+            fail("able to bulk write read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+
+        // read-only heap buffers don't expose their array, so we get a standard facade
+        BufferFacade fallback = BufferFacadeFactory.createUnsafe(ByteBuffer.allocate(16).asReadOnlyBuffer());
+        assertFalse("read-only heap buffer", fallback instanceof BufferFacadeFactory.UnsafeFacade);
+    }
+
+
+    public void testUnsafeRequiresUnalignedAccess() throws Exception
+    {
+        assertTrue("x86_64",    UnsafeAccess.isUnalignedArch("x86_64"));
+        assertTrue("amd64",     UnsafeAccess.isUnalignedArch("amd64"));
+        assertTrue("aarch64",   UnsafeAccess.isUnalignedArch("aarch64"));
+        assertFalse("sparcv9",  UnsafeAccess.isUnalignedArch("sparcv9"));
+        assertFalse("arm",      UnsafeAccess.isUnalignedArch("arm"));
+        assertFalse("empty",    UnsafeAccess.isUnalignedArch(""));
+
+        assertEquals("isSupported",
+                     UnsafeAccess.isAvailable() && UnsafeAccess.isUnalignedArch(System.getProperty("os.arch")),
+                     BufferFacadeFactory.UnsafeFacade.isSupported());
+
+        BufferFacade facade = BufferFacadeFactory.createUnsafe(ByteBuffer.allocateDirect(16));
+        if (! BufferFacadeFactory.UnsafeFacade.isSupported())
+            assertTrue("fallback facade", facade instanceof BufferFacadeFactory.ByteBufferTLFacade);
+
+        // unaligned access must work wherever the facade is used
+        facade.putLong(3, 0x0102030405060708L);
+        assertEquals("unaligned long", 0x0102030405060708L, facade.getLong(3));
+    }
 }
@@ -0,0 +1,160 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import net.sf.kdgcommons.io.IOUtil;
+
+
+public class TestBufferFacadeInputStream
+extends TestCase
+{
+//----------------------------------------------------------------------------
+//  Support Code
+//----------------------------------------------------------------------------
+
+    private static BufferFacade createFacade(int size)
+    {
+        byte[] data = new byte[size];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)ii;
+        return BufferFacadeFactory.createThreadsafe(ByteBuffer.wrap(data));
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test Cases
+//----------------------------------------------------------------------------
+
+    public void testSingleByteRead() throws Exception
+    {
+        BufferFacadeInputStream in = new BufferFacadeInputStream(createFacade(10), 7);
+        assertEquals("available",       3, in.available());
+        assertEquals("position",        7L, in.getPosition());
+        assertEquals("byte 7",          7, in.read());
+        assertEquals("byte 8",          8, in.read());
+        assertEquals("byte 9",          9, in.read());
+        assertEquals("EOF",             -1, in.read());
+        assertEquals("available at EOF", 0, in.available());
+    }
+
+
+    public void testUnsignedBytes() throws Exception
+    {
+        InputStream in = new BufferFacadeInputStream(createFacade(256), 255);
+        assertEquals("high-bit byte",   255, in.read());
+    }
+
+
+    public void testBulkRead() throws Exception
+    {
+        BufferFacadeInputStream in = new BufferFacadeInputStream(createFacade(100), 10, 30);
+        byte[] buf = new byte[16];
+
+        assertEquals("first read",      16, in.read(buf));
+        assertEquals("first byte",      10, buf[0]);
+        assertEquals("last byte",       25, buf[15]);
+
+        assertEquals("second read",     4, in.read(buf, 2, 10));
+        assertEquals("second read, first byte", 26, buf[2]);
+
+        assertEquals("read at limit",   -1, in.read(buf));
+        assertEquals("zero-length read", 0, in.read(buf, 0, 0));
+    }
+
+
+    public void testMarkResetSkip() throws Exception
+    {
+        BufferFacadeInputStream in = new BufferFacadeInputStream(createFacade(100));
+        assertTrue("markSupported",     in.markSupported());
+
+        in.skip(10);
+        in.mark(0);
+        assertEquals("after skip",      10, in.read());
+        assertEquals("skip past end",   89L, in.skip(1000));
+        assertEquals("negative skip",   0L, in.skip(-5));
+
+        in.reset();
+        assertEquals("after reset",     10, in.read());
+
+        in.setPosition(50);
+        assertEquals("after setPosition", 50, in.read());
+        assertEquals("remaining",       49L, in.remaining());
+    }
+
+
+    public void testResetWithoutMark() throws Exception
+    {
+        InputStream in = new BufferFacadeInputStream(createFacade(10));
+        try
+        {
+            in.reset();
+            fail("reset without mark");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testClose() throws Exception
+    {
+        InputStream in = new BufferFacadeInputStream(createFacade(10));
+        in.close();
+        try
+        {
+            in.read();
+            fail("able to read after close");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testInvalidConstruction() throws Exception
+    {
+        try
+        {
+            new BufferFacadeInputStream(createFacade(10), 5, 11);
+            fail("accepted limit past end of buffer");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testReadAcrossSegments() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+        for (int ii = 0 ; ii < 1000 ; ii++)
+            buf.put(ii, (byte)(ii * 3));
+
+        InputStream in = new BufferFacadeInputStream(buf, 0, 1000);
+        byte[] data = new byte[1200];
+        assertEquals("bytes read", 1000, IOUtil.readFully(in, data));
+        for (int ii = 0 ; ii < 1000 ; ii++)
+            assertEquals("byte " + ii, (byte)(ii * 3), data[ii]);
+    }
+}
@@ -0,0 +1,175 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+
+public class TestBufferFacadeOutputStream
+extends TestCase
+{
+    public void testWrite() throws Exception
+    {
+        ByteBuffer bb = ByteBuffer.allocate(100);
+        BufferFacadeOutputStream out = new BufferFacadeOutputStream(BufferFacadeFactory.createThreadsafe(bb), 10);
+
+        out.write(0x12);
+        out.write(new byte[] { 1, 2, 3, 4, 5 });
+        out.write(new byte[] { 6, 7, 8, 9 }, 1, 2);
+        assertEquals("position",        18L, out.getPosition());
+
+        assertEquals("single byte",     0x12, bb.get(10));
+        assertEquals("array start",     1, bb.get(11));
+        assertEquals("array end",       5, bb.get(15));
+        assertEquals("section start",   7, bb.get(16));
+        assertEquals("section end",     8, bb.get(17));
+        assertEquals("after end",       0, bb.get(18));
+
+        out.setPosition(0);
+        out.write(99);
+        assertEquals("after setPosition", 99, bb.get(0));
+    }
+
+
+    public void testWritePastCapacity() throws Exception
+    {
+        OutputStream out = new BufferFacadeOutputStream(BufferFacadeFactory.createThreadsafe(ByteBuffer.allocate(8)), 4);
+        out.write(new byte[4]);
+
+        try
+        {
+            out.write(1);
+            fail("able to write single byte past capacity");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            out.write(new byte[2]);
+            fail("able to write array past capacity");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+
+        // the non-threadsafe facade reports overflow differently
+        OutputStream out2 = new BufferFacadeOutputStream(BufferFacadeFactory.create(ByteBuffer.allocate(8)), 6);
+        try
+        {
+            out2.write(new byte[4]);
+            fail("able to write array past capacity");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testWriteGrowsSlabBuffer() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+        OutputStream out = new BufferFacadeOutputStream(buf);
+
+        byte[] data = new byte[1000];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)ii;
+        out.write(data);
+        out.close();
+
+        assertEquals("capacity",        1024L, buf.capacity());
+        for (int ii = 0 ; ii < data.length ; ii++)
+            assertEquals("byte " + ii, data[ii], buf.get(ii));
+    }
+
+
+    public void testClose() throws Exception
+    {
+        OutputStream out = new BufferFacadeOutputStream(BufferFacadeFactory.createThreadsafe(ByteBuffer.allocate(8)));
+        out.close();
+        try
+        {
+            out.write(1);
+            fail("able to write after close");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testFlushForcesWrittenRange() throws Exception
+    {
+        File file = File.createTempFile("TestBufferFacadeOutputStream", ".tmp");
+        file.deleteOnExit();
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(4096);
+            raf.close();
+
+            final List<String> forced = new ArrayList<String>();
+            MappedFileBuffer buf = new MappedFileBuffer(file, 1024, true)
+            {
+                @Override
+                public void force()
+                {
+                    forced.add("all");
+                    super.force();
+                }
+
+                @Override
+                public void force(long offset, long length)
+                {
+                    forced.add(offset + "/" + length);
+                    super.force(offset, length);
+                }
+            };
+
+            BufferFacadeOutputStream out = new BufferFacadeOutputStream(buf, 100);
+            out.flush();
+            assertEquals("nothing written, nothing forced", 0, forced.size());
+
+            out.write(new byte[10]);
+            out.setPosition(2000);
+            out.write(1);
+            out.flush();
+            assertEquals("forced after writes", "[100/1901]", forced.toString());
+
+            forced.clear();
+            out.flush();
+            assertEquals("range reset after flush", 0, forced.size());
+
+            buf.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -16,7 +16,10 @@ package net.sf.kdgcommons.buffer;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.ReadOnlyBufferException;
 import java.nio.channels.FileChannel.MapMode;
 
@@ -123,5 +126,192 @@ public class TestBufferUtil extends TestCase
     }
 
 
+    public void testGetCharsPositionNeutral() throws Exception
+    {
+        String expected = "ab\u00e7\u2727cd";
+
+        ByteBuffer buf = ByteBuffer.wrap(newByteArray(128));
+        for (int ii = 0 ; ii < expected.length() ; ii++)
+            buf.putChar(10 + ii * 2, expected.charAt(ii));
+        buf.position(3);
+
+        char[] chars = new char[10];
+        assertSame("returned array", chars, BufferUtil.getChars(buf, 10, chars, 2, expected.length()));
+        assertEquals("content",                 expected, new String(chars, 2, expected.length()));
+        assertEquals("position unchanged",      3, buf.position());
+    }
+
+
+    public void testGetCharsBulkRespectsOrderAndBounds() throws Exception
+    {
+        String expected = "ab\u00e7\u2727cd";
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(32).order(ByteOrder.LITTLE_ENDIAN);
+        for (int ii = 0 ; ii < expected.length() ; ii++)
+            buf.putChar(11 + ii * 2, expected.charAt(ii));
+        buf.limit(23);
+
+        char[] chars = BufferUtil.getChars(buf, 11, new char[expected.length()], 0, expected.length());
+        assertEquals("little-endian, unaligned content", expected, new String(chars));
+
+        try
+        {
+            BufferUtil.getChars(buf, 12, new char[expected.length()], 0, expected.length());
+            fail("able to read past limit");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testDecodeUTF8() throws Exception
+    {
+        // includes 1, 2, 3, and 4-byte sequences
+        String expected = "ab\u00e7\u2727cd\ud834\udd1eef";
+        byte[] expectedBytes = expected.getBytes("UTF-8");
+
+        byte[] testData = newByteArray(128);
+        System.arraycopy(expectedBytes, 0, testData, 10, expectedBytes.length);
+        ByteBuffer buf = ByteBuffer.wrap(testData);
+        buf.position(7);
+
+        StringBuilder sb = new StringBuilder("xx");
+        assertEquals("chars decoded to StringBuilder",  expected.length(), BufferUtil.decodeUTF8(buf, 10, expectedBytes.length, sb));
+        assertEquals("StringBuilder content",           "xx" + expected, sb.toString());
+        assertEquals("position unchanged",              7, buf.position());
+
+        CharBuffer cb = CharBuffer.allocate(64);
+        cb.put("yy");
+        assertEquals("chars decoded to CharBuffer",     expected.length(), BufferUtil.decodeUTF8(buf, 10, expectedBytes.length, cb));
+        assertEquals("CharBuffer position",             expected.length() + 2, cb.position());
+        cb.flip();
+        assertEquals("CharBuffer content",              "yy" + expected, cb.toString());
+
+        // direct CharBuffer doesn't have a backing array
+        CharBuffer cb2 = ByteBuffer.allocateDirect(128).asCharBuffer();
+        BufferUtil.decodeUTF8(buf, 10, expectedBytes.length, cb2);
+        cb2.flip();
+        assertEquals("direct CharBuffer content",       expected, cb2.toString());
+
+        BufferFacade facade = BufferFacadeFactory.create(buf);
+        StringBuilder sb2 = new StringBuilder();
+        BufferUtil.decodeUTF8(facade, 10L, expectedBytes.length, sb2);
+        assertEquals("from BufferFacade",               expected, sb2.toString());
+    }
+
+
+    public void testDecodeUTF8LongString() throws Exception
+    {
+        // exceeds the internal chunk size, with a surrogate pair straddling the chunk boundary
+        StringBuilder src = new StringBuilder();
+        for (int ii = 0 ; ii < 1023 ; ii++)
+            src.append((char)('A' + ii % 26));
+        for (int ii = 0 ; ii < 500 ; ii++)
+            src.append("\u00e7\ud834\udd1e\u2727");
+        String expected = src.toString();
+        byte[] bytes = expected.getBytes("UTF-8");
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+
+        StringBuilder sb = new StringBuilder();
+        BufferUtil.decodeUTF8(buf, 0, bytes.length, sb);
+        assertEquals("to StringBuilder", expected, sb.toString());
 
+        CharBuffer cb = ByteBuffer.allocateDirect(expected.length() * 2).asCharBuffer();
+        BufferUtil.decodeUTF8(buf, 0, bytes.length, cb);
+        cb.flip();
+        assertEquals("to direct CharBuffer", expected, cb.toString());
+    }
+
+
+    public void testDecodeUTF8Malformed() throws Exception
+    {
+        byte[] bytes = new byte[]
+        {
+            (byte)'a',
+            (byte)0x80,                                 // unexpected continuation
+            (byte)0xC0, (byte)0xAF,                     // overlong
+            (byte)0xED, (byte)0xA0, (byte)0x80,         // encoded surrogate
+            (byte)'b',
+            (byte)0xE2, (byte)0x9C                      // truncated
+        };
+        StringBuilder sb = new StringBuilder();
+        BufferUtil.decodeUTF8(ByteBuffer.wrap(bytes), 0, bytes.length, sb);
+
+        String result = sb.toString();
+        assertTrue("starts with valid char",    result.startsWith("a\ufffd"));
+        assertTrue("resynchronizes",            result.indexOf('b') > 0);
+        assertTrue("ends with replacement",     result.endsWith("\ufffd"));
+        for (int ii = 0 ; ii < result.length() ; ii++)
+        {
+            char c = result.charAt(ii);
+            assertTrue("unexpected char at " + ii + ": " + (int)c, (c == 'a') || (c == 'b') || (c == '\ufffd'));
+        }
+    }
+
+
+    public void testDecodeUTF8Errors() throws Exception
+    {
+        ByteBuffer buf = ByteBuffer.wrap("abcdef".getBytes("UTF-8"));
+
+        CharBuffer small = CharBuffer.allocate(4);
+        small.put('x');
+        try
+        {
+            BufferUtil.decodeUTF8(buf, 0, 6, small);
+            fail("decoded into too-small buffer");
+        }
+        catch (BufferOverflowException ex)
+        {
+            assertEquals("position unchanged", 1, small.position());
+        }
+
+        try
+        {
+            BufferUtil.decodeUTF8(buf, 4, 3, new StringBuilder());
+            fail("decoded past buffer limit");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testEncodeUTF8() throws Exception
+    {
+        String src = "ab\u00e7\u2727cd\ud834\udd1eef";
+        byte[] expected = src.getBytes("UTF-8");
+        assertEquals("utf8Length", expected.length, BufferUtil.utf8Length(src));
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.position(5);
+        assertEquals("bytes written",       expected.length, BufferUtil.encodeUTF8(src, buf, 10));
+        assertEquals("position unchanged",  5, buf.position());
+        for (int ii = 0 ; ii < expected.length ; ii++)
+            assertEquals("ByteBuffer byte " + ii, expected[ii], buf.get(10 + ii));
+
+        BufferFacade facade = BufferFacadeFactory.create(ByteBuffer.allocate(64));
+        assertEquals("bytes written",       expected.length, BufferUtil.encodeUTF8(src, facade, 20L));
+        for (int ii = 0 ; ii < expected.length ; ii++)
+            assertEquals("BufferFacade byte " + ii, expected[ii], facade.get(20 + ii));
+
+        // round trip
+        StringBuilder sb = new StringBuilder();
+        BufferUtil.decodeUTF8(facade, 20L, expected.length, sb);
+        assertEquals("round trip", src, sb.toString());
+    }
+
+
+    public void testEncodeUTF8UnpairedSurrogate() throws Exception
+    {
+        String src = "a\ud834b\udd1e";
+        assertEquals("utf8Length", 4, BufferUtil.utf8Length(src));
+
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        assertEquals("bytes written", 4, BufferUtil.encodeUTF8(src, buf, 0));
+        assertEquals("a?b?", new String(buf.array(), 0, 4, "UTF-8"));
+    }
 }
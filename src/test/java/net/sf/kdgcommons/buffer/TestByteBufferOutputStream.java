@@ -16,12 +16,46 @@ package net.sf.kdgcommons.buffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import junit.framework.TestCase;
 
 
 public class TestByteBufferOutputStream extends TestCase
 {
+//----------------------------------------------------------------------------
+//  Support Code
+//----------------------------------------------------------------------------
+
+    /**
+     *  An allocator that tracks the buffers that it has handed out.
+     */
+    private static class TrackingAllocator
+    implements ByteBufferAllocator
+    {
+        public List<ByteBuffer> outstanding = new ArrayList<ByteBuffer>();
+        public int allocations;
+
+        public ByteBuffer allocate(int size)
+        {
+            allocations++;
+            ByteBuffer buf = ByteBuffer.allocateDirect(size);
+            outstanding.add(buf);
+            return buf;
+        }
+
+        public void release(ByteBuffer buf)
+        {
+            assertTrue("released buffer was outstanding", outstanding.remove(buf));
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test Cases
+//----------------------------------------------------------------------------
+
     public void testSingleByteWrite() throws Exception
     {
         byte[] data = new byte[] { 0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F };
@@ -150,4 +184,143 @@ public class TestByteBufferOutputStream extends TestCase
     }
 
 
+    public void testGetBuffersNonGrowable() throws Exception
+    {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        ByteBufferOutputStream out = new ByteBufferOutputStream(buf, 4);
+        out.write(new byte[] { 1, 2, 3 });
+
+        assertFalse("isGrowable",               out.isGrowable());
+        assertEquals("size",                    3L, out.size());
+
+        ByteBuffer[] buffers = out.getBuffers();
+        assertEquals("number of buffers",       1, buffers.length);
+        assertEquals("buffer position",         0, buffers[0].position());
+        assertEquals("buffer limit",            3, buffers[0].limit());
+        assertEquals("buffer content",          1, buffers[0].get(0));
+        assertEquals("toBuffer content",        3, out.toBuffer().get(2));
+    }
+
+
+    public void testGrowableWrite() throws Exception
+    {
+        TrackingAllocator allocator = new TrackingAllocator();
+        ByteBufferOutputStream out = new ByteBufferOutputStream(10, allocator);
+        assertTrue("isGrowable",                out.isGrowable());
+        assertEquals("no allocation before write", 0, allocator.allocations);
+        assertEquals("initial size",            0L, out.size());
+        assertEquals("initial buffers",         0, out.getBuffers().length);
+
+        out.write(0x55);
+        byte[] data = new byte[25];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)ii;
+        out.write(data);
+        out.write(data, 20, 5);
+
+        assertEquals("size",                    31L, out.size());
+        assertEquals("allocations",             4, allocator.allocations);
+
+        ByteBuffer[] buffers = out.getBuffers();
+        assertEquals("number of buffers",       4, buffers.length);
+        assertEquals("first buffer limit",      10, buffers[0].limit());
+        assertEquals("last buffer limit",       1, buffers[3].limit());
+        assertEquals("first byte",              0x55, buffers[0].get(0));
+        assertEquals("chunk boundary",          9, buffers[1].get(0));
+        assertEquals("last byte",               24, buffers[3].get(0));
+
+        // buffers are independent of the stream
+        buffers[0].position(5);
+        assertEquals("buffers are duplicates",  0, out.getBuffers()[0].position());
+    }
+
+
+    public void testGrowableToBuffer() throws Exception
+    {
+        TrackingAllocator allocator = new TrackingAllocator();
+        ByteBufferOutputStream out = new ByteBufferOutputStream(8, allocator);
+
+        out.write(new byte[] { 1, 2, 3 });
+        ByteBuffer single = out.toBuffer();
+        assertEquals("single chunk doesn't copy", 1, allocator.allocations);
+        assertEquals("single chunk limit",      3, single.limit());
+
+        for (int ii = 4 ; ii <= 20 ; ii++)
+            out.write(ii);
+        ByteBuffer consolidated = out.toBuffer();
+        assertEquals("consolidated position",   0, consolidated.position());
+        assertEquals("consolidated limit",      20, consolidated.limit());
+        for (int ii = 0 ; ii < 20 ; ii++)
+            assertEquals("byte " + ii,          ii + 1, consolidated.get(ii));
+
+        out.release();
+        assertEquals("all buffers released",    0, allocator.outstanding.size());
+
+        try
+        {
+            out.write(1);
+            fail("able to write after release");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testGrowableToBufferRepeatedCalls() throws Exception
+    {
+        TrackingAllocator allocator = new TrackingAllocator();
+        ByteBufferOutputStream out = new ByteBufferOutputStream(8, allocator);
+
+        for (int ii = 1 ; ii <= 20 ; ii++)
+            out.write(ii);
+        out.toBuffer();
+        assertEquals("allocations after first call",    4, allocator.allocations);
+
+        ByteBuffer second = out.toBuffer();
+        assertEquals("no copy without intervening write", 4, allocator.allocations);
+        assertEquals("second call limit",               20, second.limit());
+
+        out.write(21);
+        assertEquals("write releases previous copy",    3, allocator.outstanding.size());
+
+        ByteBuffer third = out.toBuffer();
+        assertEquals("copy after intervening write",    5, allocator.allocations);
+        assertEquals("only one copy retained",          4, allocator.outstanding.size());
+        assertEquals("third call limit",                21, third.limit());
+        for (int ii = 0 ; ii < 21 ; ii++)
+            assertEquals("third result byte " + ii,     ii + 1, third.get(ii));
+
+        out.release();
+        assertEquals("all buffers released",            0, allocator.outstanding.size());
+    }
+
+
+    public void testGrowableRejectsNullAllocator() throws Exception
+    {
+        try
+        {
+            new ByteBufferOutputStream(8, null);
+            fail("accepted null allocator");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testGrowableWithDefaultAllocator() throws Exception
+    {
+        ByteBufferOutputStream out = new ByteBufferOutputStream(1024);
+        byte[] data = new byte[5000];
+        out.write(data);
+        out.flush();
+
+        ByteBuffer[] buffers = out.getBuffers();
+        assertEquals("number of buffers",       5, buffers.length);
+        assertTrue("buffers are direct",        buffers[0].isDirect());
+        assertEquals("total size",              5000, out.toBuffer().remaining());
+    }
 }
@@ -0,0 +1,421 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+
+public class TestByteBufferPool
+extends TestCase
+{
+//----------------------------------------------------------------------------
+//  Support Code
+//----------------------------------------------------------------------------
+
+    private static String findTestMethod(Throwable ex)
+    {
+        for (StackTraceElement elem : ex.getStackTrace())
+        {
+            if (elem.getClassName().equals(TestByteBufferPool.class.getName()))
+                return elem.getMethodName();
+        }
+        return null;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test Cases
+//----------------------------------------------------------------------------
+
+    public void testSizeClasses() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(100, 5000);
+
+        ByteBuffer b1 = pool.allocate(1);
+        assertEquals("rounded up to min size",      128, b1.capacity());
+        assertEquals("limit",                       128, b1.limit());
+        assertEquals("position",                    0, b1.position());
+        assertTrue("direct",                        b1.isDirect());
+
+        assertEquals("exact power of 2",            256, pool.allocate(256).capacity());
+        assertEquals("rounded up",                  512, pool.allocate(257).capacity());
+        assertEquals("max size class",              8192, pool.allocate(5000).capacity());
+        assertEquals("oversize not rounded",        8193, pool.allocate(8193).capacity());
+        assertEquals("zero size",                   128, pool.allocate(0).capacity());
+        pool.close();
+    }
+
+
+    public void testReuse() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 4096);
+
+        ByteBuffer b1 = pool.allocate(1000);
+        b1.order(ByteOrder.LITTLE_ENDIAN);
+        b1.putInt(1234);
+        b1.limit(10);
+        pool.release(b1);
+
+        ByteBuffer b2 = pool.allocate(600);
+        assertSame("buffer reused from thread cache", b1, b2);
+        assertEquals("cleared position",            0, b2.position());
+        assertEquals("cleared limit",               1024, b2.limit());
+        assertEquals("byte order reset",            ByteOrder.BIG_ENDIAN, b2.order());
+
+        long arenaSize = pool.getArenaSize();
+        for (int ii = 0 ; ii < 1000 ; ii++)
+            pool.release(pool.allocate(1024));
+        assertEquals("no arena growth from reuse",  arenaSize, pool.getArenaSize());
+        pool.close();
+    }
+
+
+    public void testDistinctBuffers() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 4096, 2, false);
+
+        // exceed both the thread cache and a single arena block
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        Map<ByteBuffer,Boolean> seen = new IdentityHashMap<ByteBuffer,Boolean>();
+        for (int ii = 0 ; ii < 200 ; ii++)
+        {
+            ByteBuffer buf = pool.allocate(64);
+            assertNull("buffer " + ii + " not already outstanding", seen.put(buf, Boolean.TRUE));
+            buf.putInt(0, ii);
+            buffers.add(buf);
+        }
+
+        // buffers don't overlap
+        for (int ii = 0 ; ii < buffers.size() ; ii++)
+            assertEquals("buffer " + ii + " content", ii, buffers.get(ii).getInt(0));
+
+        for (ByteBuffer buf : buffers)
+            pool.release(buf);
+        pool.close();
+    }
+
+
+    public void testOversizeBuffers() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024);
+        ByteBuffer buf = pool.allocate(100000);
+        assertEquals("capacity",                    100000, buf.capacity());
+        assertEquals("oversize not from arena",     0L, pool.getArenaSize());
+        pool.release(buf);
+
+        ByteBuffer buf2 = pool.allocate(100000);
+        assertNotSame("oversize not reused",        buf, buf2);
+        pool.close();
+    }
+
+
+    public void testForeignOversizeBufferNotFreed() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024);
+        ByteBuffer foreign = ByteBuffer.allocateDirect(4096);
+        foreign.putInt(0, 0x12345678);
+
+        try
+        {
+            pool.release(foreign);
+            fail("accepted oversize buffer that pool didn't allocate");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+        assertEquals("foreign buffer still usable", 0x12345678, foreign.getInt(0));
+
+        ByteBuffer buf = pool.allocate(4096);
+        pool.release(buf);
+        try
+        {
+            pool.release(buf);
+            fail("released oversize buffer twice");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+        pool.close();
+    }
+
+
+    public void testInvalidRelease() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024);
+
+        try
+        {
+            pool.release(ByteBuffer.allocate(64));
+            fail("accepted heap buffer");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            pool.release(ByteBuffer.allocateDirect(100));
+            fail("accepted buffer that isn't a size class");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+        pool.close();
+    }
+
+
+    public void testDebugModeDoubleRelease() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 4, true);
+        assertTrue("isDebug", pool.isDebug());
+
+        ByteBuffer buf = pool.allocate(100);
+        assertEquals("outstanding after allocate",  1, pool.getOutstandingCount());
+        pool.release(buf);
+        assertEquals("outstanding after release",   0, pool.getOutstandingCount());
+
+        try
+        {
+            pool.release(buf);
+            fail("allowed double release");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            pool.release(ByteBuffer.allocateDirect(128));
+            fail("allowed release of foreign buffer");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+        pool.close();
+    }
+
+
+    public void testDebugModeLeakDetection() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 4, true);
+        ByteBuffer buf = pool.allocate(100);
+        pool.release(pool.allocate(200));
+
+        List<Throwable> leaks = pool.getLeaks();
+        assertEquals("number of leaks",             1, leaks.size());
+        assertEquals("leak trace identifies this method",
+                     "testDebugModeLeakDetection",
+                     findTestMethod(leaks.get(0)));
+
+        try
+        {
+            pool.close();
+            fail("closed pool with outstanding buffers");
+        }
+        catch (IllegalStateException ex)
+        {
+            assertSame("cause", leaks.get(0), ex.getCause());
+        }
+
+        // pool remains usable
+        pool.release(buf);
+        pool.close();
+    }
+
+
+    public void testNonDebugModeStats() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024);
+        pool.allocate(100);
+        assertEquals("outstanding not tracked",     -1, pool.getOutstandingCount());
+        assertEquals("leaks not tracked",           0, pool.getLeaks().size());
+        pool.close();
+    }
+
+
+    public void testClose() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024);
+        ByteBuffer buf = pool.allocate(100);
+        buf.putInt(0, 0x12345678);
+        pool.close();
+        pool.close();   // second close has no effect
+
+        // outstanding buffers remain usable after close
+        buf.putInt(4, 0x9ABCDEF0);
+        assertEquals("outstanding buffer after close", 0x12345678, buf.getInt(0));
+        assertEquals("outstanding buffer after close", 0x9ABCDEF0, buf.getInt(4));
+        pool.release(buf);  // ignored
+
+        try
+        {
+            pool.allocate(100);
+            fail("able to allocate after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testCrossThreadRelease() throws Exception
+    {
+        final ByteBufferPool pool = new ByteBufferPool(64, 1024, 4, true);
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int ii = 0 ; ii < 100 ; ii++)
+            buffers.add(pool.allocate(512));
+
+        Thread releaser = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                for (ByteBuffer buf : buffers)
+                    pool.release(buf);
+            }
+        });
+        releaser.start();
+        releaser.join();
+
+        assertEquals("all released",                0, pool.getOutstandingCount());
+        pool.close();
+    }
+
+
+    public void testThreadCacheRecoveredWhenThreadEnds() throws Exception
+    {
+        // one arena block holds 64 buffers of this size; some of the buffers
+        // released by the worker will end up in its cache
+        final ByteBufferPool pool = new ByteBufferPool(1024, 1024, 8, false);
+
+        // this thread's cache already exists when the worker ends
+        pool.release(pool.allocate(1024));
+
+        Thread worker = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+                for (int ii = 0 ; ii < 64 ; ii++)
+                    buffers.add(pool.allocate(1024));
+                for (ByteBuffer buf : buffers)
+                    pool.release(buf);
+            }
+        });
+        worker.start();
+        worker.join();
+
+        long arenaSize = pool.getArenaSize();
+        int bufferCount = (int)(arenaSize / 1024);
+        for (int ii = 0 ; ii < bufferCount ; ii++)
+            pool.allocate(1024);
+        assertEquals("arena did not grow",          arenaSize, pool.getArenaSize());
+        pool.close();
+    }
+
+
+    public void testConcurrentUse() throws Exception
+    {
+        final ByteBufferPool pool = new ByteBufferPool(64, 4096, 4, false);
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread[] threads = new Thread[8];
+        for (int ii = 0 ; ii < threads.length ; ii++)
+        {
+            final int id = ii;
+            threads[ii] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    List<ByteBuffer> held = new ArrayList<ByteBuffer>();
+                    for (int jj = 0 ; jj < 10000 ; jj++)
+                    {
+                        ByteBuffer buf = pool.allocate(64 << (jj % 7));
+                        buf.putInt(0, id);
+                        buf.putInt(buf.capacity() - 4, jj);
+                        held.add(buf);
+                        if (held.size() > 10)
+                        {
+                            ByteBuffer old = held.remove(0);
+                            if ((old.getInt(0) != id) || (old.getInt(old.capacity() - 4) != jj - 10))
+                                failures.incrementAndGet();
+                            pool.release(old);
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("failures", 0, failures.get());
+        pool.close();
+    }
+
+
+    public void testWithByteBufferOutputStream() throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 4, true);
+        ByteBufferOutputStream out = new ByteBufferOutputStream(1000, pool);
+        out.write(new byte[5000]);
+        assertEquals("chunks outstanding",          5, pool.getOutstandingCount());
+
+        out.toBuffer();
+        out.release();
+        assertEquals("all released",                0, pool.getOutstandingCount());
+        pool.close();
+    }
+
+
+    public void testInvalidConfiguration() throws Exception
+    {
+        try
+        {
+            new ByteBufferPool(0, 1024);
+            fail("accepted zero min size");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            new ByteBufferPool(1024, 64);
+            fail("accepted max < min");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+}
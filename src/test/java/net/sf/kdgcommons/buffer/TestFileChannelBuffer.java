@@ -0,0 +1,347 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+
+import junit.framework.TestCase;
+
+import net.sf.kdgcommons.io.IOUtil;
+
+
+public class TestFileChannelBuffer
+extends TestCase
+{
+//----------------------------------------------------------------------------
+//  Setup
+//----------------------------------------------------------------------------
+
+    private File _testFile;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        _testFile = File.createTempFile("TestFileChannelBuffer", ".tmp");
+        _testFile.deleteOnExit();
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        _testFile.delete();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Support code
+//----------------------------------------------------------------------------
+
+    private void writeTestFile(byte[] content) throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(_testFile);
+        try
+        {
+            out.write(content);
+        }
+        finally
+        {
+            IOUtil.closeQuietly(out);
+        }
+    }
+
+
+    private byte[] readTestFile() throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(_testFile, "r");
+        try
+        {
+            byte[] data = new byte[(int)raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+        finally
+        {
+            IOUtil.closeQuietly(raf);
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test cases
+//----------------------------------------------------------------------------
+
+    public void testReadExistingFile() throws Exception
+    {
+        byte[] content = new byte[1000];
+        for (int ii = 0 ; ii < content.length ; ii++)
+            content[ii] = (byte)ii;
+        writeTestFile(content);
+
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, false, 64, 4);
+        assertEquals("capacity",                1000L, buf.capacity());
+        assertEquals("limit",                   1000L, buf.limit());
+        assertFalse("isWritable",               buf.isWritable());
+
+        for (int ii = 0 ; ii < content.length ; ii++)
+            assertEquals("byte " + ii, content[ii], buf.get(ii));
+
+        ByteBuffer expected = ByteBuffer.wrap(content);
+        assertEquals("int in page",             expected.getInt(4),   buf.getInt(4));
+        assertEquals("int spanning pages",      expected.getInt(62),  buf.getInt(62));
+        assertEquals("long spanning pages",     expected.getLong(125), buf.getLong(125));
+        assertEquals("double spanning pages",   expected.getDouble(190), buf.getDouble(190), 0.0);
+
+        buf.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        expected.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("little-endian short",     expected.getShort(63), buf.getShort(63));
+        assertEquals("little-endian long",      expected.getLong(500), buf.getLong(500));
+
+        assertTrue("pages were read",           buf.getPageReadCount() > 4);
+        buf.close();
+    }
+
+
+    public void testReadPastEnd() throws Exception
+    {
+        writeTestFile(new byte[100]);
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, true, 64, 4);
+
+        try
+        {
+            buf.getInt(97);
+            fail("read past end");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.get(-1);
+            fail("read at negative index");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        buf.close();
+    }
+
+
+    public void testWriteAndEviction() throws Exception
+    {
+        writeTestFile(new byte[1024]);
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, true, 64, 2);
+
+        for (int ii = 0 ; ii < 256 ; ii++)
+            buf.putInt(ii * 4, ii);
+
+        // with only two pages cached, most of the writes have already been written back
+        assertTrue("pages written", buf.getPageWriteCount() >= 14);
+        for (int ii = 0 ; ii < 256 ; ii++)
+            assertEquals("value " + ii, ii, buf.getInt(ii * 4));
+
+        buf.putLong(60, 0x0102030405060708L);
+        assertEquals("spanning long",   0x0102030405060708L, buf.getLong(60));
+
+        buf.close();
+
+        ByteBuffer check = ByteBuffer.wrap(readTestFile());
+        assertEquals("file size",       1024, check.capacity());
+        assertEquals("value in file",   100, check.getInt(400));
+        assertEquals("spanning long",   0x0102030405060708L, check.getLong(60));
+    }
+
+
+    public void testFileGrowsOnWrite() throws Exception
+    {
+        writeTestFile(new byte[10]);
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, true, 64, 2);
+
+        buf.putInt(8, 0x12345678);
+        assertEquals("capacity after write in partial page", 12L, buf.capacity());
+
+        buf.putLong(200, 0x1122334455667788L);
+        assertEquals("capacity after write in new page", 208L, buf.capacity());
+        assertEquals("gap is zero-filled", 0, buf.getInt(100));
+
+        buf.flush();
+        assertEquals("file size after flush", 208L, _testFile.length());
+
+        ByteBuffer check = ByteBuffer.wrap(readTestFile());
+        assertEquals("first value",     0x12345678, check.getInt(8));
+        assertEquals("second value",    0x1122334455667788L, check.getLong(200));
+
+        buf.close();
+    }
+
+
+    public void testReadOnly() throws Exception
+    {
+        writeTestFile(new byte[100]);
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, false, 64, 2);
+
+        try
+        {
+            buf.putInt(0, 12);
+            fail("able to write to read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.putBytes(0, new byte[4]);
+            fail("able to bulk write to read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+
+        buf.close();
+    }
+
+
+    public void testBulkOperations() throws Exception
+    {
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, true, 64, 3);
+
+        byte[] bytes = new byte[300];
+        for (int ii = 0 ; ii < bytes.length ; ii++)
+            bytes[ii] = (byte)(ii * 3);
+        buf.putBytes(5, bytes);
+        byte[] bytesOut = buf.getBytes(5, 300);
+        for (int ii = 0 ; ii < bytes.length ; ii++)
+            assertEquals("byte " + ii, bytes[ii], bytesOut[ii]);
+
+        // odd starting offset means that some values span pages
+        long[] longs = new long[50];
+        for (int ii = 0 ; ii < longs.length ; ii++)
+            longs[ii] = ii * 0x0101010101L;
+        buf.putLongs(1001, longs, 0, longs.length);
+        long[] longsOut = buf.getLongs(1001, new long[longs.length], 0, longs.length);
+        for (int ii = 0 ; ii < longs.length ; ii++)
+        {
+            assertEquals("long " + ii, longs[ii], longsOut[ii]);
+            assertEquals("long " + ii + " individual", longs[ii], buf.getLong(1001 + ii * 8));
+        }
+
+        char[] chars = "the quick brown fox jumps over the lazy dog".toCharArray();
+        buf.putChars(2001, chars, 4, 10);
+        assertEquals("chars", "quick brow", new String(buf.getChars(2001, new char[10], 0, 10)));
+
+        buf.close();
+        assertEquals("file size", 2021L, _testFile.length());
+    }
+
+
+    public void testSlice() throws Exception
+    {
+        byte[] content = new byte[100];
+        for (int ii = 0 ; ii < content.length ; ii++)
+            content[ii] = (byte)ii;
+        writeTestFile(content);
+
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, true, 64, 2);
+
+        ByteBuffer slice1 = buf.slice(10);
+        assertTrue("slice is read-only",        slice1.isReadOnly());
+        assertEquals("limited to page",         54, slice1.remaining());
+        assertEquals("first byte",              (byte)10, slice1.get(0));
+
+        ByteBuffer slice2 = buf.slice(70);
+        assertEquals("limited to end of file",  30, slice2.remaining());
+        assertEquals("first byte of page 2",    (byte)70, slice2.get(0));
+
+        buf.put(11, (byte)123);
+        assertEquals("sees writes while cached", (byte)123, slice1.get(1));
+
+        // evict the first page by reading two others; the slice must retain its
+        // content rather than being reused for another page
+        buf.put(200, (byte)1);
+        buf.get(70);
+        buf.get(200);
+        assertEquals("retains content after eviction", (byte)10, slice1.get(0));
+        assertEquals("other bytes after eviction",      (byte)123, slice1.get(1));
+
+        try
+        {
+            buf.slice(201);
+            fail("able to slice past end of file");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+        buf.close();
+    }
+
+
+    public void testClose() throws Exception
+    {
+        writeTestFile(new byte[100]);
+        FileChannelBuffer buf = new FileChannelBuffer(_testFile, true, 64, 2);
+        buf.put(10, (byte)123);
+        buf.close();
+        buf.close();    // second close has no effect
+
+        assertEquals("written on close", 123, readTestFile()[10]);
+
+        try
+        {
+            buf.get(10);
+            fail("able to read after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testInvalidConfiguration() throws Exception
+    {
+        try
+        {
+            new FileChannelBuffer(_testFile, true, 4, 2);
+            fail("accepted page size smaller than a long");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            new FileChannelBuffer(_testFile, true, 64, 1);
+            fail("accepted single page");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+}
@@ -15,14 +15,25 @@
 package net.sf.kdgcommons.buffer;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -99,6 +110,37 @@ extends TestCase
     }
 
 
+    /**
+     *  Determines whether the test file is currently mapped, by examining the
+     *  process' memory map. Returns <code>null</code> if unable to make this
+     *  determination (ie, not running on Linux).
+     */
+    private Boolean isTestFileMapped()
+    throws Exception
+    {
+        File maps = new File("/proc/self/maps");
+        if (! maps.exists())
+            return null;
+
+        BufferedReader in = new BufferedReader(new FileReader(maps));
+        try
+        {
+            String path = _testFile.getCanonicalPath();
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.endsWith(path))
+                    return Boolean.TRUE;
+            }
+            return Boolean.FALSE;
+        }
+        finally
+        {
+            IOUtil.closeQuietly(in);
+        }
+    }
+
+
 //----------------------------------------------------------------------------
 //  Test Cases
 //----------------------------------------------------------------------------
@@ -374,4 +416,801 @@ extends TestCase
             // success
         }
     }
+
+
+    public void testBulkPrimitiveOperations() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+
+        // all transfers start at unaligned offsets and cross multiple segments
+
+        int[] ints = new int[1000];
+        for (int ii = 0 ; ii < ints.length ; ii++)
+            ints[ii] = ii * 0x01010101;
+        buf.putInts(1021, ints, 0, ints.length);
+        for (int ii = 0 ; ii < ints.length ; ii++)
+            assertEquals("putInts, element " + ii, ints[ii], buf.getInt(1021 + ii * 4));
+        int[] ints2 = new int[ints.length + 2];
+        assertSame("getInts returns array", ints2, buf.getInts(1021, ints2, 1, ints.length));
+        for (int ii = 0 ; ii < ints.length ; ii++)
+            assertEquals("getInts, element " + ii, ints[ii], ints2[ii + 1]);
+
+        long[] longs = new long[700];
+        for (int ii = 0 ; ii < longs.length ; ii++)
+            longs[ii] = ii * 0x0102030405060708L;
+        buf.putLongs(3, longs, 0, longs.length);
+        for (int ii = 0 ; ii < longs.length ; ii++)
+            assertEquals("putLongs, element " + ii, longs[ii], buf.getLong(3 + ii * 8));
+        assertTrue("getLongs", Arrays.equals(longs, buf.getLongs(3, new long[longs.length], 0, longs.length)));
+
+        short[] shorts = new short[3000];
+        for (int ii = 0 ; ii < shorts.length ; ii++)
+            shorts[ii] = (short)(ii * 17);
+        buf.putShorts(1023, shorts, 0, shorts.length);
+        assertEquals("putShorts, spot check", shorts[1234], buf.getShort(1023 + 1234 * 2));
+        assertTrue("getShorts", Arrays.equals(shorts, buf.getShorts(1023, new short[shorts.length], 0, shorts.length)));
+
+        char[] chars = new char[3000];
+        for (int ii = 0 ; ii < chars.length ; ii++)
+            chars[ii] = (char)(ii + 'A');
+        buf.putChars(1, chars, 0, chars.length);
+        assertEquals("putChars, spot check", chars[2500], buf.getChar(1 + 2500 * 2));
+        assertTrue("getChars", Arrays.equals(chars, buf.getChars(1, new char[chars.length], 0, chars.length)));
+
+        float[] floats = new float[1500];
+        for (int ii = 0 ; ii < floats.length ; ii++)
+            floats[ii] = ii * 1.5f;
+        buf.putFloats(2047, floats, 0, floats.length);
+        assertEquals("putFloats, spot check", floats[999], buf.getFloat(2047 + 999 * 4), 0.0f);
+        assertTrue("getFloats", Arrays.equals(floats, buf.getFloats(2047, new float[floats.length], 0, floats.length)));
+
+        double[] doubles = new double[800];
+        for (int ii = 0 ; ii < doubles.length ; ii++)
+            doubles[ii] = ii * 2.25;
+        buf.putDoubles(999, doubles, 0, doubles.length);
+        assertEquals("putDoubles, spot check", doubles[500], buf.getDouble(999 + 500 * 8), 0.0);
+        assertTrue("getDoubles", Arrays.equals(doubles, buf.getDoubles(999, new double[doubles.length], 0, doubles.length)));
+    }
+
+
+    public void testBulkPrimitiveOperationsRespectByteOrder() throws Exception
+    {
+        writeDefaultContent(4096);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+        buf.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+
+        buf.putInts(1022, new int[] { 0x01020304, 0x05060708 }, 0, 2);
+        assertEquals("low byte first", 0x04, buf.get(1022));
+        assertEquals("second int",     0x08, buf.get(1026));
+
+        buf.setByteOrder(ByteOrder.BIG_ENDIAN);
+        assertEquals("read with other order", 0x04030201, buf.getInts(1022, new int[1], 0, 1)[0]);
+    }
+
+
+    public void testBulkPrimitiveOperationFailures() throws Exception
+    {
+        writeDefaultContent(8190);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+
+        try
+        {
+            buf.getLongs(8000, new long[24], 0, 24);
+            fail("able to read past end of file");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.putInts(8000, new int[48], 0, 48);
+            fail("able to write past end of file");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.getInts(0, new int[10], 5, 6);
+            fail("able to read past end of array");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testGrowableBuffer() throws Exception
+    {
+        writeDefaultContent(1000);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true, true);
+        assertTrue("isGrowable", buf.isGrowable());
+        assertEquals("initial capacity", 1000L, buf.capacity());
+
+        // a write past the end extends the file to a multiple of the segment size
+        buf.putInt(1500, 0x12345678);
+        assertEquals("capacity after first write", 2048L, buf.capacity());
+        assertEquals("file size after first write", 2048L, _testFile.length());
+        assertEquals("value after first write", 0x12345678, buf.getInt(1500));
+        assertEquals("existing content preserved", (byte)999, buf.get(999));
+
+        // a bulk write that spans multiple new segments
+        byte[] data = new byte[3000];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)(ii % 7);
+        buf.putBytes(2040, data);
+        assertEquals("capacity after bulk write", 5120L, buf.capacity());
+        assertTrue("bulk data", Arrays.equals(data, buf.getBytes(2040, data.length)));
+
+        // reads past the end don't grow
+        try
+        {
+            buf.getInt(6000);
+            fail("able to read past end of growable buffer");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+        assertEquals("capacity after failed read", 5120L, buf.capacity());
+    }
+
+
+    public void testGrowableBufferCloneSeesGrowth() throws Exception
+    {
+        MappedFileBuffer buf1 = new MappedFileBuffer(_testFile, 1024, true, true);
+        buf1.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        MappedFileBuffer buf2 = buf1.clone();
+        assertEquals("initial capacity", 0L, buf2.capacity());
+        assertEquals("clone byte order", ByteOrder.LITTLE_ENDIAN, buf2.getByteOrder());
+
+        buf1.putLong(4000, 0x0102030405060708L);
+        assertEquals("clone capacity", 4096L, buf2.capacity());
+        assertEquals("clone value", 0x0102030405060708L, buf2.getLong(4000));
+        assertEquals("clone retains byte order", (byte)0x08, buf2.get(4000));
+    }
+
+
+    public void testGrowableRequiresWritable() throws Exception
+    {
+        try
+        {
+            new MappedFileBuffer(_testFile, 1024, false, true);
+            fail("created read-only growable buffer");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testAppend() throws Exception
+    {
+        writeDefaultContent(100);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true, true);
+        assertEquals("initial append position", 100L, buf.getAppendPosition());
+
+        assertEquals("first append", 100L, buf.append(new byte[] { 1, 2, 3 }));
+        assertEquals("second append", 103L, buf.append(new byte[2000]));
+        assertEquals("append position", 2103L, buf.getAppendPosition());
+        assertEquals("capacity", 3072L, buf.capacity());
+        assertEquals("appended content", 2, buf.get(101));
+
+        buf.setAppendPosition(10);
+        assertEquals("append after reset", 10L, buf.append(new byte[] { 99 }));
+        assertEquals("overwritten content", 99, buf.get(10));
+
+        // clones share the append position
+        MappedFileBuffer buf2 = buf.clone();
+        assertEquals("append via clone", 11L, buf2.append(new byte[] { 98 }));
+        assertEquals("position via original", 12L, buf.getAppendPosition());
+    }
+
+
+    public void testAppendToFixedBuffer() throws Exception
+    {
+        writeDefaultContent(1000);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+        buf.setAppendPosition(990);
+
+        assertEquals("append that fits", 990L, buf.append(new byte[10]));
+        try
+        {
+            buf.append(new byte[1]);
+            fail("able to append past end of fixed buffer");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+        assertEquals("append position unchanged", 1000L, buf.getAppendPosition());
+        assertEquals("file size unchanged", 1000L, _testFile.length());
+    }
+
+
+    public void testAppendToReadOnlyBuffer() throws Exception
+    {
+        writeDefaultContent(1000);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, false);
+        buf.setAppendPosition(500);
+
+        try
+        {
+            buf.append(new byte[10]);
+            fail("able to append to read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+        assertEquals("append position unchanged", 500L, buf.getAppendPosition());
+    }
+
+
+    public void testConcurrentAppend() throws Exception
+    {
+        final int threadCount = 8;
+        final int recordsPerThread = 500;
+        final int recordSize = 100;
+
+        final MappedFileBuffer buf = new MappedFileBuffer(_testFile, 4096, true, true);
+        Thread[] threads = new Thread[threadCount];
+        for (int ii = 0 ; ii < threadCount ; ii++)
+        {
+            final byte marker = (byte)(ii + 1);
+            threads[ii] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    byte[] record = new byte[recordSize];
+                    Arrays.fill(record, marker);
+                    for (int jj = 0 ; jj < recordsPerThread ; jj++)
+                        buf.append(record);
+                }
+            });
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        long expectedSize = (long)threadCount * recordsPerThread * recordSize;
+        assertEquals("append position", expectedSize, buf.getAppendPosition());
+
+        // every record must be intact, and each thread must have written all of its records
+        int[] counts = new int[threadCount + 1];
+        for (long offset = 0 ; offset < expectedSize ; offset += recordSize)
+        {
+            byte[] record = buf.getBytes(offset, recordSize);
+            for (int ii = 1 ; ii < recordSize ; ii++)
+                assertEquals("record at " + offset + ", byte " + ii, record[0], record[ii]);
+            counts[record[0]]++;
+        }
+        for (int ii = 1 ; ii <= threadCount ; ii++)
+            assertEquals("records for thread " + ii, recordsPerThread, counts[ii]);
+    }
+
+
+    public void testClose() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+        assertEquals("before close", (byte)123, buf.get(123));
+        assertFalse("isClosed before close", buf.isClosed());
+
+        buf.close();
+        assertTrue("isClosed after close", buf.isClosed());
+
+        try
+        {
+            buf.get(123);
+            fail("able to read after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.putBytes(0, new byte[10]);
+            fail("able to write after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.clone();
+            fail("able to clone after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        // second close is a no-op
+        buf.close();
+
+        if (Boolean.TRUE.equals(isTestFileMapped()))
+            fail("file still mapped after close");
+    }
+
+
+    public void testCloseWithClones() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf1 = new MappedFileBuffer(_testFile, 1024, true);
+        MappedFileBuffer buf2 = buf1.clone();
+        MappedFileBuffer buf3 = buf2.clone();
+
+        buf1.close();
+        assertEquals("read from clone after original closed", (byte)123, buf2.get(123));
+        buf3.putInt(1000, 0x12345678);
+        assertEquals("write via second clone", 0x12345678, buf2.getInt(1000));
+
+        buf2.close();
+        try
+        {
+            buf2.getInt(1000);
+            fail("able to read from closed clone");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+        assertEquals("read from last clone", 0x12345678, buf3.getInt(1000));
+        if (Boolean.FALSE.equals(isTestFileMapped()))
+            fail("file unmapped while clone still open");
+
+        buf3.close();
+        if (Boolean.TRUE.equals(isTestFileMapped()))
+            fail("file still mapped after all clones closed");
+    }
+
+
+    public void testConcurrentCloseReleasesOnce() throws Exception
+    {
+        writeDefaultContent(8192);
+        for (int round = 0 ; round < 20 ; round++)
+        {
+            final MappedFileBuffer buf1 = new MappedFileBuffer(_testFile, 1024, true);
+            MappedFileBuffer buf2 = buf1.clone();
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            Thread[] threads = new Thread[8];
+            for (int ii = 0 ; ii < threads.length ; ii++)
+            {
+                threads[ii] = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            latch.await();
+                            buf1.close();
+                        }
+                        catch (InterruptedException ignored)
+                        {
+                            // test will fail
+                        }
+                    }
+                });
+                threads[ii].start();
+            }
+            latch.countDown();
+            for (Thread thread : threads)
+                thread.join();
+
+            assertTrue("original closed", buf1.isClosed());
+            assertEquals("clone still readable, round " + round, (byte)123, buf2.get(123));
+            buf2.close();
+        }
+    }
+
+
+    public void testCloseGrowableBuffer() throws Exception
+    {
+        MappedFileBuffer buf1 = new MappedFileBuffer(_testFile, 1024, true, true);
+        buf1.putInt(100, 1);
+        MappedFileBuffer buf2 = buf1.clone();
+
+        // growth replaces the last segment; the clone must still see correct data
+        buf2.putInt(3000, 2);
+        assertEquals("original after growth", 1, buf1.getInt(100));
+        assertEquals("original sees clone write", 2, buf1.getInt(3000));
+
+        buf1.close();
+        buf2.close();
+        if (Boolean.TRUE.equals(isTestFileMapped()))
+            fail("file still mapped after close");
+
+        try
+        {
+            buf2.append(new byte[10]);
+            fail("able to append after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testTransferTo() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, false);
+
+        // range crosses several segments
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals("bytes transferred", 5000L, buf.transferTo(1000, 5000, Channels.newChannel(out)));
+
+        byte[] data = out.toByteArray();
+        assertEquals("bytes written", 5000, data.length);
+        for (int ii = 0 ; ii < data.length ; ii++)
+            assertEquals("byte " + ii, (byte)(1000 + ii), data[ii]);
+
+        try
+        {
+            buf.transferTo(8000, 193, Channels.newChannel(out));
+            fail("able to transfer past end of buffer");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testTransferFrom() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+
+        byte[] data = new byte[3000];
+        Arrays.fill(data, (byte)0x5A);
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(data));
+        assertEquals("bytes transferred", 3000L, buf.transferFrom(in, 1500, 3000));
+        assertEquals("before range", (byte)1499, buf.get(1499));
+        assertEquals("start of range", (byte)0x5A, buf.get(1500));
+        assertEquals("end of range", (byte)0x5A, buf.get(4499));
+        assertEquals("after range", (byte)4500, buf.get(4500));
+
+        // end-of-stream before length satisfied
+        in = Channels.newChannel(new ByteArrayInputStream(new byte[100]));
+        assertEquals("short transfer", 100L, buf.transferFrom(in, 0, 2000));
+        assertEquals("after short transfer", (byte)100, buf.get(100));
+    }
+
+
+    public void testTransferFromGrowsBuffer() throws Exception
+    {
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true, true);
+
+        byte[] data = new byte[2500];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)(ii % 13);
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(data));
+        assertEquals("bytes transferred", 2500L, buf.transferFrom(in, 100, 2500));
+        assertEquals("capacity", 3072L, buf.capacity());
+        assertTrue("content", Arrays.equals(data, buf.getBytes(100, 2500)));
+    }
+
+
+    public void testTransferFromReadOnlyBuffer() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, false);
+
+        try
+        {
+            buf.transferFrom(Channels.newChannel(new ByteArrayInputStream(new byte[10])), 0, 10);
+            fail("able to transfer into read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testLoadAndIsLoaded() throws Exception
+    {
+        writeDefaultContent(65536);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 16384, false);
+
+        // we can't force pages out of memory, so can only verify the positive case
+        buf.load(1000, 50000);
+        assertTrue("range is loaded", buf.isLoaded(1000, 50000));
+        assertTrue("empty range is loaded", buf.isLoaded(65536, 0));
+
+        try
+        {
+            buf.load(60000, 6000);
+            fail("able to load past end of buffer");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.isLoaded(-1, 10);
+            fail("able to check negative offset");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testPrefetch() throws Exception
+    {
+        writeDefaultContent(65536);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 16384, false);
+
+        Future<?> future = buf.prefetch(0, 65536);
+        future.get(5, TimeUnit.SECONDS);
+        assertTrue("future is done", future.isDone());
+        assertTrue("range is loaded", buf.isLoaded(0, 65536));
+
+        // a pending prefetch holds the mapping open, so closing the buffer is safe
+        future = buf.prefetch(0, 65536);
+        buf.close();
+        future.get(5, TimeUnit.SECONDS);
+
+        try
+        {
+            buf.prefetch(0, 1024);
+            fail("able to prefetch after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testForceRange() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+
+        // there's no way to verify that data was written to disk, so we verify
+        // that ranges crossing segments and at end of file are accepted
+        buf.putLong(1020, 0x0102030405060708L);
+        buf.force(1000, 5000);
+        buf.force(8000, 192);
+        buf.force(0, 0);
+
+        try
+        {
+            buf.force(8000, 193);
+            fail("able to force past end of buffer");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testDirtyTracking() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true, true);
+        MappedFileBuffer clone = buf.clone();
+
+        // no tracking, no dirty segments
+        buf.putInt(100, 1);
+        assertEquals("before tracking", 0, buf.forceDirty());
+
+        buf.startDirtyTracking(0, null);
+        buf.putInt(100, 1);
+        clone.putLong(1020, 2);                             // spans two segments
+        buf.putBytes(5000, new byte[10]);
+        assertEquals("after writes", 3, buf.forceDirty());
+        assertEquals("after flush", 0, buf.forceDirty());
+
+        // growth must preserve dirty flags and extend them
+        buf.putInt(3000, 1);
+        clone.append(new byte[3000]);
+        assertEquals("after growth", 4, clone.forceDirty());
+
+        buf.stopDirtyTracking();
+        buf.putInt(100, 1);
+        assertEquals("after tracking stopped", 0, buf.forceDirty());
+    }
+
+
+    public void testSharedConcurrentAccess() throws Exception
+    {
+        final int threadCount = 8;
+        final int regionSize = 8192;
+        writeDefaultContent(threadCount * regionSize);
+
+        // small segments, so that every thread crosses segment boundaries
+        final MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1000, true);
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int ii = 0 ; ii < threadCount ; ii++)
+        {
+            final long base = ii * regionSize;
+            threads[ii] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    byte[] bytes = new byte[100];
+                    for (int pass = 0 ; pass < 20 ; pass++)
+                    {
+                        for (long offset = base ; offset < base + regionSize ; offset += 8)
+                            buf.putLong(offset, offset * pass);
+                        for (long offset = base ; offset < base + regionSize ; offset += 8)
+                        {
+                            if (buf.getLong(offset) != offset * pass)
+                                failures.incrementAndGet();
+                        }
+                        for (long offset = base ; offset < base + regionSize - bytes.length ; offset += 500)
+                        {
+                            buf.getBytes(offset, bytes, 0, bytes.length);
+                            long value = 0;
+                            for (int ii = 0 ; ii < 8 ; ii++)
+                                value = (value << 8) | (bytes[ii] & 0xFF);
+                            if (buf.getLong(offset) != value)
+                                failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("failures", 0, failures.get());
+    }
+
+
+    public void testAtomicOperations() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+
+        // last long in the first segment, so the mapping covers it twice
+        buf.putLongVolatile(1016, 12L);
+        assertEquals("getLongVolatile",         12L, buf.getLongVolatile(1016));
+        assertEquals("getLong",                 12L, buf.getLong(1016));
+        assertFalse("CAS with wrong expect",    buf.compareAndSwapLong(1016, 11L, 13L));
+        assertEquals("after failed CAS",        12L, buf.getLong(1016));
+        assertTrue("CAS with right expect",     buf.compareAndSwapLong(1016, 12L, 13L));
+        assertEquals("after CAS",               13L, buf.getLong(1016));
+        assertEquals("getAndAddLong",           13L, buf.getAndAddLong(1016, 5L));
+        assertEquals("after getAndAddLong",     18L, buf.getLong(1016));
+
+        buf.putIntVolatile(2044, 0x12345678);
+        assertEquals("getIntVolatile",          0x12345678, buf.getIntVolatile(2044));
+        assertEquals("getInt",                  0x12345678, buf.getInt(2044));
+        assertTrue("compareAndSwapInt",         buf.compareAndSwapInt(2044, 0x12345678, 7));
+        assertEquals("getAndAddInt",            7, buf.getAndAddInt(2044, -10));
+        assertEquals("after getAndAddInt",      -3, buf.getInt(2044));
+
+        // atomic operations must agree with the buffer's byte order
+        buf.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        buf.putLongVolatile(4000, 0x0102030405060708L);
+        assertEquals("little-endian low byte",  0x08, buf.get(4000));
+        assertEquals("little-endian getLong",   0x0102030405060708L, buf.getLong(4000));
+        assertEquals("little-endian add",       0x0102030405060708L, buf.getAndAddLong(4000, 1L));
+        assertEquals("little-endian result",    0x0102030405060709L, buf.getLong(4000));
+        assertTrue("little-endian CAS",         buf.compareAndSwapLong(4000, 0x0102030405060709L, 1L));
+        assertEquals("little-endian after CAS", 1, buf.get(4000));
+    }
+
+
+    public void testAtomicOperationFailures() throws Exception
+    {
+        writeDefaultContent(8192);
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+
+        try
+        {
+            buf.getAndAddLong(1020, 1L);
+            fail("allowed misaligned access");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.getLongVolatile(8192);
+            fail("allowed access past end of file");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        MappedFileBuffer readOnly = new MappedFileBuffer(_testFile, 1024, false);
+        assertEquals("read from read-only buffer", buf.getLong(8), readOnly.getLongVolatile(8));
+        try
+        {
+            readOnly.compareAndSwapLong(8, 0L, 1L);
+            fail("allowed atomic write to read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testAtomicOperationsOnGrowableBuffer() throws Exception
+    {
+        MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true, true);
+        assertTrue("CAS on new space", buf.compareAndSwapLong(3000, 0L, 17L));
+        assertEquals("capacity", 3072L, buf.capacity());
+        assertEquals("value", 17L, buf.getLong(3000));
+    }
+
+
+    public void testConcurrentAtomicCounter() throws Exception
+    {
+        final int threadCount = 8;
+        final int increments = 10000;
+
+        writeDefaultContent(8192);
+        final MappedFileBuffer buf = new MappedFileBuffer(_testFile, 1024, true);
+        final MappedFileBuffer clone = buf.clone();
+        buf.putLong(1016, 0L);
+        buf.putInt(2000, 0);
+
+        Thread[] threads = new Thread[threadCount];
+        for (int ii = 0 ; ii < threadCount ; ii++)
+        {
+            // half the threads use the clone, to verify that it shares the memory
+            final MappedFileBuffer threadBuf = (ii % 2 == 0) ? buf : clone;
+            threads[ii] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int jj = 0 ; jj < increments ; jj++)
+                    {
+                        threadBuf.getAndAddLong(1016, 1L);
+
+                        int value;
+                        do
+                        {
+                            value = threadBuf.getIntVolatile(2000);
+                        }
+                        while (! threadBuf.compareAndSwapInt(2000, value, value + 2));
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("long counter", (long)threadCount * increments, buf.getLongVolatile(1016));
+        assertEquals("int counter", threadCount * increments * 2, buf.getIntVolatile(2000));
+    }
 }
@@ -0,0 +1,173 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ReadOnlyBufferException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+
+public class TestMappedFileBufferFlusher
+extends TestCase
+{
+    private File _testFile;
+    private MappedFileBuffer _buf;
+
+
+    @Override
+    protected void setUp()
+    throws IOException
+    {
+        _testFile = File.createTempFile("TestMappedFileBufferFlusher", ".tmp");
+        _testFile.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(_testFile, "rw");
+        raf.setLength(8192);
+        raf.close();
+
+        _buf = new MappedFileBuffer(_testFile, 1024, true);
+    }
+
+
+    @Override
+    protected void tearDown()
+    throws IOException
+    {
+        _buf.close();
+        _testFile.delete();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Support Code
+//----------------------------------------------------------------------------
+
+    private static void waitForFlushCount(MappedFileBufferFlusher flusher, long expected)
+    throws Exception
+    {
+        long timeout = System.currentTimeMillis() + 5000;
+        while ((flusher.getFlushCount() < expected) && (System.currentTimeMillis() < timeout))
+            Thread.sleep(10);
+        assertTrue("flush count reached " + expected, flusher.getFlushCount() >= expected);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test Cases
+//----------------------------------------------------------------------------
+
+    public void testThresholdFlush() throws Exception
+    {
+        MappedFileBufferFlusher flusher = new MappedFileBufferFlusher(_buf, 0, TimeUnit.MILLISECONDS, 1000);
+
+        _buf.putBytes(0, new byte[999]);
+        Thread.sleep(100);
+        assertEquals("below threshold", 0, flusher.getFlushCount());
+
+        _buf.put(999, (byte)1);
+        waitForFlushCount(flusher, 1);
+
+        // the byte count resets after a flush
+        _buf.putBytes(2000, new byte[500]);
+        Thread.sleep(100);
+        assertEquals("below threshold after flush", 1, flusher.getFlushCount());
+
+        flusher.close();
+        assertEquals("final flush", 2, flusher.getFlushCount());
+    }
+
+
+    public void testIntervalFlush() throws Exception
+    {
+        MappedFileBufferFlusher flusher = new MappedFileBufferFlusher(_buf, 20, TimeUnit.MILLISECONDS, 0);
+
+        _buf.putInt(100, 12);
+        waitForFlushCount(flusher, 3);
+
+        flusher.close();
+    }
+
+
+    public void testRequestFlush() throws Exception
+    {
+        MappedFileBufferFlusher flusher = new MappedFileBufferFlusher(_buf, 1, TimeUnit.HOURS, 0);
+
+        _buf.putInt(100, 12);
+        flusher.requestFlush();
+        waitForFlushCount(flusher, 1);
+
+        flusher.close();
+    }
+
+
+    public void testFlusherHoldsMapping() throws Exception
+    {
+        MappedFileBuffer clone = _buf.clone();
+        MappedFileBufferFlusher flusher = new MappedFileBufferFlusher(clone, 0, TimeUnit.MILLISECONDS, 100);
+        clone.close();
+
+        _buf.putBytes(0, new byte[200]);
+        waitForFlushCount(flusher, 1);
+        flusher.close();
+
+        // the original buffer is unaffected
+        _buf.putInt(0, 12);
+        assertEquals(12, _buf.getInt(0));
+    }
+
+
+    public void testInvalidConfiguration() throws Exception
+    {
+        try
+        {
+            new MappedFileBufferFlusher(_buf, 0, TimeUnit.MILLISECONDS, 0);
+            fail("created flusher without interval or threshold");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        MappedFileBufferFlusher flusher = new MappedFileBufferFlusher(_buf, 1, TimeUnit.SECONDS, 0);
+        MappedFileBuffer clone = _buf.clone();
+        try
+        {
+            new MappedFileBufferFlusher(clone, 1, TimeUnit.SECONDS, 0);
+            fail("created second flusher for same mapping");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+        clone.close();
+        flusher.close();
+
+        MappedFileBuffer readOnly = new MappedFileBuffer(_testFile, 1024, false);
+        try
+        {
+            new MappedFileBufferFlusher(readOnly, 1, TimeUnit.SECONDS, 0);
+            fail("created flusher for read-only buffer");
+        }
+        catch (ReadOnlyBufferException ex)
+        {
+            // success
+        }
+        readOnly.close();
+    }
+}
@@ -83,4 +83,33 @@ extends TestCase
         assertEquals(testVal, r1.myValue);
         assertEquals(testVal, r2.myValue);
     }
+
+
+    public void testClose()
+    throws Exception
+    {
+        File tempFile = File.createTempFile("TestMappedFileBufferThreadLocal", "tmp");
+        tempFile.deleteOnExit();
+        FileOutputStream tempOut = new FileOutputStream(tempFile);
+        tempOut.write(new byte[1024]);
+        tempOut.close();
+
+        MappedFileBuffer buf = new MappedFileBuffer(tempFile, true);
+        _tl = new MappedFileBufferThreadLocal(buf);
+
+        MyRunnable r1 = new MyRunnable();
+        Thread t1 = new Thread(r1);
+        t1.start();
+        t1.join();
+
+        MappedFileBuffer local = _tl.get();
+        _tl.close();
+
+        assertTrue(r1.myBuffer.isClosed());
+        assertTrue(local.isClosed());
+        assertFalse(buf.isClosed());
+
+        buf.close();
+        tempFile.delete();
+    }
 }
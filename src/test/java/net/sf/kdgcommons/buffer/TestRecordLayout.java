@@ -0,0 +1,287 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+
+public class TestRecordLayout
+extends TestCase
+{
+    public void testFixedLayout() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        RecordLayout.IntField id = layout.addInt();
+        RecordLayout.LongField ts = layout.addLong();
+        RecordLayout.DoubleField price = layout.addDouble();
+        RecordLayout.StringField name = layout.addString(10);
+
+        assertFalse("isVariable",                   layout.isVariable());
+        assertEquals("fixed size",                  32, layout.fixedSize());
+        assertEquals("id offset",                   0, id.offset());
+        assertEquals("ts offset",                   4, ts.offset());
+        assertEquals("price offset",                12, price.offset());
+        assertEquals("name offset",                 20, name.offset());
+
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        BufferFacade buf = BufferFacadeFactory.create(bb);
+        RecordLayout.Record rec = layout.newRecord(buf, 16);
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            rec.moveTo(ii);
+            id.set(rec, ii);
+            ts.set(rec, ii * 1000L);
+            price.set(rec, ii + 0.5);
+            name.set(rec, "name" + ii);
+        }
+
+        // verify layout by direct access
+        assertEquals("record 3 id, raw",            3, bb.getInt(16 + 3 * 32));
+        assertEquals("record 3 ts, raw",            3000L, bb.getLong(16 + 3 * 32 + 4));
+
+        StringBuilder sb = new StringBuilder();
+        for (int ii = 9 ; ii >= 0 ; ii--)
+        {
+            assertSame("moveTo returns record",     rec, rec.moveTo(ii));
+            assertEquals("index",                   ii, rec.index());
+            assertEquals("offset",                  16 + ii * 32L, rec.offset());
+            assertEquals("id " + ii,                ii, id.get(rec));
+            assertEquals("ts " + ii,                ii * 1000L, ts.get(rec));
+            assertEquals("price " + ii,             ii + 0.5, price.get(rec), 0.0);
+            assertEquals("name " + ii,              "name" + ii, name.getString(rec));
+            assertEquals("name length " + ii,       5, name.byteLength(rec));
+
+            sb.setLength(0);
+            assertEquals("chars appended",          5, name.get(rec, sb));
+            assertEquals("name via StringBuilder",  "name" + ii, sb.toString());
+        }
+    }
+
+
+    public void testFixedLayoutByteOrder() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        RecordLayout.IntField field = layout.addInt();
+
+        ByteBuffer bb = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        RecordLayout.Record rec = layout.newRecord(BufferFacadeFactory.create(bb), 0);
+        field.set(rec.moveTo(1), 0x12345678);
+        assertEquals("first byte of value",         0x78, bb.get(4));
+    }
+
+
+    public void testStringFieldLimits() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        RecordLayout.StringField name = layout.addString(4);
+        RecordLayout.Record rec = layout.newRecord(BufferFacadeFactory.create(ByteBuffer.allocate(64)), 0);
+
+        name.set(rec, "\u00e7\u00e7");
+        assertEquals("multi-byte value",            "\u00e7\u00e7", name.getString(rec));
+        assertEquals("byte length",                 4, name.byteLength(rec));
+
+        name.set(rec, "");
+        assertEquals("empty value",                 "", name.getString(rec));
+
+        try
+        {
+            name.set(rec, "abc\u00e7");
+            fail("accepted string too long for field");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            layout.addString(65536);
+            fail("accepted oversize string field");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testLayoutFrozenOnUse() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        layout.addInt();
+        layout.newRecord(BufferFacadeFactory.create(ByteBuffer.allocate(64)), 0);
+
+        try
+        {
+            layout.addLong();
+            fail("able to add field after layout was used");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testVariableLayoutRequiresCursor() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        layout.addInt();
+        layout.addVarString();
+        assertTrue("isVariable", layout.isVariable());
+
+        try
+        {
+            layout.newRecord(BufferFacadeFactory.create(ByteBuffer.allocate(64)), 0);
+            fail("created fixed-width record for variable layout");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testCursorAppendAndScan() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        RecordLayout.IntField id = layout.addInt();
+        RecordLayout.StringField code = layout.addString(4);
+        RecordLayout.VarStringField name = layout.addVarString();
+        RecordLayout.VarStringField desc = layout.addVarString();
+
+        SlabBuffer buf = new SlabBuffer(64);
+        RecordLayout.Cursor cursor = layout.newCursor(buf, 8, 8);
+        assertFalse("empty cursor",                 cursor.next());
+
+        String[] names = new String[] { "alpha", "", "gamma \u2727", "delta, which is longer than a slab" };
+        for (int ii = 0 ; ii < names.length ; ii++)
+        {
+            cursor.beginAppend();
+            id.set(cursor, ii);
+            if (ii != 2)
+                code.set(cursor, "C" + ii);
+            name.set(cursor, names[ii]);
+            desc.set(cursor, "desc" + ii);
+            cursor.endAppend();
+            assertEquals("index after append " + ii, ii, cursor.index());
+            assertEquals("name after append " + ii, names[ii], name.getString(cursor));
+        }
+        long end = cursor.end();
+        assertTrue("end advanced",                  end > 8);
+
+        // a new cursor reads what the first one wrote
+        RecordLayout.Cursor reader = layout.newCursor(buf, 8, end);
+        StringBuilder sb = new StringBuilder();
+        for (int ii = 0 ; ii < names.length ; ii++)
+        {
+            assertTrue("next " + ii,                reader.next());
+            assertEquals("index " + ii,             ii, reader.index());
+            assertEquals("id " + ii,                ii, id.get(reader));
+            assertEquals("code " + ii,              (ii != 2) ? "C" + ii : "", code.getString(reader));
+            assertEquals("desc " + ii,              "desc" + ii, desc.getString(reader));
+            sb.setLength(0);
+            name.get(reader, sb);
+            assertEquals("name " + ii,              names[ii], sb.toString());
+            assertEquals("name bytes " + ii,        BufferUtil.utf8Length(names[ii]), name.byteLength(reader));
+        }
+        assertFalse("no more records",              reader.next());
+
+        reader.reset();
+        assertTrue("next after reset",              reader.next());
+        assertEquals("id after reset",              0, id.get(reader));
+    }
+
+
+    public void testCursorAppendErrors() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        RecordLayout.VarStringField first = layout.addVarString();
+        RecordLayout.VarStringField second = layout.addVarString();
+        RecordLayout.Cursor cursor = layout.newCursor(new SlabBuffer(64), 0, 0);
+
+        try
+        {
+            first.set(cursor, "foo");
+            fail("able to set variable field when not appending");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        cursor.beginAppend();
+        try
+        {
+            second.set(cursor, "foo");
+            fail("able to set variable fields out of order");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        first.set(cursor, "foo");
+        try
+        {
+            cursor.endAppend();
+            fail("able to end append without setting all fields");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            cursor.next();
+            fail("able to advance during append");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        second.set(cursor, "bar");
+        cursor.endAppend();
+
+        // cursors can't be moved by index, so aren't records
+        assertFalse("cursor is not a record", RecordLayout.Record.class.isAssignableFrom(RecordLayout.Cursor.class));
+    }
+
+
+    public void testCursorDetectsCorruptLength() throws Exception
+    {
+        RecordLayout layout = new RecordLayout();
+        layout.addLong();
+
+        BufferFacade buf = BufferFacadeFactory.create(ByteBuffer.allocate(64));
+        buf.putInt(0, 100);
+        RecordLayout.Cursor cursor = layout.newCursor(buf, 0, 64);
+        try
+        {
+            cursor.next();
+            fail("accepted record extending past end");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+}
@@ -0,0 +1,301 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+
+public class TestSlabBuffer
+extends TestCase
+{
+    public void testConstruction() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+        assertEquals("slab size",                   64, buf.slabSize());
+        assertEquals("initial capacity",            0L, buf.capacity());
+
+        SlabBuffer buf2 = new SlabBuffer(64, 100);
+        assertEquals("preallocated capacity",       128L, buf2.capacity());
+        assertEquals("preallocated limit",          128L, buf2.limit());
+        assertEquals("allocated",                   128L, buf2.allocated());
+
+        try
+        {
+            new SlabBuffer(100);
+            fail("accepted slab size that isn't power of 2");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            new SlabBuffer(4);
+            fail("accepted slab size smaller than a long");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testGrowOnWrite() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+
+        buf.putInt(0, 0x12345678);
+        assertEquals("capacity after first write",  64L, buf.capacity());
+
+        buf.putLong(1000, 0x1122334455667788L);
+        assertEquals("capacity after second write", 1024L, buf.capacity());
+
+        assertEquals("first value",                 0x12345678, buf.getInt(0));
+        assertEquals("second value",                0x1122334455667788L, buf.getLong(1000));
+        assertEquals("untouched memory is zeroed",  0L, buf.getLong(512));
+
+        try
+        {
+            buf.get(1024);
+            fail("able to read past capacity");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.put(-1, (byte)1);
+            fail("able to write at negative index");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testSpanningValues() throws Exception
+    {
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN })
+        {
+            SlabBuffer buf = new SlabBuffer(16);
+            buf.setByteOrder(order);
+            ByteBuffer ref = ByteBuffer.allocate(64).order(order);
+
+            buf.putShort(15, (short)0x1234);
+            ref.putShort(15, (short)0x1234);
+            buf.putInt(29, 0x89ABCDEF);
+            ref.putInt(29, 0x89ABCDEF);
+            buf.putLong(42, 0x8877665544332211L);
+            ref.putLong(42, 0x8877665544332211L);
+            buf.putDouble(55, Math.PI);
+            ref.putDouble(55, Math.PI);
+
+            for (int ii = 0 ; ii < 63 ; ii++)
+                assertEquals(order + ", byte " + ii, ref.get(ii), buf.get(ii));
+
+            assertEquals(order + ", short",         (short)0x1234, buf.getShort(15));
+            assertEquals(order + ", char",          (char)0x1234, buf.getChar(15));
+            assertEquals(order + ", int",           0x89ABCDEF, buf.getInt(29));
+            assertEquals(order + ", float",         Float.intBitsToFloat(0x89ABCDEF), buf.getFloat(29), 0.0f);
+            assertEquals(order + ", long",          0x8877665544332211L, buf.getLong(42));
+            assertEquals(order + ", double",        Math.PI, buf.getDouble(55), 0.0);
+        }
+    }
+
+
+    public void testBulkOperations() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64);
+
+        byte[] bytes = new byte[300];
+        for (int ii = 0 ; ii < bytes.length ; ii++)
+            bytes[ii] = (byte)(ii * 7);
+        buf.putBytes(3, bytes);
+        byte[] bytesOut = buf.getBytes(3, 300);
+        for (int ii = 0 ; ii < bytes.length ; ii++)
+            assertEquals("byte " + ii, bytes[ii], bytesOut[ii]);
+
+        // odd offset means that some values span slabs
+        int[] ints = new int[100];
+        for (int ii = 0 ; ii < ints.length ; ii++)
+            ints[ii] = ii * 0x01010101;
+        buf.putInts(1001, ints, 0, ints.length);
+        int[] intsOut = buf.getInts(1001, new int[ints.length], 0, ints.length);
+        for (int ii = 0 ; ii < ints.length ; ii++)
+        {
+            assertEquals("int " + ii,               ints[ii], intsOut[ii]);
+            assertEquals("int " + ii + " single",   ints[ii], buf.getInt(1001 + ii * 4));
+        }
+
+        double[] doubles = new double[] { 1.5, 2.5, 3.5, 4.5 };
+        buf.putDoubles(2048, doubles, 1, 2);
+        double[] doublesOut = buf.getDoubles(2048, new double[4], 2, 2);
+        assertEquals("double 0",                    2.5, doublesOut[2], 0.0);
+        assertEquals("double 1",                    3.5, doublesOut[3], 0.0);
+
+        try
+        {
+            buf.getLongs(buf.capacity() - 8, new long[2], 0, 2);
+            fail("able to bulk read past capacity");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testSlice() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64, 128);
+        buf.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(68, 0x12345678);
+
+        ByteBuffer slice = buf.slice(68);
+        assertEquals("slice limit",                 60, slice.limit());
+        assertEquals("slice byte order",            ByteOrder.LITTLE_ENDIAN, slice.order());
+        assertEquals("slice content",               0x12345678, slice.getInt(0));
+
+        slice.putInt(4, 0x23456789);
+        assertEquals("slice shares content",        0x23456789, buf.getInt(72));
+    }
+
+
+    public void testTruncate() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64, 640);
+        buf.putInt(60, 12345);
+
+        buf.truncate(100);
+        assertEquals("capacity after truncate",     128L, buf.capacity());
+        assertEquals("data retained",               12345, buf.getInt(60));
+
+        try
+        {
+            buf.get(128);
+            fail("able to read past truncated capacity");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        buf.truncate(1000);
+        assertEquals("truncate doesn't expand",     128L, buf.capacity());
+
+        buf.put(200, (byte)1);
+        assertEquals("capacity after write",        256L, buf.capacity());
+        assertEquals("reallocated memory is zeroed", 0, buf.getInt(128));
+    }
+
+
+    public void testFree() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64, 512);
+        buf.putLong(0, 1L);
+        buf.putLong(128, 2L);
+        buf.putLong(200, 3L);
+
+        // only slabs 1 and 2 are wholly contained
+        buf.free(10, 190);
+        assertEquals("capacity unchanged",          512L, buf.capacity());
+        assertEquals("allocated",                   384L, buf.allocated());
+        assertEquals("value before freed range",    1L, buf.getLong(0));
+        assertEquals("value after freed range",     3L, buf.getLong(200));
+
+        try
+        {
+            buf.getLong(128);
+            fail("able to read freed slab");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        buf.putLong(136, 4L);
+        assertEquals("allocated after write",       448L, buf.allocated());
+        assertEquals("rewritten value",             4L, buf.getLong(136));
+        assertEquals("reallocated slab is zeroed",  0L, buf.getLong(128));
+    }
+
+
+    public void testClose() throws Exception
+    {
+        SlabBuffer buf = new SlabBuffer(64, 128);
+        buf.close();
+        buf.close();    // second close has no effect
+        assertTrue("isClosed", buf.isClosed());
+
+        try
+        {
+            buf.get(0);
+            fail("able to read after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            buf.put(0, (byte)1);
+            fail("able to write after close");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testConcurrentGrowth() throws Exception
+    {
+        final SlabBuffer buf = new SlabBuffer(256);
+        final int perThread = 10000;
+        final int threadCount = 4;
+        Thread[] threads = new Thread[threadCount];
+        for (int ii = 0 ; ii < threads.length ; ii++)
+        {
+            final int base = ii;
+            threads[ii] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int jj = 0 ; jj < perThread ; jj++)
+                    {
+                        long slot = (long)jj * threadCount + base;
+                        buf.putLong(slot * 8, slot);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        for (long slot = 0 ; slot < perThread * threads.length ; slot++)
+            assertEquals("slot " + slot, slot, buf.getLong(slot * 8));
+    }
+}
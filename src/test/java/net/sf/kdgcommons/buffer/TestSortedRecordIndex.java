@@ -0,0 +1,259 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package net.sf.kdgcommons.buffer;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+public class TestSortedRecordIndex
+extends TestCase
+{
+//----------------------------------------------------------------------------
+//  Support Code
+//----------------------------------------------------------------------------
+
+    // records are 16 bytes: 4 bytes of payload, 8 bytes of key, 4 bytes of payload
+    private final static int RECORD_SIZE = 16;
+    private final static int KEY_OFFSET = 4;
+
+
+    /**
+     *  Writes records with the given keys; the payload of each record is its
+     *  original position, so that we can verify that records move as a unit.
+     */
+    private static void writeRecords(BufferFacade buf, long base, long[] keys)
+    {
+        for (int ii = 0 ; ii < keys.length ; ii++)
+        {
+            long off = base + (long)ii * RECORD_SIZE;
+            buf.putInt(off, ii);
+            buf.putLong(off + KEY_OFFSET, keys[ii]);
+            buf.putInt(off + KEY_OFFSET + 8, ~ii);
+        }
+    }
+
+
+    private static void assertSortedRecords(SortedRecordIndex index, BufferFacade buf, long[] origKeys)
+    {
+        long[] expected = origKeys.clone();
+        Arrays.sort(expected);
+
+        for (int ii = 0 ; ii < expected.length ; ii++)
+        {
+            long off = index.offset(ii);
+            int origPos = buf.getInt(off);
+            assertEquals("key at " + ii,        expected[ii], index.getKey(ii));
+            assertEquals("payload at " + ii,    origKeys[origPos], buf.getLong(off + KEY_OFFSET));
+            assertEquals("trailer at " + ii,    ~origPos, buf.getInt(off + KEY_OFFSET + 8));
+        }
+        assertTrue("isSorted", index.isSorted());
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test Cases
+//----------------------------------------------------------------------------
+
+    public void testSortAndFind() throws Exception
+    {
+        long[] keys = new long[] { 50, -3, 17, 9, Long.MAX_VALUE, 0, Long.MIN_VALUE, 22 };
+        BufferFacade buf = BufferFacadeFactory.create(ByteBuffer.allocate(256));
+        writeRecords(buf, 32, keys);
+
+        SortedRecordIndex index = new SortedRecordIndex(buf, 32, RECORD_SIZE, KEY_OFFSET, keys.length);
+        assertEquals("count",                   keys.length, index.count());
+        assertEquals("recordSize",              RECORD_SIZE, index.recordSize());
+        assertFalse("isSorted before sort",     index.isSorted());
+
+        index.sort();
+        assertSortedRecords(index, buf, keys);
+
+        assertEquals("find MIN_VALUE",          0, index.find(Long.MIN_VALUE));
+        assertEquals("find 17",                 4, index.find(17));
+        assertEquals("find MAX_VALUE",          7, index.find(Long.MAX_VALUE));
+        assertEquals("find missing, middle",    -5, index.find(10));
+        assertEquals("find missing, end",       -8, index.find(51));
+    }
+
+
+    public void testRandomSort() throws Exception
+    {
+        Random rnd = new Random(12345);
+        long[] keys = new long[1000];
+        for (int ii = 0 ; ii < keys.length ; ii++)
+            keys[ii] = rnd.nextInt(500) - 250;
+
+        BufferFacade buf = BufferFacadeFactory.create(ByteBuffer.allocateDirect(keys.length * RECORD_SIZE));
+        writeRecords(buf, 0, keys);
+
+        SortedRecordIndex index = new SortedRecordIndex(buf, 0, RECORD_SIZE, KEY_OFFSET, keys.length);
+        index.sort();
+        assertSortedRecords(index, buf, keys);
+
+        for (int ii = 0 ; ii < keys.length ; ii++)
+        {
+            int found = index.find(keys[ii]);
+            assertTrue("found " + keys[ii],                 found >= 0);
+            assertEquals("key of found record",             keys[ii], index.getKey(found));
+            assertTrue("found is first match",              (found == 0) || (index.getKey(found - 1) < keys[ii]));
+        }
+    }
+
+
+    public void testBounds() throws Exception
+    {
+        long[] keys = new long[] { 10, 20, 20, 20, 30 };
+        BufferFacade buf = BufferFacadeFactory.create(ByteBuffer.allocate(keys.length * RECORD_SIZE));
+        writeRecords(buf, 0, keys);
+        SortedRecordIndex index = new SortedRecordIndex(buf, 0, RECORD_SIZE, KEY_OFFSET, keys.length);
+
+        assertEquals("find duplicate",          1, index.find(20));
+        assertEquals("lowerBound, before all",  0, index.lowerBound(5));
+        assertEquals("lowerBound, match",       1, index.lowerBound(20));
+        assertEquals("lowerBound, missing",     4, index.lowerBound(25));
+        assertEquals("lowerBound, after all",   5, index.lowerBound(35));
+        assertEquals("upperBound, before all",  0, index.upperBound(5));
+        assertEquals("upperBound, match",       4, index.upperBound(20));
+        assertEquals("upperBound, last",        5, index.upperBound(30));
+        assertEquals("upperBound, MAX_VALUE",   5, index.upperBound(Long.MAX_VALUE));
+    }
+
+
+    public void testRangeScan() throws Exception
+    {
+        long[] keys = new long[] { 60, 10, 40, 20, 50, 30, 30 };
+        BufferFacade buf = BufferFacadeFactory.create(ByteBuffer.allocate(keys.length * RECORD_SIZE));
+        writeRecords(buf, 0, keys);
+        SortedRecordIndex index = new SortedRecordIndex(buf, 0, RECORD_SIZE, KEY_OFFSET, keys.length);
+        index.sort();
+
+        SortedRecordIndex.Cursor cursor = index.newCursor();
+        int count = 0;
+        while (cursor.next())
+        {
+            assertEquals("full scan index",     count, cursor.index());
+            assertEquals("full scan offset",    count * RECORD_SIZE, cursor.offset());
+            count++;
+        }
+        assertEquals("full scan count",         keys.length, count);
+
+        assertEquals("seek, inclusive",         4, cursor.seek(20, 40));
+        long[] expected = new long[] { 20, 30, 30, 40 };
+        for (int ii = 0 ; ii < expected.length ; ii++)
+        {
+            assertTrue("has record " + ii,      cursor.next());
+            assertEquals("key " + ii,           expected[ii], cursor.key());
+        }
+        assertFalse("end of range",             cursor.next());
+
+        assertEquals("seek, between keys",     0, cursor.seek(31, 39));
+        assertFalse("empty range",              cursor.next());
+
+        assertEquals("seek, reversed",          0, cursor.seek(40, 20));
+        assertFalse("reversed range",           cursor.next());
+
+        assertEquals("seek, all",               7, cursor.seek(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertTrue("first of all",              cursor.next());
+        assertEquals("first key",               10, cursor.key());
+
+        cursor.reset();
+        assertTrue("after reset",               cursor.next());
+        assertEquals("index after reset",       0, cursor.index());
+    }
+
+
+    public void testEmptyIndex() throws Exception
+    {
+        BufferFacade buf = BufferFacadeFactory.create(ByteBuffer.allocate(16));
+        SortedRecordIndex index = new SortedRecordIndex(buf, 0, RECORD_SIZE, KEY_OFFSET, 0);
+        index.sort();
+
+        assertTrue("isSorted",                  index.isSorted());
+        assertEquals("find",                    -1, index.find(12));
+        assertEquals("lowerBound",              0, index.lowerBound(12));
+        assertEquals("upperBound",              0, index.upperBound(12));
+        assertEquals("seek",                    0, index.newCursor().seek(0, 100));
+    }
+
+
+    public void testInvalidConstruction() throws Exception
+    {
+        BufferFacade buf = BufferFacadeFactory.create(ByteBuffer.allocate(64));
+        try
+        {
+            new SortedRecordIndex(buf, 0, 8, 4, 2);
+            fail("accepted key that extends past record");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            new SortedRecordIndex(buf, 16, 16, 0, 4);
+            fail("accepted records that extend past buffer");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testMappedFile() throws Exception
+    {
+        File file = File.createTempFile("TestSortedRecordIndex", ".tmp");
+        file.deleteOnExit();
+        try
+        {
+            int count = 4096;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(count * RECORD_SIZE);
+            raf.close();
+
+            Random rnd = new Random(54321);
+            long[] keys = new long[count];
+            for (int ii = 0 ; ii < count ; ii++)
+                keys[ii] = rnd.nextLong();
+
+            // small segments, so that records cross segment boundaries
+            MappedFileBuffer buf = new MappedFileBuffer(file, 1000, true);
+            writeRecords(buf, 0, keys);
+            new SortedRecordIndex(buf, 0, RECORD_SIZE, KEY_OFFSET, count).sort();
+            buf.force();
+            buf.close();
+
+            // reopen read-only and verify that the sort persisted
+            MappedFileBuffer buf2 = new MappedFileBuffer(file, false);
+            SortedRecordIndex index = new SortedRecordIndex(buf2, 0, RECORD_SIZE, KEY_OFFSET, count);
+            assertSortedRecords(index, buf2, keys);
+            for (long key : keys)
+                assertEquals("lookup " + key,   key, index.getKey(index.find(key)));
+            buf2.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -14,15 +14,112 @@
 
 package net.sf.kdgcommons.codec;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 import net.sf.kdgcommons.codec.Base64Codec.Option;
+import net.sf.kdgcommons.lang.StringUtil;
 import net.sf.kdgcommons.test.ArrayAsserts;
 
 
 public class TestBase64Codec
 extends TestCase
 {
+//----------------------------------------------------------------------------
+//  Support Code
+//----------------------------------------------------------------------------
+
+    /**
+     *  An input stream that returns at most 7 bytes per read, to exercise
+     *  chunk refills.
+     */
+    private static class TrickleInputStream
+    extends FilterInputStream
+    {
+        public TrickleInputStream(byte[] data)
+        {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return super.read(b, off, Math.min(len, 7));
+        }
+    }
+
+
+    private static byte[] randomBytes(int size, long seed)
+    {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+
+    private static byte[] streamEncode(Base64Codec codec, InputStream in)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(in, out);
+        return out.toByteArray();
+    }
+
+
+    private static byte[] streamDecode(Base64Codec codec, InputStream in)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.decode(in, out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     *  Encodes and decodes the passed data using all of the array, buffer, and
+     *  stream methods, and verifies that they produce the same results.
+     */
+    private static void assertAllPathsEquivalent(String msg, Base64Codec codec, byte[] data)
+    {
+        byte[] encoded = codec.encode(data, 0, data.length);
+        assertEquals(msg + ": encodedLength", encoded.length, codec.encodedLength(data.length));
+
+        ArrayAsserts.assertEquals(msg + ": stream encode", encoded, streamEncode(codec, new TrickleInputStream(data)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length + 10);
+        direct.position(5);
+        assertEquals(msg + ": direct encode count", encoded.length, codec.encode(ByteBuffer.wrap(data), direct));
+        assertEquals(msg + ": direct encode position", encoded.length + 5, direct.position());
+        byte[] fromDirect = new byte[encoded.length];
+        direct.position(5);
+        direct.get(fromDirect);
+        ArrayAsserts.assertEquals(msg + ": direct encode", encoded, fromDirect);
+
+        ArrayAsserts.assertEquals(msg + ": array decode", data, codec.decode(encoded, 0, encoded.length));
+        ArrayAsserts.assertEquals(msg + ": stream decode", data, streamDecode(codec, new TrickleInputStream(encoded)));
+
+        direct.position(5);
+        direct.limit(5 + encoded.length);
+        ByteBuffer decoded = ByteBuffer.allocateDirect(data.length);
+        assertEquals(msg + ": direct decode count", data.length, codec.decode(direct, decoded));
+        assertFalse(msg + ": direct decode consumed source", direct.hasRemaining());
+        byte[] fromDecoded = new byte[data.length];
+        decoded.flip();
+        decoded.get(fromDecoded);
+        ArrayAsserts.assertEquals(msg + ": direct decode", data, fromDecoded);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test Cases
+//----------------------------------------------------------------------------
+
     public void testNullArray() throws Exception
     {
         Base64Codec codec = new Base64Codec();
@@ -221,4 +318,238 @@ extends TestCase
             // success
         }
     }
-}
\ No newline at end of file
+
+
+    public void testRFC1421LineBreaks() throws Exception
+    {
+        Base64Codec codec = new Base64Codec(Option.RFC1421);
+
+        // 48 bytes fill exactly one 64-character line
+        String str1 = codec.toString(new byte[48]);
+        assertEquals("one line", 64, str1.length());
+        assertEquals("no separator", -1, str1.indexOf("\r\n"));
+
+        // and the next byte starts a new line
+        String str2 = codec.toString(new byte[49]);
+        assertEquals("two lines", 64 + 2 + 4, str2.length());
+        assertEquals("separator position", 64, str2.indexOf("\r\n"));
+        assertEquals("last group", "AA==", str2.substring(66));
+    }
+
+
+    public void testLineLengthNotMultipleOfGroup() throws Exception
+    {
+        // lines are rounded up to a full group
+        Base64Codec codec = new Base64Codec(6, "-");
+
+        byte[] src = new byte[] { 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC, (byte)0xDE, (byte)0xF0 };
+        String str = codec.toString(src);
+        assertEquals("conversion to string", "EjRWeJq8-3vA=", str);
+        assertEquals("encodedLength", str.length(), codec.encodedLength(src.length));
+
+        byte[] dst = codec.toBytes(str);
+        ArrayAsserts.assertEquals("conversion to byte[]", src, dst);
+    }
+
+
+    public void testAllPathsEquivalent() throws Exception
+    {
+        // sizes chosen to cover partial groups, and data that spans the internal chunk size
+        int[] sizes = new int[] { 1, 2, 3, 4, 47, 48, 49, 12287, 12288, 12289, 100000 };
+        Base64Codec[] codecs = new Base64Codec[]
+        {
+            new Base64Codec(Option.UNBROKEN),
+            new Base64Codec(Option.RFC1421),
+            new Base64Codec(Option.FILENAME),
+            new Base64Codec(10, "XYZ")
+        };
+
+        for (int ii = 0 ; ii < codecs.length ; ii++)
+        {
+            for (int size : sizes)
+            {
+                assertAllPathsEquivalent("codec " + ii + ", size " + size, codecs[ii], randomBytes(size, size));
+            }
+        }
+    }
+
+
+    public void testStreamDecodeWithSeparatorSpanningChunks() throws Exception
+    {
+        // leading whitespace shifts the separators relative to the decoder's
+        // internal chunks; for some of these offsets a separator will span two
+        // chunks, and if not handled will be decoded as data
+        Base64Codec codec = new Base64Codec(4, "XYZ");
+        byte[] data = randomBytes(20000, 20000);
+        String encoded = codec.toString(data);
+
+        for (int ii = 0 ; ii < 7 ; ii++)
+        {
+            byte[] src = StringUtil.toUTF8(StringUtil.repeat(' ', ii) + encoded);
+            ArrayAsserts.assertEquals("offset " + ii, data, streamDecode(codec, new ByteArrayInputStream(src)));
+
+            ByteBuffer buf = ByteBuffer.allocateDirect(src.length);
+            buf.put(src).flip();
+            ByteBuffer dst = ByteBuffer.allocate(data.length);
+            codec.decode(buf, dst);
+            ArrayAsserts.assertEquals("offset " + ii + ", direct buffer", data, dst.array());
+        }
+    }
+
+
+    public void testArrayEncodeAndDecodeWithOffsets() throws Exception
+    {
+        Base64Codec codec = new Base64Codec();
+
+        byte[] src = new byte[] { 0x00, 0x12, 0x34, 0x56, 0x00 };
+        byte[] dst = new byte[10];
+
+        assertEquals("encode count", 4, codec.encode(src, 1, 3, dst, 3));
+        assertEquals("encoded", "EjRW", new String(dst, 3, 4, "US-ASCII"));
+
+        byte[] dec = new byte[6];
+        assertEquals("decode count", 3, codec.decode(dst, 3, 4, dec, 2));
+        ArrayAsserts.assertEquals("decoded", new byte[] { 0, 0, 0x12, 0x34, 0x56, 0 }, dec);
+    }
+
+
+    public void testHeapBufferEncodeAndDecode() throws Exception
+    {
+        Base64Codec codec = new Base64Codec(4, "X");
+        byte[] data = new byte[] { 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC, (byte)0xDE, (byte)0xF0 };
+
+        // slices, so that array offsets are non-zero
+        ByteBuffer src = ((ByteBuffer)ByteBuffer.allocate(20).position(3)).slice();
+        src.put(data).flip();
+        ByteBuffer dst = ((ByteBuffer)ByteBuffer.allocate(30).position(7)).slice();
+
+        assertEquals("encode count", 14, codec.encode(src, dst));
+        assertEquals("src position", 8, src.position());
+        assertEquals("dst position", 14, dst.position());
+
+        dst.flip();
+        byte[] encoded = new byte[14];
+        dst.duplicate().get(encoded);
+        assertEquals("encoded", "EjRWXeJq8X3vA=", new String(encoded, "US-ASCII"));
+
+        ByteBuffer decoded = ByteBuffer.allocate(8);
+        assertEquals("decode count", 8, codec.decode(dst, decoded));
+        ArrayAsserts.assertEquals("decoded", data, decoded.array());
+    }
+
+
+    public void testEncodeOverflow() throws Exception
+    {
+        Base64Codec codec = new Base64Codec();
+        byte[] src = new byte[] { 0x12, 0x34, 0x56, 0x78 };
+
+        try
+        {
+            codec.encode(src, 0, src.length, new byte[7], 0);
+            fail("encoded into too-small array");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        ByteBuffer srcBuf = ByteBuffer.wrap(src);
+        ByteBuffer dstBuf = ByteBuffer.allocateDirect(7);
+        try
+        {
+            codec.encode(srcBuf, dstBuf);
+            fail("encoded into too-small buffer");
+        }
+        catch (BufferOverflowException ex)
+        {
+            assertEquals("src position unchanged", 0, srcBuf.position());
+            assertEquals("dst position unchanged", 0, dstBuf.position());
+        }
+    }
+
+
+    public void testDecodeOverflow() throws Exception
+    {
+        Base64Codec codec = new Base64Codec();
+        byte[] src = StringUtil.toUTF8("EjRWeJq83vA=");
+
+        try
+        {
+            codec.decode(src, 0, src.length, new byte[7], 0);
+            fail("decoded into too-small array");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            // success
+        }
+
+        ByteBuffer srcBuf = ByteBuffer.wrap(src);
+        ByteBuffer dstBuf = ByteBuffer.allocate(7);
+        try
+        {
+            codec.decode(srcBuf, dstBuf);
+            fail("decoded into too-small buffer");
+        }
+        catch (BufferOverflowException ex)
+        {
+            assertEquals("src position unchanged", 0, srcBuf.position());
+            assertEquals("dst position unchanged", 0, dstBuf.position());
+        }
+
+        // but an exactly-sized buffer is fine, even though it's smaller than the
+        // maximum possible decoded size
+        assertEquals("decoded count", 8, codec.decode(srcBuf, ByteBuffer.allocateDirect(8)));
+    }
+
+
+    public void testDecodeStopsAtPadding() throws Exception
+    {
+        Base64Codec codec = new Base64Codec();
+
+        ArrayAsserts.assertEquals("trailing content ignored", new byte[] { 0x12 }, codec.toBytes("Eg==EjRW"));
+    }
+
+
+    public void testDecodeUnpaddedFilenameEncoding() throws Exception
+    {
+        Base64Codec codec = new Base64Codec(Option.FILENAME);
+
+        ArrayAsserts.assertEquals("one byte",   new byte[] { 0x12 },        codec.toBytes("Eg"));
+        ArrayAsserts.assertEquals("two bytes",  new byte[] { 0x12, 0x34 },  codec.toBytes("EjQ"));
+
+        try
+        {
+            codec.toBytes("EjRWe");
+            fail("decoded single-character group");
+        }
+        catch (CodecException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testDecodeInvalidByteInFastPath() throws Exception
+    {
+        Base64Codec codec = new Base64Codec();
+        try
+        {
+            codec.toBytes("EjRWeJ^83vA=");
+            fail("converted string with non-Base64 character");
+        }
+        catch (InvalidSourceByteException ex)
+        {
+            assertEquals("exception identifies incorrect byte", '^', ex.getInvalidByte());
+        }
+
+        try
+        {
+            codec.toBytes("EjRWeJq");
+            fail("converted incorrectly-padded string");
+        }
+        catch (CodecException ex)
+        {
+            // success
+        }
+    }
+}
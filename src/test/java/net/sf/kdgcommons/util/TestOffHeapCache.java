@@ -0,0 +1,317 @@
+// Copyright Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.sf.kdgcommons.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import net.sf.kdgcommons.buffer.BufferFacade;
+import net.sf.kdgcommons.buffer.BufferFacadeFactory;
+import net.sf.kdgcommons.buffer.MappedFileBuffer;
+import net.sf.kdgcommons.lang.StringUtil;
+import net.sf.kdgcommons.util.ReadThroughCache.Retriever;
+
+
+public class TestOffHeapCache
+extends TestCase
+{
+//----------------------------------------------------------------------------
+//  Support code
+//----------------------------------------------------------------------------
+
+    private static class StringSerializer
+    implements OffHeapCache.Serializer<String>
+    {
+        public byte[] serialize(String obj)
+        {
+            try
+            {
+                return obj.getBytes("UTF-8");
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                throw new RuntimeException("JVM doesn't support UTF-8", ex);
+            }
+        }
+
+        public String deserialize(byte[] bytes)
+        {
+            try
+            {
+                return new String(bytes, "UTF-8");
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                throw new RuntimeException("JVM doesn't support UTF-8", ex);
+            }
+        }
+    }
+
+
+    /**
+     *  Returns a value that repeats the key to the requested length; counts calls.
+     *  A key of "null" returns null.
+     */
+    private static class CountingRetriever
+    implements Retriever<String,String>
+    {
+        public AtomicInteger count = new AtomicInteger();
+        public int valueLength;
+
+        public CountingRetriever(int valueLength)
+        {
+            this.valueLength = valueLength;
+        }
+
+        public String retrieve(String key)
+        {
+            count.incrementAndGet();
+            if (key.equals("null"))
+                return null;
+
+            StringBuilder sb = new StringBuilder(valueLength);
+            while (sb.length() < valueLength)
+                sb.append(key);
+            sb.setLength(valueLength);
+            return sb.toString();
+        }
+    }
+
+
+    private static OffHeapCache<String,String> createCache(BufferFacade storage, int segments, int entries, Retriever<String,String> retriever)
+    {
+        return new OffHeapCache<String,String>(storage, segments, entries, new StringSerializer(), new StringSerializer(), retriever);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Test cases
+//----------------------------------------------------------------------------
+
+    public void testBasicOperation() throws Exception
+    {
+        CountingRetriever retriever = new CountingRetriever(10);
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(4096));
+        OffHeapCache<String,String> cache = createCache(storage, 4, 100, retriever);
+
+        assertEquals("first retrieve",      "fooFOOfooF", cache.retrieve("fooFOO"));
+        assertEquals("retriever calls",     1, retriever.count.get());
+
+        assertEquals("second retrieve",     "fooFOOfooF", cache.retrieve("fooFOO"));
+        assertEquals("retriever calls",     1, retriever.count.get());
+
+        assertEquals("other key",           "barbarbarb", cache.retrieve("bar"));
+        assertEquals("retriever calls",     2, retriever.count.get());
+        assertEquals("size",                2, cache.size());
+
+        cache.clear();
+        assertEquals("size after clear",    0, cache.size());
+        assertEquals("retrieve after clear", "fooFOOfooF", cache.retrieve("fooFOO"));
+        assertEquals("retriever calls",     3, retriever.count.get());
+    }
+
+
+    public void testNullValue() throws Exception
+    {
+        CountingRetriever retriever = new CountingRetriever(10);
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(4096));
+        OffHeapCache<String,String> cache = createCache(storage, 1, 100, retriever);
+
+        assertNull("first retrieve",        cache.retrieve("null"));
+        assertNull("second retrieve",       cache.retrieve("null"));
+        assertEquals("retriever calls",     1, retriever.count.get());
+    }
+
+
+    public void testEvictionWhenLogWraps() throws Exception
+    {
+        // each entry is 8 bytes header + 2 bytes key + 22 bytes value = 32 bytes, so
+        // a 256 byte segment holds 8 of them
+        CountingRetriever retriever = new CountingRetriever(22);
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(256));
+        OffHeapCache<String,String> cache = createCache(storage, 1, 100, retriever);
+
+        for (int ii = 10 ; ii < 18 ; ii++)
+            cache.retrieve(String.valueOf(ii));
+        assertEquals("size when full",      8, cache.size());
+        assertEquals("retriever calls",     8, retriever.count.get());
+
+        cache.retrieve("18");
+        assertEquals("size after wrap",     8, cache.size());
+        assertEquals("retriever calls",     9, retriever.count.get());
+
+        // the newest entries remain, the oldest was overwritten
+        assertEquals("newest entry",        "1818181818181818181818", cache.retrieve("18"));
+        assertEquals("old entry",           "1717171717171717171717", cache.retrieve("17"));
+        assertEquals("retriever calls",     9, retriever.count.get());
+        assertEquals("overwritten entry",   "1010101010101010101010", cache.retrieve("10"));
+        assertEquals("retriever calls",     10, retriever.count.get());
+    }
+
+
+    public void testEvictionWhenIndexFull() throws Exception
+    {
+        CountingRetriever retriever = new CountingRetriever(4);
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(65536));
+        OffHeapCache<String,String> cache = createCache(storage, 1, 8, retriever);
+
+        for (int ii = 0 ; ii < 1000 ; ii++)
+            cache.retrieve(String.valueOf(ii));
+
+        int size = cache.size();
+        assertTrue("index limits size: " + size, size <= 16);
+
+        // the most recent entry will always be present
+        cache.retrieve("999");
+        assertEquals("retriever calls",     1000, retriever.count.get());
+    }
+
+
+    public void testOversizeEntryNotCached() throws Exception
+    {
+        CountingRetriever retriever = new CountingRetriever(1000);
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(1024));
+        OffHeapCache<String,String> cache = createCache(storage, 2, 100, retriever);
+
+        String value = cache.retrieve("foo");
+        assertEquals("value length",        1000, value.length());
+        assertEquals("retriever calls",     1, retriever.count.get());
+
+        assertEquals("second retrieve",     value, cache.retrieve("foo"));
+        assertEquals("retriever calls",     2, retriever.count.get());
+        assertEquals("size",                0, cache.size());
+    }
+
+
+    public void testMappedFileStorage() throws Exception
+    {
+        File file = File.createTempFile("TestOffHeapCache", ".tmp");
+        file.deleteOnExit();
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(16384);
+            raf.close();
+
+            // small segments so that values cross mapped segment boundaries
+            MappedFileBuffer buf = new MappedFileBuffer(file, 1024, true);
+            CountingRetriever retriever = new CountingRetriever(300);
+            OffHeapCache<String,String> cache = createCache(BufferFacadeFactory.createThreadsafe(buf), 2, 100, retriever);
+
+            for (int ii = 0 ; ii < 20 ; ii++)
+                assertEquals("first pass, " + ii, StringUtil.repeat((char)('A' + ii), 300), cache.retrieve(String.valueOf((char)('A' + ii))));
+            assertEquals("retriever calls",     20, retriever.count.get());
+
+            for (int ii = 0 ; ii < 20 ; ii++)
+                assertEquals("second pass, " + ii, StringUtil.repeat((char)('A' + ii), 300), cache.retrieve(String.valueOf((char)('A' + ii))));
+            assertEquals("retriever calls",     20, retriever.count.get());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+
+    public void testAsSecondLevelCache() throws Exception
+    {
+        CountingRetriever retriever = new CountingRetriever(10);
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(65536));
+        OffHeapCache<String,String> l2 = createCache(storage, 4, 1000, retriever);
+        ReadThroughCache<String,String> l1 = new ReadThroughCache<String,String>(2, l2);
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+            l1.retrieve(String.valueOf(ii));
+        assertEquals("retriever calls after first pass",    10, retriever.count.get());
+        assertEquals("L1 size",                             2, l1.size());
+        assertEquals("L2 size",                             10, l2.size());
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+            assertEquals("second pass, " + ii, StringUtil.repeat((char)('0' + ii), 10), l1.retrieve(String.valueOf(ii)));
+        assertEquals("retriever calls after second pass",   10, retriever.count.get());
+    }
+
+
+    public void testConcurrentAccess() throws Exception
+    {
+        final CountingRetriever retriever = new CountingRetriever(50);
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(16384));
+        final OffHeapCache<String,String> cache = createCache(storage, 4, 200, retriever);
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread[] threads = new Thread[8];
+        for (int ii = 0 ; ii < threads.length ; ii++)
+        {
+            final int seed = ii;
+            threads[ii] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int jj = 0 ; jj < 10000 ; jj++)
+                        {
+                            String key = String.valueOf((jj * 31 + seed) % 500);
+                            String value = cache.retrieve(key);
+                            if (! value.startsWith(key) || (value.length() != 50))
+                                failures.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                        // can't happen
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("failures", 0, failures.get());
+    }
+
+
+    public void testInvalidConfiguration() throws Exception
+    {
+        BufferFacade storage = BufferFacadeFactory.createThreadsafe(ByteBuffer.allocateDirect(64));
+        try
+        {
+            createCache(storage, 16, 100, new CountingRetriever(1));
+            fail("accepted segments smaller than header");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            createCache(storage, 0, 100, new CountingRetriever(1));
+            fail("accepted zero segments");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+}
@@ -14,12 +14,28 @@
 
 package net.sf.kdgcommons.util;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import junit.framework.TestCase;
 
+import net.sf.kdgcommons.lang.StringUtil;
 import net.sf.kdgcommons.util.ReadThroughCache.Retriever;
 import net.sf.kdgcommons.util.ReadThroughCache.Synchronization;
 
@@ -107,6 +123,7 @@ extends TestCase
         public long retrieveExitTimestamp;      // when the retriever returned the object
         public long finishTimestmap;            // when the task finished running
         public Object result;
+        public Throwable exception;
 
         public ConcurrentRetrieveTask(ReadThroughCache<Object,Object> cache, Object key, long retrieveDelay)
         {
@@ -152,6 +169,10 @@ extends TestCase
             {
                 // ignored
             }
+            catch (RuntimeException ex)
+            {
+                exception = ex;
+            }
         }
     }
 
@@ -160,31 +181,92 @@ extends TestCase
      */
     private static class ThrowingConcurrentRetrieveTask
     extends ConcurrentRetrieveTask
-    implements Thread.UncaughtExceptionHandler
     {
-        public Throwable exception;
-
         public ThrowingConcurrentRetrieveTask(ReadThroughCache<Object,Object> cache, Object key, long retrieveDelay)
         {
             super(cache, key, retrieveDelay);
         }
 
         @Override
-        public void run()
+        public Object retrieve()
+        {
+            throw new RuntimeException("oops!");
+        }
+    }
+
+    /**
+     *  A variant task that waits to be released before throwing, so that other
+     *  threads can queue up behind it.
+     */
+    private static class DelayedThrowingConcurrentRetrieveTask
+    extends ConcurrentRetrieveTask
+    {
+        public DelayedThrowingConcurrentRetrieveTask(ReadThroughCache<Object,Object> cache, Object key, long retrieveDelay)
         {
-            Thread.currentThread().setUncaughtExceptionHandler(this);
-            super.run();
+            super(cache, key, retrieveDelay);
         }
 
         @Override
-        public Object retrieve()
+        public Object retrieve() throws InterruptedException
         {
+            retrieveEntryTimestamp = System.currentTimeMillis();
+            waitForRetrieve();
             throw new RuntimeException("oops!");
         }
+    }
 
-        public void uncaughtException(Thread t, Throwable e)
+    /**
+     *  A retriever that counts invocations, and waits on a latch before returning.
+     */
+    private static class LatchedCountingRetriever
+    implements Retriever<Object,Object>
+    {
+        public AtomicInteger count = new AtomicInteger();
+        public CountDownLatch latch = new CountDownLatch(1);
+
+        public Object retrieve(Object key) throws InterruptedException
         {
-            exception = e;
+            count.incrementAndGet();
+            latch.await();
+            return key + "-" + count.get();
+        }
+    }
+
+
+    /**
+     *  A batch retriever that records the keys passed to each call, and waits on a
+     *  latch before returning. Values are the key with a suffix; keys starting with
+     *  "missing" are omitted from the result, and the batch throws if any key starts
+     *  with "fail".
+     */
+    private static class LatchedBatchRetriever
+    implements ReadThroughCache.BatchRetriever<String,String>
+    {
+        public List<Collection<String>> batches = Collections.synchronizedList(new ArrayList<Collection<String>>());
+        public List<String> singles = Collections.synchronizedList(new ArrayList<String>());
+        public CountDownLatch latch = new CountDownLatch(1);
+
+        public String retrieve(String key) throws InterruptedException
+        {
+            singles.add(key);
+            latch.await();
+            return key + "-value";
+        }
+
+        public Map<String,String> retrieveAll(Collection<String> keys) throws InterruptedException
+        {
+            batches.add(new ArrayList<String>(keys));
+            latch.await();
+
+            Map<String,String> result = new HashMap<String,String>();
+            for (String key : keys)
+            {
+                if (key.startsWith("fail"))
+                    throw new IllegalStateException("batch failed on " + key);
+                if (! key.startsWith("missing"))
+                    result.put(key, key + "-value");
+            }
+            return result;
         }
     }
 
@@ -319,7 +401,7 @@ extends TestCase
         join(thread1, thread2, thread3);
 
         assertTrue("thread 1 should start before thread 2",     task1.startTimestamp < task2.startTimestamp);
-        assertTrue("thread 1 should finish at/before thread 2", task1.finishTimestmap <= task2.finishTimestmap);
+        assertTrue("thread 1 should retrieve before thread 2 finishes", task1.retrieveExitTimestamp <= task2.finishTimestmap);
         assertTrue("thread 1 should start before thread 3",     task1.startTimestamp < task3.startTimestamp);
         assertTrue("thread 1 should finish after thread 3",     task1.finishTimestmap > task3.finishTimestmap);
         assertTrue("thread 2 should never enter retrieve",      task2.retrieveEntryTimestamp == 0);
@@ -361,6 +443,249 @@ extends TestCase
     }
 
 
+    public void testSynchronizedByKeyRetrievalSharesException() throws Exception
+    {
+        ConcurrentRetriever retriever = new ConcurrentRetriever();
+        ReadThroughCache<Object,Object> cache = new ReadThroughCache<Object,Object>(10, retriever, Synchronization.BY_KEY);
+
+        ConcurrentRetrieveTask task1 = new DelayedThrowingConcurrentRetrieveTask(cache, "foo", DEFAULT_DELAY);
+        ConcurrentRetrieveTask task2 = new ConcurrentRetrieveTask(cache, "foo", DEFAULT_DELAY);
+
+        Thread thread1 = retriever.addTask(task1);
+        Thread thread2 = retriever.addTask(task2);
+
+        start(thread1, thread2);
+        task1.releaseTask();        // task 1 starts first, and blocks in retrieve
+        Thread.sleep(DEFAULT_DELAY);
+        task2.releaseTask();        // task 2 should wait for task 1
+        task2.releaseRetrieve();
+        Thread.sleep(DEFAULT_DELAY);
+        task1.releaseRetrieve();    // task 1 throws, task 2 should get the same exception
+        join(thread1, thread2);
+
+        assertTrue("thread 2 should never enter retrieve",          task2.retrieveEntryTimestamp == 0);
+        assertNotNull("thread 1 should have had an exception",      task1.exception);
+        assertSame("thread 2 should have thread 1's exception",     task1.exception, task2.exception);
+        assertNull("thread 2 object should be null",                task2.result);
+        assertEquals("nothing should be cached",                    0, cache.size());
+    }
+
+
+    public void testSynchronizedByKeyRetrievalWithInterruptedLoader() throws Exception
+    {
+        final LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+        final ReadThroughCache<Object,Object> cache = new ReadThroughCache<Object,Object>(10, retriever, Synchronization.BY_KEY);
+
+        final Object[] results = new Object[2];
+        Thread thread1 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[0] = cache.retrieve("foo");
+                }
+                catch (InterruptedException ex)
+                {
+                    results[0] = ex;
+                }
+            }
+        });
+        Thread thread2 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[1] = cache.retrieve("foo");
+                }
+                catch (InterruptedException ex)
+                {
+                    results[1] = ex;
+                }
+            }
+        });
+
+        thread1.start();
+        Thread.sleep(DEFAULT_DELAY);
+        thread2.start();
+        Thread.sleep(DEFAULT_DELAY);
+        thread1.interrupt();        // loader fails; waiter should retry rather than fail
+        Thread.sleep(DEFAULT_DELAY);
+        retriever.latch.countDown();
+        join(thread1, thread2);
+
+        assertTrue("loader should have been interrupted",       results[0] instanceof InterruptedException);
+        assertEquals("waiter should have loaded value itself",  "foo-2", results[1]);
+        assertEquals("retriever invocation count",              2, retriever.count.get());
+    }
+
+
+    public void testRetrieveAsync() throws Exception
+    {
+        LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+        ReadThroughCache<Object,Object> cache = new ReadThroughCache<Object,Object>(10, retriever);
+
+        Future<Object> f1 = cache.retrieveAsync("foo");
+        Future<Object> f2 = cache.retrieveAsync("foo");
+        assertFalse("retrieval should be in progress", f1.isDone());
+
+        retriever.latch.countDown();
+        assertEquals("first future",  "foo-1", f1.get());
+        assertEquals("second future", "foo-1", f2.get());
+        assertEquals("retriever invocation count", 1, retriever.count.get());
+
+        Future<Object> f3 = cache.retrieveAsync("foo");
+        assertTrue("cached value should be immediately available", f3.isDone());
+        assertEquals("cached value", "foo-1", f3.get());
+        assertEquals("retriever invocation count", 1, retriever.count.get());
+    }
+
+
+    public void testRetrieveAsyncCancelDoesNotAffectOtherCallers() throws Exception
+    {
+        final LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+        final ReadThroughCache<Object,Object> cache = new ReadThroughCache<Object,Object>(10, retriever);
+
+        final Object[] results = new Object[2];
+        Thread thread1 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[0] = cache.retrieve("foo");
+                }
+                catch (Exception ex)
+                {
+                    results[0] = ex;
+                }
+            }
+        });
+        Thread thread2 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[1] = cache.retrieveAll(Arrays.asList("foo")).get("foo");
+                }
+                catch (Exception ex)
+                {
+                    results[1] = ex;
+                }
+            }
+        });
+
+        Future<Object> f1 = cache.retrieveAsync("foo");
+        Thread.sleep(DEFAULT_DELAY);
+        thread1.start();
+        thread2.start();
+        Thread.sleep(DEFAULT_DELAY);
+        Future<Object> f2 = cache.retrieveAsync("foo");
+
+        assertFalse("cancel should be refused",     f1.cancel(true));
+        assertFalse("future should not be cancelled", f1.isCancelled());
+
+        retriever.latch.countDown();
+        join(thread1, thread2);
+
+        assertEquals("cancelling caller",           "foo-1", f1.get());
+        assertEquals("other async caller",          "foo-1", f2.get());
+        assertEquals("synchronous waiter",          "foo-1", results[0]);
+        assertEquals("bulk waiter",                 "foo-1", results[1]);
+        assertEquals("retriever invocation count",  1, retriever.count.get());
+    }
+
+
+    public void testRetrieveAsyncSharesSynchronousRetrieval() throws Exception
+    {
+        final LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+        final ReadThroughCache<Object,Object> cache = new ReadThroughCache<Object,Object>(10, retriever);
+
+        final Object[] results = new Object[1];
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[0] = cache.retrieve("foo");
+                }
+                catch (InterruptedException ignored)
+                {
+                    // test will fail
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(DEFAULT_DELAY);
+
+        Future<Object> future = cache.retrieveAsync("foo");
+        retriever.latch.countDown();
+        thread.join();
+
+        assertEquals("synchronous result",          "foo-1", results[0]);
+        assertEquals("asynchronous result",         "foo-1", future.get());
+        assertEquals("retriever invocation count",  1, retriever.count.get());
+    }
+
+
+    public void testRetrieveAsyncWithException() throws Exception
+    {
+        final RuntimeException exception = new RuntimeException("oops!");
+        ReadThroughCache<Object,Object> cache = new ReadThroughCache<Object,Object>(10, new Retriever<Object,Object>()
+        {
+            public Object retrieve(Object key)
+            {
+                throw exception;
+            }
+        });
+
+        try
+        {
+            cache.retrieveAsync("foo").get();
+            fail("should have thrown");
+        }
+        catch (ExecutionException ex)
+        {
+            assertSame("cause", exception, ex.getCause());
+        }
+
+        assertEquals("nothing should be cached", 0, cache.size());
+    }
+
+
+    public void testRetrieveAsyncWithExecutor() throws Exception
+    {
+        final AtomicInteger executeCount = new AtomicInteger();
+        Executor executor = new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                executeCount.incrementAndGet();
+                command.run();
+            }
+        };
+
+        for (Synchronization sync : Synchronization.values())
+        {
+            executeCount.set(0);
+            ReadThroughCache<Integer,Integer> cache
+                = new ReadThroughCache.Builder<Integer,Integer>(10, new DistinctValueRetriever())
+                  .synchronization(sync)
+                  .executor(executor)
+                  .build();
+
+            Future<Integer> future = cache.retrieveAsync(Integer.valueOf(12));
+            assertTrue(sync + ": executed on caller thread",   future.isDone());
+            assertEquals(sync + ": value",                     Integer.valueOf(12), future.get());
+            assertEquals(sync + ": executor calls",            1, executeCount.get());
+            assertEquals(sync + ": cache size",                1, cache.size());
+        }
+    }
+
+
     public void testFullySynchronizedRetrieval() throws Exception
     {
         ConcurrentRetriever retriever = new ConcurrentRetriever();
@@ -417,4 +742,685 @@ extends TestCase
         assertTrue("thread 2 should have thread 2's object", task2.result == task2.value);
     }
 
+
+    public void testSegmentedBasicOperation() throws Exception
+    {
+        ReadThroughCache<Integer,Integer> cache = new ReadThroughCache.Builder<Integer,Integer>(100, new DistinctValueRetriever())
+                                                  .concurrencyLevel(8)
+                                                  .build();
+        assertEquals("initial size", 0, cache.size());
+
+        Integer v1 = cache.retrieve(1);
+        assertEquals("first retrieve(v1)", 1, v1.intValue());
+        assertEquals("size after first retrieve(k1)", 1, cache.size());
+
+        assertSame("second get(v1) returned same value", v1, cache.retrieve(1));
+        assertEquals("size after second retrieve(k1)", 1, cache.size());
+
+        for (int ii = 2 ; ii <= 50 ; ii++)
+            assertEquals("retrieve(" + ii + ")", ii, cache.retrieve(ii).intValue());
+        assertEquals("size after retrieving 50 keys", 50, cache.size());
+
+        cache.clear();
+        assertEquals("size after clear", 0, cache.size());
+        assertNotSame("returned same value after clear", v1, cache.retrieve(1));
+    }
+
+
+    public void testSegmentedEviction() throws Exception
+    {
+        // 4 segments, each holding 4 entries
+        ReadThroughCache<Integer,Integer> cache = new ReadThroughCache.Builder<Integer,Integer>(16, new DistinctValueRetriever())
+                                                  .concurrencyLevel(4)
+                                                  .build();
+
+        Integer hot = cache.retrieve(0);
+        for (int ii = 1 ; ii < 1000 ; ii++)
+        {
+            assertSame("hot value retained after " + ii + " other retrieves", hot, cache.retrieve(0));
+            cache.retrieve(ii);
+            assertTrue("size did not exceed capacity: " + cache.size(), cache.size() <= 16);
+        }
+        assertEquals("all segments full", 16, cache.size());
+    }
+
+
+    public void testSegmentedSynchronizedByKeyRetrieval() throws Exception
+    {
+        ConcurrentRetriever retriever = new ConcurrentRetriever();
+        ReadThroughCache<Object,Object> cache = new ReadThroughCache.Builder<Object,Object>(10, retriever)
+                                                .synchronization(Synchronization.BY_KEY)
+                                                .concurrencyLevel(4)
+                                                .build();
+
+        ConcurrentRetrieveTask task1 = new ConcurrentRetrieveTask(cache, "foo", DEFAULT_DELAY);
+        ConcurrentRetrieveTask task2 = new ConcurrentRetrieveTask(cache, "foo", DEFAULT_DELAY);
+
+        Thread thread1 = retriever.addTask(task1);
+        Thread thread2 = retriever.addTask(task2);
+
+        start(thread1, thread2);
+        task1.releaseTask();        // task 1 starts first -- it will grab the key used by task2
+        Thread.sleep(DEFAULT_DELAY);
+        task2.releaseTask();        // task 2 should be blocked before it hits retrieve
+        task2.releaseRetrieve();
+        Thread.sleep(DEFAULT_DELAY);
+        task1.releaseRetrieve();
+        join(thread1, thread2);
+
+        assertTrue("thread 2 should never enter retrieve",   task2.retrieveEntryTimestamp == 0);
+        assertTrue("thread 1 should have thread 1's object", task1.result == task1.value);
+        assertTrue("thread 2 should have thread 1's object", task2.result == task1.value);
+    }
+
+
+    public void testSegmentedConcurrentAccess() throws Exception
+    {
+        final int cacheSize = 256;
+        final int keySpace = 1024;
+        final int threadCount = 8;
+        final int retrievesPerThread = 20000;
+
+        final AtomicInteger retrieveCount = new AtomicInteger();
+        final ReadThroughCache<Integer,Integer> cache = new ReadThroughCache.Builder<Integer,Integer>(cacheSize, new Retriever<Integer,Integer>()
+        {
+            public Integer retrieve(Integer key)
+            {
+                retrieveCount.incrementAndGet();
+                return key;
+            }
+        }).concurrencyLevel(threadCount).build();
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int ii = 0 ; ii < threads.length ; ii++)
+        {
+            final Random rnd = new Random(ii);
+            threads[ii] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int jj = 0 ; jj < retrievesPerThread ; jj++)
+                        {
+                            // skewed access: most retrieves are from a small set of keys
+                            int key = (jj % 4 == 0) ? rnd.nextInt(keySpace) : rnd.nextInt(cacheSize / 4);
+                            if (cache.retrieve(key).intValue() != key)
+                                failures.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                        // can't happen
+                    }
+                }
+            });
+        }
+        start(threads);
+        join(threads);
+
+        assertEquals("incorrect values retrieved", 0, failures.get());
+        assertTrue("size bounded by capacity (was " + cache.size() + ")", cache.size() <= cacheSize);
+        assertTrue("most retrieves were satisfied from cache (retriever called " + retrieveCount.get() + " times)",
+                   retrieveCount.get() < (threadCount * retrievesPerThread) / 2);
+    }
+
+
+    public void testExpireAfterWrite() throws Exception
+    {
+        for (int concurrencyLevel : new int[] { 1, 4 })
+        {
+            LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+            retriever.latch.countDown();
+            ReadThroughCache<Object,Object> cache
+                = new ReadThroughCache.Builder<Object,Object>(10, retriever)
+                  .concurrencyLevel(concurrencyLevel)
+                  .expireAfterWrite(DEFAULT_DELAY, TimeUnit.MILLISECONDS)
+                  .build();
+
+            assertEquals("initial retrieve",        "foo-1", cache.retrieve("foo"));
+            assertEquals("immediate retrieve",      "foo-1", cache.retrieve("foo"));
+
+            Thread.sleep(DEFAULT_DELAY * 2);
+            assertEquals("retrieve after expiry",   "foo-2", cache.retrieve("foo"));
+            assertEquals("cache size",              1, cache.size());
+        }
+    }
+
+
+    public void testExpireAfterAccess() throws Exception
+    {
+        LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+        retriever.latch.countDown();
+        ReadThroughCache<Object,Object> cache
+            = new ReadThroughCache.Builder<Object,Object>(10, retriever)
+              .expireAfterAccess(DEFAULT_DELAY * 2, TimeUnit.MILLISECONDS)
+              .build();
+
+        assertEquals("initial retrieve",            "foo-1", cache.retrieve("foo"));
+        for (int ii = 0 ; ii < 4 ; ii++)
+        {
+            Thread.sleep(DEFAULT_DELAY);
+            assertEquals("retrieve " + ii,          "foo-1", cache.retrieve("foo"));
+        }
+
+        Thread.sleep(DEFAULT_DELAY * 3);
+        assertEquals("retrieve after expiry",       "foo-2", cache.retrieve("foo"));
+    }
+
+
+    public void testRefreshAfterWrite() throws Exception
+    {
+        Executor sameThreadExecutor = new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        };
+
+        for (int concurrencyLevel : new int[] { 1, 4 })
+        {
+            LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+            retriever.latch.countDown();
+            ReadThroughCache<Object,Object> cache
+                = new ReadThroughCache.Builder<Object,Object>(10, retriever)
+                  .concurrencyLevel(concurrencyLevel)
+                  .executor(sameThreadExecutor)
+                  .refreshAfterWrite(DEFAULT_DELAY, TimeUnit.MILLISECONDS)
+                  .build();
+
+            assertEquals("initial retrieve",            "foo-1", cache.retrieve("foo"));
+
+            Thread.sleep(DEFAULT_DELAY * 2);
+            assertEquals("retrieve triggers refresh",   "foo-1", cache.retrieve("foo"));
+            assertEquals("retriever invocation count",  2, retriever.count.get());
+            assertEquals("retrieve after refresh",      "foo-2", cache.retrieve("foo"));
+            assertEquals("retriever invocation count",  2, retriever.count.get());
+            assertEquals("cache size",                  1, cache.size());
+        }
+    }
+
+
+    public void testRefreshAfterWriteWithException() throws Exception
+    {
+        final AtomicInteger count = new AtomicInteger();
+        ReadThroughCache<Object,Object> cache
+            = new ReadThroughCache.Builder<Object,Object>(10, new Retriever<Object,Object>()
+              {
+                  public Object retrieve(Object key)
+                  {
+                      if (count.incrementAndGet() > 1)
+                          throw new RuntimeException("oops!");
+                      return key;
+                  }
+              })
+              .refreshAfterWrite(DEFAULT_DELAY, TimeUnit.MILLISECONDS)
+              .build();
+
+        assertEquals("initial retrieve", "foo", cache.retrieve("foo"));
+        Thread.sleep(DEFAULT_DELAY * 2);
+
+        // refresh happens in background, so we have to wait for it to fail
+        assertEquals("first retrieve after refresh time",  "foo", cache.retrieve("foo"));
+        Thread.sleep(DEFAULT_DELAY);
+        assertEquals("retriever invocation count",          2, count.get());
+
+        // a failed refresh should be retried on next access
+        assertEquals("second retrieve after refresh time", "foo", cache.retrieve("foo"));
+        Thread.sleep(DEFAULT_DELAY);
+        assertEquals("retriever invocation count",          3, count.get());
+    }
+
+
+    public void testInvalidTimedConfiguration() throws Exception
+    {
+        ReadThroughCache.Builder<Integer,Integer> builder
+            = new ReadThroughCache.Builder<Integer,Integer>(10, new DistinctValueRetriever());
+
+        try
+        {
+            builder.expireAfterWrite(0, TimeUnit.SECONDS);
+            fail("accepted zero expiration time");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        try
+        {
+            builder.refreshAfterWrite(-1, TimeUnit.SECONDS);
+            fail("accepted negative refresh time");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+    }
+
+
+    public void testWeightedEviction() throws Exception
+    {
+        // the retriever returns a string whose length is the key, and the weigher uses
+        // that length as weight
+        Retriever<Integer,String> retriever = new Retriever<Integer,String>()
+        {
+            public String retrieve(Integer key)
+            {
+                return StringUtil.repeat('x', key.intValue());
+            }
+        };
+        ReadThroughCache.Weigher<Object,String> weigher = new ReadThroughCache.Weigher<Object,String>()
+        {
+            public int weigh(Object key, String value)
+            {
+                return value.length();
+            }
+        };
+
+        ReadThroughCache<Integer,String> cache
+            = new ReadThroughCache.Builder<Integer,String>(100, retriever)
+              .weigher(weigher, 100)
+              .build();
+
+        cache.retrieve(Integer.valueOf(40));
+        cache.retrieve(Integer.valueOf(30));
+        assertEquals("size after two retrieves",    2, cache.size());
+        assertEquals("weight after two retrieves",  70, cache.weight());
+
+        cache.retrieve(Integer.valueOf(50));
+        assertEquals("size after eviction",         2, cache.size());
+        assertEquals("weight after eviction",       80, cache.weight());
+
+        cache.clear();
+        assertEquals("weight after clear",          0, cache.weight());
+    }
+
+
+    public void testWeightedEvictionSegmented() throws Exception
+    {
+        Retriever<Integer,String> retriever = new Retriever<Integer,String>()
+        {
+            public String retrieve(Integer key)
+            {
+                return StringUtil.repeat('x', 10);
+            }
+        };
+        ReadThroughCache.Weigher<Integer,String> weigher = new ReadThroughCache.Weigher<Integer,String>()
+        {
+            public int weigh(Integer key, String value)
+            {
+                return value.length();
+            }
+        };
+
+        ReadThroughCache<Integer,String> cache
+            = new ReadThroughCache.Builder<Integer,String>(1000, retriever)
+              .concurrencyLevel(4)
+              .weigher(weigher, 400)
+              .build();
+
+        for (int ii = 0 ; ii < 1000 ; ii++)
+        {
+            cache.retrieve(Integer.valueOf(ii));
+            assertTrue("weight within limit at " + ii, cache.weight() <= 400);
+        }
+        assertEquals("weight matches size", cache.size() * 10, cache.weight());
+    }
+
+
+    public void testUnweightedCacheReportsSizeAsWeight() throws Exception
+    {
+        ReadThroughCache<Integer,Integer> cache = new ReadThroughCache<Integer,Integer>(10, new DistinctValueRetriever());
+        for (int ii = 0 ; ii < 20 ; ii++)
+            cache.retrieve(Integer.valueOf(ii));
+
+        assertEquals("size",    10, cache.size());
+        assertEquals("weight",  10, cache.weight());
+    }
+
+
+    public void testNegativeWeight() throws Exception
+    {
+        ReadThroughCache<Integer,Integer> cache
+            = new ReadThroughCache.Builder<Integer,Integer>(10, new DistinctValueRetriever())
+              .weigher(new ReadThroughCache.Weigher<Integer,Integer>()
+              {
+                  public int weigh(Integer key, Integer value)
+                  {
+                      return value.intValue();
+                  }
+              }, 100)
+              .build();
+
+        try
+        {
+            cache.retrieve(Integer.valueOf(-1));
+            fail("accepted negative weight");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+        assertEquals("nothing should be cached", 0, cache.size());
+    }
+
+
+    public void testStats() throws Exception
+    {
+        final AtomicInteger count = new AtomicInteger();
+        ReadThroughCache<Integer,Integer> cache
+            = new ReadThroughCache.Builder<Integer,Integer>(2, new Retriever<Integer,Integer>()
+              {
+                  public Integer retrieve(Integer key)
+                  {
+                      count.incrementAndGet();
+                      if (key.intValue() < 0)
+                          throw new IllegalArgumentException("negative key");
+                      return key;
+                  }
+              })
+              .recordStats()
+              .build();
+
+        cache.retrieve(Integer.valueOf(1));
+        cache.retrieve(Integer.valueOf(1));
+        cache.retrieve(Integer.valueOf(2));
+        cache.retrieve(Integer.valueOf(3));
+        try
+        {
+            cache.retrieve(Integer.valueOf(-1));
+            fail("retriever should have thrown");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        ReadThroughCache.Stats stats = cache.stats();
+        assertEquals("size",                    2, stats.getSize());
+        assertEquals("weight",                  2, stats.getWeight());
+        assertEquals("hits",                    1, stats.getHitCount());
+        assertEquals("misses",                  4, stats.getMissCount());
+        assertEquals("hit rate",                0.2, stats.getHitRate(), 0.0001);
+        assertEquals("load successes",          3, stats.getLoadSuccessCount());
+        assertEquals("load failures",           1, stats.getLoadFailureCount());
+        assertEquals("evictions",               1, stats.getEvictionCount());
+        assertEquals("blocked threads",         0, stats.getBlockedThreadCount());
+        assertTrue("load time recorded",        stats.getTotalLoadTime() > 0);
+        assertEquals("average load time",       stats.getTotalLoadTime() / 4.0, stats.getAverageLoadTime(), 0.0001);
+
+        // snapshot shouldn't change
+        cache.retrieve(Integer.valueOf(3));
+        assertEquals("snapshot hits",           1, stats.getHitCount());
+        assertEquals("updated hits",            2, cache.stats().getHitCount());
+    }
+
+
+    public void testStatsNotRecorded() throws Exception
+    {
+        ReadThroughCache<Integer,Integer> cache = new ReadThroughCache<Integer,Integer>(2, new DistinctValueRetriever());
+        for (int ii = 0 ; ii < 4 ; ii++)
+            cache.retrieve(Integer.valueOf(ii));
+
+        ReadThroughCache.Stats stats = cache.stats();
+        assertEquals("size",                    2, stats.getSize());
+        assertEquals("misses",                  0, stats.getMissCount());
+        assertEquals("load successes",          0, stats.getLoadSuccessCount());
+        assertEquals("evictions",               2, stats.getEvictionCount());
+    }
+
+
+    public void testStatsSegmented() throws Exception
+    {
+        ReadThroughCache<Integer,Integer> cache
+            = new ReadThroughCache.Builder<Integer,Integer>(16, new DistinctValueRetriever())
+              .concurrencyLevel(4)
+              .recordStats()
+              .build();
+
+        for (int ii = 0 ; ii < 100 ; ii++)
+            cache.retrieve(Integer.valueOf(ii));
+        for (int ii = 0 ; ii < 100 ; ii++)
+            cache.retrieve(Integer.valueOf(99));
+
+        ReadThroughCache.Stats stats = cache.stats();
+        assertEquals("hits",                    100, stats.getHitCount());
+        assertEquals("misses",                  100, stats.getMissCount());
+        assertEquals("evictions",               100 - stats.getSize(), stats.getEvictionCount());
+    }
+
+
+    public void testStatsBlockedThreadCount() throws Exception
+    {
+        final LatchedCountingRetriever retriever = new LatchedCountingRetriever();
+        final ReadThroughCache<Object,Object> cache
+            = new ReadThroughCache.Builder<Object,Object>(10, retriever)
+              .recordStats()
+              .build();
+
+        Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    cache.retrieve("foo");
+                }
+                catch (InterruptedException ignored)
+                {
+                    // test will fail
+                }
+            }
+        };
+
+        Thread thread1 = new Thread(task);
+        Thread thread2 = new Thread(task);
+        Thread thread3 = new Thread(task);
+
+        thread1.start();
+        Thread.sleep(DEFAULT_DELAY);
+        start(thread2, thread3);
+        Thread.sleep(DEFAULT_DELAY);
+
+        assertEquals("blocked while loading",   2, cache.stats().getBlockedThreadCount());
+
+        retriever.latch.countDown();
+        join(thread1, thread2, thread3);
+
+        assertEquals("blocked after loading",   0, cache.stats().getBlockedThreadCount());
+        assertEquals("load count",              1, cache.stats().getLoadSuccessCount());
+        assertEquals("miss count",              3, cache.stats().getMissCount());
+    }
+
+
+    public void testRegisterMBean() throws Exception
+    {
+        ReadThroughCache<Integer,Integer> cache
+            = new ReadThroughCache.Builder<Integer,Integer>(10, new DistinctValueRetriever())
+              .recordStats()
+              .build();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("net.sf.kdgcommons:type=ReadThroughCache,name=" + getName());
+        cache.registerMBean(server, name);
+        try
+        {
+            cache.retrieve(Integer.valueOf(1));
+            cache.retrieve(Integer.valueOf(1));
+
+            assertEquals("size",    Integer.valueOf(1), server.getAttribute(name, "Size"));
+            assertEquals("hits",    Long.valueOf(1),    server.getAttribute(name, "HitCount"));
+            assertEquals("misses",  Long.valueOf(1),    server.getAttribute(name, "MissCount"));
+        }
+        finally
+        {
+            server.unregisterMBean(name);
+        }
+    }
+
+
+    public void testRetrieveAllWithoutBatchRetriever() throws Exception
+    {
+        for (Synchronization sync : Synchronization.values())
+        {
+            ReadThroughCache<Integer,Integer> cache
+                = new ReadThroughCache.Builder<Integer,Integer>(10, new DistinctValueRetriever())
+                  .synchronization(sync)
+                  .recordStats()
+                  .build();
+
+            Integer cached = cache.retrieve(Integer.valueOf(2));
+
+            Map<Integer,Integer> result = cache.retrieveAll(Arrays.asList(3, 2, 1, 3));
+            assertEquals(sync + ": keys in order",        Arrays.asList(3, 2, 1), new ArrayList<Integer>(result.keySet()));
+            assertEquals(sync + ": values",               Arrays.asList(3, 2, 1), new ArrayList<Integer>(result.values()));
+            assertSame(sync + ": cached value",           cached, result.get(Integer.valueOf(2)));
+            assertEquals(sync + ": cache size",           3, cache.size());
+            assertEquals(sync + ": retriever calls",      3, cache.stats().getLoadSuccessCount());
+        }
+    }
+
+
+    public void testRetrieveAllWithBatchRetriever() throws Exception
+    {
+        for (Synchronization sync : Synchronization.values())
+        {
+            LatchedBatchRetriever retriever = new LatchedBatchRetriever();
+            retriever.latch.countDown();
+            ReadThroughCache<String,String> cache
+                = new ReadThroughCache.Builder<String,String>(10, retriever)
+                  .synchronization(sync)
+                  .build();
+
+            cache.retrieve("foo");
+
+            Map<String,String> result = cache.retrieveAll(Arrays.asList("bar", "foo", "missing", "baz"));
+            assertEquals(sync + ": result size",          4, result.size());
+            assertEquals(sync + ": bar",                  "bar-value", result.get("bar"));
+            assertEquals(sync + ": foo",                  "foo-value", result.get("foo"));
+            assertEquals(sync + ": baz",                  "baz-value", result.get("baz"));
+            assertNull(sync + ": missing",                result.get("missing"));
+            assertTrue(sync + ": missing key in result",  result.containsKey("missing"));
+
+            assertEquals(sync + ": single retrieves",     Arrays.asList("foo"), retriever.singles);
+            assertEquals(sync + ": batches",              1, retriever.batches.size());
+            assertEquals(sync + ": batch keys",           Arrays.asList("bar", "missing", "baz"), retriever.batches.get(0));
+
+            // the missing key was cached as null, so shouldn't invoke the retriever again
+            assertNull(sync + ": retrieve missing",       cache.retrieve("missing"));
+            assertEquals(sync + ": cache size",           4, cache.size());
+            assertEquals(sync + ": batches",              1, retriever.batches.size());
+            assertEquals(sync + ": single retrieves",     1, retriever.singles.size());
+        }
+    }
+
+
+    public void testRetrieveAllSharesInFlightLoads() throws Exception
+    {
+        final LatchedBatchRetriever retriever = new LatchedBatchRetriever();
+        final ReadThroughCache<String,String> cache = new ReadThroughCache<String,String>(10, retriever);
+
+        final Object[] results = new Object[2];
+        Thread thread1 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[0] = cache.retrieve("foo");
+                }
+                catch (InterruptedException ignored)
+                {
+                    // test will fail
+                }
+            }
+        });
+        Thread thread2 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[1] = cache.retrieveAll(Arrays.asList("foo", "bar", "baz"));
+                }
+                catch (InterruptedException ignored)
+                {
+                    // test will fail
+                }
+            }
+        });
+
+        thread1.start();
+        Thread.sleep(DEFAULT_DELAY);
+        thread2.start();
+        Thread.sleep(DEFAULT_DELAY);
+        retriever.latch.countDown();
+        join(thread1, thread2);
+
+        assertEquals("single retrieves",    Arrays.asList("foo"), retriever.singles);
+        assertEquals("batches",             1, retriever.batches.size());
+        assertEquals("batch keys",          Arrays.asList("bar", "baz"), retriever.batches.get(0));
+
+        assertEquals("single result",       "foo-value", results[0]);
+        Map<String,String> expected = new HashMap<String,String>();
+        expected.put("foo", "foo-value");
+        expected.put("bar", "bar-value");
+        expected.put("baz", "baz-value");
+        assertEquals("batch result",        expected, results[1]);
+    }
+
+
+    public void testRetrieveAllBatchFailureSharedWithWaiters() throws Exception
+    {
+        final LatchedBatchRetriever retriever = new LatchedBatchRetriever();
+        final ReadThroughCache<String,String> cache = new ReadThroughCache<String,String>(10, retriever);
+
+        final Throwable[] exceptions = new Throwable[2];
+        Thread thread1 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    cache.retrieveAll(Arrays.asList("foo", "fail"));
+                }
+                catch (Throwable ex)
+                {
+                    exceptions[0] = ex;
+                }
+            }
+        });
+        Thread thread2 = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    cache.retrieve("foo");
+                }
+                catch (Throwable ex)
+                {
+                    exceptions[1] = ex;
+                }
+            }
+        });
+
+        thread1.start();
+        Thread.sleep(DEFAULT_DELAY);
+        thread2.start();
+        Thread.sleep(DEFAULT_DELAY);
+        retriever.latch.countDown();
+        join(thread1, thread2);
+
+        assertTrue("batch thread exception",        exceptions[0] instanceof IllegalStateException);
+        assertSame("waiting thread exception",      exceptions[0], exceptions[1]);
+        assertEquals("single retrieves",            0, retriever.singles.size());
+        assertEquals("cache size",                  0, cache.size());
+
+        // and a subsequent retrieve should load normally
+        assertEquals("retrieve after failure",      "foo-value", cache.retrieve("foo"));
+    }
 }